@@ -0,0 +1,212 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.devmaster.elasticsearch.index.mapper;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.FlightRecorderListener;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+import org.devmaster.elasticsearch.index.mapper.RecurringStats.Evaluation;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The {@link RecurringEvents} recorded by Java Flight Recorder, loaded by {@link RecurringEvents#install()} on runtimes
+ * with {@code jdk.jfr}. Every event is disabled by default, enable {@code org.devmaster.recurring.*} in the settings of
+ * a recording. Events are only created while a recording has one of them enabled, a listener follows the recordings.
+ */
+final class JfrRecurringEvents extends RecurringEvents {
+
+    private static final List<Class<? extends Event>> EVENTS = Arrays.asList(RuleCompileEvent.class,
+            RuleIteratorEvent.class, RuleEvaluationEvent.class, SourceLoadEvent.class);
+
+    private static final JfrRecurringEvents INSTANCE = new JfrRecurringEvents();
+
+    private final ThreadLocal<RuleEvaluationEvent> evaluations = new ThreadLocal<>();
+
+    private JfrRecurringEvents() {
+    }
+
+    public static void register() {
+        for (Class<? extends Event> event : EVENTS) {
+            FlightRecorder.register(event);
+        }
+        FlightRecorder.addListener(new FlightRecorderListener() {
+            @Override
+            public void recordingStateChanged(Recording recording) {
+                update();
+            }
+        });
+        update();
+    }
+
+    private static void update() {
+        boolean enabled = false;
+        for (Class<? extends Event> event : EVENTS) {
+            enabled |= EventType.getEventType(event).isEnabled();
+        }
+        setCurrent(enabled ? INSTANCE : null);
+    }
+
+    @Override
+    Object beginCompile() {
+        RuleCompileEvent event = new RuleCompileEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endCompile(Object event, CompiledRule rule) {
+        RuleCompileEvent compile = (RuleCompileEvent) event;
+        compile.end();
+        if (compile.shouldCommit()) {
+            compile.fingerprint = rule.fingerprint();
+            compile.rule = rule.getSource();
+            compile.commit();
+        }
+    }
+
+    @Override
+    Object beginIterator() {
+        RuleIteratorEvent event = new RuleIteratorEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endIterator(Object event, CompiledRule rule) {
+        RuleIteratorEvent iterator = (RuleIteratorEvent) event;
+        iterator.end();
+        if (iterator.shouldCommit()) {
+            iterator.fingerprint = rule.fingerprint();
+            iterator.commit();
+        }
+    }
+
+    @Override
+    void beginEvaluation() {
+        RuleEvaluationEvent event = new RuleEvaluationEvent();
+        event.begin();
+        evaluations.set(event);
+    }
+
+    @Override
+    void endEvaluation(Evaluation evaluation, Recurring recurring, long steps) {
+        RuleEvaluationEvent event = evaluations.get();
+        if (event == null) {
+            // the recording started during the evaluation
+            return;
+        }
+        evaluations.set(null);
+        event.end();
+        if (event.shouldCommit()) {
+            event.evaluation = evaluation.toString();
+            event.field = recurring.values() != null ? recurring.values().field() : null;
+            event.fingerprint = recurring.fingerprint();
+            event.steps = steps;
+            event.commit();
+        }
+    }
+
+    @Override
+    Object beginSourceLoad() {
+        SourceLoadEvent event = new SourceLoadEvent();
+        event.begin();
+        return event;
+    }
+
+    @Override
+    void endSourceLoad(Object event, String field, Recurring recurring) {
+        SourceLoadEvent load = (SourceLoadEvent) event;
+        load.end();
+        if (load.shouldCommit()) {
+            load.field = field;
+            load.found = recurring != null;
+            load.fingerprint = recurring != null ? recurring.fingerprint() : null;
+            load.commit();
+        }
+    }
+
+    @Name("org.devmaster.recurring.RuleCompile")
+    @Label("Rule Compile")
+    @Category({"Elasticsearch", "Recurring"})
+    @Description("Parsing of a rule, once per rule while it stays in the rule cache")
+    @Enabled(false)
+    static final class RuleCompileEvent extends Event {
+
+        @Label("Fingerprint")
+        String fingerprint;
+
+        @Label("Rule")
+        String rule;
+    }
+
+    @Name("org.devmaster.recurring.RuleIterator")
+    @Label("Rule Iterator")
+    @Category({"Elasticsearch", "Recurring"})
+    @Description("Creation of an iterator over the occurrences of a rule which has no closed form")
+    @Enabled(false)
+    static final class RuleIteratorEvent extends Event {
+
+        @Label("Fingerprint")
+        String fingerprint;
+    }
+
+    @Name("org.devmaster.recurring.RuleEvaluation")
+    @Label("Rule Evaluation")
+    @Category({"Elasticsearch", "Recurring"})
+    @Description("Evaluation of the rule of a document by a query, a script, an aggregation, a fetch or the calendar")
+    @Enabled(false)
+    static final class RuleEvaluationEvent extends Event {
+
+        @Label("Evaluation")
+        String evaluation;
+
+        @Label("Field")
+        String field;
+
+        @Label("Fingerprint")
+        String fingerprint;
+
+        @Label("Steps")
+        @Description("Occurrences walked, not counted for requests without expansion limits")
+        long steps;
+    }
+
+    @Name("org.devmaster.recurring.SourceLoad")
+    @Label("Source Load")
+    @Category({"Elasticsearch", "Recurring"})
+    @Description("Read of a recurring value from _source, for documents indexed without doc values")
+    @Enabled(false)
+    static final class SourceLoadEvent extends Event {
+
+        @Label("Field")
+        String field;
+
+        @Label("Found")
+        boolean found;
+
+        @Label("Fingerprint")
+        String fingerprint;
+    }
+}
@@ -0,0 +1,177 @@
+package org.devmaster.elasticsearch.index.mapper;
+
+import org.elasticsearch.common.settings.Settings;
+import org.joda.time.LocalDate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.text.ParseException;
+import java.util.BitSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the methods of {@link Recurring} for every {@link RuleShape}, rules started from 1 to 20 years before
+ * {@link #TODAY} and windows from one day to one year starting on it. Rules are compiled once through a
+ * {@link RuleCache}, as they are on a node, so the benchmarks measure the walks of the rules.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class RecurringBenchmark {
+
+	/**
+	 * Fixed, so that results do not drift with the day the benchmarks are run.
+	 */
+	static final int TODAY = EpochDays.of(2019, 6, 3);
+
+	private static final int DATES = 16;
+
+	@Param
+	public RuleShape rule;
+
+	@Param({"1", "5", "20"})
+	public int yearsAgo;
+
+	@Param({"1", "30", "365"})
+	public int windowDays;
+
+	private Recurring recurring;
+	private int from;
+	private int to;
+	private LocalDate fromDate;
+	private LocalDate toDate;
+	private String fromString;
+	private String toString;
+	private int[] days;
+	private int[] windowStarts;
+	private int[] windowEnds;
+	private BitSet matched;
+
+	@Setup
+	public void setup() {
+		String start = EpochDays.toLocalDate(TODAY).minusYears(yearsAgo).toString();
+		recurring = new Recurring(start, null, rule.rrule(), new RuleCache(Settings.EMPTY));
+		from = TODAY;
+		to = TODAY + windowDays - 1;
+		fromDate = EpochDays.toLocalDate(from);
+		toDate = EpochDays.toLocalDate(to);
+		fromString = fromDate.toString();
+		toString = toDate.toString();
+
+		// dates and windows spread over the window, as sent in the dates and windows script parameters
+		days = new int[DATES];
+		windowStarts = new int[DATES];
+		windowEnds = new int[DATES];
+		for (int i = 0; i < DATES; i++) {
+			days[i] = from + (int) ((long) i * windowDays / DATES);
+			windowStarts[i] = days[i];
+			windowEnds[i] = days[i] + Math.max(windowDays / DATES - 1, 0);
+		}
+		matched = new BitSet(DATES);
+	}
+
+	@Benchmark
+	public boolean occursOn() throws ParseException {
+		return recurring.occursOn(from);
+	}
+
+	@Benchmark
+	public boolean hasOccurrencesAt() throws ParseException {
+		return recurring.hasOccurrencesAt(fromDate);
+	}
+
+	@Benchmark
+	public boolean occursBetween() throws ParseException {
+		return recurring.occursBetween(from, to);
+	}
+
+	@Benchmark
+	public boolean occurBetween() throws ParseException {
+		return recurring.occurBetween(fromString, toString);
+	}
+
+	@Benchmark
+	public BitSet occursOnSeveralDays() throws ParseException {
+		matched.clear();
+		return recurring.occursOn(days, matched);
+	}
+
+	@Benchmark
+	public BitSet occursBetweenSeveralWindows() throws ParseException {
+		matched.clear();
+		return recurring.occursBetween(windowStarts, windowEnds, matched);
+	}
+
+	@Benchmark
+	public int nextOccurrence() throws ParseException {
+		return recurring.nextOccurrence(from);
+	}
+
+	@Benchmark
+	public LocalDate getNextOccurrence() throws ParseException {
+		return recurring.getNextOccurrence(fromDate);
+	}
+
+	@Benchmark
+	public int occurrenceOnOrAfter() throws ParseException {
+		return recurring.occurrenceOnOrAfter(from);
+	}
+
+	@Benchmark
+	public boolean notHasExpired() throws ParseException {
+		return recurring.notHasExpired(from);
+	}
+
+	@Benchmark
+	public Object occurrencesBetween() throws ParseException {
+		return recurring.occurrencesBetween(from, to);
+	}
+
+	@Benchmark
+	public Object occurrencesBetweenLocalDates() throws ParseException {
+		return recurring.occurrencesBetween(fromDate, toDate);
+	}
+
+	@Benchmark
+	public OccurrencePage occurrencePage() throws ParseException {
+		return recurring.occurrencePage(from, to, Integer.MIN_VALUE, 10);
+	}
+
+	@Benchmark
+	public boolean hasOccurrencesBetween() throws ParseException {
+		return recurring.hasOccurrencesBetween(from, to);
+	}
+
+	@Benchmark
+	public boolean hasAnyOccurrenceBetween() throws ParseException {
+		return recurring.hasAnyOccurrenceBetween(from, to);
+	}
+
+	@Benchmark
+	public void forEachOccurrenceBetween(Blackhole blackhole) throws ParseException {
+		recurring.forEachOccurrenceBetween(from, to, blackhole::consume);
+	}
+
+	@Benchmark
+	public LocalDate lastOccurrence() throws ParseException {
+		return recurring.getLastOccurrence();
+	}
+
+	@Benchmark
+	public Recurring copy() {
+		return recurring.copy();
+	}
+}
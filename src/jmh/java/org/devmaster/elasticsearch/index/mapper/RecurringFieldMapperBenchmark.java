@@ -0,0 +1,97 @@
+package org.devmaster.elasticsearch.index.mapper;
+
+import org.devmaster.elasticsearch.plugin.RecurringPlugin;
+import org.elasticsearch.common.bytes.BytesReference;
+import org.elasticsearch.common.compress.CompressedXContent;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.XContentType;
+import org.elasticsearch.core.internal.io.IOUtils;
+import org.elasticsearch.index.MapperTestUtils;
+import org.elasticsearch.index.mapper.DocumentMapper;
+import org.elasticsearch.index.mapper.MapperService;
+import org.elasticsearch.index.mapper.ParsedDocument;
+import org.elasticsearch.index.mapper.SourceToParse;
+import org.elasticsearch.indices.IndicesModule;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link RecurringFieldMapper#parse} through the parsing of a document holding a single recurring field, with
+ * and without materialized occurrences. The document mapper and its sub fields are included, as they are when a node
+ * indexes the document.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class RecurringFieldMapperBenchmark {
+
+	@Param
+	public RuleShape rule;
+
+	@Param({"1", "20"})
+	public int yearsAgo;
+
+	@Param({"", "1y"})
+	public String materializeHorizon;
+
+	private Path home;
+	private DocumentMapper mapper;
+	private SourceToParse source;
+
+	@Setup
+	public void setup() throws IOException {
+		home = Files.createTempDirectory("recurring-benchmark");
+		IndicesModule indicesModule = new IndicesModule(Collections.singletonList(new RecurringPlugin(Settings.EMPTY)));
+		MapperService mapperService = MapperTestUtils.newMapperService(NamedXContentRegistry.EMPTY, home, Settings.EMPTY,
+			indicesModule, "benchmark");
+
+		XContentBuilder mapping = XContentFactory.jsonBuilder().startObject().startObject("event").startObject("properties")
+			.startObject("recurrent_date").field("type", "recurring");
+		if (materializeHorizon.isEmpty() == false) {
+			mapping.field("materialize_horizon", materializeHorizon);
+		}
+		mapping.endObject().endObject().endObject().endObject();
+		mapper = mapperService.merge("event", new CompressedXContent(BytesReference.bytes(mapping)),
+			MapperService.MergeReason.MAPPING_UPDATE, false);
+
+		XContentBuilder document = XContentFactory.jsonBuilder().startObject().startObject("recurrent_date")
+			.field("start_date", EpochDays.toLocalDate(RecurringBenchmark.TODAY).minusYears(yearsAgo).toString());
+		if (rule.rrule() != null) {
+			document.field("rrule", rule.rrule());
+		}
+		document.endObject().endObject();
+		source = SourceToParse.source("benchmark", "event", "1", BytesReference.bytes(document), XContentType.JSON);
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		IOUtils.rm(home);
+	}
+
+	@Benchmark
+	public ParsedDocument parse() {
+		return mapper.parse(source);
+	}
+}
@@ -0,0 +1,33 @@
+package org.devmaster.elasticsearch.index.mapper;
+
+/**
+ * The rules measured by the benchmarks, from the cheapest to walk to the most expensive: plain frequencies, rules with
+ * BY* parts expanding several occurrences per period, and rules bounded by COUNT or UNTIL.
+ */
+public enum RuleShape {
+
+	PLAIN_DATE(null),
+	DAILY("RRULE:FREQ=DAILY"),
+	DAILY_COUNT("RRULE:FREQ=DAILY;COUNT=1000"),
+	WEEKLY("RRULE:FREQ=WEEKLY"),
+	WEEKLY_BYDAY("RRULE:FREQ=WEEKLY;BYDAY=MO,WE,FR"),
+	WEEKLY_INTERVAL_UNTIL("RRULE:FREQ=WEEKLY;INTERVAL=2;BYDAY=TU;UNTIL=20391231"),
+	MONTHLY("RRULE:FREQ=MONTHLY"),
+	MONTHLY_BYMONTHDAY("RRULE:FREQ=MONTHLY;BYMONTHDAY=1,15"),
+	MONTHLY_BYSETPOS("RRULE:FREQ=MONTHLY;BYDAY=MO,TU,WE,TH,FR;BYSETPOS=-1"),
+	YEARLY("RRULE:FREQ=YEARLY"),
+	YEARLY_BYMONTH_COUNT("RRULE:FREQ=YEARLY;BYMONTH=12;BYMONTHDAY=25;COUNT=30");
+
+	private final String rrule;
+
+	RuleShape(String rrule) {
+		this.rrule = rrule;
+	}
+
+	/**
+	 * The rule, {@code null} for a plain date.
+	 */
+	public String rrule() {
+		return rrule;
+	}
+}
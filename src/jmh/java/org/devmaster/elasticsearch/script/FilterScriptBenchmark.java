@@ -0,0 +1,159 @@
+package org.devmaster.elasticsearch.script;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.devmaster.elasticsearch.index.mapper.ExpansionLimits;
+import org.devmaster.elasticsearch.plugin.RecurringPlugin;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.script.FilterScript;
+import org.elasticsearch.script.ScriptEngine;
+import org.elasticsearch.script.SearchScript;
+import org.elasticsearch.search.lookup.LeafSearchLookup;
+import org.elasticsearch.search.lookup.SearchLookup;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the filter scripts with the former filters, which wrapped the search scripts and tested
+ * {@code runAsDouble() != 0.0}, over a segment of {@value #DOCS} documents started since 2000 and a window of ten years.
+ * Scores are per document.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Benchmark)
+public class FilterScriptBenchmark {
+
+	private static final int DOCS = 20000;
+
+	private static final String[] RULES = {
+		"",
+		"RRULE:FREQ=DAILY",
+		"RRULE:FREQ=WEEKLY;BYDAY=MO,WE,FR",
+		"RRULE:FREQ=MONTHLY;BYMONTHDAY=15",
+		"RRULE:FREQ=YEARLY;BYMONTH=12;BYMONTHDAY=25",
+		"RRULE:FREQ=MONTHLY;BYDAY=MO,TU,WE,TH,FR;BYSETPOS=-1",
+		"RRULE:FREQ=WEEKLY;INTERVAL=2;BYDAY=TU;COUNT=500"
+	};
+
+	@Param({"occurrencesBetween", "hasAnyOccurrenceBetween", "occurBetween", "nextOccurrence", "hasOccurrencesAt"})
+	public String script;
+
+	private Directory directory;
+	private DirectoryReader reader;
+	private LeafReaderContext leaf;
+	private SearchScript.LeafFactory searchFactory;
+	private FilterScript.LeafFactory filterFactory;
+
+	@Setup
+	public void setup() throws IOException {
+		directory = new ByteBuffersDirectory();
+		index(directory);
+		reader = DirectoryReader.open(directory);
+		leaf = reader.leaves().get(0);
+
+		// the budget of a factory covers all the iterations, only the limit per document is left
+		Settings settings = Settings.builder()
+			.put(ExpansionLimits.MAX_OCCURRENCES_PER_REQUEST_SETTING.getKey(), Long.MAX_VALUE)
+			.build();
+		ScriptEngine engine = new RecurringPlugin(settings).getScriptEngine(settings, Collections.emptyList());
+		SearchLookup lookup = new SearchLookup(null, null, new String[0]) {
+			@Override
+			public LeafSearchLookup getLeafSearchLookup(LeafReaderContext context) {
+				// the scripts read doc values themselves, the lookup is left out of the measure
+				return new LeafSearchLookup(context, null, null, null) {
+					@Override
+					public void setDocument(int docId) {
+					}
+				};
+			}
+		};
+
+		Map<String, Object> params = new HashMap<>();
+		params.put("field", "recurring");
+		params.put("start", "2020-01-01");
+		params.put("end", "2029-12-31");
+		params.put("date", "2024-06-14");
+		searchFactory = engine.compile(script, script, SearchScript.CONTEXT, Collections.emptyMap()).newFactory(params, lookup);
+		filterFactory = engine.compile(script, script, FilterScript.CONTEXT, Collections.emptyMap()).newFactory(params, lookup);
+	}
+
+	private static void index(Directory directory) throws IOException {
+		Random random = new Random(42);
+		try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+			for (int i = 0; i < DOCS; i++) {
+				LocalDate start = new LocalDate(2000, 1, 1).plusDays(random.nextInt(365 * 25));
+				Document doc = new Document();
+				doc.add(new SortedDocValuesField("recurring", new BytesRef(RULES[random.nextInt(RULES.length)])));
+				doc.add(new SortedNumericDocValuesField("recurring.start_date",
+					start.toDateTimeAtStartOfDay(DateTimeZone.UTC).getMillis()));
+				writer.addDocument(doc);
+			}
+			writer.forceMerge(1);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		reader.close();
+		directory.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DOCS)
+	public int wrapper() throws IOException {
+		SearchScript searchScript = searchFactory.newInstance(leaf);
+		int matches = 0;
+		for (int doc = 0; doc < DOCS; doc++) {
+			searchScript.setDocument(doc);
+			if (searchScript.runAsDouble() != 0.0) {
+				matches++;
+			}
+		}
+		return matches;
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DOCS)
+	public int filter() throws IOException {
+		FilterScript filterScript = filterFactory.newInstance(leaf);
+		int matches = 0;
+		for (int doc = 0; doc < DOCS; doc++) {
+			filterScript.setDocument(doc);
+			if (filterScript.execute()) {
+				matches++;
+			}
+		}
+		return matches;
+	}
+}
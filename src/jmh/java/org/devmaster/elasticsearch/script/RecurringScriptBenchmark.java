@@ -0,0 +1,181 @@
+package org.devmaster.elasticsearch.script;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.store.ByteBuffersDirectory;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.devmaster.elasticsearch.index.mapper.ExpansionLimits;
+import org.devmaster.elasticsearch.index.mapper.RuleShape;
+import org.devmaster.elasticsearch.plugin.RecurringPlugin;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.script.FilterScript;
+import org.elasticsearch.script.ScriptEngine;
+import org.elasticsearch.script.SearchScript;
+import org.elasticsearch.search.lookup.LeafSearchLookup;
+import org.elasticsearch.search.lookup.SearchLookup;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the native scripts over a segment of {@value #DOCS} documents holding every {@link RuleShape}, started
+ * within the year {@code yearsAgo} years before the window. {@link AbstractRecurringSearchScript#getRecurring()} alone
+ * measures the reading of the doc values and the compiled rules, the other benchmarks add the evaluation of the script.
+ * Scores are per document.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class RecurringScriptBenchmark {
+
+	private static final int DOCS = 10000;
+
+	private static final LocalDate WINDOW_START = new LocalDate(2019, 6, 3);
+
+	@Param({"hasOccurrencesAt", "occurBetween", "hasAnyOccurrenceBetween", "nextOccurrence", "notHasExpired",
+		"occurrencesBetween"})
+	public String script;
+
+	@Param({"1", "5", "20"})
+	public int yearsAgo;
+
+	@Param({"1", "30", "365"})
+	public int windowDays;
+
+	private Directory directory;
+	private DirectoryReader reader;
+	private LeafReaderContext leaf;
+	private SearchScript.LeafFactory searchFactory;
+	private FilterScript.LeafFactory filterFactory;
+
+	@Setup
+	public void setup() throws IOException {
+		directory = new ByteBuffersDirectory();
+		index(directory, yearsAgo);
+		reader = DirectoryReader.open(directory);
+		leaf = reader.leaves().get(0);
+
+		// the budget of a factory covers all the iterations, only the limit per document is left
+		Settings settings = Settings.builder()
+			.put(ExpansionLimits.MAX_OCCURRENCES_PER_REQUEST_SETTING.getKey(), Long.MAX_VALUE)
+			.build();
+		ScriptEngine engine = new RecurringPlugin(settings).getScriptEngine(settings, Collections.emptyList());
+		SearchLookup lookup = new SearchLookup(null, null, new String[0]) {
+			@Override
+			public LeafSearchLookup getLeafSearchLookup(LeafReaderContext context) {
+				// the scripts read doc values themselves, the lookup is left out of the measure
+				return new LeafSearchLookup(context, null, null, null) {
+					@Override
+					public void setDocument(int docId) {
+					}
+				};
+			}
+		};
+
+		Map<String, Object> params = new HashMap<>();
+		params.put("field", "recurring");
+		params.put("date", WINDOW_START.toString());
+		params.put("start", WINDOW_START.toString());
+		params.put("end", WINDOW_START.plusDays(windowDays - 1).toString());
+		params.put("from", WINDOW_START.toString());
+		searchFactory = engine.compile(script, script, SearchScript.CONTEXT, Collections.emptyMap()).newFactory(params, lookup);
+		filterFactory = engine.compile(script, script, FilterScript.CONTEXT, Collections.emptyMap()).newFactory(params, lookup);
+	}
+
+	private static void index(Directory directory, int yearsAgo) throws IOException {
+		Random random = new Random(42);
+		RuleShape[] rules = RuleShape.values();
+		LocalDate first = WINDOW_START.minusYears(yearsAgo);
+		try (IndexWriter writer = new IndexWriter(directory, new IndexWriterConfig())) {
+			for (int i = 0; i < DOCS; i++) {
+				RuleShape rule = rules[random.nextInt(rules.length)];
+				LocalDate start = first.plusDays(random.nextInt(365));
+				Document doc = new Document();
+				doc.add(new SortedDocValuesField("recurring", new BytesRef(rule.rrule() != null ? rule.rrule() : "")));
+				doc.add(new SortedNumericDocValuesField("recurring.start_date",
+					start.toDateTimeAtStartOfDay(DateTimeZone.UTC).getMillis()));
+				writer.addDocument(doc);
+			}
+			writer.forceMerge(1);
+		}
+	}
+
+	@TearDown
+	public void tearDown() throws IOException {
+		reader.close();
+		directory.close();
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DOCS)
+	public void getRecurring(Blackhole blackhole) throws IOException {
+		AbstractRecurringSearchScript searchScript = (AbstractRecurringSearchScript) searchFactory.newInstance(leaf);
+		for (int doc = 0; doc < DOCS; doc++) {
+			searchScript.setDocument(doc);
+			blackhole.consume(searchScript.getRecurring());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DOCS)
+	public void run(Blackhole blackhole) throws IOException {
+		SearchScript searchScript = searchFactory.newInstance(leaf);
+		for (int doc = 0; doc < DOCS; doc++) {
+			searchScript.setDocument(doc);
+			blackhole.consume(searchScript.run());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DOCS)
+	public void runAsDouble(Blackhole blackhole) throws IOException {
+		SearchScript searchScript = searchFactory.newInstance(leaf);
+		for (int doc = 0; doc < DOCS; doc++) {
+			searchScript.setDocument(doc);
+			blackhole.consume(searchScript.runAsDouble());
+		}
+	}
+
+	@Benchmark
+	@OperationsPerInvocation(DOCS)
+	public int filter() throws IOException {
+		FilterScript filterScript = filterFactory.newInstance(leaf);
+		int matches = 0;
+		for (int doc = 0; doc < DOCS; doc++) {
+			filterScript.setDocument(doc);
+			if (filterScript.execute()) {
+				matches++;
+			}
+		}
+		return matches;
+	}
+}
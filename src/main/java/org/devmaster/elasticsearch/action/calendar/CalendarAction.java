@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.action.calendar;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+/**
+ * Lists the occurrences of a {@code recurring} field within a window for the documents matching a query, ordered by
+ * date.
+ */
+public class CalendarAction extends Action<CalendarRequest, CalendarResponse, CalendarRequestBuilder> {
+
+    public static final CalendarAction INSTANCE = new CalendarAction();
+    public static final String NAME = "indices:data/read/recurring/calendar";
+
+    private CalendarAction() {
+        super(NAME);
+    }
+
+    @Override
+    public CalendarResponse newResponse() {
+        return new CalendarResponse();
+    }
+
+    @Override
+    public CalendarRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new CalendarRequestBuilder(client, this);
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.action.calendar;
+
+import org.devmaster.elasticsearch.index.mapper.EpochDays;
+import org.elasticsearch.action.ActionRequestValidationException;
+import org.elasticsearch.action.support.broadcast.BroadcastRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.query.MatchAllQueryBuilder;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.tasks.CancellableTask;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskId;
+
+import java.io.IOException;
+import java.util.Map;
+
+import static org.elasticsearch.action.ValidateActions.addValidationError;
+
+/**
+ * Request of a {@link CalendarAction}: the first {@link #size()} occurrences of {@link #field()} within
+ * [{@link #from()}, {@link #to()}] of the documents matching {@link #query()}. Without {@link #to()}, the request is
+ * the feed of the next {@link #size()} occurrences. The request can be cancelled through the task management API, its
+ * shard requests are cancelled with it.
+ */
+public class CalendarRequest extends BroadcastRequest<CalendarRequest> {
+
+    public static final int DEFAULT_SIZE = 10000;
+
+    private String field;
+    private String from;
+    private String to;
+    private int size = DEFAULT_SIZE;
+    private QueryBuilder query = new MatchAllQueryBuilder();
+    private long nowInMillis;
+
+    public CalendarRequest(String... indices) {
+        super(indices);
+    }
+
+    @Override
+    public ActionRequestValidationException validate() {
+        ActionRequestValidationException validationException = super.validate();
+        if (field == null) {
+            validationException = addValidationError("[field] is missing", validationException);
+        }
+        validationException = validateDate("from", from, validationException);
+        validationException = validateDate("to", to, validationException);
+        if (validationException == null && from != null && to != null && EpochDays.parse(from) > EpochDays.parse(to)) {
+            validationException = addValidationError("[from] must be on or before [to]", validationException);
+        }
+        if (size < 0) {
+            validationException = addValidationError("[size] must not be negative, got [" + size + "]", validationException);
+        }
+        if (query == null) {
+            validationException = addValidationError("[query] is missing", validationException);
+        }
+        return validationException;
+    }
+
+    private static ActionRequestValidationException validateDate(String name, String value,
+                                                                 ActionRequestValidationException validationException) {
+        if (value == null) {
+            return validationException;
+        }
+        try {
+            EpochDays.parse(value);
+        } catch (IllegalArgumentException e) {
+            return addValidationError("unable to parse [" + name + "]: " + e.getMessage(), validationException);
+        }
+        return validationException;
+    }
+
+    public String field() {
+        return field;
+    }
+
+    public CalendarRequest field(String field) {
+        this.field = field;
+        return this;
+    }
+
+    public String from() {
+        return from;
+    }
+
+    /**
+     * First day of the window, included, today when omitted.
+     */
+    public CalendarRequest from(String from) {
+        this.from = from;
+        return this;
+    }
+
+    public String to() {
+        return to;
+    }
+
+    /**
+     * Last day of the window, included. The window has no end when omitted.
+     */
+    public CalendarRequest to(String to) {
+        this.to = to;
+        return this;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Maximum number of occurrences returned, {@value #DEFAULT_SIZE} by default.
+     */
+    public CalendarRequest size(int size) {
+        this.size = size;
+        return this;
+    }
+
+    public QueryBuilder query() {
+        return query;
+    }
+
+    public CalendarRequest query(QueryBuilder query) {
+        this.query = query;
+        return this;
+    }
+
+    /**
+     * The time the request was received, used as the current time by the query on every shard.
+     */
+    long nowInMillis() {
+        return nowInMillis;
+    }
+
+    void nowInMillis(long nowInMillis) {
+        this.nowInMillis = nowInMillis;
+    }
+
+    @Override
+    public Task createTask(long id, String type, String action, TaskId parentTaskId, Map<String, String> headers) {
+        return new CancellableTask(id, type, action, getDescription(), parentTaskId, headers) {
+            @Override
+            public boolean shouldCancelChildrenOnCancellation() {
+                return true;
+            }
+        };
+    }
+
+    @Override
+    public String getDescription() {
+        return toString();
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        field = in.readString();
+        from = in.readOptionalString();
+        to = in.readOptionalString();
+        size = in.readVInt();
+        query = in.readNamedWriteable(QueryBuilder.class);
+        nowInMillis = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(field);
+        out.writeOptionalString(from);
+        out.writeOptionalString(to);
+        out.writeVInt(size);
+        out.writeNamedWriteable(query);
+        out.writeVLong(nowInMillis);
+    }
+
+    @Override
+    public String toString() {
+        return "calendar of [" + field + "] from [" + from + "] to [" + to + "], size [" + size + "], query [" + query + "]";
+    }
+}
@@ -0,0 +1,51 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.action.calendar;
+
+import org.elasticsearch.action.support.broadcast.BroadcastOperationRequestBuilder;
+import org.elasticsearch.client.ElasticsearchClient;
+import org.elasticsearch.index.query.QueryBuilder;
+
+public class CalendarRequestBuilder extends BroadcastOperationRequestBuilder<CalendarRequest, CalendarResponse, CalendarRequestBuilder> {
+
+    public CalendarRequestBuilder(ElasticsearchClient client, CalendarAction action) {
+        super(client, action, new CalendarRequest());
+    }
+
+    public CalendarRequestBuilder setField(String field) {
+        request.field(field);
+        return this;
+    }
+
+    public CalendarRequestBuilder setFrom(String from) {
+        request.from(from);
+        return this;
+    }
+
+    public CalendarRequestBuilder setTo(String to) {
+        request.to(to);
+        return this;
+    }
+
+    public CalendarRequestBuilder setSize(int size) {
+        request.size(size);
+        return this;
+    }
+
+    public CalendarRequestBuilder setQuery(QueryBuilder query) {
+        request.query(query);
+        return this;
+    }
+}
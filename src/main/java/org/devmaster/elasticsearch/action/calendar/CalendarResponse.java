@@ -0,0 +1,133 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.action.calendar;
+
+import org.apache.lucene.util.PriorityQueue;
+import org.devmaster.elasticsearch.index.mapper.EpochDays;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Response of a {@link CalendarAction}. Shards send their occurrences already ordered by date, they are merged while
+ * they are written, without building the merged list.
+ */
+public class CalendarResponse extends BroadcastResponse {
+
+    /**
+     * Receives the occurrences of a {@link CalendarResponse} in order, {@code day} in days since 1970-01-01.
+     */
+    @FunctionalInterface
+    public interface OccurrenceConsumer {
+        void accept(String index, String id, int day) throws IOException;
+    }
+
+    private int size;
+    private List<ShardCalendarResponse> shards;
+
+    CalendarResponse() {
+    }
+
+    CalendarResponse(int size, List<ShardCalendarResponse> shards, int totalShards, int successfulShards, int failedShards,
+                     List<DefaultShardOperationFailedException> shardFailures) {
+        super(totalShards, successfulShards, failedShards, shardFailures);
+        this.size = size;
+        this.shards = shards;
+    }
+
+    /**
+     * Passes the first {@code size} occurrences of all shards to {@code consumer} ordered by date, then by shard.
+     */
+    public void forEachOccurrence(OccurrenceConsumer consumer) throws IOException {
+        PriorityQueue<ShardCursor> queue = new PriorityQueue<ShardCursor>(shards.size()) {
+            @Override
+            protected boolean lessThan(ShardCursor a, ShardCursor b) {
+                int day = Integer.compare(a.day(), b.day());
+                return day != 0 ? day < 0 : a.shard < b.shard;
+            }
+        };
+        for (int i = 0; i < shards.size(); i++) {
+            if (shards.get(i).size() > 0) {
+                queue.add(new ShardCursor(i, shards.get(i)));
+            }
+        }
+
+        for (int count = 0; count < size && queue.size() > 0; count++) {
+            ShardCursor top = queue.top();
+            consumer.accept(top.response.getIndex(), top.response.id(top.position), top.day());
+            if (++top.position < top.response.size()) {
+                queue.updateTop();
+            } else {
+                queue.pop();
+            }
+        }
+    }
+
+    @Override
+    protected void addCustomXContentFields(XContentBuilder builder, Params params) throws IOException {
+        builder.startArray("occurrences");
+        forEachOccurrence((index, id, day) -> builder.startObject()
+                .field("_index", index)
+                .field("_id", id)
+                .field("date", EpochDays.toLocalDate(day).toString())
+                .endObject());
+        builder.endArray();
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        size = in.readVInt();
+        int count = in.readVInt();
+        shards = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            ShardCalendarResponse shard = new ShardCalendarResponse();
+            shard.readFrom(in);
+            shards.add(shard);
+        }
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(size);
+        out.writeVInt(shards.size());
+        for (ShardCalendarResponse shard : shards) {
+            shard.writeTo(out);
+        }
+    }
+
+    private static final class ShardCursor {
+
+        private final int shard;
+        private final ShardCalendarResponse response;
+        private int position;
+
+        ShardCursor(int shard, ShardCalendarResponse response) {
+            this.shard = shard;
+            this.response = response;
+        }
+
+        int day() {
+            return response.day(position);
+        }
+    }
+}
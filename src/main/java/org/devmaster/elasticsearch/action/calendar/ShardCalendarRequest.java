@@ -0,0 +1,111 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.action.calendar;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardRequest;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.tasks.CancellableTask;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskId;
+
+import java.io.IOException;
+import java.util.Map;
+
+class ShardCalendarRequest extends BroadcastShardRequest {
+
+    private String field;
+    private String from;
+    private String to;
+    private int size;
+    private QueryBuilder query;
+    private long nowInMillis;
+
+    ShardCalendarRequest() {
+    }
+
+    ShardCalendarRequest(ShardId shardId, CalendarRequest request) {
+        super(shardId, request);
+        this.field = request.field();
+        this.from = request.from();
+        this.to = request.to();
+        this.size = request.size();
+        this.query = request.query();
+        this.nowInMillis = request.nowInMillis();
+    }
+
+    String field() {
+        return field;
+    }
+
+    String from() {
+        return from;
+    }
+
+    String to() {
+        return to;
+    }
+
+    int size() {
+        return size;
+    }
+
+    QueryBuilder query() {
+        return query;
+    }
+
+    long nowInMillis() {
+        return nowInMillis;
+    }
+
+    @Override
+    public Task createTask(long id, String type, String action, TaskId parentTaskId, Map<String, String> headers) {
+        return new CancellableTask(id, type, action, getDescription(), parentTaskId, headers) {
+            @Override
+            public boolean shouldCancelChildrenOnCancellation() {
+                return false;
+            }
+        };
+    }
+
+    @Override
+    public String getDescription() {
+        return "shard " + shardId() + ", calendar of [" + field + "] from [" + from + "] to [" + to + "]";
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        field = in.readString();
+        from = in.readOptionalString();
+        to = in.readOptionalString();
+        size = in.readVInt();
+        query = in.readNamedWriteable(QueryBuilder.class);
+        nowInMillis = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeString(field);
+        out.writeOptionalString(from);
+        out.writeOptionalString(to);
+        out.writeVInt(size);
+        out.writeNamedWriteable(query);
+        out.writeVLong(nowInMillis);
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.action.calendar;
+
+import org.elasticsearch.action.support.broadcast.BroadcastShardResponse;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.index.shard.ShardId;
+
+import java.io.IOException;
+
+/**
+ * The occurrences of a shard ordered by date: occurrence {@code i} is on {@code days[i]} and belongs to the document
+ * {@code ids[docs[i]]}. Each id is sent once whatever the number of occurrences of its document.
+ */
+class ShardCalendarResponse extends BroadcastShardResponse {
+
+    private int[] days;
+    private int[] docs;
+    private String[] ids;
+
+    ShardCalendarResponse() {
+    }
+
+    ShardCalendarResponse(ShardId shardId, int[] days, int[] docs, String[] ids) {
+        super(shardId);
+        this.days = days;
+        this.docs = docs;
+        this.ids = ids;
+    }
+
+    int size() {
+        return days.length;
+    }
+
+    int day(int i) {
+        return days[i];
+    }
+
+    String id(int i) {
+        return ids[docs[i]];
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        int size = in.readVInt();
+        days = new int[size];
+        docs = new int[size];
+        for (int i = 0; i < size; i++) {
+            days[i] = in.readInt();
+            docs[i] = in.readVInt();
+        }
+        ids = in.readStringArray();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVInt(days.length);
+        for (int i = 0; i < days.length; i++) {
+            out.writeInt(days[i]);
+            out.writeVInt(docs[i]);
+        }
+        out.writeStringArray(ids);
+    }
+}
@@ -0,0 +1,381 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.action.calendar;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.PriorityQueue;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.devmaster.elasticsearch.index.mapper.EpochDays;
+import org.devmaster.elasticsearch.index.mapper.ExpansionBudget;
+import org.devmaster.elasticsearch.index.mapper.Recurring;
+import org.devmaster.elasticsearch.index.mapper.RecurringFieldMapper;
+import org.devmaster.elasticsearch.index.mapper.RecurringFieldMapper.RecurringFieldType;
+import org.devmaster.elasticsearch.index.mapper.RecurringValues;
+import org.elasticsearch.action.ActionListener;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.DefaultShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.BroadcastShardOperationFailedException;
+import org.elasticsearch.action.support.broadcast.TransportBroadcastAction;
+import org.elasticsearch.cluster.ClusterState;
+import org.elasticsearch.cluster.block.ClusterBlockException;
+import org.elasticsearch.cluster.block.ClusterBlockLevel;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.routing.GroupShardsIterator;
+import org.elasticsearch.cluster.routing.ShardIterator;
+import org.elasticsearch.cluster.routing.ShardRouting;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.IndexService;
+import org.elasticsearch.index.engine.Engine;
+import org.elasticsearch.index.fieldvisitor.FieldsVisitor;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.index.query.Rewriteable;
+import org.elasticsearch.index.shard.IndexShard;
+import org.elasticsearch.indices.IndicesService;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import org.elasticsearch.tasks.CancellableTask;
+import org.elasticsearch.tasks.Task;
+import org.elasticsearch.tasks.TaskCancelledException;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+import org.joda.time.LocalDate;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Lists the first occurrences of the matching documents on each shard, ordered by date. The work of a shard is
+ * proportional to the number of matching documents plus the requested size, not to the length of the window: without
+ * an end date the calendar is the feed of the next occurrences. Ids are only read for the documents that are listed.
+ */
+public class TransportCalendarAction
+        extends TransportBroadcastAction<CalendarRequest, CalendarResponse, ShardCalendarRequest, ShardCalendarResponse> {
+
+    private final IndicesService indicesService;
+    private final CircuitBreakerService breakerService;
+
+    @Inject
+    public TransportCalendarAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                   TransportService transportService, IndicesService indicesService,
+                                   CircuitBreakerService breakerService, ActionFilters actionFilters,
+                                   IndexNameExpressionResolver indexNameExpressionResolver) {
+        super(settings, CalendarAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, CalendarRequest::new, ShardCalendarRequest::new, ThreadPool.Names.SEARCH);
+        this.indicesService = indicesService;
+        this.breakerService = breakerService;
+    }
+
+    @Override
+    protected void doExecute(Task task, CalendarRequest request, ActionListener<CalendarResponse> listener) {
+        request.nowInMillis(System.currentTimeMillis());
+        super.doExecute(task, request, listener);
+    }
+
+    @Override
+    protected ShardCalendarRequest newShardRequest(int numShards, ShardRouting shard, CalendarRequest request) {
+        return new ShardCalendarRequest(shard.shardId(), request);
+    }
+
+    @Override
+    protected ShardCalendarResponse newShardResponse() {
+        return new ShardCalendarResponse();
+    }
+
+    @Override
+    protected GroupShardsIterator<ShardIterator> shards(ClusterState clusterState, CalendarRequest request, String[] concreteIndices) {
+        return clusterService.operationRouting().searchShards(clusterState, concreteIndices, null, null);
+    }
+
+    @Override
+    protected ClusterBlockException checkGlobalBlock(ClusterState state, CalendarRequest request) {
+        return state.blocks().globalBlockedException(ClusterBlockLevel.READ);
+    }
+
+    @Override
+    protected ClusterBlockException checkRequestBlock(ClusterState state, CalendarRequest request, String[] concreteIndices) {
+        return state.blocks().indicesBlockedException(ClusterBlockLevel.READ, concreteIndices);
+    }
+
+    @Override
+    @SuppressWarnings("rawtypes")
+    protected CalendarResponse newResponse(CalendarRequest request, AtomicReferenceArray shardsResponses, ClusterState clusterState) {
+        int successfulShards = 0;
+        int failedShards = 0;
+        List<DefaultShardOperationFailedException> shardFailures = new ArrayList<>();
+        List<ShardCalendarResponse> shards = new ArrayList<>();
+        for (int i = 0; i < shardsResponses.length(); i++) {
+            Object shardResponse = shardsResponses.get(i);
+            if (shardResponse == null) {
+                // a non active shard, ignore
+            } else if (shardResponse instanceof BroadcastShardOperationFailedException) {
+                failedShards++;
+                shardFailures.add(new DefaultShardOperationFailedException((BroadcastShardOperationFailedException) shardResponse));
+            } else {
+                successfulShards++;
+                shards.add((ShardCalendarResponse) shardResponse);
+            }
+        }
+        return new CalendarResponse(request.size(), shards, shardsResponses.length(), successfulShards, failedShards,
+                shardFailures);
+    }
+
+    @Override
+    protected ShardCalendarResponse shardOperation(ShardCalendarRequest request, Task task) throws IOException {
+        IndexService indexService = indicesService.indexServiceSafe(request.shardId().getIndex());
+        IndexShard indexShard = indexService.getShard(request.shardId().id());
+        MappedFieldType fieldType = indexService.mapperService().fullName(request.field());
+        if (fieldType == null || request.size() == 0) {
+            return new ShardCalendarResponse(request.shardId(), new int[0], new int[0], new String[0]);
+        }
+        if (fieldType instanceof RecurringFieldType == false) {
+            throw new IllegalArgumentException("Calendar requires a field of type [" + RecurringFieldMapper.CONTENT_TYPE
+                    + "], but [" + request.field() + "] is of type [" + fieldType.typeName() + "]");
+        }
+        RecurringFieldType recurringFieldType = (RecurringFieldType) fieldType;
+
+        // the rules walked for this shard stop once the calendar is cancelled
+        ExpansionBudget.setCheckCancelled(() -> {
+            if (task instanceof CancellableTask && ((CancellableTask) task).isCancelled()) {
+                throw new TaskCancelledException("cancelled");
+            }
+        });
+        try (Engine.Searcher searcher = indexShard.acquireSearcher("recurring_calendar")) {
+            QueryShardContext context = indexService.newQueryShardContext(request.shardId().id(), searcher.reader(),
+                    request::nowInMillis, null);
+            Query query = Rewriteable.rewrite(request.query(), context, true).toQuery(context);
+            Weight weight = searcher.searcher().createWeight(searcher.searcher().rewrite(query), false, 1f);
+
+            int from = request.from() != null ? EpochDays.parse(request.from()) : EpochDays.of(new LocalDate(request.nowInMillis()));
+            int to = request.to() != null ? EpochDays.parse(request.to()) : Recurring.NONE - 1;
+            int maxSeeds = Math.min(request.size(), searcher.reader().maxDoc());
+            ExpansionBudget budget = recurringFieldType.expansionLimits().newBudget();
+            Occurrences occurrences = new Occurrences(from, to, request.size(), maxSeeds, request.field(),
+                    breakerService.getBreaker(CircuitBreaker.REQUEST));
+            try {
+                for (LeafReaderContext leaf : searcher.reader().leaves()) {
+                    Scorer scorer = weight.scorer(leaf);
+                    if (scorer == null) {
+                        continue;
+                    }
+                    RecurringValues values = RecurringValues.forLeaf(leaf, recurringFieldType.name(),
+                            recurringFieldType.ruleCache(), budget);
+                    Bits liveDocs = leaf.reader().getLiveDocs();
+                    DocIdSetIterator it = scorer.iterator();
+                    for (int doc = it.nextDoc(); doc != DocIdSetIterator.NO_MORE_DOCS; doc = it.nextDoc()) {
+                        if (liveDocs == null || liveDocs.get(doc)) {
+                            occurrences.collect(values, doc, leaf.docBase);
+                        }
+                    }
+                }
+                return occurrences.toResponse(request, searcher, indexService);
+            } finally {
+                occurrences.release();
+            }
+        } finally {
+            ExpansionBudget.setCheckCancelled(null);
+        }
+    }
+
+    /**
+     * The first occurrences of a shard. Every document gets a cursor on its occurrences, but only the {@code size}
+     * documents with the earliest first occurrence can be listed: they are kept in a bounded heap, and documents
+     * starting after the last of them are skipped from their start date doc value. The occurrences are then merged
+     * from the cursors of these documents, so the rules are walked for {@code size} occurrences whatever the window.
+     * The memory of the seeds and of the listed occurrences is accounted to the request circuit breaker while they are
+     * built.
+     */
+    private static final class Occurrences {
+
+        /**
+         * Estimated size of a seed: its cursor, the copy of its value and its slot in the heap.
+         */
+        private static final long SEED_BYTES = 128;
+
+        /**
+         * Estimated size of a listed occurrence: its day, its doc, its reference to the id and the id itself.
+         */
+        private static final long OCCURRENCE_BYTES = 16 + 64;
+
+        private static final String BREAKER_LABEL = "<recurring_calendar>";
+
+        private final int from;
+        private final int to;
+        private final int size;
+        private final int maxSeeds;
+        private final String field;
+        private final CircuitBreaker breaker;
+        private final PriorityQueue<Cursor> seeds;
+        private long reserved;
+
+        Occurrences(int from, int to, int size, int maxSeeds, String field, CircuitBreaker breaker) {
+            this.from = from;
+            this.to = to;
+            this.size = size;
+            this.maxSeeds = maxSeeds;
+            this.field = field;
+            this.breaker = breaker;
+            reserve(maxSeeds * (long) RamUsageEstimator.NUM_BYTES_OBJECT_REF);
+            this.seeds = new PriorityQueue<Cursor>(maxSeeds) {
+                @Override
+                protected boolean lessThan(Cursor a, Cursor b) {
+                    return a.compareTo(b) > 0;
+                }
+            };
+        }
+
+        void collect(RecurringValues values, int doc, int docBase) throws IOException {
+            Cursor last = seeds.size() == maxSeeds ? seeds.top() : null;
+            if (last != null) {
+                int startDay = values.startDay(doc);
+                // no occurrence is before the start date
+                if (startDay != RecurringValues.UNKNOWN && startDay >= last.day) {
+                    return;
+                }
+            }
+            Recurring recurring = values.get(doc);
+            if (recurring == null) {
+                return;
+            }
+            int first = occurrenceOnOrAfter(recurring, from);
+            // documents are collected in increasing order, a tie with the last seed is after it
+            if (first > to || (last != null && first >= last.day)) {
+                return;
+            }
+            if (seeds.size() < maxSeeds) {
+                reserve(SEED_BYTES);
+            }
+            seeds.insertWithOverflow(new Cursor(first, docBase + doc, recurring.copy()));
+        }
+
+        private void reserve(long bytes) {
+            breaker.addEstimateBytesAndMaybeBreak(bytes, BREAKER_LABEL);
+            reserved += bytes;
+        }
+
+        /**
+         * Releases the memory accounted to the circuit breaker, once the response of the shard is built or failed.
+         */
+        void release() {
+            breaker.addWithoutBreaking(-reserved);
+            reserved = 0;
+        }
+
+        ShardCalendarResponse toResponse(ShardCalendarRequest request, Engine.Searcher searcher,
+                                         IndexService indexService) throws IOException {
+            PriorityQueue<Cursor> queue = new PriorityQueue<Cursor>(seeds.size()) {
+                @Override
+                protected boolean lessThan(Cursor a, Cursor b) {
+                    return a.compareTo(b) < 0;
+                }
+            };
+            for (Cursor seed : seeds) {
+                queue.add(seed);
+            }
+
+            int count = 0;
+            int[] days = new int[Math.min(size, 16)];
+            int[] docs = new int[days.length];
+            reserve(days.length * OCCURRENCE_BYTES);
+            while (count < size && queue.size() > 0) {
+                Cursor top = queue.top();
+                if (count == days.length) {
+                    days = ArrayUtil.grow(days, count + 1);
+                    docs = ArrayUtil.grow(docs, days.length);
+                    reserve((days.length - count) * OCCURRENCE_BYTES);
+                }
+                days[count] = top.day;
+                docs[count] = top.doc;
+                count++;
+
+                int next = top.day < to ? occurrenceOnOrAfter(top.recurring, top.day + 1) : Recurring.NONE;
+                if (next > to) {
+                    queue.pop();
+                } else {
+                    top.day = next;
+                    queue.updateTop();
+                }
+            }
+            days = Arrays.copyOf(days, count);
+
+            int[] uniqueDocs = Arrays.copyOf(docs, count);
+            Arrays.sort(uniqueDocs);
+            int uniqueCount = 0;
+            for (int i = 0; i < uniqueDocs.length; i++) {
+                if (i == 0 || uniqueDocs[i] != uniqueDocs[i - 1]) {
+                    uniqueDocs[uniqueCount++] = uniqueDocs[i];
+                }
+            }
+
+            // stored fields are read in doc id order
+            String[] ids = new String[uniqueCount];
+            FieldsVisitor visitor = new FieldsVisitor(false);
+            for (int i = 0; i < uniqueCount; i++) {
+                visitor.reset();
+                searcher.reader().document(uniqueDocs[i], visitor);
+                visitor.postProcess(indexService.mapperService());
+                ids[i] = visitor.uid().id();
+            }
+
+            int[] refs = new int[count];
+            for (int i = 0; i < count; i++) {
+                refs[i] = Arrays.binarySearch(uniqueDocs, 0, uniqueCount, docs[i]);
+            }
+            return new ShardCalendarResponse(request.shardId(), days, refs, ids);
+        }
+
+        private int occurrenceOnOrAfter(Recurring recurring, int day) {
+            try {
+                return recurring.occurrenceOnOrAfter(day);
+            } catch (ParseException e) {
+                throw new IllegalArgumentException("Unable to evaluate rule of field [" + field + "]: " + e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * The next occurrence of a document, documents are ordered by this occurrence then by doc id.
+     */
+    private static final class Cursor implements Comparable<Cursor> {
+
+        private final int doc;
+        private final Recurring recurring;
+        private int day;
+
+        Cursor(int day, int doc, Recurring recurring) {
+            this.day = day;
+            this.doc = doc;
+            this.recurring = recurring;
+        }
+
+        @Override
+        public int compareTo(Cursor other) {
+            int cmp = Integer.compare(day, other.day);
+            return cmp != 0 ? cmp : Integer.compare(doc, other.doc);
+        }
+    }
+}
@@ -0,0 +1,211 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.devmaster.elasticsearch.action.stats;
+
+import org.HdrHistogram.Histogram;
+import org.devmaster.elasticsearch.index.mapper.RecurringStats;
+import org.devmaster.elasticsearch.index.mapper.RecurringStats.Evaluation;
+import org.devmaster.elasticsearch.index.mapper.RuleCache;
+import org.devmaster.elasticsearch.index.query.RecurringResultCache;
+import org.elasticsearch.action.support.nodes.BaseNodeResponse;
+import org.elasticsearch.cluster.node.DiscoveryNode;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.ToXContentFragment;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+
+import java.io.IOException;
+
+/**
+ * The stats of a node, taken when the request reached it. Latencies are sent as percentiles, not as histograms: they
+ * are not merged across nodes.
+ */
+public class NodeRecurringStats extends BaseNodeResponse implements ToXContentFragment {
+
+    private static final double[] PERCENTILES = {50, 90, 99, 99.9};
+    private static final String[] PERCENTILE_FIELDS = {"p50_in_nanos", "p90_in_nanos", "p99_in_nanos", "p999_in_nanos"};
+
+    private long[] evaluations;
+    private long occurrencesWalked;
+    private long docValuesReads;
+    private long sourceReads;
+
+    private long ruleCacheSize;
+    private long ruleCacheHits;
+    private long ruleCacheMisses;
+    private long ruleCacheEvictions;
+    private long ruleCompilations;
+
+    private long resultCacheSize;
+    private long resultCacheMemorySize;
+    private long resultCacheHits;
+    private long resultCacheMisses;
+    private long resultCacheEvictions;
+
+    private long latencyCount;
+    private long latencyMin;
+    private double latencyMean;
+    private long[] latencyPercentiles;
+    private long latencyMax;
+
+    NodeRecurringStats() {
+    }
+
+    NodeRecurringStats(DiscoveryNode node, RecurringStats stats, RuleCache ruleCache, RecurringResultCache resultCache) {
+        super(node);
+        evaluations = new long[Evaluation.values().length];
+        for (Evaluation evaluation : Evaluation.values()) {
+            evaluations[evaluation.ordinal()] = stats.evaluations(evaluation);
+        }
+        occurrencesWalked = stats.occurrencesWalked();
+        docValuesReads = stats.docValuesReads();
+        sourceReads = stats.sourceReads();
+
+        Cache.CacheStats ruleCacheStats = ruleCache.stats();
+        ruleCacheSize = ruleCache.count();
+        ruleCacheHits = ruleCacheStats.getHits();
+        ruleCacheMisses = ruleCacheStats.getMisses();
+        ruleCacheEvictions = ruleCacheStats.getEvictions();
+        ruleCompilations = ruleCache.compilations();
+
+        Cache.CacheStats resultCacheStats = resultCache.stats();
+        resultCacheSize = resultCache.count();
+        resultCacheMemorySize = resultCache.ramBytesUsed();
+        resultCacheHits = resultCacheStats.getHits();
+        resultCacheMisses = resultCacheStats.getMisses();
+        resultCacheEvictions = resultCacheStats.getEvictions();
+
+        Histogram latency = stats.latency();
+        latencyCount = latency.getTotalCount();
+        latencyMin = latency.getMinValue();
+        latencyMean = latencyCount == 0 ? 0 : latency.getMean();
+        latencyPercentiles = new long[PERCENTILES.length];
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            latencyPercentiles[i] = latency.getValueAtPercentile(PERCENTILES[i]);
+        }
+        latencyMax = latency.getMaxValue();
+    }
+
+    public long evaluations(Evaluation evaluation) {
+        return evaluations[evaluation.ordinal()];
+    }
+
+    public long occurrencesWalked() {
+        return occurrencesWalked;
+    }
+
+    public long ruleCompilations() {
+        return ruleCompilations;
+    }
+
+    public long latencyCount() {
+        return latencyCount;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject("evaluations");
+        for (Evaluation evaluation : Evaluation.values()) {
+            builder.field(evaluation.toString(), evaluations[evaluation.ordinal()]);
+        }
+        builder.endObject();
+        builder.field("occurrences_walked", occurrencesWalked);
+        builder.startObject("values")
+                .field("doc_values", docValuesReads)
+                .field("source", sourceReads)
+                .endObject();
+
+        builder.startObject("rule_cache")
+                .field("size", ruleCacheSize)
+                .field("hits", ruleCacheHits)
+                .field("misses", ruleCacheMisses)
+                .field("evictions", ruleCacheEvictions)
+                .field("hit_rate", hitRate(ruleCacheHits, ruleCacheMisses))
+                .field("compilations", ruleCompilations)
+                .endObject();
+        builder.startObject("result_cache")
+                .field("size", resultCacheSize)
+                .field("memory_size_in_bytes", resultCacheMemorySize)
+                .field("hits", resultCacheHits)
+                .field("misses", resultCacheMisses)
+                .field("evictions", resultCacheEvictions)
+                .field("hit_rate", hitRate(resultCacheHits, resultCacheMisses))
+                .endObject();
+
+        builder.startObject("evaluation_latency")
+                .field("count", latencyCount)
+                .field("min_in_nanos", latencyMin)
+                .field("mean_in_nanos", latencyMean);
+        for (int i = 0; i < PERCENTILES.length; i++) {
+            builder.field(PERCENTILE_FIELDS[i], latencyPercentiles[i]);
+        }
+        builder.field("max_in_nanos", latencyMax);
+        return builder.endObject();
+    }
+
+    private static double hitRate(long hits, long misses) {
+        return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+    }
+
+    @Override
+    public void readFrom(StreamInput in) throws IOException {
+        super.readFrom(in);
+        evaluations = in.readVLongArray();
+        occurrencesWalked = in.readVLong();
+        docValuesReads = in.readVLong();
+        sourceReads = in.readVLong();
+        ruleCacheSize = in.readVLong();
+        ruleCacheHits = in.readVLong();
+        ruleCacheMisses = in.readVLong();
+        ruleCacheEvictions = in.readVLong();
+        ruleCompilations = in.readVLong();
+        resultCacheSize = in.readVLong();
+        resultCacheMemorySize = in.readVLong();
+        resultCacheHits = in.readVLong();
+        resultCacheMisses = in.readVLong();
+        resultCacheEvictions = in.readVLong();
+        latencyCount = in.readVLong();
+        latencyMin = in.readVLong();
+        latencyMean = in.readDouble();
+        latencyPercentiles = in.readVLongArray();
+        latencyMax = in.readVLong();
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        super.writeTo(out);
+        out.writeVLongArray(evaluations);
+        out.writeVLong(occurrencesWalked);
+        out.writeVLong(docValuesReads);
+        out.writeVLong(sourceReads);
+        out.writeVLong(ruleCacheSize);
+        out.writeVLong(ruleCacheHits);
+        out.writeVLong(ruleCacheMisses);
+        out.writeVLong(ruleCacheEvictions);
+        out.writeVLong(ruleCompilations);
+        out.writeVLong(resultCacheSize);
+        out.writeVLong(resultCacheMemorySize);
+        out.writeVLong(resultCacheHits);
+        out.writeVLong(resultCacheMisses);
+        out.writeVLong(resultCacheEvictions);
+        out.writeVLong(latencyCount);
+        out.writeVLong(latencyMin);
+        out.writeDouble(latencyMean);
+        out.writeVLongArray(latencyPercentiles);
+        out.writeVLong(latencyMax);
+    }
+}
@@ -0,0 +1,42 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.devmaster.elasticsearch.action.stats;
+
+import org.elasticsearch.action.Action;
+import org.elasticsearch.client.ElasticsearchClient;
+
+/**
+ * Returns the counters of the rule evaluations, the rule cache and the result cache of the nodes.
+ */
+public class RecurringStatsAction extends Action<RecurringStatsRequest, RecurringStatsResponse, RecurringStatsRequestBuilder> {
+
+    public static final RecurringStatsAction INSTANCE = new RecurringStatsAction();
+    public static final String NAME = "cluster:monitor/recurring/stats";
+
+    private RecurringStatsAction() {
+        super(NAME);
+    }
+
+    @Override
+    public RecurringStatsResponse newResponse() {
+        return new RecurringStatsResponse();
+    }
+
+    @Override
+    public RecurringStatsRequestBuilder newRequestBuilder(ElasticsearchClient client) {
+        return new RecurringStatsRequestBuilder(client, this);
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.devmaster.elasticsearch.action.stats;
+
+import org.devmaster.elasticsearch.index.mapper.RecurringStats;
+import org.devmaster.elasticsearch.index.mapper.RuleCache;
+import org.devmaster.elasticsearch.index.query.RecurringResultCache;
+import org.elasticsearch.action.FailedNodeException;
+import org.elasticsearch.action.support.ActionFilters;
+import org.elasticsearch.action.support.nodes.TransportNodesAction;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.inject.Inject;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.transport.TransportService;
+
+import java.util.List;
+
+/**
+ * Reads the stats of each node. The counters are read without stopping the searches, a snapshot is not atomic across
+ * counters.
+ */
+public class TransportRecurringStatsAction extends TransportNodesAction<RecurringStatsRequest, RecurringStatsResponse,
+        NodeRecurringStatsRequest, NodeRecurringStats> {
+
+    private final RecurringStats stats;
+    private final RuleCache ruleCache;
+    private final RecurringResultCache resultCache;
+
+    @Inject
+    public TransportRecurringStatsAction(Settings settings, ThreadPool threadPool, ClusterService clusterService,
+                                         TransportService transportService, ActionFilters actionFilters,
+                                         IndexNameExpressionResolver indexNameExpressionResolver, RecurringStats stats,
+                                         RuleCache ruleCache, RecurringResultCache resultCache) {
+        super(settings, RecurringStatsAction.NAME, threadPool, clusterService, transportService, actionFilters,
+                indexNameExpressionResolver, RecurringStatsRequest::new, NodeRecurringStatsRequest::new,
+                ThreadPool.Names.MANAGEMENT, NodeRecurringStats.class);
+        this.stats = stats;
+        this.ruleCache = ruleCache;
+        this.resultCache = resultCache;
+    }
+
+    @Override
+    protected RecurringStatsResponse newResponse(RecurringStatsRequest request, List<NodeRecurringStats> nodes,
+                                                 List<FailedNodeException> failures) {
+        return new RecurringStatsResponse(clusterService.getClusterName(), nodes, failures);
+    }
+
+    @Override
+    protected NodeRecurringStatsRequest newNodeRequest(String nodeId, RecurringStatsRequest request) {
+        return new NodeRecurringStatsRequest(nodeId);
+    }
+
+    @Override
+    protected NodeRecurringStats newNodeResponse() {
+        return new NodeRecurringStats();
+    }
+
+    @Override
+    protected NodeRecurringStats nodeOperation(NodeRecurringStatsRequest request) {
+        return new NodeRecurringStats(clusterService.localNode(), stats, ruleCache, resultCache);
+    }
+}
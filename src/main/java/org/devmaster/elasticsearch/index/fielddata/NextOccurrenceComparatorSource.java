@@ -0,0 +1,183 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.index.fielddata;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.FieldComparator;
+import org.apache.lucene.search.SimpleFieldComparator;
+import org.apache.lucene.search.SortField;
+import org.devmaster.elasticsearch.index.mapper.EpochDays;
+import org.devmaster.elasticsearch.index.mapper.ExpansionBudget;
+import org.devmaster.elasticsearch.index.mapper.ExpansionLimits;
+import org.devmaster.elasticsearch.index.mapper.Recurring;
+import org.devmaster.elasticsearch.index.mapper.RecurringValues;
+import org.devmaster.elasticsearch.index.mapper.RuleCache;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.search.MultiValueMode;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+import java.io.IOException;
+import java.text.ParseException;
+
+/**
+ * Sorts documents on the next occurrence of their recurring field on or after the day of the search in UTC, in days
+ * since 1970-01-01. The day is taken from the time of the search request set on the thread, see
+ * {@link #setNow(Long)}, so that every shard sorts from the same day. Documents without a next occurrence get the
+ * missing value.
+ * <p>
+ * The next occurrence of a document is never before its start date, or the day before for rules. Once the queue of an
+ * ascending sort is full, documents starting after its bottom are rejected from their start date doc value, their
+ * rule is not evaluated.
+ * <p>
+ * Each comparator charges the rules it evaluates to a budget of its own from the {@link ExpansionLimits} of the field.
+ */
+public class NextOccurrenceComparatorSource extends IndexFieldData.XFieldComparatorSource {
+
+    private static final ThreadLocal<Long> NOW = new ThreadLocal<>();
+
+    private final RuleCache ruleCache;
+    private final ExpansionLimits expansionLimits;
+
+    public NextOccurrenceComparatorSource(RuleCache ruleCache, ExpansionLimits expansionLimits, Object missingValue,
+                                          MultiValueMode sortMode, Nested nested) {
+        super(missingValue, sortMode, nested);
+        this.ruleCache = ruleCache;
+        this.expansionLimits = expansionLimits;
+    }
+
+    /**
+     * Sets the time of the search served by the current thread, in milliseconds since the epoch. {@code null} removes
+     * it, it must be removed when the thread is done with the request. Without it sorts start from the current day.
+     */
+    public static void setNow(Long nowInMillis) {
+        if (nowInMillis == null) {
+            NOW.remove();
+        } else {
+            NOW.set(nowInMillis);
+        }
+    }
+
+    static int today() {
+        Long now = NOW.get();
+        return EpochDays.of(new LocalDate(now != null ? now : System.currentTimeMillis(), DateTimeZone.UTC));
+    }
+
+    @Override
+    public SortField.Type reducedType() {
+        return SortField.Type.LONG;
+    }
+
+    @Override
+    public FieldComparator<?> newComparator(String fieldname, int numHits, int sortPos, boolean reversed) {
+        return new NextOccurrenceComparator(fieldname, numHits, (Long) missingObject(missingValue, reversed), reversed == false,
+                today(), expansionLimits.newBudget());
+    }
+
+    private final class NextOccurrenceComparator extends SimpleFieldComparator<Long> {
+
+        private final String field;
+        private final long[] values;
+        private final long missing;
+        private final boolean ascending;
+        private final int from;
+        private final ExpansionBudget budget;
+
+        private RecurringValues docValues;
+        private long bottom;
+        private long top;
+        private int lastDoc = -1;
+        private long lastValue;
+
+        NextOccurrenceComparator(String field, int numHits, long missing, boolean ascending, int from,
+                                 ExpansionBudget budget) {
+            this.field = field;
+            this.values = new long[numHits];
+            this.missing = missing;
+            this.ascending = ascending;
+            this.from = from;
+            this.budget = budget;
+        }
+
+        @Override
+        protected void doSetNextReader(LeafReaderContext context) throws IOException {
+            docValues = RecurringValues.forLeaf(context, field, ruleCache, budget);
+            lastDoc = -1;
+        }
+
+        @Override
+        public int compare(int slot1, int slot2) {
+            return Long.compare(values[slot1], values[slot2]);
+        }
+
+        @Override
+        public void setBottom(int slot) {
+            bottom = values[slot];
+        }
+
+        @Override
+        public void setTopValue(Long value) {
+            top = value;
+        }
+
+        @Override
+        public int compareBottom(int doc) throws IOException {
+            if (ascending && missing >= bottom) {
+                int startDay = docValues.startDay(doc);
+                // rules are iterated from the day before their start date, see Recurring#nextOccurrence
+                if (startDay != RecurringValues.UNKNOWN && startDay - 1L >= bottom) {
+                    return Long.compare(bottom, startDay - 1L);
+                }
+            }
+            return Long.compare(bottom, docValue(doc));
+        }
+
+        @Override
+        public int compareTop(int doc) throws IOException {
+            return Long.compare(top, docValue(doc));
+        }
+
+        @Override
+        public void copy(int slot, int doc) throws IOException {
+            values[slot] = docValue(doc);
+        }
+
+        @Override
+        public Long value(int slot) {
+            return values[slot];
+        }
+
+        private long docValue(int doc) throws IOException {
+            if (doc != lastDoc) {
+                lastValue = nextOccurrence(doc);
+                lastDoc = doc;
+            }
+            return lastValue;
+        }
+
+        private long nextOccurrence(int doc) throws IOException {
+            Recurring recurring = docValues.get(doc);
+            if (recurring == null) {
+                return missing;
+            }
+            try {
+                int next = recurring.nextOccurrence(from);
+                return next != Recurring.NONE ? next : missing;
+            } catch (ParseException e) {
+                throw new IllegalArgumentException("Unable to evaluate rule of field [" + field + "]: " + e.getMessage(), e);
+            }
+        }
+    }
+}
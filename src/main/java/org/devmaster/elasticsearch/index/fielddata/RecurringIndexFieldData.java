@@ -0,0 +1,79 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.index.fielddata;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.SortField;
+import org.devmaster.elasticsearch.index.mapper.ExpansionLimits;
+import org.devmaster.elasticsearch.index.mapper.RuleCache;
+import org.elasticsearch.index.Index;
+import org.elasticsearch.index.fielddata.AtomicFieldData;
+import org.elasticsearch.index.fielddata.IndexFieldData;
+import org.elasticsearch.search.MultiValueMode;
+
+/**
+ * Field data of a recurring field, which only supports sorting: documents are sorted on their next occurrence from
+ * the day of the search, see {@link NextOccurrenceComparatorSource}. Values are read from the doc values of the
+ * field, nothing is loaded in memory.
+ */
+public class RecurringIndexFieldData implements IndexFieldData<AtomicFieldData> {
+
+    private final Index index;
+    private final String fieldName;
+    private final RuleCache ruleCache;
+    private final ExpansionLimits expansionLimits;
+
+    public RecurringIndexFieldData(Index index, String fieldName, RuleCache ruleCache, ExpansionLimits expansionLimits) {
+        this.index = index;
+        this.fieldName = fieldName;
+        this.ruleCache = ruleCache;
+        this.expansionLimits = expansionLimits;
+    }
+
+    @Override
+    public Index index() {
+        return index;
+    }
+
+    @Override
+    public String getFieldName() {
+        return fieldName;
+    }
+
+    @Override
+    public SortField sortField(Object missingValue, MultiValueMode sortMode, XFieldComparatorSource.Nested nested,
+                               boolean reverse) {
+        if (nested != null) {
+            throw new IllegalArgumentException("Sorting on nested field [" + fieldName + "] of type [recurring] is not supported");
+        }
+        return new SortField(fieldName, new NextOccurrenceComparatorSource(ruleCache, expansionLimits, missingValue,
+                sortMode, null), reverse);
+    }
+
+    @Override
+    public AtomicFieldData load(LeafReaderContext context) {
+        throw new IllegalArgumentException("Field [" + fieldName + "] of type [recurring] only supports sorting");
+    }
+
+    @Override
+    public AtomicFieldData loadDirect(LeafReaderContext context) {
+        return load(context);
+    }
+
+    @Override
+    public void clear() {
+        // nothing is cached
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.index.mapper;
+
+import com.google.ical.compat.jodatime.LocalDateIterator;
+import com.google.ical.compat.jodatime.LocalDateIteratorFactory;
+import com.google.ical.iter.RecurrenceIterator;
+import com.google.ical.iter.RecurrenceIteratorFactory;
+import com.google.ical.values.DateValue;
+import com.google.ical.values.DateValueImpl;
+import com.google.ical.values.RDateList;
+import com.google.ical.values.RRule;
+import com.google.ical.values.TimeValue;
+import org.joda.time.LocalDate;
+
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.TimeZone;
+import java.util.regex.Pattern;
+
+/**
+ * A recurrence rule parsed once and reusable for any start date.
+ * <p>
+ * {@link LocalDateIteratorFactory#createLocalDateIterator(String, LocalDate, boolean)} binds the parsed content
+ * lines to a single start date, so it has to re-parse the rule text for every document. This class keeps the
+ * parsed RRULE/EXRULE/RDATE/EXDATE lines and builds iterators with the same semantics on demand.
+ * <p>
+ * Rules made of DAILY to YEARLY lines and of dates without a time are also compiled to {@link PeriodRule}s and day
+ * numbers, which an {@link OccurrenceCursor} expands without the library.
+ */
+public final class CompiledRule {
+
+    private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+
+    private static final Pattern FOLD = Pattern.compile("(?:\\r\\n?|\\n)[ \t]");
+    private static final Pattern NEWLINE = Pattern.compile("[\\r\\n]+");
+    private static final Pattern RULE = Pattern.compile("^(?:R|EX)RULE[:;]", Pattern.CASE_INSENSITIVE);
+    private static final Pattern DATE = Pattern.compile("^(?:R|EX)DATE[:;]", Pattern.CASE_INSENSITIVE);
+
+    private final String source;
+    private final List<RRule> rules;
+    private final List<RDateList> dates;
+    private final List<RRule> exRules;
+    private final List<RDateList> exDates;
+    private final ParseException strictFailure;
+    private final SimpleRule simpleRule;
+    private final PeriodRule[] periodRules;
+    private final PeriodRule[] periodExRules;
+    private final int[] days;
+    private final int[] exDays;
+    private String fingerprint;
+
+    private CompiledRule(String source, List<RRule> rules, List<RDateList> dates, List<RRule> exRules,
+                         List<RDateList> exDates, ParseException strictFailure) {
+        this.source = source;
+        this.rules = rules;
+        this.dates = dates;
+        this.exRules = exRules;
+        this.exDates = exDates;
+        this.strictFailure = strictFailure;
+        this.simpleRule = rules.size() == 1 && dates.isEmpty() && exRules.isEmpty() && exDates.isEmpty()
+                && strictFailure == null ? SimpleRule.of(rules.get(0)) : null;
+        this.days = daysOf(dates);
+        this.exDays = daysOf(exDates);
+        PeriodRule[] periodRules = periodRulesOf(rules);
+        PeriodRule[] periodExRules = periodRulesOf(exRules);
+        boolean expandable = days != null && exDays != null && periodRules != null && periodExRules != null;
+        this.periodRules = expandable ? periodRules : null;
+        this.periodExRules = expandable ? periodExRules : null;
+    }
+
+    private static PeriodRule[] periodRulesOf(List<RRule> rules) {
+        PeriodRule[] periodRules = new PeriodRule[rules.size()];
+        for (int i = 0; i < periodRules.length; i++) {
+            periodRules[i] = PeriodRule.of(rules.get(i));
+            if (periodRules[i] == null) {
+                return null;
+            }
+        }
+        return periodRules;
+    }
+
+    /**
+     * Returns the sorted and unique days of {@code lists}, or {@code null} if one of them has a time.
+     */
+    private static int[] daysOf(List<RDateList> lists) {
+        int length = 0;
+        for (RDateList list : lists) {
+            length += list.getDatesUtc().length;
+        }
+        int[] days = new int[length];
+        length = 0;
+        for (RDateList list : lists) {
+            for (DateValue date : list.getDatesUtc()) {
+                if (date instanceof TimeValue) {
+                    return null;
+                }
+                days[length++] = EpochDays.of(date.year(), date.month(), date.day());
+            }
+        }
+        Arrays.sort(days);
+        int unique = 0;
+        for (int i = 0; i < days.length; i++) {
+            if (i == 0 || days[i] != days[i - 1]) {
+                days[unique++] = days[i];
+            }
+        }
+        return Arrays.copyOf(days, unique);
+    }
+
+    /**
+     * Returns the key under which a rule is cached: folded lines are unfolded and every line is trimmed, so rules
+     * that only differ in layout share one entry.
+     */
+    public static String normalize(String rrule) {
+        String unfolded = FOLD.matcher(rrule).replaceAll("").trim();
+        if (unfolded.isEmpty()) {
+            return unfolded;
+        }
+        StringBuilder sb = new StringBuilder(unfolded.length());
+        for (String line : NEWLINE.split(unfolded)) {
+            String trimmed = line.trim();
+            if (trimmed.isEmpty()) {
+                continue;
+            }
+            if (sb.length() > 0) {
+                sb.append('\n');
+            }
+            sb.append(trimmed);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Parses a rule. Lines which can not be parsed are kept aside, a strict iterator fails on them while a lenient
+     * one drops them, just like google-rfc-2445 does.
+     */
+    public static CompiledRule compile(String rrule) {
+        RecurringEvents events = RecurringEvents.current();
+        if (events == null) {
+            return parse(rrule);
+        }
+        Object event = events.beginCompile();
+        CompiledRule rule = parse(rrule);
+        events.endCompile(event, rule);
+        return rule;
+    }
+
+    private static CompiledRule parse(String rrule) {
+        String normalized = normalize(rrule);
+        List<RRule> rules = new ArrayList<>(1);
+        List<RDateList> dates = new ArrayList<>(0);
+        List<RRule> exRules = new ArrayList<>(0);
+        List<RDateList> exDates = new ArrayList<>(0);
+        ParseException failure = null;
+
+        if (normalized.isEmpty() == false) {
+            String[] lines = NEWLINE.split(normalized);
+            for (int i = 0; i < lines.length; i++) {
+                String line = lines[i];
+                try {
+                    if (RULE.matcher(line).find()) {
+                        RRule rule = new RRule(line);
+                        if ("rrule".equalsIgnoreCase(rule.getName())) {
+                            rules.add(rule);
+                        } else {
+                            exRules.add(rule);
+                        }
+                    } else if (DATE.matcher(line).find()) {
+                        RDateList list = new RDateList(line, UTC);
+                        if ("rdate".equalsIgnoreCase(list.getName())) {
+                            dates.add(list);
+                        } else {
+                            exDates.add(list);
+                        }
+                    } else {
+                        throw new ParseException(line, i);
+                    }
+                } catch (ParseException | IllegalArgumentException e) {
+                    if (failure == null) {
+                        failure = e instanceof ParseException ? (ParseException) e : parseException(line, i, e);
+                    }
+                }
+            }
+        }
+
+        return new CompiledRule(normalized, Collections.unmodifiableList(rules), Collections.unmodifiableList(dates),
+                Collections.unmodifiableList(exRules), Collections.unmodifiableList(exDates), failure);
+    }
+
+    private static ParseException parseException(String line, int offset, Exception cause) {
+        ParseException e = new ParseException(line, offset);
+        e.initCause(cause);
+        return e;
+    }
+
+    public String getSource() {
+        return source;
+    }
+
+    /**
+     * Returns the fingerprint of this rule, see {@link RecurringSlowLog#fingerprint(String)}.
+     */
+    String fingerprint() {
+        if (fingerprint == null) {
+            fingerprint = RecurringSlowLog.fingerprint(source);
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Returns the closed-form evaluator of this rule, or {@code null} if it can only be iterated.
+     */
+    SimpleRule simpleRule() {
+        return simpleRule;
+    }
+
+    /**
+     * Returns the RRULE lines compiled for an {@link OccurrenceCursor}, or {@code null} if the rule can only be walked
+     * with google-rfc-2445.
+     */
+    PeriodRule[] periodRules() {
+        return periodRules;
+    }
+
+    /**
+     * Returns the EXRULE lines compiled for an {@link OccurrenceCursor}, set along with {@link #periodRules()}.
+     */
+    PeriodRule[] periodExRules() {
+        return periodExRules;
+    }
+
+    /**
+     * Returns the sorted days of the RDATE lines, set along with {@link #periodRules()}.
+     */
+    int[] days() {
+        return days;
+    }
+
+    /**
+     * Returns the sorted days of the EXDATE lines, set along with {@link #periodRules()}.
+     */
+    int[] exDays() {
+        return exDays;
+    }
+
+    /**
+     * Throws the first line which could not be parsed if {@code strict}, as {@link #iterator(LocalDate, boolean)}
+     * does.
+     */
+    void checkStrict(boolean strict) throws ParseException {
+        if (strict && strictFailure != null) {
+            throw strictFailure;
+        }
+    }
+
+    /**
+     * Returns {@code true} if every RRULE line ends, with an UNTIL or a COUNT, so the rule has a last occurrence.
+     */
+    public boolean isBounded() {
+        for (RRule rule : rules) {
+            if (rule.getUntil() == null && rule.getCount() <= 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Creates an iterator over the occurrences of this rule starting at {@code start}, which is always the first
+     * occurrence as in RFC 2445.
+     */
+    public LocalDateIterator iterator(LocalDate start, boolean strict) throws ParseException {
+        RecurringEvents events = RecurringEvents.current();
+        if (events == null) {
+            return newIterator(start, strict);
+        }
+        Object event = events.beginIterator();
+        LocalDateIterator iterator = newIterator(start, strict);
+        events.endIterator(event, this);
+        return iterator;
+    }
+
+    private LocalDateIterator newIterator(LocalDate start, boolean strict) throws ParseException {
+        checkStrict(strict);
+
+        DateValue dtStart = new DateValueImpl(start.getYear(), start.getMonthOfYear(), start.getDayOfMonth());
+        RDateList first = new RDateList(UTC);
+        first.setDatesUtc(new DateValue[] { dtStart });
+
+        List<RecurrenceIterator> inclusions = new ArrayList<>(rules.size() + dates.size());
+        for (RRule rule : rules) {
+            addRuleIterator(inclusions, rule, dtStart, strict);
+        }
+        for (RDateList list : dates) {
+            inclusions.add(RecurrenceIteratorFactory.createRecurrenceIterator(list));
+        }
+
+        RecurrenceIterator it = RecurrenceIteratorFactory.join(RecurrenceIteratorFactory.createRecurrenceIterator(first),
+                inclusions.toArray(new RecurrenceIterator[inclusions.size()]));
+
+        if (exRules.isEmpty() == false || exDates.isEmpty() == false) {
+            List<RecurrenceIterator> exclusions = new ArrayList<>(exRules.size() + exDates.size());
+            for (RRule rule : exRules) {
+                addRuleIterator(exclusions, rule, dtStart, strict);
+            }
+            for (RDateList list : exDates) {
+                exclusions.add(RecurrenceIteratorFactory.createRecurrenceIterator(list));
+            }
+            if (exclusions.isEmpty() == false) {
+                RecurrenceIterator excluded = exclusions.size() == 1 ? exclusions.get(0) :
+                        RecurrenceIteratorFactory.join(exclusions.get(0),
+                                exclusions.subList(1, exclusions.size()).toArray(new RecurrenceIterator[exclusions.size() - 1]));
+                it = RecurrenceIteratorFactory.except(it, excluded);
+            }
+        }
+
+        return LocalDateIteratorFactory.createLocalDateIterator(it);
+    }
+
+    private static void addRuleIterator(List<RecurrenceIterator> iterators, RRule rule, DateValue dtStart, boolean strict) {
+        try {
+            iterators.add(RecurrenceIteratorFactory.createRecurrenceIterator(rule, dtStart, UTC));
+        } catch (IllegalArgumentException e) {
+            // bad frequency, google-rfc-2445 drops the line unless it is strict
+            if (strict) {
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return source;
+    }
+}
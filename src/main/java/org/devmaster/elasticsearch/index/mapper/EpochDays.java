@@ -0,0 +1,130 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.index.mapper;
+
+import org.joda.time.Instant;
+import org.joda.time.LocalDate;
+
+/**
+ * Gregorian calendar arithmetic on days since 1970-01-01, without allocating date objects.
+ */
+public final class EpochDays {
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private static final int[] MONTH_LENGTHS = { 31, 28, 31, 30, 31, 30, 31, 31, 30, 31, 30, 31 };
+
+    private EpochDays() {}
+
+    public static int of(int year, int month, int dayOfMonth) {
+        // days from civil, shifting the year to start in March so the leap day is the last one
+        int y = month <= 2 ? year - 1 : year;
+        int era = Math.floorDiv(y, 400);
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + dayOfMonth - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        return era * 146097 + dayOfEra - 719468;
+    }
+
+    public static int of(LocalDate date) {
+        return of(date.getYear(), date.getMonthOfYear(), date.getDayOfMonth());
+    }
+
+    /**
+     * Parses an ISO date, {@code yyyy-MM-dd} dates are read without allocating.
+     */
+    public static int parse(String date) {
+        if (date.length() == 10 && date.charAt(4) == '-' && date.charAt(7) == '-') {
+            int year = digits(date, 0, 4);
+            int month = digits(date, 5, 7);
+            int dayOfMonth = digits(date, 8, 10);
+            if (year >= 0 && month >= 1 && month <= 12 && dayOfMonth >= 1 && dayOfMonth <= lengthOfMonth(year, month)) {
+                return of(year, month, dayOfMonth);
+            }
+        }
+        return of(new LocalDate(date));
+    }
+
+    /**
+     * Returns the UTC day of an ISO date or date time.
+     */
+    public static int parseInstant(String value) {
+        if (value.length() == 10) {
+            return parse(value);
+        }
+        return (int) Math.floorDiv(Instant.parse(value).getMillis(), MILLIS_PER_DAY);
+    }
+
+    private static int digits(String s, int from, int to) {
+        int value = 0;
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            if (c < '0' || c > '9') {
+                return -1;
+            }
+            value = value * 10 + c - '0';
+        }
+        return value;
+    }
+
+    public static LocalDate toLocalDate(int epochDay) {
+        return new LocalDate(year(epochDay), month(epochDay), dayOfMonth(epochDay));
+    }
+
+    public static int year(int epochDay) {
+        int z = epochDay + 719468;
+        int era = Math.floorDiv(z, 146097);
+        int dayOfEra = z - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+        int mp = (5 * dayOfYear + 2) / 153;
+        return yearOfEra + era * 400 + (mp >= 10 ? 1 : 0);
+    }
+
+    public static int month(int epochDay) {
+        int mp = (5 * shiftedDayOfYear(epochDay) + 2) / 153;
+        return mp < 10 ? mp + 3 : mp - 9;
+    }
+
+    static int dayOfMonth(int epochDay) {
+        int dayOfYear = shiftedDayOfYear(epochDay);
+        int mp = (5 * dayOfYear + 2) / 153;
+        return dayOfYear - (153 * mp + 2) / 5 + 1;
+    }
+
+    /**
+     * Returns the ISO day of week, 1 for Monday to 7 for Sunday.
+     */
+    static int dayOfWeek(int epochDay) {
+        // 1970-01-01 is a Thursday
+        return Math.floorMod(epochDay + 3, 7) + 1;
+    }
+
+    static boolean isLeapYear(int year) {
+        return (year & 3) == 0 && (year % 100 != 0 || year % 400 == 0);
+    }
+
+    static int lengthOfMonth(int year, int month) {
+        return month == 2 && isLeapYear(year) ? 29 : MONTH_LENGTHS[month - 1];
+    }
+
+    private static int shiftedDayOfYear(int epochDay) {
+        int z = epochDay + 719468;
+        int era = Math.floorDiv(z, 146097);
+        int dayOfEra = z - era * 146097;
+        int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+        return dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.devmaster.elasticsearch.index.mapper;
+
+/**
+ * Counts the occurrences walked by the rules while serving one request on a shard, see {@link ExpansionLimits}. Every
+ * occurrence returned by an {@link OccurrenceCursor} is charged both to the current walk, which covers one document,
+ * and to the request. Exceeding either limit fails the request on the shard rather than stalling it.
+ * <p>
+ * Every {@value #CHECK_EVERY_OCCURRENCES} occurrences and every {@value #CHECK_EVERY_DOCUMENTS} documents the budget
+ * also runs the cancellation check of the current thread, see {@link #setCheckCancelled(Runnable)}, so that a long
+ * evaluation stops soon after its search is cancelled.
+ */
+public final class ExpansionBudget {
+
+    /**
+     * A budget which is never charged.
+     */
+    public static final ExpansionBudget UNLIMITED = new ExpansionBudget(Integer.MAX_VALUE, Long.MAX_VALUE);
+
+    static final int CHECK_EVERY_OCCURRENCES = 1024;
+    static final int CHECK_EVERY_DOCUMENTS = 64;
+
+    private static final ThreadLocal<Runnable> CHECK_CANCELLED = new ThreadLocal<>();
+
+    private final int maxPerDocument;
+    private final long maxPerRequest;
+    private final RecurringStats stats;
+    private final RecurringSlowLog slowLog;
+
+    private int walked;
+    private int walks;
+    private long used;
+    private long usedAtEvaluation;
+
+    ExpansionBudget(int maxPerDocument, long maxPerRequest) {
+        this(maxPerDocument, maxPerRequest, null, null);
+    }
+
+    ExpansionBudget(int maxPerDocument, long maxPerRequest, RecurringStats stats, RecurringSlowLog slowLog) {
+        this.maxPerDocument = maxPerDocument;
+        this.maxPerRequest = maxPerRequest;
+        this.stats = stats;
+        this.slowLog = slowLog;
+    }
+
+    /**
+     * Starts an evaluation of {@link Recurring}, returns the time to pass to
+     * {@link #endEvaluation(Recurring, RecurringStats.Evaluation, int, int, long)}.
+     */
+    long startEvaluation() {
+        RecurringEvents events = RecurringEvents.current();
+        if (stats == null && slowLog == null && events == null) {
+            return 0;
+        }
+        if (events != null) {
+            events.beginEvaluation();
+        }
+        if (this != UNLIMITED) {
+            usedAtEvaluation = used;
+        }
+        return System.nanoTime();
+    }
+
+    /**
+     * Records an evaluation of {@code recurring} over [{@code from}, {@code to}] in the node stats, the slow log and the
+     * flight recorder events, with the occurrences it walked.
+     */
+    void endEvaluation(Recurring recurring, RecurringStats.Evaluation evaluation, int from, int to, long start) {
+        RecurringEvents events = RecurringEvents.current();
+        if (stats == null && slowLog == null && events == null) {
+            return;
+        }
+        long took = System.nanoTime() - start;
+        long walked = used - usedAtEvaluation;
+        if (events != null) {
+            events.endEvaluation(evaluation, recurring, walked);
+        }
+        if (stats != null) {
+            stats.onEvaluation(evaluation, took, walked);
+        }
+        if (slowLog != null) {
+            slowLog.onEvaluation(recurring, evaluation, from, to, took, walked);
+        }
+    }
+
+    void onDocValuesRead() {
+        if (stats != null) {
+            stats.onDocValuesRead();
+        }
+    }
+
+    void onSourceRead() {
+        if (stats != null) {
+            stats.onSourceRead();
+        }
+    }
+
+    /**
+     * Starts the walk of a rule for one document.
+     */
+    void startWalk() {
+        if (this == UNLIMITED) {
+            return;
+        }
+        walked = 0;
+        if (++walks % CHECK_EVERY_DOCUMENTS == 0) {
+            checkCancelled();
+        }
+    }
+
+    /**
+     * Charges one occurrence, failing once a limit is exceeded.
+     */
+    void consume() {
+        if (this == UNLIMITED) {
+            return;
+        }
+        if (++walked > maxPerDocument) {
+            throw new IllegalArgumentException("Rule walked more than [" + maxPerDocument + "] occurrences for one "
+                    + "document, narrow the window or raise [" + ExpansionLimits.MAX_OCCURRENCES_PER_DOCUMENT_SETTING.getKey() + "]");
+        }
+        if (++used > maxPerRequest) {
+            throw new IllegalArgumentException("Rules walked more than [" + maxPerRequest + "] occurrences for this "
+                    + "request, narrow the query or raise [" + ExpansionLimits.MAX_OCCURRENCES_PER_REQUEST_SETTING.getKey() + "]");
+        }
+        if (used % CHECK_EVERY_OCCURRENCES == 0) {
+            checkCancelled();
+        }
+    }
+
+    private static void checkCancelled() {
+        Runnable checkCancelled = CHECK_CANCELLED.get();
+        if (checkCancelled != null) {
+            checkCancelled.run();
+        }
+    }
+
+    /**
+     * Sets the check run by the budgets used on the current thread, it throws once the request being served is
+     * cancelled. {@code null} removes the check, it must be removed when the thread is done with the
+     * request.
+     */
+    public static void setCheckCancelled(Runnable checkCancelled) {
+        if (checkCancelled == null) {
+            CHECK_CANCELLED.remove();
+        } else {
+            CHECK_CANCELLED.set(checkCancelled);
+        }
+    }
+
+    /**
+     * Returns the number of occurrences charged to the request so far.
+     */
+    public long used() {
+        return used;
+    }
+}
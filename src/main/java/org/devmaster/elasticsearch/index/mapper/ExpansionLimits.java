@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.devmaster.elasticsearch.index.mapper;
+
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+
+/**
+ * Node level limits on how many occurrences rules may walk, each request on a shard gets its own
+ * {@link ExpansionBudget} from them. A rule such as {@code FREQ=DAILY} started in 1900 would otherwise pin a search
+ * thread for as long as its window is wide.
+ */
+public final class ExpansionLimits {
+
+    public static final Setting<Integer> MAX_OCCURRENCES_PER_DOCUMENT_SETTING =
+            Setting.intSetting("recurring.expansion.max_occurrences_per_document", Recurring.LAST_OCCURRENCE_LIMIT, 1,
+                    Property.NodeScope);
+
+    public static final Setting<Long> MAX_OCCURRENCES_PER_REQUEST_SETTING =
+            Setting.longSetting("recurring.expansion.max_occurrences_per_request", 10000000L, 1, Property.NodeScope);
+
+    /**
+     * Limits which never trip, for values evaluated outside of a request.
+     */
+    public static final ExpansionLimits UNLIMITED = new ExpansionLimits(Integer.MAX_VALUE, Long.MAX_VALUE);
+
+    private final int maxPerDocument;
+    private final long maxPerRequest;
+    private final RecurringStats stats;
+    private final RecurringSlowLog slowLog;
+
+    public ExpansionLimits(Settings settings) {
+        this(settings, null, null);
+    }
+
+    /**
+     * Limits whose budgets also record the evaluations of the node in {@code stats} and log the slow ones to
+     * {@code slowLog}, either may be {@code null}.
+     */
+    public ExpansionLimits(Settings settings, RecurringStats stats, RecurringSlowLog slowLog) {
+        this(MAX_OCCURRENCES_PER_DOCUMENT_SETTING.get(settings), MAX_OCCURRENCES_PER_REQUEST_SETTING.get(settings), stats,
+                slowLog);
+    }
+
+    ExpansionLimits(int maxPerDocument, long maxPerRequest) {
+        this(maxPerDocument, maxPerRequest, null, null);
+    }
+
+    ExpansionLimits(int maxPerDocument, long maxPerRequest, RecurringStats stats, RecurringSlowLog slowLog) {
+        this.maxPerDocument = maxPerDocument;
+        this.maxPerRequest = maxPerRequest;
+        this.stats = stats;
+        this.slowLog = slowLog;
+    }
+
+    public int maxPerDocument() {
+        return maxPerDocument;
+    }
+
+    public long maxPerRequest() {
+        return maxPerRequest;
+    }
+
+    /**
+     * Returns the budget of a new request, it is not thread safe and must only be used by the thread serving it.
+     */
+    public ExpansionBudget newBudget() {
+        if (this == UNLIMITED) {
+            return ExpansionBudget.UNLIMITED;
+        }
+        return new ExpansionBudget(maxPerDocument, maxPerRequest, stats, slowLog);
+    }
+}
@@ -0,0 +1,239 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.index.mapper;
+
+import com.google.ical.compat.jodatime.LocalDateIterator;
+
+import java.text.ParseException;
+
+/**
+ * Walks the occurrences of a rule as days since 1970-01-01. A cursor is reset for every start date and reused, rules
+ * with a {@link SimpleRule} are walked without allocating, {@link #advanceTo(int)} jumping over whole periods. Other
+ * rules are walked on their {@link PeriodRule}s, which skip whole months unless they have a COUNT, merged with the
+ * start date and the RDATE days, less the EXRULE and EXDATE ones, as google-rfc-2445 joins its iterators.
+ * <p>
+ * Rules with lines below a day, BYHOUR, BYMINUTE, BYSECOND or dates with a time are still walked with the library,
+ * which can only skip by generating every occurrence before the target. The occurrences stepped over by a skip, and
+ * the ones excluded, are charged to the budget, so that a skip is limited and can be cancelled.
+ */
+final class OccurrenceCursor {
+
+    /**
+     * Returned by {@link #next()} when there is no further occurrence.
+     */
+    static final int NONE = SimpleRule.NONE;
+
+    private SimpleRule simpleRule;
+    private int start;
+    private int position;
+    private LocalDateIterator iterator;
+    private int pending;
+
+    private CompiledRule expanded;
+    private int[] days;
+    private int[] exDays;
+    private PeriodRule.Walk[] walks = new PeriodRule.Walk[0];
+    private PeriodRule.Walk[] exWalks = new PeriodRule.Walk[0];
+    private int[] heads = new int[0];
+    private int[] exHeads = new int[0];
+    private int startHead;
+    private int dayIndex;
+    private int exDayIndex;
+    private ExpansionBudget budget = ExpansionBudget.UNLIMITED;
+
+    /**
+     * Positions the cursor before the first occurrence of {@code rule} started at {@code start}.
+     */
+    void reset(CompiledRule rule, int start, boolean strict) throws ParseException {
+        reset(rule, start, strict, ExpansionBudget.UNLIMITED);
+    }
+
+    /**
+     * Positions the cursor before the first occurrence of {@code rule} started at {@code start}, the occurrences
+     * returned from now on are charged to {@code budget} as a new walk.
+     */
+    void reset(CompiledRule rule, int start, boolean strict, ExpansionBudget budget) throws ParseException {
+        this.budget = budget;
+        budget.startWalk();
+        this.simpleRule = rule.simpleRule();
+        this.start = start;
+        this.position = Integer.MIN_VALUE;
+        this.pending = NONE;
+        this.iterator = null;
+        this.expanded = null;
+        if (simpleRule == null) {
+            if (rule.periodRules() != null) {
+                rule.checkStrict(strict);
+                expand(rule, start);
+            } else {
+                this.iterator = rule.iterator(EpochDays.toLocalDate(start), strict);
+            }
+        }
+    }
+
+    private void expand(CompiledRule rule, int start) {
+        if (rule != expanded) {
+            walks = walks(rule.periodRules(), walks);
+            exWalks = walks(rule.periodExRules(), exWalks);
+            if (heads.length < walks.length) {
+                heads = new int[walks.length];
+            }
+            if (exHeads.length < exWalks.length) {
+                exHeads = new int[exWalks.length];
+            }
+            days = rule.days();
+            exDays = rule.exDays();
+            expanded = rule;
+        }
+        for (int i = 0; i < walks.length; i++) {
+            walks[i].reset(start);
+            heads[i] = walks[i].next();
+        }
+        for (int i = 0; i < exWalks.length; i++) {
+            exWalks[i].reset(start);
+            exHeads[i] = exWalks[i].next();
+        }
+        startHead = start;
+        dayIndex = 0;
+        exDayIndex = 0;
+    }
+
+    private static PeriodRule.Walk[] walks(PeriodRule[] rules, PeriodRule.Walk[] walks) {
+        PeriodRule.Walk[] result = walks.length == rules.length ? walks : new PeriodRule.Walk[rules.length];
+        for (int i = 0; i < rules.length; i++) {
+            result[i] = rules[i].walk();
+        }
+        return result;
+    }
+
+    /**
+     * Skips the occurrences before {@code day}. Skipping is free for rules with a {@link SimpleRule}, the occurrences
+     * skipped by other rules are charged to the budget.
+     */
+    void advanceTo(int day) {
+        if (day <= position) {
+            return;
+        }
+        position = day;
+        if (expanded != null) {
+            if (startHead < day) {
+                budget.consume();
+                startHead = NONE;
+            }
+            while (dayIndex < days.length && days[dayIndex] < day) {
+                budget.consume();
+                dayIndex++;
+            }
+            for (int i = 0; i < walks.length; i++) {
+                if (heads[i] < day) {
+                    budget.consume();
+                    heads[i] = walks[i].advanceTo(day, budget);
+                }
+            }
+            return;
+        }
+        if (iterator == null || pending != NONE && pending >= day) {
+            return;
+        }
+        pending = NONE;
+        while (iterator.hasNext()) {
+            int next = EpochDays.of(iterator.next());
+            if (next >= day) {
+                pending = next;
+                return;
+            }
+            budget.consume();
+        }
+        position = NONE;
+    }
+
+    /**
+     * Returns the next occurrence, or {@link #NONE}.
+     */
+    int next() {
+        if (position == NONE) {
+            return NONE;
+        }
+        int next;
+        if (pending != NONE) {
+            next = pending;
+            pending = NONE;
+        } else if (iterator != null) {
+            next = iterator.hasNext() ? EpochDays.of(iterator.next()) : NONE;
+        } else if (expanded != null) {
+            next = nextExpanded();
+        } else {
+            next = simpleRule.nextOnOrAfter(start, Math.max(position, start));
+        }
+        if (next == NONE) {
+            position = NONE;
+        } else {
+            budget.consume();
+            position = next + 1;
+        }
+        return next;
+    }
+
+    /**
+     * Returns the first day of the start date, the RDATE days and the walks which is neither an EXDATE day nor an
+     * occurrence of an EXRULE walk. As in google-rfc-2445 the walk ends with the inclusions, the days excluded are
+     * charged to the budget.
+     */
+    private int nextExpanded() {
+        while (true) {
+            int next = startHead;
+            if (dayIndex < days.length) {
+                next = Math.min(next, days[dayIndex]);
+            }
+            for (int i = 0; i < walks.length; i++) {
+                next = Math.min(next, heads[i]);
+            }
+            if (next == NONE) {
+                return NONE;
+            }
+
+            if (startHead == next) {
+                startHead = NONE;
+            }
+            if (dayIndex < days.length && days[dayIndex] == next) {
+                dayIndex++;
+            }
+            for (int i = 0; i < walks.length; i++) {
+                if (heads[i] == next) {
+                    heads[i] = walks[i].next();
+                }
+            }
+
+            if (excluded(next) == false) {
+                return next;
+            }
+            budget.consume();
+        }
+    }
+
+    private boolean excluded(int day) {
+        while (exDayIndex < exDays.length && exDays[exDayIndex] < day) {
+            exDayIndex++;
+        }
+        boolean excluded = exDayIndex < exDays.length && exDays[exDayIndex] == day;
+        for (int i = 0; i < exWalks.length; i++) {
+            if (exHeads[i] < day) {
+                exHeads[i] = exWalks[i].advanceTo(day, budget);
+            }
+            excluded |= exHeads[i] == day;
+        }
+        return excluded;
+    }
+}
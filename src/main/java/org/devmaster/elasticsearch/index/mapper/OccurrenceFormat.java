@@ -0,0 +1,104 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.devmaster.elasticsearch.index.mapper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * How the occurrences of an {@link OccurrencePage} are returned to clients.
+ */
+public enum OccurrenceFormat {
+
+    /**
+     * A list of yyyy-MM-dd dates.
+     */
+    ISO(64) {
+        @Override
+        public Object format(OccurrencePage page) {
+            return new ArrayList<>(page.dates());
+        }
+    },
+
+    /**
+     * An array of days since 1970-01-01.
+     */
+    EPOCH_DAY(24) {
+        @Override
+        public Object format(OccurrencePage page) {
+            int[] days = new int[page.size()];
+            for (int i = 0; i < days.length; i++) {
+                days[i] = page.day(i);
+            }
+            return days;
+        }
+    },
+
+    /**
+     * A list of {@code [start, end]} arrays of days since 1970-01-01, one for each run of consecutive days: the
+     * output of a daily rule is a single pair.
+     */
+    RANGES(32) {
+        @Override
+        public Object format(OccurrencePage page) {
+            List<int[]> ranges = new ArrayList<>();
+            for (int i = 0; i < page.size(); i++) {
+                int day = page.day(i);
+                int[] last = ranges.isEmpty() ? null : ranges.get(ranges.size() - 1);
+                if (last != null && last[1] == day - 1) {
+                    last[1] = day;
+                } else {
+                    ranges.add(new int[] {day, day});
+                }
+            }
+            return ranges;
+        }
+    };
+
+    private final long bytesPerOccurrence;
+
+    OccurrenceFormat(long bytesPerOccurrence) {
+        this.bytesPerOccurrence = bytesPerOccurrence;
+    }
+
+    /**
+     * Returns an upper bound of the heap held by each occurrence of a page in this format, once the values are boxed
+     * into a list as the fields of a hit are.
+     */
+    public long bytesPerOccurrence() {
+        return bytesPerOccurrence;
+    }
+
+    /**
+     * Returns the occurrences of {@code page} in this format.
+     */
+    public abstract Object format(OccurrencePage page);
+
+    public static OccurrenceFormat fromString(String format) {
+        for (OccurrenceFormat value : values()) {
+            if (value.toString().equals(format)) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Unknown occurrence format [" + format + "]");
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
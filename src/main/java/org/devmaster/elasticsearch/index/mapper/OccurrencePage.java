@@ -0,0 +1,86 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.devmaster.elasticsearch.index.mapper;
+
+import java.util.AbstractList;
+import java.util.List;
+
+/**
+ * A page of the occurrences of a {@link Recurring} within a window, see
+ * {@link Recurring#occurrencePage(int, int, int, int)}. When the window holds more occurrences than the page, the page
+ * is truncated and {@link #after()} is the cursor of the next one. Occurrences are kept as days since 1970-01-01 and
+ * only turned into dates by {@link #dates()}.
+ */
+public final class OccurrencePage {
+
+    private final int[] days;
+    private final int size;
+    private final boolean truncated;
+
+    OccurrencePage(int[] days, int size, boolean truncated) {
+        this.days = days;
+        this.size = size;
+        this.truncated = truncated;
+    }
+
+    /**
+     * Returns the number of occurrences of the page.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the occurrence at {@code index}, in days since 1970-01-01, in ascending order.
+     */
+    public int day(int index) {
+        if (index >= size) {
+            throw new IndexOutOfBoundsException("index [" + index + "] out of [" + size + "] occurrences");
+        }
+        return days[index];
+    }
+
+    /**
+     * Returns the occurrences of the page as yyyy-MM-dd dates, in ascending order.
+     */
+    public List<String> dates() {
+        return new AbstractList<String>() {
+            @Override
+            public String get(int index) {
+                return EpochDays.toLocalDate(day(index)).toString();
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        };
+    }
+
+    /**
+     * Returns {@code true} if the window holds further occurrences after this page.
+     */
+    public boolean isTruncated() {
+        return truncated;
+    }
+
+    /**
+     * Returns the cursor to pass as {@code after} to read the next page, or {@code null} if this page is the last one.
+     */
+    public String after() {
+        return truncated ? EpochDays.toLocalDate(days[size - 1]).toString() : null;
+    }
+}
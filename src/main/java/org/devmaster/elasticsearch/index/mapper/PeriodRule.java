@@ -0,0 +1,935 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.index.mapper;
+
+import com.google.ical.values.DateValue;
+import com.google.ical.values.Frequency;
+import com.google.ical.values.RRule;
+import com.google.ical.values.Weekday;
+import com.google.ical.values.WeekdayNum;
+
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A DAILY, WEEKLY, MONTHLY or YEARLY rule expanded on days since 1970-01-01, for start dates without a time.
+ * <p>
+ * This is the generator pipeline of google-rfc-2445 on ints: a year, a month and a day generator fill a date one part
+ * at a time, filters drop the days the generators can not rule out, BYSETPOS picks from the days of a period, and
+ * COUNT or UNTIL end the walk. The parts are picked from the rule as the library does, including the parts it ignores
+ * and its reading of BYDAY ordinals, so that both walk the same occurrences. Unlike the library, a {@link Walk} skips
+ * to a later month by moving the year and month generators without filling the days in between, unless the rule
+ * has a COUNT, whose occurrences have to be counted from the start.
+ */
+final class PeriodRule {
+
+    /**
+     * Returned by {@link Walk#next()} when there is no further occurrence.
+     */
+    static final int NONE = SimpleRule.NONE;
+
+    /**
+     * The year generations the library allows between two occurrences before it gives up on a rule.
+     */
+    private static final int THROTTLE = 100;
+
+    /**
+     * The months the library generates from the start, and the occurrences before the start it skips, before it
+     * gives up on a rule.
+     */
+    private static final int START_LIMIT = 1000;
+
+    private static final int SERIAL_DAYS = 0;
+    private static final int MONTH_DAYS = 1;
+    private static final int WEEKDAYS = 2;
+    private static final int YEAR_DAYS = 3;
+    private static final int WEEK_NUMBERS = 4;
+    private static final int START_DAY = 5;
+
+    private final Frequency freq;
+    private final int interval;
+    private final int weekStart;
+    private final int count;
+    private final int until;
+    private final int yearStep;
+    private final int monthStep;
+    private final int[] months;
+    private final boolean startMonth;
+    private final int dayGenerator;
+    private final int dayStep;
+    private final int[] dayValues;
+    private final int[] weekdays;
+    private final int[] weekdayNums;
+    private final boolean yearlyWeekdays;
+    private final boolean weekInterval;
+    private final int[] filterWeekdays;
+    private final int[] filterWeekdayNums;
+    private final boolean yearlyFilter;
+    private final int[] filterMonthDays;
+    private final int[] setPositions;
+
+    private PeriodRule(RRule rule) {
+        this.freq = rule.getFreq();
+        this.interval = Math.max(1, rule.getInterval());
+        this.weekStart = rule.getWkSt() != null ? rule.getWkSt().javaDayNum : Weekday.MO.javaDayNum;
+        this.count = rule.getCount();
+        DateValue untilValue = rule.getUntil();
+        this.until = count == 0 && untilValue != null
+                ? EpochDays.of(untilValue.year(), untilValue.month(), untilValue.day()) : NONE;
+        this.setPositions = isSet(rule.getBySetPos()) ? uniquify(rule.getBySetPos()) : null;
+
+        List<WeekdayNum> byDay = rule.getByDay();
+        int[] byMonth = valuesOf(rule.getByMonth());
+        int[] byMonthDay = valuesOf(rule.getByMonthDay());
+
+        // the day generator is picked as RecurrenceIteratorFactory does, the parts it does not consume become filters
+        int generator = -1;
+        int step = 1;
+        int[] values = null;
+        boolean yearly = false;
+        boolean dayFilter = byDay.isEmpty() == false;
+        boolean monthDayFilter = byMonthDay.length > 0;
+        boolean weeks = false;
+        boolean fromStart = false;
+        switch (freq) {
+            case WEEKLY:
+                if (dayFilter) {
+                    generator = WEEKDAYS;
+                    dayFilter = false;
+                    weeks = this.interval > 1;
+                } else {
+                    generator = SERIAL_DAYS;
+                    step = this.interval * 7;
+                }
+                break;
+            case YEARLY:
+            case MONTHLY:
+                if (freq == Frequency.YEARLY && isSet(rule.getByYearDay())) {
+                    generator = YEAR_DAYS;
+                    values = uniquify(rule.getByYearDay());
+                } else if (monthDayFilter) {
+                    generator = MONTH_DAYS;
+                    values = uniquify(byMonthDay);
+                    monthDayFilter = false;
+                } else if (freq == Frequency.YEARLY && isSet(rule.getByWeekNo())) {
+                    generator = WEEK_NUMBERS;
+                    values = uniquify(rule.getByWeekNo());
+                } else if (dayFilter) {
+                    generator = WEEKDAYS;
+                    yearly = freq == Frequency.YEARLY && byMonth.length == 0;
+                    dayFilter = false;
+                } else {
+                    generator = START_DAY;
+                    fromStart = freq == Frequency.YEARLY;
+                }
+                break;
+            default:
+                if (monthDayFilter) {
+                    generator = MONTH_DAYS;
+                    values = uniquify(byMonthDay);
+                    monthDayFilter = false;
+                } else if (dayFilter) {
+                    generator = WEEKDAYS;
+                    dayFilter = false;
+                } else {
+                    generator = SERIAL_DAYS;
+                    step = this.interval;
+                }
+                break;
+        }
+        this.dayGenerator = generator;
+        this.dayStep = step;
+        this.dayValues = values;
+        this.yearlyWeekdays = yearly;
+        this.weekInterval = weeks;
+        this.startMonth = fromStart && byMonth.length == 0;
+        this.months = byMonth.length > 0 ? uniquify(byMonth) : null;
+        this.yearStep = freq == Frequency.YEARLY ? this.interval : 1;
+        this.monthStep = freq == Frequency.MONTHLY ? this.interval : 1;
+
+        int[] days = new int[byDay.size()];
+        int[] nums = new int[byDay.size()];
+        for (int i = 0; i < days.length; i++) {
+            days[i] = byDay.get(i).wday.javaDayNum;
+            nums[i] = byDay.get(i).num;
+        }
+        this.weekdays = generator == WEEKDAYS ? days : null;
+        this.weekdayNums = generator == WEEKDAYS ? nums : null;
+        this.filterWeekdays = dayFilter ? days : null;
+        this.filterWeekdayNums = dayFilter ? nums : null;
+        this.yearlyFilter = freq == Frequency.YEARLY;
+        this.filterMonthDays = monthDayFilter ? byMonthDay : null;
+    }
+
+    /**
+     * Returns the expansion of {@code rule}, or {@code null} if it has to be walked with google-rfc-2445: rules
+     * below a day and rules with BYHOUR, BYMINUTE or BYSECOND.
+     */
+    static PeriodRule of(RRule rule) {
+        Frequency freq = rule.getFreq();
+        if (freq != Frequency.DAILY && freq != Frequency.WEEKLY && freq != Frequency.MONTHLY && freq != Frequency.YEARLY) {
+            return null;
+        }
+        if (isSet(rule.getByHour()) || isSet(rule.getByMinute()) || isSet(rule.getBySecond())) {
+            return null;
+        }
+        return new PeriodRule(rule);
+    }
+
+    /**
+     * Creates a walk, to be {@link Walk#reset(int) reset} to a start date.
+     */
+    Walk walk() {
+        return new Walk();
+    }
+
+    private static boolean isSet(int[] values) {
+        return values != null && values.length > 0;
+    }
+
+    private static int[] valuesOf(int[] values) {
+        return values != null ? values : new int[0];
+    }
+
+    /**
+     * Sorts and removes the duplicates of {@code values}.
+     */
+    private static int[] uniquify(int[] values) {
+        int[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int length = 0;
+        for (int i = 0; i < sorted.length; i++) {
+            if (i == 0 || sorted[i] != sorted[i - 1]) {
+                sorted[length++] = sorted[i];
+            }
+        }
+        return Arrays.copyOf(sorted, length);
+    }
+
+    /**
+     * Returns the day of week as in {@link Weekday#javaDayNum}, 1 for Sunday to 7 for Saturday.
+     */
+    private static int javaDayNum(int epochDay) {
+        return EpochDays.dayOfWeek(epochDay) % 7 + 1;
+    }
+
+    /**
+     * Returns the days of a month which are days {@code num} of the period, see {@code Util.dayNumToDate} in
+     * google-rfc-2445.
+     */
+    private static int dayNumToDate(int firstDayOfWeek, int periodLength, int num, int weekday, int offset,
+                                    int monthLength) {
+        int first = 1 + (7 + weekday - firstDayOfWeek) % 7;
+        int day;
+        if (num > 0) {
+            day = (num - 1) * 7 + first - offset;
+        } else {
+            int last = first + 378;
+            last -= 7 * ((last - periodLength + 6) / 7);
+            day = last + 7 * (num + 1) - offset;
+        }
+        return day <= 0 || day > monthLength ? 0 : day;
+    }
+
+    private static int countInPeriod(int weekday, int firstDayOfWeek, int periodLength) {
+        if (weekday >= firstDayOfWeek) {
+            return 1 + (periodLength - (weekday - firstDayOfWeek) - 1) / 7;
+        }
+        return 1 + (periodLength - (7 - (firstDayOfWeek - weekday)) - 1) / 7;
+    }
+
+    /**
+     * Walks the occurrences of the rule for one start date at a time. A walk holds the state of the generators and
+     * is reset for every start date, so it does not allocate once its buffers have grown.
+     */
+    final class Walk {
+
+        private int startDayOfMonth;
+        private int startMonthOfYear;
+
+        // the date being filled by the generators
+        private int year;
+        private int month;
+        private int day;
+
+        private int yearValue;
+        private int throttle;
+        private boolean stopped;
+
+        private int monthYear;
+        private int monthValue;
+        private int monthIndex;
+
+        private int dayYear;
+        private int dayMonth;
+        private int dayOfMonth;
+        private int monthLength;
+        private int dayMask;
+        private int weekOneStart;
+        private int weeksInYear;
+
+        private int weekIntervalStart;
+
+        private boolean setFirst;
+        private boolean setDone;
+        private int pushback;
+        private int[] period = new int[32];
+        private int periodLength;
+        private int[] candidates = new int[8];
+        private int candidateCount;
+        private int candidateIndex;
+
+        private int remaining;
+        private boolean done;
+        private int pending;
+
+        /**
+         * Positions the walk before the first occurrence of the rule started at {@code start}, which is itself only
+         * an occurrence if the rule matches it.
+         */
+        void reset(int start) {
+            int startYear = EpochDays.year(start);
+            startMonthOfYear = EpochDays.month(start);
+            startDayOfMonth = EpochDays.dayOfMonth(start);
+
+            // BYSETPOS starts at the beginning of the period of the start date
+            int first = start;
+            if (setPositions != null) {
+                switch (freq) {
+                    case YEARLY:
+                        first = EpochDays.of(startYear, 1, 1);
+                        break;
+                    case MONTHLY:
+                        first = start - startDayOfMonth + 1;
+                        break;
+                    case WEEKLY:
+                        first = start - (7 + weekStart - javaDayNum(start)) % 7;
+                        break;
+                    default:
+                        break;
+                }
+            }
+            int firstYear = EpochDays.year(first);
+            int firstMonth = EpochDays.month(first);
+
+            year = startYear;
+            month = startMonthOfYear;
+            day = startDayOfMonth;
+
+            yearValue = startYear - yearStep;
+            throttle = THROTTLE;
+            stopped = false;
+
+            if (months != null || startMonth) {
+                monthYear = firstYear;
+                monthIndex = 0;
+            } else {
+                monthYear = startYear;
+                monthValue = startMonthOfYear - monthStep;
+                while (monthValue < 1) {
+                    monthValue += 12;
+                    monthYear--;
+                }
+            }
+
+            if (dayGenerator == SERIAL_DAYS) {
+                int before = start - dayStep;
+                dayYear = EpochDays.year(before);
+                dayMonth = EpochDays.month(before);
+                dayOfMonth = EpochDays.dayOfMonth(before);
+                monthLength = EpochDays.lengthOfMonth(dayYear, dayMonth);
+            } else {
+                dayYear = firstYear;
+                dayMonth = firstMonth;
+                if (dayGenerator == WEEK_NUMBERS) {
+                    weekNumbersOf(firstYear);
+                }
+                dayMask = daysOf(firstYear, firstMonth);
+                if (dayGenerator == WEEKDAYS) {
+                    dayMask &= -(1 << EpochDays.dayOfMonth(first));
+                }
+            }
+
+            if (weekInterval) {
+                weekIntervalStart = start - (7 + javaDayNum(start) - weekStart) % 7;
+            }
+
+            setFirst = true;
+            setDone = false;
+            pushback = NONE;
+            candidateCount = 0;
+            candidateIndex = 0;
+
+            remaining = count;
+            done = false;
+            pending = NONE;
+
+            // fill the year and the month, then skip the occurrences before the start date
+            int limit = START_LIMIT;
+            for (int filled = 0; filled != 2; ) {
+                if (filled == 0 ? nextYear() : nextMonth()) {
+                    filled++;
+                } else if (--filled < 0) {
+                    done = true;
+                    return;
+                }
+                if (--limit == 0) {
+                    done = true;
+                    return;
+                }
+            }
+            while (true) {
+                int next = generate();
+                if (next == NONE) {
+                    done = true;
+                    return;
+                }
+                if (next >= start) {
+                    if (accepts(next)) {
+                        pending = next;
+                    } else {
+                        done = true;
+                    }
+                    return;
+                }
+                if (--limit == 0) {
+                    done = true;
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Returns the next occurrence, or {@link #NONE}.
+         */
+        int next() {
+            if (pending == NONE && done == false) {
+                int next = generate();
+                if (next != NONE && accepts(next)) {
+                    pending = next;
+                    throttle = THROTTLE;
+                } else {
+                    done = true;
+                }
+            }
+            int next = pending;
+            pending = NONE;
+            return next;
+        }
+
+        /**
+         * Returns the first occurrence on or after {@code day}, or {@link #NONE}, as if {@link #next()} was called
+         * until then. The occurrences generated before {@code day} are charged to {@code budget}.
+         */
+        int advanceTo(int day, ExpansionBudget budget) {
+            if (pending != NONE) {
+                if (pending >= day) {
+                    return next();
+                }
+                pending = NONE;
+                budget.consume();
+            }
+            if (done) {
+                return NONE;
+            }
+            if (count == 0) {
+                skipPeriods(day);
+            }
+            while (true) {
+                int next = next();
+                if (next == NONE || next >= day) {
+                    return next;
+                }
+                budget.consume();
+            }
+        }
+
+        /**
+         * Moves the generators to the first period which may hold {@code day}. The periods skipped are not filled,
+         * which is only the same as walking them when the rule does not count its occurrences.
+         */
+        private void skipPeriods(int day) {
+            int targetYear = EpochDays.year(day);
+            int targetMonth = EpochDays.month(day);
+            boolean wholeYears = false;
+            if (setPositions != null) {
+                if (setDone || freq != Frequency.MONTHLY && freq != Frequency.YEARLY) {
+                    return;
+                }
+                wholeYears = freq == Frequency.YEARLY;
+                if (pushback != NONE) {
+                    // the generators are already in the period of the day pushed back
+                    int pushbackYear = EpochDays.year(pushback);
+                    int pushbackMonth = EpochDays.month(pushback);
+                    if (wholeYears ? pushbackYear >= targetYear
+                            : pushbackYear > targetYear || pushbackYear == targetYear && pushbackMonth >= targetMonth) {
+                        return;
+                    }
+                    setDate(pushback);
+                }
+            }
+            if (wholeYears ? year >= targetYear : year > targetYear || year == targetYear && month >= targetMonth) {
+                return;
+            }
+
+            throttle = THROTTLE;
+            if (year < targetYear) {
+                // the year generator lands on the first of its years on or after the target
+                yearValue += (targetYear - yearValue - 1) / yearStep * yearStep;
+                if (nextYear() == false || nextMonthOrYear() == false) {
+                    return;
+                }
+            }
+            while (wholeYears == false && year == targetYear && month < targetMonth) {
+                if (nextMonthOrYear() == false) {
+                    return;
+                }
+            }
+            if (setPositions != null) {
+                setFirst = true;
+                pushback = NONE;
+                candidateCount = 0;
+                candidateIndex = 0;
+            }
+        }
+
+        private boolean accepts(int day) {
+            return count != 0 ? --remaining >= 0 : day <= until;
+        }
+
+        /**
+         * Fills the next date of the generators, or returns {@link #NONE}.
+         */
+        private int generate() {
+            boolean generated = setPositions != null ? nextInSet() : nextInstance();
+            return generated ? EpochDays.of(year, month, day) : NONE;
+        }
+
+        private void setDate(int epochDay) {
+            year = EpochDays.year(epochDay);
+            month = EpochDays.month(epochDay);
+            day = EpochDays.dayOfMonth(epochDay);
+        }
+
+        private boolean nextYear() {
+            if (--throttle < 0) {
+                // the library gives up on rules without an occurrence for a hundred years
+                stopped = true;
+                return false;
+            }
+            year = yearValue += yearStep;
+            return true;
+        }
+
+        private boolean nextMonth() {
+            if (months != null || startMonth) {
+                if (monthYear != year) {
+                    monthIndex = 0;
+                    monthYear = year;
+                }
+                if (months != null) {
+                    if (monthIndex >= months.length) {
+                        return false;
+                    }
+                    month = months[monthIndex++];
+                } else {
+                    if (monthIndex >= 1) {
+                        return false;
+                    }
+                    monthIndex++;
+                    month = startMonthOfYear;
+                }
+                return true;
+            }
+            int next;
+            if (monthYear != year) {
+                int elapsed = (year - monthYear) * 12 - (monthValue - 1);
+                next = (monthStep - elapsed % monthStep) % monthStep + 1;
+                if (next > 12) {
+                    return false;
+                }
+                monthYear = year;
+            } else {
+                next = monthValue + monthStep;
+                if (next > 12) {
+                    return false;
+                }
+            }
+            monthValue = month = next;
+            return true;
+        }
+
+        private boolean nextMonthOrYear() {
+            while (nextMonth() == false) {
+                if (nextYear() == false) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean nextDay() {
+            if (dayGenerator == SERIAL_DAYS) {
+                int next;
+                if (dayYear == year && dayMonth == month) {
+                    next = dayOfMonth + dayStep;
+                    if (next > monthLength) {
+                        return false;
+                    }
+                } else {
+                    monthLength = EpochDays.lengthOfMonth(year, month);
+                    if (dayStep != 1) {
+                        int elapsed = EpochDays.of(year, month, 1) - EpochDays.of(dayYear, dayMonth, dayOfMonth);
+                        next = (dayStep - elapsed % dayStep) % dayStep + 1;
+                        if (next > monthLength) {
+                            return false;
+                        }
+                    } else {
+                        next = 1;
+                    }
+                    dayYear = year;
+                    dayMonth = month;
+                }
+                dayOfMonth = day = next;
+                return true;
+            }
+            if (dayYear != year || dayMonth != month) {
+                if (dayGenerator == WEEK_NUMBERS && dayYear != year) {
+                    weekNumbersOf(year);
+                }
+                dayYear = year;
+                dayMonth = month;
+                dayMask = daysOf(year, month);
+            }
+            if (dayMask == 0) {
+                return false;
+            }
+            day = Integer.numberOfTrailingZeros(dayMask);
+            dayMask &= dayMask - 1;
+            return true;
+        }
+
+        /**
+         * Returns the days of a month the day generator fills, as bits 1 to 31.
+         */
+        private int daysOf(int year, int month) {
+            int length = EpochDays.lengthOfMonth(year, month);
+            int firstOfMonth = EpochDays.of(year, month, 1);
+            int mask = 0;
+            switch (dayGenerator) {
+                case START_DAY:
+                    if (startDayOfMonth <= length) {
+                        mask |= 1 << startDayOfMonth;
+                    }
+                    break;
+                case MONTH_DAYS:
+                    for (int value : dayValues) {
+                        int dayOfMonth = value < 0 ? value + length + 1 : value;
+                        if (dayOfMonth >= 1 && dayOfMonth <= length) {
+                            mask |= 1 << dayOfMonth;
+                        }
+                    }
+                    break;
+                case YEAR_DAYS: {
+                    int offset = firstOfMonth - EpochDays.of(year, 1, 1);
+                    int yearLength = EpochDays.isLeapYear(year) ? 366 : 365;
+                    for (int value : dayValues) {
+                        int dayOfMonth = (value < 0 ? value + yearLength + 1 : value) - offset;
+                        if (dayOfMonth >= 1 && dayOfMonth <= length) {
+                            mask |= 1 << dayOfMonth;
+                        }
+                    }
+                    break;
+                }
+                case WEEK_NUMBERS: {
+                    int offset = firstOfMonth - EpochDays.of(year, 1, 1);
+                    int week = (offset - weekOneStart) / 7 + 1;
+                    for (int value : dayValues) {
+                        int number = value < 0 ? value + weeksInYear + 1 : value;
+                        if (number < week - 1 || number > week + 6) {
+                            continue;
+                        }
+                        for (int i = 0; i < 7; i++) {
+                            int dayOfMonth = (number - 1) * 7 + i + weekOneStart - offset + 1;
+                            if (dayOfMonth >= 1 && dayOfMonth <= length) {
+                                mask |= 1 << dayOfMonth;
+                            }
+                        }
+                    }
+                    break;
+                }
+                case WEEKDAYS: {
+                    int periodLength;
+                    int firstDayOfWeek;
+                    int offset;
+                    if (yearlyWeekdays) {
+                        int firstOfYear = EpochDays.of(year, 1, 1);
+                        periodLength = EpochDays.isLeapYear(year) ? 366 : 365;
+                        firstDayOfWeek = javaDayNum(firstOfYear);
+                        offset = firstOfMonth - firstOfYear;
+                    } else {
+                        periodLength = length;
+                        firstDayOfWeek = javaDayNum(firstOfMonth);
+                        offset = 0;
+                    }
+                    int week = offset / 7;
+                    for (int i = 0; i < weekdays.length; i++) {
+                        if (weekdayNums[i] != 0) {
+                            mask |= 1 << dayNumToDate(firstDayOfWeek, periodLength, weekdayNums[i], weekdays[i], offset, length);
+                            continue;
+                        }
+                        for (int num = week; num <= week + 6; num++) {
+                            mask |= 1 << dayNumToDate(firstDayOfWeek, periodLength, num, weekdays[i], offset, length);
+                        }
+                    }
+                    // day 0 stands for no day
+                    mask &= ~1;
+                    break;
+                }
+                default:
+                    throw new IllegalStateException("unexpected day generator [" + dayGenerator + "]");
+            }
+            return mask;
+        }
+
+        private void weekNumbersOf(int year) {
+            int firstDayOfWeek = javaDayNum(EpochDays.of(year, 1, 1));
+            int firstWeekLength = 7 - (7 + firstDayOfWeek - weekStart) % 7;
+            int shortWeek = 0;
+            if (firstWeekLength < 4) {
+                shortWeek = firstWeekLength;
+                firstWeekLength = 7;
+            }
+            weekOneStart = firstWeekLength - 7 + shortWeek;
+            weeksInYear = ((EpochDays.isLeapYear(year) ? 366 : 365) - shortWeek + 6) / 7;
+        }
+
+        private boolean accepted() {
+            if (weekInterval) {
+                int days = EpochDays.of(year, month, day) - weekIntervalStart;
+                if (days < 0) {
+                    days += interval * 7 * (1 + days / (-7 * interval));
+                }
+                if (days / 7 % interval != 0) {
+                    return false;
+                }
+            }
+            if (filterWeekdays != null && matchesWeekday() == false) {
+                return false;
+            }
+            if (filterMonthDays != null) {
+                int length = EpochDays.lengthOfMonth(year, month);
+                for (int value : filterMonthDays) {
+                    if ((value < 0 ? value + length + 1 : value) == day) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+            return true;
+        }
+
+        private boolean matchesWeekday() {
+            int epochDay = EpochDays.of(year, month, day);
+            int weekday = javaDayNum(epochDay);
+            int periodLength;
+            int firstDayOfWeek;
+            int index;
+            if (yearlyFilter) {
+                int firstOfYear = EpochDays.of(year, 1, 1);
+                periodLength = EpochDays.isLeapYear(year) ? 366 : 365;
+                firstDayOfWeek = javaDayNum(firstOfYear);
+                index = epochDay - firstOfYear;
+            } else {
+                periodLength = EpochDays.lengthOfMonth(year, month);
+                firstDayOfWeek = javaDayNum(epochDay - day + 1);
+                index = day - 1;
+            }
+            // the library numbers the weeks from the week start rather than from the first such weekday
+            int week = weekStart <= weekday ? 1 + index / 7 : index / 7;
+            for (int i = filterWeekdays.length - 1; i >= 0; i--) {
+                if (filterWeekdays[i] != weekday) {
+                    continue;
+                }
+                int num = filterWeekdayNums[i];
+                if (num == 0) {
+                    return true;
+                }
+                if (num < 0) {
+                    num = countInPeriod(weekday, firstDayOfWeek, periodLength) + num + 1;
+                }
+                if (week == num) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        /**
+         * Fills the next date which passes the filters, moving to the next month and year when the days of a month
+         * run out.
+         */
+        private boolean nextInstance() {
+            while (true) {
+                if (nextDay() == false) {
+                    if (nextMonthOrYear() == false) {
+                        return false;
+                    }
+                    continue;
+                }
+                if (accepted()) {
+                    return true;
+                }
+            }
+        }
+
+        /**
+         * Fills the next date picked by BYSETPOS from the dates of a period.
+         */
+        private boolean nextInSet() {
+            while (candidateIndex >= candidateCount) {
+                if (setDone) {
+                    return false;
+                }
+                int first = NONE;
+                if (pushback != NONE) {
+                    first = pushback;
+                    setDate(pushback);
+                    pushback = NONE;
+                } else if (setFirst == false) {
+                    switch (freq) {
+                        case YEARLY:
+                            if (nextYear() == false || nextMonthOrYear() == false) {
+                                return false;
+                            }
+                            break;
+                        case MONTHLY:
+                            if (nextMonthOrYear() == false) {
+                                return false;
+                            }
+                            break;
+                        case WEEKLY: {
+                            int current = EpochDays.of(year, month, day);
+                            int weekStartDay = current + (7 - (7 + (javaDayNum(current) - weekStart)) % 7) % 7;
+                            do {
+                                if (nextInstance() == false) {
+                                    return false;
+                                }
+                            } while (EpochDays.of(year, month, day) < weekStartDay);
+                            first = EpochDays.of(year, month, day);
+                            break;
+                        }
+                        default:
+                            break;
+                    }
+                } else {
+                    setFirst = false;
+                }
+
+                periodLength = 0;
+                int firstYear = 0;
+                int firstMonth = 0;
+                if (first != NONE) {
+                    add(first);
+                    firstYear = year;
+                    firstMonth = month;
+                }
+                int limit = setPositions[0] > 0 ? setPositions[setPositions.length - 1] : Integer.MAX_VALUE;
+                while (limit > periodLength) {
+                    if (nextInstance() == false) {
+                        if (stopped) {
+                            return false;
+                        }
+                        setDone = true;
+                        break;
+                    }
+                    int value = EpochDays.of(year, month, day);
+                    boolean samePeriod;
+                    if (first == NONE) {
+                        first = value;
+                        firstYear = year;
+                        firstMonth = month;
+                        samePeriod = true;
+                    } else {
+                        switch (freq) {
+                            case WEEKLY:
+                                samePeriod = value - first < 7 && (7 + javaDayNum(value) - weekStart) % 7
+                                        > (7 + javaDayNum(first) - weekStart) % 7;
+                                break;
+                            case MONTHLY:
+                                samePeriod = firstMonth == month && firstYear == year;
+                                break;
+                            case YEARLY:
+                                samePeriod = firstYear == year;
+                                break;
+                            default:
+                                setDone = true;
+                                return false;
+                        }
+                    }
+                    if (samePeriod == false) {
+                        pushback = value;
+                        break;
+                    }
+                    add(value);
+                }
+                pickCandidates();
+            }
+            setDate(candidates[candidateIndex++]);
+            return true;
+        }
+
+        private void add(int value) {
+            if (periodLength == period.length) {
+                period = Arrays.copyOf(period, periodLength * 2);
+            }
+            period[periodLength++] = value;
+        }
+
+        private void pickCandidates() {
+            if (candidates.length < setPositions.length) {
+                candidates = new int[setPositions.length];
+            }
+            candidateCount = 0;
+            candidateIndex = 0;
+            if (setPositions[0] > 0) {
+                for (int position : setPositions) {
+                    if (position <= periodLength) {
+                        candidates[candidateCount++] = period[position - 1];
+                    }
+                }
+                return;
+            }
+            // negative positions count from the end of the period, the picked dates are sorted and unique
+            for (int position : setPositions) {
+                int index = position < 0 ? periodLength + position + 1 : position;
+                if (index < 1 || index > periodLength) {
+                    continue;
+                }
+                int value = period[index - 1];
+                int insert = candidateCount;
+                while (insert > 0 && candidates[insert - 1] > value) {
+                    insert--;
+                }
+                if (insert > 0 && candidates[insert - 1] == value) {
+                    continue;
+                }
+                System.arraycopy(candidates, insert, candidates, insert + 1, candidateCount - insert);
+                candidates[insert] = value;
+                candidateCount++;
+            }
+        }
+    }
+}
@@ -14,36 +14,88 @@
 
 package org.devmaster.elasticsearch.index.mapper;
 
-import com.google.ical.compat.jodatime.LocalDateIterator;
-import com.google.ical.compat.jodatime.LocalDateIteratorFactory;
+import org.devmaster.elasticsearch.index.mapper.RecurringStats.Evaluation;
 import org.elasticsearch.common.Strings;
 import org.joda.time.LocalDate;
-import org.joda.time.Instant;
-import org.joda.time.Interval;
 
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.List;
+import java.util.function.IntConsumer;
 
 import static com.google.common.base.Strings.emptyToNull;
 
+/**
+ * A recurring value: a start date, an optional end date and an optional rule. Dates are evaluated as days since
+ * 1970-01-01 by an {@link OccurrenceCursor}, the methods taking Joda dates and strings are adapters over it. Each
+ * public evaluation taking days is recorded in the {@link RecurringStats} of its {@link ExpansionBudget}.
+ */
 public final class Recurring {
 
+    /**
+     * Returned by the methods taking days when there is no such occurrence.
+     */
+    public static final int NONE = OccurrenceCursor.NONE;
+
+    /**
+     * Maximum number of occurrences walked to find the last one of a bounded rule. Every date of a rule with more
+     * occurrences spans centuries, it is handled as an unbounded rule.
+     */
+    static final int LAST_OCCURRENCE_LIMIT = 100000;
+
+    private static final int UNSET = Integer.MIN_VALUE;
+
     private String startDate;
     private String endDate;
     private String rrule;
+    private RuleCache ruleCache;
+    private CompiledRule compiledRule;
+    private ExpansionBudget budget = ExpansionBudget.UNLIMITED;
+
+    private int startDay = UNSET;
+    private int endDay = UNSET;
+    private OccurrenceCursor cursor;
+    private RecurringValues values;
+    private int doc = -1;
 
     public Recurring() {
         //
     }
 
     public Recurring(String startDate, String endDate, String rrule) {
+        this(startDate, endDate, rrule, null);
+    }
+
+    public Recurring(String startDate, String endDate, String rrule, RuleCache ruleCache) {
         setStartDate(startDate);
         setEndDate(endDate);
         setRrule(rrule);
+        this.ruleCache = ruleCache;
+    }
+
+    Recurring(int startDay, int endDay, CompiledRule compiledRule) {
+        reset(startDay, endDay, compiledRule);
+    }
+
+    /**
+     * Replaces the value with dates read from doc values, {@code endDay} is {@link Integer#MIN_VALUE} when there is
+     * no end date and {@code compiledRule} is {@code null} when there is no rule.
+     */
+    void reset(int startDay, int endDay, CompiledRule compiledRule) {
+        this.startDate = null;
+        this.endDate = null;
+        this.startDay = startDay;
+        this.endDay = endDay;
+        this.compiledRule = compiledRule;
+        this.rrule = compiledRule != null ? compiledRule.getSource() : null;
     }
 
     String getStartDate() {
+        if (startDate == null && startDay != UNSET) {
+            startDate = EpochDays.toLocalDate(startDay).toString();
+        }
         return startDate;
     }
 
@@ -51,16 +103,21 @@ public final class Recurring {
         if (Strings.isNullOrEmpty(startDate)) {
             throw new IllegalArgumentException("Parameter startDate can not be null or empty");
         }
-        
+
         this.startDate = startDate;
+        this.startDay = UNSET;
     }
 
     String getEndDate() {
+        if (endDate == null && endDay != UNSET) {
+            endDate = EpochDays.toLocalDate(endDay).toString();
+        }
         return endDate;
     }
 
     void setEndDate(String endDate) {
         this.endDate = emptyToNull(endDate);
+        this.endDay = UNSET;
     }
 
     String getRrule() {
@@ -69,117 +126,533 @@ public final class Recurring {
 
     void setRrule(String rrule) {
         this.rrule = emptyToNull(rrule);
+        this.compiledRule = null;
+    }
+
+    void setRuleCache(RuleCache ruleCache) {
+        this.ruleCache = ruleCache;
+    }
+
+    /**
+     * Charges the occurrences walked by this value to {@code budget}, walks are not limited by default.
+     */
+    void setBudget(ExpansionBudget budget) {
+        this.budget = budget;
+    }
+
+    private int startDay() {
+        if (startDay == UNSET) {
+            startDay = EpochDays.parse(startDate);
+        }
+        return startDay;
+    }
+
+    /**
+     * Returns the end date, or {@link Integer#MIN_VALUE} if there is none.
+     */
+    private int endDay() {
+        if (endDay == UNSET && endDate != null) {
+            endDay = EpochDays.parse(endDate);
+        }
+        return endDay;
+    }
+
+    private CompiledRule compiledRule() {
+        if (compiledRule == null) {
+            compiledRule = ruleCache != null ? ruleCache.get(rrule) : CompiledRule.compile(rrule);
+        }
+        return compiledRule;
+    }
+
+    /**
+     * Returns the fingerprint of the rule, or {@code null} for plain dates.
+     */
+    String fingerprint() {
+        return rrule != null ? compiledRule().fingerprint() : null;
+    }
+
+    private OccurrenceCursor cursor(int start, boolean strict) throws ParseException {
+        if (cursor == null) {
+            cursor = new OccurrenceCursor();
+        }
+        cursor.reset(compiledRule(), start, strict, budget);
+        return cursor;
+    }
+
+    /**
+     * Returns the first occurrence of the rule on or after {@code from}, or {@link OccurrenceCursor#NONE}.
+     */
+    private int firstOnOrAfter(int start, int from) throws ParseException {
+        SimpleRule simpleRule = compiledRule().simpleRule();
+        if (simpleRule != null) {
+            return simpleRule.nextOnOrAfter(start, from);
+        }
+        OccurrenceCursor it = cursor(start, false);
+        it.advanceTo(from);
+        return it.next();
     }
 
     public boolean hasOccurrencesAt(final LocalDate date) throws ParseException {
+        return occursOn(EpochDays.of(date));
+    }
+
+    /**
+     * Returns {@code true} if {@code day}, in days since 1970-01-01, is an occurrence.
+     */
+    public boolean occursOn(int day) throws ParseException {
+        long start = budget.startEvaluation();
+        try {
+            return occursOnDay(day);
+        } finally {
+            budget.endEvaluation(this, Evaluation.OCCURS_ON, day, day, start);
+        }
+    }
+
+    private boolean occursOnDay(int day) throws ParseException {
         if (this.rrule != null) {
-            LocalDate end = date.plusDays(1);
-            LocalDateIterator it = LocalDateIteratorFactory.createLocalDateIterator(rrule, new LocalDate(this.startDate), false);
-            it.advanceTo(date);
-            return it.hasNext() && it.next().isBefore(end);
-        } else if (this.endDate != null) {
-            LocalDate start = new LocalDate(this.startDate);
-            LocalDate end = new LocalDate(this.endDate);
-            return !date.isBefore(start) && !date.isAfter(end);
+            SimpleRule simpleRule = compiledRule().simpleRule();
+            if (simpleRule != null) {
+                return simpleRule.occursOn(startDay(), day);
+            }
+            return firstOnOrAfter(startDay(), day) == day;
+        } else if (endDay() != UNSET) {
+            return day >= startDay() && day <= endDay();
         } else {
-            return new LocalDate(this.startDate).isEqual(date);
+            return day == startDay();
         }
     }
 
     public boolean occurBetween(String start, String end) throws ParseException {
-        return occurBetween(new LocalDate(start), new LocalDate(end));
+        return occursBetween(EpochDays.parse(start), EpochDays.parse(end));
     }
 
     public boolean occurBetween(final LocalDate start, final LocalDate end) throws ParseException {
-        LocalDate start_date = new LocalDate(this.startDate);
-        LocalDate end_date = this.endDate != null ? new LocalDate(this.endDate) : null;
+        return occursBetween(EpochDays.of(start), EpochDays.of(end));
+    }
+
+    public boolean occursBetween(int from, int to) throws ParseException {
+        long start = budget.startEvaluation();
+        try {
+            return occursWithin(from, to);
+        } finally {
+            budget.endEvaluation(this, Evaluation.OCCURS_BETWEEN, from, to, start);
+        }
+    }
+
+    private boolean occursWithin(int from, int to) throws ParseException {
+        int start = startDay();
+        int end = endDay();
 
         if (rrule != null) {
+            int next = firstOnOrAfter(start, from);
+            return next != OccurrenceCursor.NONE && next >= from && next <= to;
+        } else if (end != UNSET && end > start) {
+            return isBetween(start, from, to) || isBetween(end, from, to);
+        }
 
-            LocalDateIterator it = LocalDateIteratorFactory.createLocalDateIterator(rrule, start_date, false);
-            it.advanceTo(start);
+        return isBetween(start, from, to);
+    }
 
-            if (it.hasNext()) {
-                LocalDate nextOccurrence = it.next();
-                return nextOccurrence != null && !nextOccurrence.isBefore(start) && !nextOccurrence.isAfter(end);
-            } else {
-                return false;
+    /**
+     * Sets in {@code matched} the index of every day of {@code days} which is an occurrence, as
+     * {@link #occursOn(int)} would, and returns it. {@code days} must be in ascending order, the rule is then walked
+     * once for all of them instead of once per day.
+     */
+    public BitSet occursOn(int[] days, BitSet matched) throws ParseException {
+        long start = budget.startEvaluation();
+        try {
+            return occursOnDays(days, matched);
+        } finally {
+            budget.endEvaluation(this, Evaluation.OCCURS_ON_DAYS, first(days), last(days), start);
+        }
+    }
+
+    private BitSet occursOnDays(int[] days, BitSet matched) throws ParseException {
+        if (this.rrule == null) {
+            matched.clear();
+            for (int i = 0; i < days.length; i++) {
+                if (occursOnDay(days[i])) {
+                    matched.set(i);
+                }
             }
+            return matched;
+        }
+        return occursWithinWindows(days, days, matched);
+    }
 
-        } else if (end_date != null && end_date.isAfter(start_date)) {
-            return isBetween(start_date, start, end) || isBetween(end_date, start, end);
+    /**
+     * Sets in {@code matched} the index of every window [{@code from[i]}, {@code to[i]}] which holds an occurrence, as
+     * {@link #occursBetween(int, int)} would, and returns it. Windows must be sorted by their first day, they may
+     * overlap: the rule is walked forward once for all of them instead of once per window.
+     */
+    public BitSet occursBetween(int[] from, int[] to, BitSet matched) throws ParseException {
+        long start = budget.startEvaluation();
+        try {
+            return occursWithinWindows(from, to, matched);
+        } finally {
+            budget.endEvaluation(this, Evaluation.OCCURS_BETWEEN_WINDOWS, first(from), max(to), start);
         }
+    }
 
-        return !start_date.isBefore(start) && !start_date.isAfter(end);
+    private BitSet occursWithinWindows(int[] from, int[] to, BitSet matched) throws ParseException {
+        matched.clear();
+        if (this.rrule == null || compiledRule().simpleRule() != null) {
+            // no iterator to share, each window is answered directly
+            for (int i = 0; i < from.length; i++) {
+                if (occursWithin(from[i], to[i])) {
+                    matched.set(i);
+                }
+            }
+            return matched;
+        }
+        OccurrenceCursor it = cursor(startDay(), false);
+        int next = Integer.MIN_VALUE;
+        for (int i = 0; i < from.length; i++) {
+            if (next < from[i]) {
+                it.advanceTo(from[i]);
+                next = it.next();
+            }
+            if (next == OccurrenceCursor.NONE) {
+                break;
+            }
+            if (next <= to[i]) {
+                matched.set(i);
+            }
+        }
+        return matched;
     }
 
-    private boolean isBetween(LocalDate date, LocalDate start, LocalDate end) {
-        return date.compareTo(start) > -1 && date.compareTo(end) < 1;
+    private static boolean isBetween(int day, int from, int to) {
+        return day >= from && day <= to;
     }
 
     public LocalDate getNextOccurrence(LocalDate date) throws ParseException {
+        int next = nextOccurrence(EpochDays.of(date));
+        return next != OccurrenceCursor.NONE ? EpochDays.toLocalDate(next) : null;
+    }
 
-        final LocalDate start = new LocalDate(this.startDate);
+    /**
+     * Returns the next occurrence on or after {@code day}, the start date of plain dates as long as they have not
+     * ended, or {@link #NONE}.
+     */
+    public int nextOccurrence(int day) throws ParseException {
+        long start = budget.startEvaluation();
+        try {
+            return nextOccurrenceFrom(day);
+        } finally {
+            budget.endEvaluation(this, Evaluation.NEXT_OCCURRENCE, day, NONE, start);
+        }
+    }
+
+    private int nextOccurrenceFrom(int day) throws ParseException {
+        final int start = startDay();
 
         if (this.rrule != null) {
-            LocalDateIterator it = LocalDateIteratorFactory.createLocalDateIterator(rrule, start.minusDays(1), false);
-            it.advanceTo(date);
-            return it.hasNext() ? it.next() : null;
-        } else if (this.endDate == null) {
-            return !date.isAfter(start) ? start : null;
+            // rules have always been iterated from the day before the start date here
+            return firstOnOrAfter(start - 1, day);
+        } else if (endDay() == UNSET) {
+            return day <= start ? start : OccurrenceCursor.NONE;
         } else {
-            LocalDate end = new LocalDate(this.endDate);
-            return !date.isAfter(end) ? start : null;
+            return day <= endDay() ? start : OccurrenceCursor.NONE;
         }
     }
 
+    /**
+     * Returns the first occurrence on or after {@code day} among the ones listed by
+     * {@link #forEachOccurrenceBetween(int, int, IntConsumer)}, or {@link #NONE}. Unlike {@link #nextOccurrence(int)},
+     * rules are iterated from their start date and every day of a plain date with an end date is an occurrence.
+     */
+    public int occurrenceOnOrAfter(int day) throws ParseException {
+        long start = budget.startEvaluation();
+        try {
+            return firstOccurrenceFrom(day);
+        } finally {
+            budget.endEvaluation(this, Evaluation.OCCURRENCE_ON_OR_AFTER, day, NONE, start);
+        }
+    }
+
+    private int firstOccurrenceFrom(int day) throws ParseException {
+        int start = startDay();
+        if (this.rrule != null) {
+            OccurrenceCursor it = cursor(start, true);
+            it.advanceTo(day);
+            return it.next();
+        }
+        int last = endDay() != UNSET ? Math.max(endDay(), start) : start;
+        int next = Math.max(start, day);
+        return next <= last ? next : OccurrenceCursor.NONE;
+    }
+
     public boolean notHasExpired() throws ParseException {
-        final LocalDate today = LocalDate.now();
-        return getNextOccurrence(today) != null;
+        return notHasExpired(EpochDays.of(LocalDate.now()));
+    }
+
+    public boolean notHasExpired(int today) throws ParseException {
+        long start = budget.startEvaluation();
+        try {
+            return notExpired(today);
+        } finally {
+            budget.endEvaluation(this, Evaluation.NOT_HAS_EXPIRED, today, NONE, start);
+        }
+    }
+
+    /**
+     * An event has not expired if it has an occurrence on or after {@code today}. Rules are iterated from their start
+     * date, as for the last occurrence indexed by {@link RecurringFieldMapper}, so both agree on when an event ends.
+     */
+    private boolean notExpired(int today) throws ParseException {
+        return firstOccurrenceFrom(today) != OccurrenceCursor.NONE;
     }
 
     public List<String> occurrencesBetween(LocalDate start, LocalDate end) throws ParseException {
-        final LocalDate date = new LocalDate(this.startDate);
+        return occurrencesBetween(EpochDays.of(start), EpochDays.of(end));
+    }
+
+    public List<String> occurrencesBetween(int from, int to) throws ParseException {
+        return occurrencesBetween(from, to, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Returns the first {@code limit} occurrences of {@link #occurrencesBetween(int, int)}, the rule is not iterated
+     * past the last one.
+     */
+    public List<String> occurrencesBetween(int from, int to, int limit) throws ParseException {
+        long start = budget.startEvaluation();
+        try {
+            return occurrencesWithin(from, to, limit);
+        } finally {
+            budget.endEvaluation(this, Evaluation.OCCURRENCES_BETWEEN, from, to, start);
+        }
+    }
+
+    private List<String> occurrencesWithin(int from, int to, int limit) throws ParseException {
         List<String> dates = new ArrayList<String>();
-        
-        if (this.rrule != null) {
-            LocalDateIterator it = LocalDateIteratorFactory.createLocalDateIterator(rrule, date, true);
-            it.advanceTo(start);
-
-            if (it.hasNext()) {
-                do {
-                    LocalDate current = it.next();
-                    if (current != null && !current.isAfter(end)) {
-                        dates.add(current.toString());
-                    } else {
-                        break;
-                    }
-
-                } while (it.hasNext());
+
+        if (limit <= 0) {
+            return dates;
+        } else if (this.rrule != null) {
+            OccurrenceCursor it = cursor(startDay(), true);
+            it.advanceTo(from);
+            for (int current = it.next(); current != OccurrenceCursor.NONE && current <= to; current = it.next()) {
+                dates.add(EpochDays.toLocalDate(current).toString());
+                if (dates.size() == limit) {
+                    break;
+                }
             }
         } else {
-            dates.add(date.toString());
+            dates.add(EpochDays.toLocalDate(startDay()).toString());
         }
         return dates;
     }
 
+    /**
+     * Returns the first {@code limit} occurrences of {@link #occurrencesBetween(int, int)} which come after the day
+     * {@code after}, the cursor of the previous page or {@link Integer#MIN_VALUE} for the first one. The rule is
+     * iterated at most one occurrence past the page, to tell whether it is truncated.
+     */
+    public OccurrencePage occurrencePage(int from, int to, int after, int limit) throws ParseException {
+        long start = budget.startEvaluation();
+        try {
+            return pageWithin(from, to, after, limit);
+        } finally {
+            budget.endEvaluation(this, Evaluation.OCCURRENCE_PAGE, from, to, start);
+        }
+    }
+
+    private OccurrencePage pageWithin(int from, int to, int after, int limit) throws ParseException {
+        if (limit <= 0) {
+            throw new IllegalArgumentException("limit must be positive, got [" + limit + "]");
+        }
+
+        if (this.rrule != null) {
+            int[] days = new int[Math.min(limit, 16)];
+            int size = 0;
+            OccurrenceCursor it = cursor(startDay(), true);
+            it.advanceTo(after == Integer.MIN_VALUE ? from : Math.max(from, after + 1));
+            for (int current = it.next(); current != OccurrenceCursor.NONE && current <= to; current = it.next()) {
+                if (size == limit) {
+                    return new OccurrencePage(days, size, true);
+                }
+                if (size == days.length) {
+                    days = Arrays.copyOf(days, (int) Math.min((long) limit, days.length * 2L));
+                }
+                days[size++] = current;
+            }
+            return new OccurrencePage(days, size, false);
+        } else if (startDay() > after) {
+            return new OccurrencePage(new int[] {startDay()}, 1, false);
+        }
+        return new OccurrencePage(new int[0], 0, false);
+    }
+
+    /**
+     * Returns {@code true} if {@link #occurrencesBetween(int, int)} is not empty, stopping at the first occurrence in
+     * the window.
+     */
+    public boolean hasOccurrencesBetween(int from, int to) throws ParseException {
+        long start = budget.startEvaluation();
+        try {
+            return hasOccurrencesWithin(from, to);
+        } finally {
+            budget.endEvaluation(this, Evaluation.HAS_OCCURRENCES_BETWEEN, from, to, start);
+        }
+    }
+
+    private boolean hasOccurrencesWithin(int from, int to) throws ParseException {
+        if (this.rrule == null) {
+            return true;
+        }
+        OccurrenceCursor it = cursor(startDay(), true);
+        it.advanceTo(from);
+        int next = it.next();
+        return next != OccurrenceCursor.NONE && next <= to;
+    }
+
+    /**
+     * Passes every occurrence within [from, to] to {@code consumer} in ascending order, without materializing them.
+     * Every day of a plain date with an end date is an occurrence, as for {@link #occursOn(int)}.
+     */
+    public void forEachOccurrenceBetween(int from, int to, IntConsumer consumer) throws ParseException {
+        long start = budget.startEvaluation();
+        try {
+            forEachOccurrenceWithin(from, to, consumer);
+        } finally {
+            budget.endEvaluation(this, Evaluation.FOR_EACH_OCCURRENCE_BETWEEN, from, to, start);
+        }
+    }
+
+    private void forEachOccurrenceWithin(int from, int to, IntConsumer consumer) throws ParseException {
+        if (this.rrule != null) {
+            OccurrenceCursor it = cursor(startDay(), true);
+            it.advanceTo(from);
+            for (int current = it.next(); current != OccurrenceCursor.NONE && current <= to; current = it.next()) {
+                consumer.accept(current);
+            }
+        } else {
+            int last = Math.min(endDay() != UNSET ? Math.max(endDay(), startDay()) : startDay(), to);
+            for (int day = Math.max(startDay(), from); day <= last; day++) {
+                consumer.accept(day);
+            }
+        }
+    }
+
     public boolean hasAnyOccurrenceBetween(String start, String end) throws ParseException {
-        Interval lookingAtInterval = new Interval(Instant.parse(start), Instant.parse(end));
-        Instant startDate = Instant.parse(getStartDate());
+        return hasAnyOccurrenceBetween(EpochDays.parseInstant(start), EpochDays.parseInstant(end));
+    }
+
+    public boolean hasAnyOccurrenceBetween(int from, int to) throws ParseException {
+        long start = budget.startEvaluation();
+        try {
+            return hasAnyOccurrenceWithin(from, to);
+        } finally {
+            budget.endEvaluation(this, Evaluation.HAS_ANY_OCCURRENCE_BETWEEN, from, to, start);
+        }
+    }
+
+    private boolean hasAnyOccurrenceWithin(int from, int to) throws ParseException {
         if (rrule == null) {
-            Interval interval = new Interval(startDate, Instant.parse(getEndDate()));
-            return interval.abuts(lookingAtInterval) || interval.overlaps(lookingAtInterval);
+            int last = endDay() != UNSET ? endDay() : startDay();
+            return startDay() <= to && from <= last;
         } else {
-            LocalDateIterator it = LocalDateIteratorFactory.createLocalDateIterator(rrule, new LocalDate(startDate), false);
-            it.advanceTo(lookingAtInterval.getStart().toLocalDate());
-            if (it.hasNext()) {
-                for (LocalDate current = it.next(); it.hasNext() && !current.isAfter(lookingAtInterval.getEnd().toLocalDate()); current = it.next()) {
-                    if (lookingAtInterval.abuts(current.toInterval()) || lookingAtInterval.contains(current.toInterval())) {
-                        return true;
-                    }
-                }
+            int next = firstOnOrAfter(startDay(), from);
+            return next != OccurrenceCursor.NONE && next <= to;
+        }
+    }
+
+    /**
+     * Returns a copy of this value which is not reused by {@link RecurringValues}.
+     */
+    public Recurring copy() {
+        Recurring copy = new Recurring(startDay(), endDay(), this.rrule != null ? compiledRule() : null);
+        copy.setBudget(budget);
+        copy.setDocument(values, doc);
+        return copy;
+    }
+
+    /**
+     * Sets the document this value was read from, only resolved to an index and an id by the slow log.
+     */
+    void setDocument(RecurringValues values, int doc) {
+        this.values = values;
+        this.doc = doc;
+    }
+
+    RecurringValues values() {
+        return values;
+    }
+
+    int doc() {
+        return doc;
+    }
+
+    private static int first(int[] days) {
+        return days.length == 0 ? NONE : days[0];
+    }
+
+    private static int last(int[] days) {
+        return days.length == 0 ? NONE : days[days.length - 1];
+    }
+
+    private static int max(int[] days) {
+        if (days.length == 0) {
+            return NONE;
+        }
+        int max = days[0];
+        for (int day : days) {
+            max = Math.max(max, day);
+        }
+        return max;
+    }
+
+    /**
+     * Returns the first occurrence, the start date is always an occurrence of the rule.
+     */
+    LocalDate getFirstOccurrence() {
+        return EpochDays.toLocalDate(startDay());
+    }
+
+    /**
+     * Returns the last occurrence, or {@code null} if the rule has no end.
+     */
+    LocalDate getLastOccurrence() throws ParseException {
+        int start = startDay();
+        if (this.rrule == null) {
+            int end = endDay();
+            return EpochDays.toLocalDate(end != UNSET && end > start ? end : start);
+        }
+        if (compiledRule().isBounded() == false) {
+            return null;
+        }
+
+        int last = start;
+        OccurrenceCursor it = cursor(start, false);
+        for (int i = 0, current = it.next(); current != OccurrenceCursor.NONE; i++, current = it.next()) {
+            if (i == LAST_OCCURRENCE_LIMIT) {
+                return null;
+            }
+            last = current;
+        }
+        return EpochDays.toLocalDate(last);
+    }
+
+    /**
+     * Collects the occurrences of the rule between {@code from} and {@code until}, at most {@code limit} of them. Returns
+     * the date up to which {@code occurrences} holds every occurrence of the rule from {@code from}, or
+     * {@link RecurringFieldMapper#MATERIALIZED_ALL} if the rule has no further occurrence.
+     */
+    LocalDate expand(LocalDate from, LocalDate until, int limit, List<LocalDate> occurrences) throws ParseException {
+        int last = EpochDays.of(until);
+        OccurrenceCursor it = cursor(startDay(), false);
+        it.advanceTo(EpochDays.of(from));
+        for (int current = it.next(); current != OccurrenceCursor.NONE; current = it.next()) {
+            if (current > last) {
+                return until;
+            }
+            if (occurrences.size() == limit) {
+                return occurrences.isEmpty() ? EpochDays.toLocalDate(current - 1) : occurrences.get(occurrences.size() - 1);
             }
-            return false;
+            occurrences.add(EpochDays.toLocalDate(current));
         }
+        return RecurringFieldMapper.MATERIALIZED_ALL;
     }
 }
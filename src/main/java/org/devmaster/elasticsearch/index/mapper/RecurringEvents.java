@@ -0,0 +1,99 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.devmaster.elasticsearch.index.mapper;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.devmaster.elasticsearch.index.mapper.RecurringStats.Evaluation;
+
+import java.security.AccessController;
+import java.security.PrivilegedAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Receives the parsing, the iterators, the evaluations and the {@code _source} loads of the rules, to be recorded by
+ * Java Flight Recorder with the fingerprint of their rule. The events are compiled for Java 11 apart from the plugin,
+ * see {@link #install()}, they are disabled by default and enabled in the settings of a recording.
+ * <p>
+ * {@link #current()} is {@code null} unless a recording with one of the events enabled is running, then every hook is
+ * a single volatile read.
+ */
+public abstract class RecurringEvents {
+
+    private static final Logger LOGGER = LogManager.getLogger(RecurringEvents.class);
+
+    private static final String JFR_EVENTS = "org.devmaster.elasticsearch.index.mapper.JfrRecurringEvents";
+
+    private static final AtomicBoolean INSTALLED = new AtomicBoolean();
+
+    private static volatile RecurringEvents current;
+
+    /**
+     * Returns the events to emit to, or {@code null} when none would be recorded.
+     */
+    static RecurringEvents current() {
+        return current;
+    }
+
+    static void setCurrent(RecurringEvents events) {
+        current = events;
+    }
+
+    /**
+     * Registers the Flight Recorder events if the runtime has {@code jdk.jfr} and the plugin was built with them, once
+     * per JVM; does nothing otherwise.
+     */
+    public static void install() {
+        if (INSTALLED.compareAndSet(false, true) == false) {
+            return;
+        }
+        final Class<?> events;
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+            events = Class.forName(JFR_EVENTS);
+        } catch (ClassNotFoundException | LinkageError e) {
+            // Java 8, or a build without the events
+            return;
+        }
+        AccessController.doPrivileged((PrivilegedAction<Void>) () -> {
+            try {
+                events.getMethod("register").invoke(null);
+            } catch (ReflectiveOperationException | LinkageError | SecurityException e) {
+                LOGGER.warn("unable to register the flight recorder events of recurring rules", e);
+            }
+            return null;
+        });
+    }
+
+    abstract Object beginCompile();
+
+    abstract void endCompile(Object event, CompiledRule rule);
+
+    abstract Object beginIterator();
+
+    abstract void endIterator(Object event, CompiledRule rule);
+
+    /**
+     * Starts an evaluation on the current thread, evaluations do not nest.
+     */
+    abstract void beginEvaluation();
+
+    abstract void endEvaluation(Evaluation evaluation, Recurring recurring, long steps);
+
+    abstract Object beginSourceLoad();
+
+    abstract void endSourceLoad(Object event, String field, Recurring recurring);
+}
@@ -15,13 +15,20 @@
 package org.devmaster.elasticsearch.index.mapper;
 
 import com.google.common.collect.Iterators;
+import org.apache.lucene.document.SortedDocValuesField;
 import org.apache.lucene.index.IndexOptions;
 import org.apache.lucene.index.IndexableField;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.util.BytesRef;
+import org.devmaster.elasticsearch.index.fielddata.RecurringIndexFieldData;
+import org.devmaster.elasticsearch.index.query.RecurringResultCache;
 
+import org.elasticsearch.Version;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
 import org.elasticsearch.common.xcontent.XContentBuilder;
 import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.fielddata.IndexFieldData;
 import org.elasticsearch.index.mapper.Mapper;
 import org.elasticsearch.index.mapper.MappedFieldType;
 import org.elasticsearch.index.mapper.MapperParsingException;
@@ -32,12 +39,18 @@ import org.elasticsearch.index.mapper.DateFieldMapper;
 import org.elasticsearch.index.mapper.TextFieldMapper;
 import org.elasticsearch.index.mapper.TypeParsers;
 import org.elasticsearch.index.query.QueryShardContext;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
 
 import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static org.apache.lucene.index.IndexOptions.DOCS;
 
@@ -48,11 +61,29 @@ public class RecurringFieldMapper extends FieldMapper {
     private final DateFieldMapper startDateMapper;
     private final DateFieldMapper endDateMapper;
     private final TextFieldMapper rruleMapper;
+    private final DateFieldMapper firstOccurrenceMapper;
+    private final DateFieldMapper lastOccurrenceMapper;
+    private DateFieldMapper occurrencesMapper;
+    private DateFieldMapper materializedFromMapper;
+    private DateFieldMapper materializedUntilMapper;
+    private String materializeHorizon;
+    private String materializeSlack;
 
     public static class Defaults {
 
         public static final MappedFieldType FIELD_TYPE = new RecurringFieldType();
 
+        /**
+         * Maximum number of occurrences of one document written at index time.
+         */
+        public static final int MATERIALIZE_LIMIT = 1000;
+
+        /**
+         * How far before the indexing date occurrences are written, so windows of the recent past are answered from
+         * the index as well.
+         */
+        public static final String MATERIALIZE_SLACK = "30d";
+
         static {
             FIELD_TYPE.freeze();
         }
@@ -62,14 +93,63 @@ public class RecurringFieldMapper extends FieldMapper {
         public static String START_DATE = "start_date";
         public static String END_DATE = "end_date";
         public static String RRULE = "rrule";
+        public static String FIRST_OCCURRENCE = "first_occurrence";
+        public static String LAST_OCCURRENCE = "last_occurrence";
+        public static String OCCURRENCES = "occurrences";
+        public static String MATERIALIZED_FROM = "materialized_from";
+        public static String MATERIALIZED_UNTIL = "materialized_until";
     }
 
+    /**
+     * Value of {@code materialized_until} for a rule whose occurrences were all written.
+     */
+    public static final LocalDate MATERIALIZED_ALL = new LocalDate(9999, 12, 31);
+
+    private static final Pattern HORIZON_YEARS = Pattern.compile("(\\d+)y");
+
     public static class RecurringFieldType extends StringFieldType {
 
+        private RuleCache ruleCache;
+        private RecurringResultCache resultCache;
+        private ExpansionLimits expansionLimits = ExpansionLimits.UNLIMITED;
+
         public RecurringFieldType() {}
 
         protected RecurringFieldType(RecurringFieldType ref) {
             super(ref);
+            this.ruleCache = ref.ruleCache;
+            this.resultCache = ref.resultCache;
+            this.expansionLimits = ref.expansionLimits;
+        }
+
+        public RuleCache ruleCache() {
+            return ruleCache;
+        }
+
+        public void setRuleCache(RuleCache ruleCache) {
+            checkIfFrozen();
+            this.ruleCache = ruleCache;
+        }
+
+        public RecurringResultCache resultCache() {
+            return resultCache;
+        }
+
+        public void setResultCache(RecurringResultCache resultCache) {
+            checkIfFrozen();
+            this.resultCache = resultCache;
+        }
+
+        /**
+         * Returns the limits on the occurrences walked by a request on this field.
+         */
+        public ExpansionLimits expansionLimits() {
+            return expansionLimits;
+        }
+
+        public void setExpansionLimits(ExpansionLimits expansionLimits) {
+            checkIfFrozen();
+            this.expansionLimits = expansionLimits;
         }
 
         @Override
@@ -77,6 +157,15 @@ public class RecurringFieldMapper extends FieldMapper {
             return new RecurringFieldType(this);
         }
 
+        /**
+         * Sorting on a recurring field sorts on the next occurrence of each document from today.
+         */
+        @Override
+        public IndexFieldData.Builder fielddataBuilder(String fullyQualifiedIndexName) {
+            return (indexSettings, fieldType, cache, breakerService, mapperService) ->
+                    new RecurringIndexFieldData(indexSettings.getIndex(), fieldType.name(), ruleCache, expansionLimits);
+        }
+
         @Override
         public String typeName() {
             return CONTENT_TYPE;
@@ -94,10 +183,47 @@ public class RecurringFieldMapper extends FieldMapper {
         private DateFieldMapper.Builder startDateBuilder = new DateFieldMapper.Builder(FieldNames.START_DATE);
         private DateFieldMapper.Builder endDateBuilder = new DateFieldMapper.Builder(FieldNames.END_DATE);
         private TextFieldMapper.Builder rruleBuilder = new TextFieldMapper.Builder(FieldNames.RRULE);
+        private DateFieldMapper.Builder firstOccurrenceBuilder = new DateFieldMapper.Builder(FieldNames.FIRST_OCCURRENCE);
+        private DateFieldMapper.Builder lastOccurrenceBuilder = new DateFieldMapper.Builder(FieldNames.LAST_OCCURRENCE);
+        private String materializeHorizon;
+        private String materializeSlack;
 
-        protected Builder(String name) {
+        protected Builder(String name, RuleCache ruleCache, RecurringResultCache resultCache,
+                          ExpansionLimits expansionLimits) {
             super(name, new RecurringFieldType(), new RecurringFieldType());
             this.builder = this;
+            fieldType().setRuleCache(ruleCache);
+            fieldType().setResultCache(resultCache);
+            fieldType().setExpansionLimits(expansionLimits);
+        }
+
+        @Override
+        public RecurringFieldType fieldType() {
+            return (RecurringFieldType) super.fieldType();
+        }
+
+        @Override
+        protected boolean defaultDocValues(Version indexCreated) {
+            // the rule is kept in doc values so scripts do not need to load _source
+            return true;
+        }
+
+        /**
+         * Expands the rule at index time up to {@code horizon} after the indexing date, so queries inside the
+         * horizon are answered from the points of the {@code occurrences} sub field.
+         */
+        public Builder materializeHorizon(String horizon) {
+            this.materializeHorizon = horizon;
+            return this;
+        }
+
+        /**
+         * Expands the rule from {@code slack} before the indexing date, or from its start date if later, instead of
+         * {@link Defaults#MATERIALIZE_SLACK}.
+         */
+        public Builder materializeSlack(String slack) {
+            this.materializeSlack = slack;
+            return this;
         }
 
         @Override
@@ -108,6 +234,16 @@ public class RecurringFieldMapper extends FieldMapper {
             DateFieldMapper startDateMapper = startDateBuilder.build(context);
             DateFieldMapper endDateMapper = endDateBuilder.build(context);
             TextFieldMapper rruleMapper = rruleBuilder.build(context);
+            DateFieldMapper firstOccurrenceMapper = firstOccurrenceBuilder.build(context);
+            DateFieldMapper lastOccurrenceMapper = lastOccurrenceBuilder.build(context);
+            DateFieldMapper occurrencesMapper = null;
+            DateFieldMapper materializedFromMapper = null;
+            DateFieldMapper materializedUntilMapper = null;
+            if (materializeHorizon != null) {
+                occurrencesMapper = new DateFieldMapper.Builder(FieldNames.OCCURRENCES).docValues(false).build(context);
+                materializedFromMapper = new DateFieldMapper.Builder(FieldNames.MATERIALIZED_FROM).build(context);
+                materializedUntilMapper = new DateFieldMapper.Builder(FieldNames.MATERIALIZED_UNTIL).build(context);
+            }
 
             context.path().remove();
 
@@ -137,6 +273,13 @@ public class RecurringFieldMapper extends FieldMapper {
                     startDateMapper, 
                     endDateMapper, 
                     rruleMapper, 
+                    firstOccurrenceMapper,
+                    lastOccurrenceMapper,
+                    occurrencesMapper,
+                    materializedFromMapper,
+                    materializedUntilMapper,
+                    materializeHorizon,
+                    materializeSlack,
                     multiFieldsBuilder.build(this, context), 
                     copyTo
             );
@@ -146,11 +289,36 @@ public class RecurringFieldMapper extends FieldMapper {
 
     public static class TypeParser implements Mapper.TypeParser {
 
+        private final RuleCache ruleCache;
+        private final RecurringResultCache resultCache;
+        private final ExpansionLimits expansionLimits;
+
+        public TypeParser(RuleCache ruleCache, RecurringResultCache resultCache, ExpansionLimits expansionLimits) {
+            this.ruleCache = ruleCache;
+            this.resultCache = resultCache;
+            this.expansionLimits = expansionLimits;
+        }
+
         @Override
         public Mapper.Builder<?, ?> parse(String name, Map<String, Object> node, ParserContext parserContext)
                 throws MapperParsingException {
 
-            RecurringFieldMapper.Builder builder = new RecurringFieldMapper.Builder(name);
+            RecurringFieldMapper.Builder builder = new RecurringFieldMapper.Builder(name, ruleCache, resultCache, expansionLimits);
+
+            Object horizon = node.remove("materialize_horizon");
+            if (horizon != null) {
+                parseDays(name, "materialize_horizon", horizon.toString(), 1);
+                builder.materializeHorizon(horizon.toString());
+            }
+            Object slack = node.remove("materialize_slack");
+            if (slack != null) {
+                if (horizon == null) {
+                    throw new MapperParsingException("[materialize_slack] of field [" + name + "] requires [materialize_horizon]");
+                }
+                parseDays(name, "materialize_slack", slack.toString(), 0);
+                builder.materializeSlack(slack.toString());
+            }
+
             TypeParsers.parseTextField(builder, name, node, parserContext);
 
             return builder;
@@ -165,6 +333,13 @@ public class RecurringFieldMapper extends FieldMapper {
     		DateFieldMapper startDateMapper,
     		DateFieldMapper endDateMapper, 
     		TextFieldMapper rruleMapper, 
+    		DateFieldMapper firstOccurrenceMapper,
+    		DateFieldMapper lastOccurrenceMapper,
+    		DateFieldMapper occurrencesMapper,
+    		DateFieldMapper materializedFromMapper,
+    		DateFieldMapper materializedUntilMapper,
+    		String materializeHorizon,
+    		String materializeSlack,
     		MultiFields multiFields,
     		CopyTo copyTo
    ) {
@@ -173,6 +348,34 @@ public class RecurringFieldMapper extends FieldMapper {
         this.startDateMapper = startDateMapper;
         this.endDateMapper = endDateMapper;
         this.rruleMapper = rruleMapper;
+        this.firstOccurrenceMapper = firstOccurrenceMapper;
+        this.lastOccurrenceMapper = lastOccurrenceMapper;
+        this.occurrencesMapper = occurrencesMapper;
+        this.materializedFromMapper = materializedFromMapper;
+        this.materializedUntilMapper = materializedUntilMapper;
+        this.materializeHorizon = materializeHorizon;
+        this.materializeSlack = materializeSlack;
+    }
+
+    /**
+     * Parses the value of {@code parameter} as a time value, or as a number of years such as {@code 2y}, into a number
+     * of days, at least {@code minimum}.
+     */
+    static int parseDays(String name, String parameter, String value, int minimum) {
+        Matcher years = HORIZON_YEARS.matcher(value);
+        long days;
+        try {
+            days = years.matches()
+                    ? Long.parseLong(years.group(1)) * 365
+                    : TimeValue.parseTimeValue(value, parameter).days();
+        } catch (IllegalArgumentException e) {
+            throw new MapperParsingException("Invalid [" + parameter + "] [" + value + "] for field [" + name + "]", e);
+        }
+        if (days < minimum || days > Integer.MAX_VALUE) {
+            throw new MapperParsingException("[" + parameter + "] of field [" + name + "] must be at least " + minimum
+                    + (minimum == 1 ? " day" : " days"));
+        }
+        return (int) days;
     }
     
     @Override
@@ -202,6 +405,7 @@ public class RecurringFieldMapper extends FieldMapper {
                 recurring.setRrule((String) entry.getValue());
             }
         }
+        recurring.setRuleCache(fieldType().ruleCache());
 
         startDateMapper.parse(context.createExternalValueContext(recurring.getStartDate()));
 
@@ -213,19 +417,99 @@ public class RecurringFieldMapper extends FieldMapper {
             rruleMapper.parse(context.createExternalValueContext(recurring.getRrule()));
         }
 
+        if (null != recurring.getStartDate()) {
+            parseOccurrenceBounds(context, recurring);
+        }
+
+        if (null != recurring.getRrule() && materializeHorizon != null) {
+            materialize(context, recurring);
+        }
+
+        if (fieldType().hasDocValues()) {
+            // always written, an empty rule tells a plain date apart from a segment without doc values
+            String rrule = recurring.getRrule() != null ? CompiledRule.normalize(recurring.getRrule()) : "";
+            context.doc().add(new SortedDocValuesField(fieldType().name(), new BytesRef(rrule)));
+        }
+
         multiFields.parse(this, context.createExternalValueContext(recurring));
 
         context.path().remove();
     }
 
+    /**
+     * Writes the first and the last occurrence, the last one is left out when the rule has no end.
+     */
+    private void parseOccurrenceBounds(ParseContext context, Recurring recurring) throws IOException {
+        LocalDate last;
+        try {
+            last = recurring.getLastOccurrence();
+        } catch (ParseException e) {
+            return;
+        }
+
+        firstOccurrenceMapper.parse(context.createExternalValueContext(recurring.getFirstOccurrence().toString()));
+        if (last != null) {
+            lastOccurrenceMapper.parse(context.createExternalValueContext(last.toString()));
+        }
+    }
+
+    /**
+     * Writes the occurrences of the rule from the slack before today, or from its start date if later, up to the
+     * horizon, and the dates between which they are complete. Old rules are not cut short by the limit on the number
+     * of occurrences this way. Rules which fail to parse are left to be evaluated at query time.
+     */
+    private void materialize(ParseContext context, Recurring recurring) throws IOException {
+        LocalDate today = LocalDate.now(DateTimeZone.UTC);
+        String slack = materializeSlack != null ? materializeSlack : Defaults.MATERIALIZE_SLACK;
+        LocalDate from = today.minusDays(parseDays(name(), "materialize_slack", slack, 0));
+        LocalDate until = today.plusDays(parseDays(name(), "materialize_horizon", materializeHorizon, 1));
+        List<LocalDate> occurrences = new ArrayList<>();
+        LocalDate materializedUntil;
+        try {
+            LocalDate start = recurring.getFirstOccurrence();
+            if (start.isAfter(from)) {
+                from = start;
+            }
+            materializedUntil = recurring.expand(from, until, Defaults.MATERIALIZE_LIMIT, occurrences);
+        } catch (ParseException | IllegalArgumentException e) {
+            return;
+        }
+
+        for (LocalDate occurrence : occurrences) {
+            occurrencesMapper.parse(context.createExternalValueContext(occurrence.toString()));
+        }
+        materializedFromMapper.parse(context.createExternalValueContext(from.toString()));
+        materializedUntilMapper.parse(context.createExternalValueContext(materializedUntil.toString()));
+    }
+
     @Override
     public RecurringFieldType fieldType() {
         return (RecurringFieldType) super.fieldType();
     }
+
+    @Override
+    protected void doMerge(Mapper mergeWith, boolean updateAllTypes) {
+        super.doMerge(mergeWith, updateAllTypes);
+        RecurringFieldMapper other = (RecurringFieldMapper) mergeWith;
+        if (this.occurrencesMapper == null) {
+            // sub mappers already in the mapping keep the field types the mapper service registered for them
+            this.occurrencesMapper = other.occurrencesMapper;
+            this.materializedFromMapper = other.materializedFromMapper;
+            this.materializedUntilMapper = other.materializedUntilMapper;
+        }
+        this.materializeHorizon = other.materializeHorizon;
+        this.materializeSlack = other.materializeSlack;
+    }
     
     @Override
     public Iterator<Mapper> iterator() {
-        List<? extends Mapper> extras = Arrays.asList(startDateMapper, endDateMapper, rruleMapper);
+        List<Mapper> extras = new ArrayList<>(Arrays.asList(startDateMapper, endDateMapper, rruleMapper,
+                firstOccurrenceMapper, lastOccurrenceMapper));
+        if (materializeHorizon != null) {
+            extras.add(occurrencesMapper);
+            extras.add(materializedFromMapper);
+            extras.add(materializedUntilMapper);
+        }
         return Iterators.concat(super.iterator(), extras.iterator());
     }
     
@@ -233,6 +517,15 @@ public class RecurringFieldMapper extends FieldMapper {
     public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
     	builder.startObject(simpleName());
         builder.field("type", CONTENT_TYPE);
+        if (fieldType().hasDocValues() == false) {
+            builder.field("doc_values", false);
+        }
+        if (materializeHorizon != null) {
+            builder.field("materialize_horizon", materializeHorizon);
+        }
+        if (materializeSlack != null) {
+            builder.field("materialize_slack", materializeSlack);
+        }
         builder.endObject();
         return builder;
     }
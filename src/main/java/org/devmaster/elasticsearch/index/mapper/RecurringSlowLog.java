@@ -0,0 +1,203 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.devmaster.elasticsearch.index.mapper;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.StringHelper;
+import org.devmaster.elasticsearch.index.mapper.RecurringStats.Evaluation;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Logs the evaluations of {@link Recurring} walking more occurrences or taking longer than a threshold, in the spirit
+ * of the search slow log. An entry names the document, the rule with its fingerprint, the window and the occurrences
+ * walked; the fingerprint is the same for rules which only differ in layout, case or the order of their parts.
+ * <p>
+ * Both thresholds are disabled by default. Checking them is two comparisons per evaluation, the document is only
+ * resolved to an index and an id for the entries actually logged, at most {@link #MAX_PER_SECOND_SETTING} per second.
+ * The entries dropped by this limit are counted in the next entry. When many evaluations cross a threshold, only the
+ * {@link #SAMPLE_RATE_SETTING} share of them is considered, so that the others do not contend on the rate limit.
+ */
+public final class RecurringSlowLog {
+
+    public static final Setting<Integer> THRESHOLD_STEPS_SETTING =
+            Setting.intSetting("recurring.slowlog.threshold.steps", -1, -1, Property.NodeScope, Property.Dynamic);
+
+    public static final Setting<TimeValue> THRESHOLD_TIME_SETTING =
+            Setting.timeSetting("recurring.slowlog.threshold.time", TimeValue.timeValueNanos(-1),
+                    TimeValue.timeValueMillis(-1), Property.NodeScope, Property.Dynamic);
+
+    public static final Setting<Integer> MAX_PER_SECOND_SETTING =
+            Setting.intSetting("recurring.slowlog.max_per_second", 10, 1, Property.NodeScope, Property.Dynamic);
+
+    public static final Setting<Double> SAMPLE_RATE_SETTING =
+            Setting.doubleSetting("recurring.slowlog.sample_rate", 1.0, 0.0, 1.0, Property.NodeScope, Property.Dynamic);
+
+    private static final Logger LOGGER = LogManager.getLogger("org.devmaster.elasticsearch.recurring.slowlog");
+
+    private final Logger logger;
+    private final LongSupplier nanoTime;
+    private final DoubleSupplier random;
+
+    private volatile long thresholdSteps;
+    private volatile long thresholdNanos;
+    private volatile int maxPerSecond;
+    private volatile double sampleRate;
+
+    private final AtomicLong second = new AtomicLong(Long.MIN_VALUE);
+    private final AtomicInteger loggedThisSecond = new AtomicInteger();
+    private final LongAdder dropped = new LongAdder();
+
+    public RecurringSlowLog(Settings settings) {
+        this(settings, LOGGER, System::nanoTime, () -> ThreadLocalRandom.current().nextDouble());
+    }
+
+    RecurringSlowLog(Settings settings, Logger logger, LongSupplier nanoTime) {
+        this(settings, logger, nanoTime, () -> ThreadLocalRandom.current().nextDouble());
+    }
+
+    RecurringSlowLog(Settings settings, Logger logger, LongSupplier nanoTime, DoubleSupplier random) {
+        this.logger = logger;
+        this.nanoTime = nanoTime;
+        this.random = random;
+        setThresholdSteps(THRESHOLD_STEPS_SETTING.get(settings));
+        setThresholdTime(THRESHOLD_TIME_SETTING.get(settings));
+        setMaxPerSecond(MAX_PER_SECOND_SETTING.get(settings));
+        setSampleRate(SAMPLE_RATE_SETTING.get(settings));
+    }
+
+    /**
+     * Follows the updates of the settings, they are all dynamic.
+     */
+    public void register(ClusterSettings clusterSettings) {
+        clusterSettings.addSettingsUpdateConsumer(THRESHOLD_STEPS_SETTING, this::setThresholdSteps);
+        clusterSettings.addSettingsUpdateConsumer(THRESHOLD_TIME_SETTING, this::setThresholdTime);
+        clusterSettings.addSettingsUpdateConsumer(MAX_PER_SECOND_SETTING, this::setMaxPerSecond);
+        clusterSettings.addSettingsUpdateConsumer(SAMPLE_RATE_SETTING, this::setSampleRate);
+    }
+
+    private void setThresholdSteps(int steps) {
+        this.thresholdSteps = steps < 0 ? Long.MAX_VALUE : steps;
+    }
+
+    private void setThresholdTime(TimeValue time) {
+        this.thresholdNanos = time.nanos() < 0 ? Long.MAX_VALUE : time.nanos();
+    }
+
+    private void setMaxPerSecond(int maxPerSecond) {
+        this.maxPerSecond = maxPerSecond;
+    }
+
+    private void setSampleRate(double sampleRate) {
+        this.sampleRate = sampleRate;
+    }
+
+    void onEvaluation(Recurring recurring, Evaluation evaluation, int from, int to, long tookInNanos, long steps) {
+        if (steps < thresholdSteps && tookInNanos < thresholdNanos) {
+            return;
+        }
+        if (logger.isWarnEnabled() == false) {
+            return;
+        }
+        // sampled out entries are not counted as dropped, they never reach the rate limit
+        double sampleRate = this.sampleRate;
+        if (sampleRate < 1.0 && random.getAsDouble() >= sampleRate) {
+            return;
+        }
+        if (acquire(nanoTime.getAsLong()) == false) {
+            dropped.increment();
+            return;
+        }
+        logger.warn(message(recurring, evaluation, from, to, tookInNanos, steps, dropped.sumThenReset()));
+    }
+
+    private boolean acquire(long nowInNanos) {
+        long now = TimeUnit.NANOSECONDS.toSeconds(nowInNanos);
+        long current = second.get();
+        if (now != current && second.compareAndSet(current, now)) {
+            loggedThisSecond.set(0);
+        }
+        return loggedThisSecond.incrementAndGet() <= maxPerSecond;
+    }
+
+    static String message(Recurring recurring, Evaluation evaluation, int from, int to, long tookInNanos, long steps,
+                          long dropped) {
+        RecurringValues values = recurring.values();
+        String rule = recurring.getRrule() != null ? CompiledRule.normalize(recurring.getRrule()) : null;
+        StringBuilder sb = new StringBuilder();
+        sb.append('[').append(values != null ? values.index() : "-").append(']');
+        sb.append('[').append(values != null ? values.field() : "-").append(']');
+        sb.append(" id[").append(values != null ? id(values, recurring.doc()) : "-").append("], ");
+        sb.append("evaluation[").append(evaluation).append("], ");
+        sb.append("took[").append(TimeValue.timeValueNanos(tookInNanos)).append("], ");
+        sb.append("took_nanos[").append(tookInNanos).append("], ");
+        sb.append("steps[").append(steps).append("], ");
+        sb.append("window[").append(day(from)).append("..").append(day(to)).append("], ");
+        sb.append("start_date[").append(recurring.getStartDate()).append("], ");
+        sb.append("end_date[").append(recurring.getEndDate() != null ? recurring.getEndDate() : "-").append("], ");
+        sb.append("fingerprint[").append(rule != null ? recurring.fingerprint() : "-").append("], ");
+        sb.append("rule[").append(rule != null ? rule.replace('\n', ' ') : "-").append(']');
+        if (dropped > 0) {
+            sb.append(", dropped[").append(dropped).append(']');
+        }
+        return sb.toString();
+    }
+
+    private static String id(RecurringValues values, int doc) {
+        try {
+            String id = values.id(doc);
+            return id != null ? id : "-";
+        } catch (IOException e) {
+            return "-";
+        }
+    }
+
+    private static String day(int day) {
+        return day == Recurring.NONE ? "" : EpochDays.toLocalDate(day).toString();
+    }
+
+    /**
+     * Returns a short hash of a normalized rule which does not depend on the case or the order of the parts of its
+     * lines, to group the entries of one rule.
+     */
+    static String fingerprint(String normalizedRule) {
+        StringBuilder sb = new StringBuilder(normalizedRule.length());
+        for (String line : normalizedRule.split("\n")) {
+            String upper = line.toUpperCase(Locale.ROOT);
+            int colon = upper.indexOf(':');
+            String[] parts = upper.substring(colon + 1).split(";");
+            Arrays.sort(parts);
+            sb.append(upper, 0, colon + 1).append(String.join(";", parts)).append('\n');
+        }
+        return String.format(Locale.ROOT, "%08x", StringHelper.murmurhash3_x86_32(new BytesRef(sb), 0));
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.devmaster.elasticsearch.index.mapper;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node level counters of the rule evaluations, reached through the {@link ExpansionBudget} of every request. Counters
+ * are {@link LongAdder}s and latencies go to HdrHistogram {@link Recorder}s striped by thread, search threads never
+ * wait on each other nor write to the same histogram to record. Reading the latencies merges the stripes and is
+ * synchronized.
+ */
+public final class RecurringStats {
+
+    /**
+     * The evaluations of {@link Recurring}, counted once per call whatever the methods they are built on.
+     */
+    public enum Evaluation {
+        OCCURS_ON,
+        OCCURS_ON_DAYS,
+        OCCURS_BETWEEN,
+        OCCURS_BETWEEN_WINDOWS,
+        NEXT_OCCURRENCE,
+        OCCURRENCE_ON_OR_AFTER,
+        NOT_HAS_EXPIRED,
+        OCCURRENCES_BETWEEN,
+        OCCURRENCE_PAGE,
+        HAS_OCCURRENCES_BETWEEN,
+        HAS_ANY_OCCURRENCE_BETWEEN,
+        FOR_EACH_OCCURRENCE_BETWEEN;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    /**
+     * Evaluations taking longer are recorded as taking this long.
+     */
+    static final long MAX_LATENCY_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private static final int SIGNIFICANT_DIGITS = 2;
+
+    /**
+     * Number of latency recorders, the smallest power of two not below the number of processors, so that a thread picks
+     * its stripe with a mask.
+     */
+    static final int STRIPES = Math.min(32, Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 2 - 1));
+
+    private final LongAdder[] evaluations = new LongAdder[Evaluation.values().length];
+    private final LongAdder occurrencesWalked = new LongAdder();
+    private final LongAdder docValuesReads = new LongAdder();
+    private final LongAdder sourceReads = new LongAdder();
+    private final Recorder[] latencyRecorders = new Recorder[STRIPES];
+    private final Histogram[] intervals = new Histogram[STRIPES];
+    private final Histogram latency = new Histogram(MAX_LATENCY_NANOS, SIGNIFICANT_DIGITS);
+
+    public RecurringStats() {
+        for (int i = 0; i < evaluations.length; i++) {
+            evaluations[i] = new LongAdder();
+        }
+        for (int i = 0; i < latencyRecorders.length; i++) {
+            latencyRecorders[i] = new Recorder(MAX_LATENCY_NANOS, SIGNIFICANT_DIGITS);
+        }
+    }
+
+    void onEvaluation(Evaluation evaluation, long tookInNanos, long walked) {
+        evaluations[evaluation.ordinal()].increment();
+        if (walked > 0) {
+            occurrencesWalked.add(walked);
+        }
+        Recorder recorder = latencyRecorders[(int) Thread.currentThread().getId() & (STRIPES - 1)];
+        recorder.recordValue(Math.min(Math.max(tookInNanos, 0), MAX_LATENCY_NANOS));
+    }
+
+    void onDocValuesRead() {
+        docValuesReads.increment();
+    }
+
+    void onSourceRead() {
+        sourceReads.increment();
+    }
+
+    public long evaluations(Evaluation evaluation) {
+        return evaluations[evaluation.ordinal()].sum();
+    }
+
+    /**
+     * Returns the number of occurrences read from iterators, occurrences computed by a {@link SimpleRule} are not
+     * walked.
+     */
+    public long occurrencesWalked() {
+        return occurrencesWalked.sum();
+    }
+
+    /**
+     * Returns the number of values read from doc values.
+     */
+    public long docValuesReads() {
+        return docValuesReads.sum();
+    }
+
+    /**
+     * Returns the number of values read from {@code _source}, for documents indexed without doc values.
+     */
+    public long sourceReads() {
+        return sourceReads.sum();
+    }
+
+    /**
+     * Returns a copy of the latencies of the evaluations since the node started, in nanoseconds.
+     */
+    public synchronized Histogram latency() {
+        for (int i = 0; i < latencyRecorders.length; i++) {
+            intervals[i] = latencyRecorders[i].getIntervalHistogram(intervals[i]);
+            latency.add(intervals[i]);
+        }
+        return latency.copy();
+    }
+}
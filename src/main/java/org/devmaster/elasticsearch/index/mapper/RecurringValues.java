@@ -0,0 +1,221 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.index.mapper;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.index.DocValues;
+import org.apache.lucene.index.DocValuesType;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.LeafReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedNumericDocValues;
+import org.apache.lucene.util.BytesRef;
+import org.elasticsearch.index.mapper.IdFieldMapper;
+import org.elasticsearch.index.mapper.Uid;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.index.shard.ShardUtils;
+import org.elasticsearch.search.lookup.SourceLookup;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * Reads the recurring values of one segment. Values come from the doc values written by
+ * {@link RecurringFieldMapper}, documents indexed before the recurring field had doc values are read from
+ * {@code _source}.
+ */
+public final class RecurringValues {
+
+    /**
+     * Returned by {@link #startDay(int)} when the start date cannot be read from doc values.
+     */
+    public static final int UNKNOWN = Integer.MIN_VALUE;
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private final LeafReaderContext context;
+    private final String field;
+    private final RuleCache ruleCache;
+    private final ExpansionBudget budget;
+
+    private final SortedNumericDocValues startDates;
+    private final SortedNumericDocValues endDates;
+    private final SortedDocValues rules;
+    private final CompiledRule[] compiledRules;
+
+    private SourceLookup sourceLookup;
+    private Recurring recurring;
+    private int startDoc = -1;
+    private int startDay;
+
+    private RecurringValues(LeafReaderContext context, String field, RuleCache ruleCache, ExpansionBudget budget)
+            throws IOException {
+        this.context = context;
+        this.field = field;
+        this.ruleCache = ruleCache;
+        this.budget = budget;
+
+        LeafReader reader = context.reader();
+        FieldInfo info = reader.getFieldInfos().fieldInfo(field);
+        if (info != null && info.getDocValuesType() == DocValuesType.SORTED) {
+            this.startDates = DocValues.getSortedNumeric(reader, field + "." + RecurringFieldMapper.FieldNames.START_DATE);
+            this.endDates = DocValues.getSortedNumeric(reader, field + "." + RecurringFieldMapper.FieldNames.END_DATE);
+            this.rules = DocValues.getSorted(reader, field);
+            this.compiledRules = new CompiledRule[rules.getValueCount()];
+        } else {
+            this.startDates = null;
+            this.endDates = null;
+            this.rules = null;
+            this.compiledRules = null;
+        }
+    }
+
+    public static RecurringValues forLeaf(LeafReaderContext context, String field, RuleCache ruleCache) throws IOException {
+        return forLeaf(context, field, ruleCache, ExpansionBudget.UNLIMITED);
+    }
+
+    /**
+     * Reads the values of a segment for a request, the occurrences walked by their rules are charged to
+     * {@code budget}.
+     */
+    public static RecurringValues forLeaf(LeafReaderContext context, String field, RuleCache ruleCache,
+                                          ExpansionBudget budget) throws IOException {
+        return new RecurringValues(context, field, ruleCache, budget);
+    }
+
+    /**
+     * Returns {@code true} if this segment was written with doc values for the recurring field.
+     */
+    public boolean hasDocValues() {
+        return rules != null;
+    }
+
+    /**
+     * Returns the recurring of {@code doc}, or {@code null} if the document has no value. Documents must be visited
+     * in increasing order, and values read from doc values are reused: the returned instance is only valid until the
+     * next call. In a segment with doc values, a document with neither a rule nor a start date has no value and its
+     * {@code _source} is not loaded; one with only a start date was indexed before the rule had doc values.
+     */
+    public Recurring get(int doc) throws IOException {
+        if (rules == null) {
+            return fromSource(doc);
+        }
+        boolean hasRule = rules.advanceExact(doc);
+        int startDay = startDay(doc);
+        if (hasRule && startDay != UNKNOWN) {
+            int endDay = endDates.advanceExact(doc) ? toDay(endDates.nextValue()) : Integer.MIN_VALUE;
+            if (recurring == null) {
+                recurring = new Recurring(startDay, endDay, compiledRule(rules.ordValue()));
+                recurring.setBudget(budget);
+            } else {
+                recurring.reset(startDay, endDay, compiledRule(rules.ordValue()));
+            }
+            recurring.setDocument(this, doc);
+            budget.onDocValuesRead();
+            return recurring;
+        }
+        return hasRule || startDay != UNKNOWN ? fromSource(doc) : null;
+    }
+
+    /**
+     * Returns the start date of {@code doc} in days since 1970-01-01, reading only its doc value, or {@link #UNKNOWN}.
+     * The {@link Recurring#nextOccurrence(int)} of the document is never before the day before it.
+     */
+    public int startDay(int doc) throws IOException {
+        if (startDates == null) {
+            return UNKNOWN;
+        }
+        if (doc != startDoc) {
+            startDay = startDates.advanceExact(doc) ? toDay(startDates.nextValue()) : UNKNOWN;
+            startDoc = doc;
+        }
+        return startDay;
+    }
+
+    /**
+     * Returns the index of this segment, or {@code null} if it is not read from a shard.
+     */
+    String index() {
+        ShardId shardId = ShardUtils.extractShardId(context.reader());
+        return shardId != null ? shardId.getIndexName() : null;
+    }
+
+    String field() {
+        return field;
+    }
+
+    /**
+     * Returns the {@code _id} of {@code doc} read from stored fields, or {@code null} if it has none.
+     */
+    String id(int doc) throws IOException {
+        Document document = context.reader().document(doc, Collections.singleton(IdFieldMapper.NAME));
+        BytesRef id = document.getBinaryValue(IdFieldMapper.NAME);
+        return id != null ? Uid.decodeId(id.bytes, id.offset, id.length) : null;
+    }
+
+    private Recurring fromSource(int doc) {
+        RecurringEvents events = RecurringEvents.current();
+        if (events == null) {
+            return loadSource(doc);
+        }
+        Object event = events.beginSourceLoad();
+        Recurring recurring = loadSource(doc);
+        events.endSourceLoad(event, field, recurring);
+        return recurring;
+    }
+
+    @SuppressWarnings("unchecked")
+    private Recurring loadSource(int doc) {
+        if (sourceLookup == null) {
+            sourceLookup = new SourceLookup();
+        }
+        sourceLookup.setSegmentAndDocument(context, doc);
+
+        if (sourceLookup.containsKey(field)) {
+            Map<String, Object> map = (Map<String, Object>) sourceLookup.get(field);
+
+            String rrule = (String) map.get(RecurringFieldMapper.FieldNames.RRULE);
+            String startDate = (String) map.get(RecurringFieldMapper.FieldNames.START_DATE);
+            String endDate = (String) map.get(RecurringFieldMapper.FieldNames.END_DATE);
+
+            Recurring recurring = new Recurring(startDate, endDate, rrule, ruleCache);
+            recurring.setBudget(budget);
+            recurring.setDocument(this, doc);
+            budget.onSourceRead();
+            return recurring;
+        }
+
+        return null;
+    }
+
+    private CompiledRule compiledRule(int ord) throws IOException {
+        CompiledRule rule = compiledRules[ord];
+        if (rule == null) {
+            BytesRef bytes = rules.lookupOrd(ord);
+            if (bytes.length == 0) {
+                return null;
+            }
+            rule = ruleCache.get(bytes.utf8ToString());
+            compiledRules[ord] = rule;
+        }
+        return rule;
+    }
+
+    private static int toDay(long millis) {
+        return Math.toIntExact(Math.floorDiv(millis, MILLIS_PER_DAY));
+    }
+}
@@ -0,0 +1,94 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.index.mapper;
+
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Node level cache of {@link CompiledRule}s keyed by the normalized rule text, shared by the mapper and every
+ * recurring script. An index usually holds millions of documents but only a few thousand distinct rules.
+ */
+public final class RuleCache {
+
+    public static final Setting<Integer> MAX_SIZE_SETTING =
+            Setting.intSetting("recurring.rule_cache.max_size", 10000, 0, Property.NodeScope);
+
+    public static final Setting<TimeValue> EXPIRE_SETTING =
+            Setting.positiveTimeSetting("recurring.rule_cache.expire", TimeValue.timeValueMillis(0), Property.NodeScope);
+
+    private final Cache<String, CompiledRule> cache;
+    private final LongAdder compilations = new LongAdder();
+
+    public RuleCache(Settings settings) {
+        int maxSize = MAX_SIZE_SETTING.get(settings);
+        TimeValue expire = EXPIRE_SETTING.get(settings);
+
+        CacheBuilder<String, CompiledRule> builder = CacheBuilder.builder();
+        builder.setMaximumWeight(maxSize);
+        if (expire.getNanos() != 0) {
+            builder.setExpireAfterAccess(expire);
+        }
+        this.cache = maxSize > 0 ? builder.build() : null;
+    }
+
+    /**
+     * Returns the compiled form of {@code rrule}, parsing it only when it is not cached yet.
+     */
+    public CompiledRule get(String rrule) {
+        if (cache == null) {
+            return compile(rrule);
+        }
+        String key = CompiledRule.normalize(rrule);
+        try {
+            return cache.computeIfAbsent(key, this::compile);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Unable to compile rule [" + key + "]", e.getCause());
+        }
+    }
+
+    private CompiledRule compile(String rrule) {
+        compilations.increment();
+        return CompiledRule.compile(rrule);
+    }
+
+    /**
+     * Returns the number of rules parsed by this cache, once per miss.
+     */
+    public long compilations() {
+        return compilations.sum();
+    }
+
+    public long count() {
+        return cache != null ? cache.count() : 0;
+    }
+
+    public Cache.CacheStats stats() {
+        return cache != null ? cache.stats() : new Cache.CacheStats(0, 0, 0);
+    }
+
+    public void clear() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+}
@@ -0,0 +1,341 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.index.mapper;
+
+import com.google.ical.values.DateValue;
+import com.google.ical.values.Frequency;
+import com.google.ical.values.RRule;
+import com.google.ical.values.TimeValue;
+import com.google.ical.values.Weekday;
+import com.google.ical.values.WeekdayNum;
+
+/**
+ * Closed-form evaluation of the common rule shapes: a single DAILY, WEEKLY, MONTHLY or YEARLY rule with INTERVAL,
+ * UNTIL, BYMONTH, BYMONTHDAY and BYDAY without ordinals. Whether a day is an occurrence is decided from its year,
+ * month and day of week, without iterating from the start date.
+ * <p>
+ * Dates are days since 1970-01-01. As with google-rfc-2445 the start date is always the first occurrence, and
+ * {@link #of(RRule)} only accepts shapes whose occurrences are never a century apart, so the library never gives up
+ * on a rule this class answers for.
+ */
+final class SimpleRule {
+
+    /**
+     * Returned by {@link #nextOnOrAfter(int, int)} when there is no further occurrence.
+     */
+    static final int NONE = Integer.MAX_VALUE;
+
+    private static final int MAX_INTERVAL = 12;
+    private static final int MAX_MONTH_DAY = 28;
+    private static final int SEARCH_DAYS = 100 * 366;
+
+    private final Frequency freq;
+    private final int interval;
+    private final int until;
+    private final int weekdays;
+    private final int monthDays;
+    private final int lastMonthDays;
+    private final int months;
+    private final int weekStart;
+
+    private SimpleRule(Frequency freq, int interval, int until, int weekdays, int monthDays, int lastMonthDays,
+                       int months, int weekStart) {
+        this.freq = freq;
+        this.interval = interval;
+        this.until = until;
+        this.weekdays = weekdays;
+        this.monthDays = monthDays;
+        this.lastMonthDays = lastMonthDays;
+        this.months = months;
+        this.weekStart = weekStart;
+    }
+
+    /**
+     * Returns the closed-form evaluator of {@code rule}, or {@code null} if its shape is not supported.
+     */
+    static SimpleRule of(RRule rule) {
+        Frequency freq = rule.getFreq();
+        if (freq != Frequency.DAILY && freq != Frequency.WEEKLY && freq != Frequency.MONTHLY && freq != Frequency.YEARLY) {
+            return null;
+        }
+        if (rule.getCount() > 0 || isSet(rule.getByWeekNo()) || isSet(rule.getByYearDay()) || isSet(rule.getBySetPos())
+                || isSet(rule.getByHour()) || isSet(rule.getByMinute()) || isSet(rule.getBySecond())) {
+            return null;
+        }
+
+        int interval = Math.max(1, rule.getInterval());
+        if (interval > MAX_INTERVAL) {
+            return null;
+        }
+
+        int until = NONE;
+        DateValue untilValue = rule.getUntil();
+        if (untilValue != null) {
+            if (untilValue instanceof TimeValue) {
+                return null;
+            }
+            until = EpochDays.of(untilValue.year(), untilValue.month(), untilValue.day());
+        }
+
+        int weekdays = 0;
+        if (rule.getByDay() != null) {
+            for (WeekdayNum day : rule.getByDay()) {
+                if (day.num != 0) {
+                    return null;
+                }
+                weekdays |= 1 << isoDayOfWeek(day.wday);
+            }
+        }
+
+        int monthDays = 0;
+        int lastMonthDays = 0;
+        if (rule.getByMonthDay() != null) {
+            for (int day : rule.getByMonthDay()) {
+                if (day >= 1 && day <= MAX_MONTH_DAY) {
+                    monthDays |= 1 << day;
+                } else if (day <= -1 && day >= -MAX_MONTH_DAY) {
+                    lastMonthDays |= 1 << -day;
+                } else {
+                    return null;
+                }
+            }
+        }
+
+        int months = 0;
+        if (rule.getByMonth() != null) {
+            for (int month : rule.getByMonth()) {
+                if (month < 1 || month > 12) {
+                    return null;
+                }
+                months |= 1 << month;
+            }
+        }
+
+        boolean byMonthDay = monthDays != 0 || lastMonthDays != 0;
+        if (interval > 1 && weekdays != 0 && byMonthDay) {
+            // a weekday falling on a day of month can be years apart, more so every few periods
+            return null;
+        }
+        // google-rfc-2445 does not count the interval of DAILY and MONTHLY rules from the start date when they have
+        // BYxxx parts that limit the periods, those are left to the library
+        switch (freq) {
+            case DAILY:
+                if (interval > 1 && (months != 0 || byMonthDay || weekdays != 0)) {
+                    return null;
+                }
+                break;
+            case WEEKLY:
+                if (byMonthDay || interval > 3 && months != 0) {
+                    return null;
+                }
+                break;
+            case MONTHLY:
+                if (interval > 1 && months != 0) {
+                    return null;
+                }
+                break;
+            default:
+                break;
+        }
+
+        Weekday wkst = rule.getWkSt() != null ? rule.getWkSt() : Weekday.MO;
+        return new SimpleRule(freq, interval, until, weekdays, monthDays, lastMonthDays, months, isoDayOfWeek(wkst));
+    }
+
+    private static boolean isSet(int[] values) {
+        return values != null && values.length > 0;
+    }
+
+    private static int isoDayOfWeek(Weekday weekday) {
+        // javaDayNum is 1 for Sunday to 7 for Saturday
+        return weekday == Weekday.SU ? 7 : weekday.javaDayNum - 1;
+    }
+
+    /**
+     * Returns {@code true} if {@code day} is an occurrence of this rule started at {@code start}.
+     */
+    boolean occursOn(int start, int day) {
+        if (day == start) {
+            return true;
+        }
+        if (day < start || day > until) {
+            return false;
+        }
+        int year = EpochDays.year(day);
+        int month = EpochDays.month(day);
+        return aligned(start, day, year, month)
+                && matches(start, month, EpochDays.dayOfMonth(day), EpochDays.lengthOfMonth(year, month), EpochDays.dayOfWeek(day));
+    }
+
+    /**
+     * Returns the first occurrence on or after {@code from} of this rule started at {@code start}, or {@link #NONE}.
+     */
+    int nextOnOrAfter(int start, int from) {
+        if (from <= start) {
+            return start;
+        }
+        int limit = (int) Math.min(until, (long) from + SEARCH_DAYS);
+        switch (freq) {
+            case DAILY:
+                return nextDaily(start, from, limit);
+            case WEEKLY:
+                return nextWeekly(start, from, limit);
+            default:
+                return nextInMonths(start, from, limit);
+        }
+    }
+
+    private int nextDaily(int start, int from, int limit) {
+        int remainder = (from - start) % interval;
+        for (int day = remainder == 0 ? from : from + interval - remainder; day <= limit; ) {
+            int year = EpochDays.year(day);
+            int month = EpochDays.month(day);
+            int length = EpochDays.lengthOfMonth(year, month);
+            int dayOfMonth = EpochDays.dayOfMonth(day);
+            if (months != 0 && (months & 1 << month) == 0) {
+                // BYMONTH only comes with an interval of one, skip to the next month
+                day += length - dayOfMonth + 1;
+                continue;
+            }
+            if (matches(start, month, dayOfMonth, length, EpochDays.dayOfWeek(day))) {
+                return day;
+            }
+            day += interval;
+        }
+        return NONE;
+    }
+
+    private int nextWeekly(int start, int from, int limit) {
+        int firstWeek = weekStartOf(start);
+        int day = from;
+        while (day <= limit) {
+            int week = weekStartOf(day);
+            int remainder = (week - firstWeek) / 7 % interval;
+            if (remainder != 0) {
+                day = week + (interval - remainder) * 7;
+                continue;
+            }
+            for (int end = Math.min(week + 6, limit); day <= end; day++) {
+                int year = EpochDays.year(day);
+                int month = EpochDays.month(day);
+                if (matches(start, month, EpochDays.dayOfMonth(day), EpochDays.lengthOfMonth(year, month), EpochDays.dayOfWeek(day))) {
+                    return day;
+                }
+            }
+            day = week + interval * 7;
+        }
+        return NONE;
+    }
+
+    private int nextInMonths(int start, int from, int limit) {
+        int startYear = EpochDays.year(start);
+        int startMonthIndex = startYear * 12 + EpochDays.month(start) - 1;
+
+        int year = EpochDays.year(from);
+        int month = EpochDays.month(from);
+        int dayOfMonth = EpochDays.dayOfMonth(from);
+        int firstOfMonth = from - dayOfMonth + 1;
+        while (firstOfMonth <= limit) {
+            int skip;
+            if (freq == Frequency.MONTHLY) {
+                int remainder = (year * 12 + month - 1 - startMonthIndex) % interval;
+                skip = remainder == 0 ? 0 : interval - remainder;
+            } else {
+                int remainder = (year - startYear) % interval;
+                skip = remainder == 0 ? 0 : (interval - remainder) * 12 - month + 1;
+            }
+
+            if (skip == 0) {
+                int length = EpochDays.lengthOfMonth(year, month);
+                int dayOfWeek = EpochDays.dayOfWeek(firstOfMonth + dayOfMonth - 1);
+                for (; dayOfMonth <= length; dayOfMonth++) {
+                    int day = firstOfMonth + dayOfMonth - 1;
+                    if (day > limit) {
+                        return NONE;
+                    }
+                    if (matches(start, month, dayOfMonth, length, dayOfWeek)) {
+                        return day;
+                    }
+                    dayOfWeek = dayOfWeek == 7 ? 1 : dayOfWeek + 1;
+                }
+                skip = 1;
+            }
+
+            for (int i = 0; i < skip; i++) {
+                firstOfMonth += EpochDays.lengthOfMonth(year, month);
+                if (++month > 12) {
+                    month = 1;
+                    year++;
+                }
+            }
+            dayOfMonth = 1;
+        }
+        return NONE;
+    }
+
+    private int weekStartOf(int day) {
+        return day - Math.floorMod(EpochDays.dayOfWeek(day) - weekStart, 7);
+    }
+
+    private boolean aligned(int start, int day, int year, int month) {
+        if (interval == 1) {
+            return true;
+        }
+        switch (freq) {
+            case DAILY:
+                return (day - start) % interval == 0;
+            case WEEKLY:
+                return (weekStartOf(day) - weekStartOf(start)) / 7 % interval == 0;
+            case MONTHLY:
+                return (year * 12 + month - EpochDays.year(start) * 12 - EpochDays.month(start)) % interval == 0;
+            default:
+                return (year - EpochDays.year(start)) % interval == 0;
+        }
+    }
+
+    /**
+     * Checks the BYxxx parts on a day of an aligned period, parts left out of MONTHLY, WEEKLY and YEARLY rules are
+     * taken from the start date.
+     */
+    private boolean matches(int start, int month, int dayOfMonth, int lengthOfMonth, int dayOfWeek) {
+        boolean byMonthDay = monthDays != 0 || lastMonthDays != 0;
+        switch (freq) {
+            case WEEKLY:
+                if (weekdays == 0 && dayOfWeek != EpochDays.dayOfWeek(start)) {
+                    return false;
+                }
+                break;
+            case MONTHLY:
+                if (weekdays == 0 && byMonthDay == false) {
+                    return dayOfMonth == EpochDays.dayOfMonth(start) && (months == 0 || (months & 1 << month) != 0);
+                }
+                break;
+            case YEARLY:
+                if (weekdays == 0 && byMonthDay == false) {
+                    return dayOfMonth == EpochDays.dayOfMonth(start)
+                            && (months == 0 ? month == EpochDays.month(start) : (months & 1 << month) != 0);
+                }
+                break;
+            default:
+                break;
+        }
+
+        return (months == 0 || (months & 1 << month) != 0)
+                && (weekdays == 0 || (weekdays & 1 << dayOfWeek) != 0)
+                && (byMonthDay == false
+                        || (monthDays & 1 << dayOfMonth) != 0
+                        || (lastMonthDays & 1 << (lengthOfMonth - dayOfMonth + 1)) != 0);
+    }
+}
@@ -0,0 +1,158 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.index.query;
+
+import org.devmaster.elasticsearch.index.mapper.EpochDays;
+import org.devmaster.elasticsearch.index.mapper.Recurring;
+import org.joda.time.LocalDate;
+
+import java.text.ParseException;
+import java.util.Objects;
+
+/**
+ * A condition on the occurrences of a {@link Recurring}, evaluated per document by {@link RecurringQuery}.
+ */
+public abstract class RecurringPredicate {
+
+    /**
+     * Approximate cost of evaluating a rule for one document, walking the rule iterator dominates it.
+     */
+    static final float RULE_COST = 100f;
+
+    public abstract boolean test(Recurring recurring) throws ParseException;
+
+    /**
+     * Returns an estimate of the cost of {@link #test(Recurring)} for one document.
+     */
+    public float matchCost() {
+        return RULE_COST;
+    }
+
+    public static RecurringPredicate occursBetween(LocalDate start, LocalDate end) {
+        return new OccursBetween(start, end);
+    }
+
+    public static RecurringPredicate occursAt(LocalDate date) {
+        return new OccursAt(date);
+    }
+
+    public static RecurringPredicate notExpired(LocalDate today) {
+        return new NotExpired(today);
+    }
+
+    static final class OccursBetween extends RecurringPredicate {
+
+        private final LocalDate start;
+        private final LocalDate end;
+        private final int startDay;
+        private final int endDay;
+
+        OccursBetween(LocalDate start, LocalDate end) {
+            this.start = Objects.requireNonNull(start);
+            this.end = Objects.requireNonNull(end);
+            this.startDay = EpochDays.of(start);
+            this.endDay = EpochDays.of(end);
+        }
+
+        @Override
+        public boolean test(Recurring recurring) throws ParseException {
+            return recurring.occursBetween(startDay, endDay);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            OccursBetween that = (OccursBetween) o;
+            return start.equals(that.start) && end.equals(that.end);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(getClass(), start, end);
+        }
+
+        @Override
+        public String toString() {
+            return "occurs_between[" + start + " TO " + end + "]";
+        }
+    }
+
+    static final class OccursAt extends RecurringPredicate {
+
+        private final LocalDate date;
+        private final int day;
+
+        OccursAt(LocalDate date) {
+            this.date = Objects.requireNonNull(date);
+            this.day = EpochDays.of(date);
+        }
+
+        @Override
+        public boolean test(Recurring recurring) throws ParseException {
+            return recurring.occursOn(day);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return date.equals(((OccursAt) o).date);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(getClass(), date);
+        }
+
+        @Override
+        public String toString() {
+            return "occurs_at[" + date + "]";
+        }
+    }
+
+    static final class NotExpired extends RecurringPredicate {
+
+        private final LocalDate today;
+        private final int day;
+
+        NotExpired(LocalDate today) {
+            this.today = Objects.requireNonNull(today);
+            this.day = EpochDays.of(today);
+        }
+
+        @Override
+        public boolean test(Recurring recurring) throws ParseException {
+            return recurring.notHasExpired(day);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return today.equals(((NotExpired) o).today);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(getClass(), today);
+        }
+
+        @Override
+        public String toString() {
+            return "not_expired[" + today + "]";
+        }
+    }
+}
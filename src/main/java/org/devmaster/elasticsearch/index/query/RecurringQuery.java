@@ -0,0 +1,199 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.index.query;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.ConstantScoreScorer;
+import org.apache.lucene.search.ConstantScoreWeight;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Scorer;
+import org.apache.lucene.search.ScorerSupplier;
+import org.apache.lucene.search.TwoPhaseIterator;
+import org.apache.lucene.search.Weight;
+import org.apache.lucene.util.DocIdSetBuilder;
+import org.devmaster.elasticsearch.index.mapper.ExpansionBudget;
+import org.devmaster.elasticsearch.index.mapper.ExpansionLimits;
+import org.devmaster.elasticsearch.index.mapper.Recurring;
+import org.devmaster.elasticsearch.index.mapper.RecurringValues;
+import org.devmaster.elasticsearch.index.mapper.RuleCache;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Objects;
+
+/**
+ * Matches the documents whose recurring field satisfies a {@link RecurringPredicate}.
+ * <p>
+ * The {@code approximation} is a cheap query on the indexed dates which must match every document the predicate may
+ * accept, the rule itself is only evaluated in {@link TwoPhaseIterator#matches()} for the documents it returns. With a
+ * {@link RecurringResultCache}, a query used again is evaluated once for the whole segment and later queries read the
+ * cached documents, unless a much cheaper clause leads the conjunction it is part of.
+ */
+public final class RecurringQuery extends Query {
+
+    /**
+     * Extra cost of a document whose values have to be read from {@code _source}.
+     */
+    static final float SOURCE_COST = 1000f;
+
+    /**
+     * The segment is not evaluated for the result cache when the clause leading the conjunction is this many times
+     * cheaper than the approximation, the few documents it leads to are evaluated one by one instead.
+     */
+    static final long SKIP_CACHE_FACTOR = 10;
+
+    private final String field;
+    private final RecurringPredicate predicate;
+    private final Query approximation;
+    private final RuleCache ruleCache;
+    private final RecurringResultCache resultCache;
+    private final ExpansionLimits expansionLimits;
+
+    public RecurringQuery(String field, RecurringPredicate predicate, Query approximation, RuleCache ruleCache,
+                          RecurringResultCache resultCache, ExpansionLimits expansionLimits) {
+        this.field = Objects.requireNonNull(field);
+        this.predicate = Objects.requireNonNull(predicate);
+        this.approximation = Objects.requireNonNull(approximation);
+        this.ruleCache = Objects.requireNonNull(ruleCache);
+        this.resultCache = resultCache;
+        this.expansionLimits = Objects.requireNonNull(expansionLimits);
+    }
+
+    public String getField() {
+        return field;
+    }
+
+    public RecurringPredicate getPredicate() {
+        return predicate;
+    }
+
+    public Query getApproximation() {
+        return approximation;
+    }
+
+    @Override
+    public Query rewrite(IndexReader reader) throws IOException {
+        Query rewritten = approximation.rewrite(reader);
+        if (rewritten != approximation) {
+            return new RecurringQuery(field, predicate, rewritten, ruleCache, resultCache, expansionLimits);
+        }
+        return super.rewrite(reader);
+    }
+
+    @Override
+    public Weight createWeight(IndexSearcher searcher, boolean needsScores, float boost) throws IOException {
+        final Weight approximationWeight = searcher.createWeight(approximation, false, 1f);
+        final ExpansionBudget budget = expansionLimits.newBudget();
+        if (resultCache != null) {
+            resultCache.onUse(this);
+        }
+
+        return new ConstantScoreWeight(this, boost) {
+
+            @Override
+            public Scorer scorer(LeafReaderContext context) throws IOException {
+                ScorerSupplier supplier = scorerSupplier(context);
+                return supplier != null ? supplier.get(Long.MAX_VALUE) : null;
+            }
+
+            @Override
+            public ScorerSupplier scorerSupplier(LeafReaderContext context) throws IOException {
+                final ScorerSupplier approximationSupplier = approximationWeight.scorerSupplier(context);
+                if (approximationSupplier == null) {
+                    return null;
+                }
+                final Weight weight = this;
+
+                return new ScorerSupplier() {
+                    @Override
+                    public Scorer get(long leadCost) throws IOException {
+                        if (resultCache != null) {
+                            boolean load = leadCost >= approximationSupplier.cost() / SKIP_CACHE_FACTOR;
+                            DocIdSet cached = resultCache.get(RecurringQuery.this, context, load,
+                                    () -> evaluate(context, approximationSupplier.get(Long.MAX_VALUE)));
+                            if (cached != null) {
+                                DocIdSetIterator iterator = cached.iterator();
+                                return new ConstantScoreScorer(weight, score(),
+                                        iterator != null ? iterator : DocIdSetIterator.empty());
+                            }
+                        }
+                        return new ConstantScoreScorer(weight, score(), twoPhase(context, approximationSupplier.get(leadCost)));
+                    }
+
+                    @Override
+                    public long cost() {
+                        return approximationSupplier.cost();
+                    }
+                };
+            }
+
+            private DocIdSet evaluate(LeafReaderContext context, Scorer approximationScorer) throws IOException {
+                DocIdSetBuilder builder = new DocIdSetBuilder(context.reader().maxDoc());
+                builder.add(TwoPhaseIterator.asDocIdSetIterator(twoPhase(context, approximationScorer)));
+                return builder.build();
+            }
+
+            private TwoPhaseIterator twoPhase(LeafReaderContext context, Scorer approximationScorer) throws IOException {
+                final RecurringValues values = RecurringValues.forLeaf(context, field, ruleCache, budget);
+                final float matchCost = predicate.matchCost() + (values.hasDocValues() ? 0f : SOURCE_COST);
+
+                return new TwoPhaseIterator(approximationScorer.iterator()) {
+                    @Override
+                    public boolean matches() throws IOException {
+                        Recurring recurring = values.get(approximation.docID());
+                        try {
+                            return recurring != null && predicate.test(recurring);
+                        } catch (ParseException e) {
+                            throw new IllegalArgumentException("Unable to evaluate rule of field [" + field + "]: " + e.getMessage(), e);
+                        }
+                    }
+
+                    @Override
+                    public float matchCost() {
+                        return matchCost;
+                    }
+                };
+            }
+
+            @Override
+            public boolean isCacheable(LeafReaderContext ctx) {
+                return approximationWeight.isCacheable(ctx);
+            }
+        };
+    }
+
+    @Override
+    public String toString(String field) {
+        return "recurring(" + this.field + ":" + predicate + ")";
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (sameClassAs(o) == false) {
+            return false;
+        }
+        RecurringQuery that = (RecurringQuery) o;
+        return field.equals(that.field) && predicate.equals(that.predicate) && approximation.equals(that.approximation);
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(classHash(), field, predicate, approximation);
+    }
+}
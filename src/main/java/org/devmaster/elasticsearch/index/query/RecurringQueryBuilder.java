@@ -0,0 +1,427 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.index.query;
+
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MatchNoDocsQuery;
+import org.apache.lucene.search.Query;
+import org.devmaster.elasticsearch.index.mapper.RecurringFieldMapper;
+import org.devmaster.elasticsearch.index.mapper.RecurringFieldMapper.RecurringFieldType;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.index.query.QueryShardContext;
+import org.elasticsearch.index.query.QueryShardException;
+import org.joda.time.LocalDate;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Query on the occurrences of a {@code recurring} field, the native counterpart of the {@code occurBetween},
+ * {@code hasOccurrencesAt} and {@code notHasExpired} scripts.
+ */
+public class RecurringQueryBuilder extends AbstractQueryBuilder<RecurringQueryBuilder> {
+
+    public static final String NAME = "recurring";
+
+    private static final ParseField FIELD_FIELD = new ParseField("field");
+    private static final ParseField MODE_FIELD = new ParseField("mode");
+    private static final ParseField START_FIELD = new ParseField("start");
+    private static final ParseField END_FIELD = new ParseField("end");
+    private static final ParseField DATE_FIELD = new ParseField("date");
+    private static final ParseField FROM_FIELD = new ParseField("from");
+
+    public enum Mode {
+        OCCURS_BETWEEN, OCCURS_AT, NOT_EXPIRED;
+
+        public static Mode fromString(String mode) {
+            for (Mode value : values()) {
+                if (value.toString().equals(mode)) {
+                    return value;
+                }
+            }
+            throw new IllegalArgumentException("Unknown recurring query mode [" + mode + "]");
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final String fieldName;
+    private final Mode mode;
+    private String start;
+    private String end;
+    private String date;
+    private String from;
+
+    public RecurringQueryBuilder(String fieldName, Mode mode) {
+        if (Strings.isNullOrEmpty(fieldName)) {
+            throw new IllegalArgumentException("[" + NAME + "] requires a field name");
+        }
+        if (mode == null) {
+            throw new IllegalArgumentException("[" + NAME + "] requires a mode");
+        }
+        this.fieldName = fieldName;
+        this.mode = mode;
+    }
+
+    public RecurringQueryBuilder(StreamInput in) throws IOException {
+        super(in);
+        fieldName = in.readString();
+        mode = in.readEnum(Mode.class);
+        start = in.readOptionalString();
+        end = in.readOptionalString();
+        date = in.readOptionalString();
+        from = in.readOptionalString();
+    }
+
+    public static RecurringQueryBuilder occursBetween(String fieldName, String start, String end) {
+        return new RecurringQueryBuilder(fieldName, Mode.OCCURS_BETWEEN).start(start).end(end);
+    }
+
+    public static RecurringQueryBuilder occursAt(String fieldName, String date) {
+        return new RecurringQueryBuilder(fieldName, Mode.OCCURS_AT).date(date);
+    }
+
+    public static RecurringQueryBuilder notExpired(String fieldName) {
+        return new RecurringQueryBuilder(fieldName, Mode.NOT_EXPIRED);
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(fieldName);
+        out.writeEnum(mode);
+        out.writeOptionalString(start);
+        out.writeOptionalString(end);
+        out.writeOptionalString(date);
+        out.writeOptionalString(from);
+    }
+
+    public String fieldName() {
+        return fieldName;
+    }
+
+    public Mode mode() {
+        return mode;
+    }
+
+    public String start() {
+        return start;
+    }
+
+    public RecurringQueryBuilder start(String start) {
+        this.start = start;
+        return this;
+    }
+
+    public String end() {
+        return end;
+    }
+
+    public RecurringQueryBuilder end(String end) {
+        this.end = end;
+        return this;
+    }
+
+    public String date() {
+        return date;
+    }
+
+    public RecurringQueryBuilder date(String date) {
+        this.date = date;
+        return this;
+    }
+
+    public String from() {
+        return from;
+    }
+
+    /**
+     * Date considered as today by {@code not_expired}, the current date when omitted.
+     */
+    public RecurringQueryBuilder from(String from) {
+        this.from = from;
+        return this;
+    }
+
+    @Override
+    protected void doXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.field(FIELD_FIELD.getPreferredName(), fieldName);
+        builder.field(MODE_FIELD.getPreferredName(), mode.toString());
+        if (start != null) {
+            builder.field(START_FIELD.getPreferredName(), start);
+        }
+        if (end != null) {
+            builder.field(END_FIELD.getPreferredName(), end);
+        }
+        if (date != null) {
+            builder.field(DATE_FIELD.getPreferredName(), date);
+        }
+        if (from != null) {
+            builder.field(FROM_FIELD.getPreferredName(), from);
+        }
+        printBoostAndQueryName(builder);
+        builder.endObject();
+    }
+
+    public static RecurringQueryBuilder fromXContent(XContentParser parser) throws IOException {
+        String fieldName = null;
+        String mode = null;
+        String start = null;
+        String end = null;
+        String date = null;
+        String from = null;
+        float boost = AbstractQueryBuilder.DEFAULT_BOOST;
+        String queryName = null;
+
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token.isValue()) {
+                if (FIELD_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    fieldName = parser.text();
+                } else if (MODE_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    mode = parser.text();
+                } else if (START_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    start = parser.text();
+                } else if (END_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    end = parser.text();
+                } else if (DATE_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    date = parser.text();
+                } else if (FROM_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    from = parser.text();
+                } else if (AbstractQueryBuilder.BOOST_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    boost = parser.floatValue();
+                } else if (AbstractQueryBuilder.NAME_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    queryName = parser.text();
+                } else {
+                    throw new ParsingException(parser.getTokenLocation(),
+                            "[" + NAME + "] query does not support [" + currentFieldName + "]");
+                }
+            } else {
+                throw new ParsingException(parser.getTokenLocation(),
+                        "[" + NAME + "] unknown token [" + token + "] after [" + currentFieldName + "]");
+            }
+        }
+
+        if (fieldName == null) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] must be provided with a [field]");
+        }
+        if (mode == null) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] must be provided with a [mode]");
+        }
+
+        RecurringQueryBuilder builder;
+        try {
+            builder = new RecurringQueryBuilder(fieldName, Mode.fromString(mode));
+        } catch (IllegalArgumentException e) {
+            throw new ParsingException(parser.getTokenLocation(), e.getMessage(), e);
+        }
+        return builder.start(start).end(end).date(date).from(from).boost(boost).queryName(queryName);
+    }
+
+    @Override
+    protected Query doToQuery(QueryShardContext context) throws IOException {
+        MappedFieldType fieldType = context.fieldMapper(fieldName);
+        if (fieldType == null) {
+            return new MatchNoDocsQuery("unknown field [" + fieldName + "]");
+        }
+        if (fieldType instanceof RecurringFieldType == false) {
+            throw new QueryShardException(context, "[" + NAME + "] query requires a field of type ["
+                    + RecurringFieldMapper.CONTENT_TYPE + "], but [" + fieldName + "] is of type [" + fieldType.typeName() + "]");
+        }
+        RecurringFieldType recurringFieldType = (RecurringFieldType) fieldType;
+
+        switch (mode) {
+            case OCCURS_BETWEEN: {
+                LocalDate startDate = parseDate(context, START_FIELD, start);
+                LocalDate endDate = parseDate(context, END_FIELD, end);
+                return windowQuery(context, recurringFieldType, RecurringPredicate.occursBetween(startDate, endDate),
+                        startDate, endDate);
+            }
+            case OCCURS_AT: {
+                LocalDate atDate = parseDate(context, DATE_FIELD, date);
+                return windowQuery(context, recurringFieldType, RecurringPredicate.occursAt(atDate), atDate, atDate);
+            }
+            case NOT_EXPIRED: {
+                LocalDate today = from != null ? parseDate(context, FROM_FIELD, from) : new LocalDate(context.nowInMillis());
+                return notExpiredQuery(context, recurringFieldType, today);
+            }
+            default:
+                throw new IllegalStateException("Unknown mode [" + mode + "]");
+        }
+    }
+
+    /**
+     * Builds the query on the indexed dates that every match of a window [lower, upper] satisfies: the first
+     * occurrence of an event is its start date, so events starting after the window are skipped, and events whose
+     * last occurrence is before the window are skipped as well. Either bound may be {@code null}.
+     */
+    private Query approximation(QueryShardContext context, LocalDate lower, LocalDate upper) {
+        MappedFieldType startDate = subField(context, RecurringFieldMapper.FieldNames.START_DATE);
+        MappedFieldType endDate = subField(context, RecurringFieldMapper.FieldNames.END_DATE);
+        MappedFieldType rrule = subField(context, RecurringFieldMapper.FieldNames.RRULE);
+
+        BooleanQuery.Builder builder = new BooleanQuery.Builder();
+        if (upper != null) {
+            builder.add(startDate.rangeQuery(null, upper.toString(), true, true, null, null, null, context), Occur.FILTER);
+        } else {
+            builder.add(startDate.existsQuery(context), Occur.FILTER);
+        }
+        if (lower != null) {
+            Query ended = new BooleanQuery.Builder()
+                    .add(endDate.rangeQuery(null, lower.toString(), true, false, null, null, null, context), Occur.FILTER)
+                    .add(rrule.existsQuery(context), Occur.MUST_NOT)
+                    .build();
+            builder.add(ended, Occur.MUST_NOT);
+
+            MappedFieldType lastOccurrence = context.fieldMapper(fieldName + "." + RecurringFieldMapper.FieldNames.LAST_OCCURRENCE);
+            if (lastOccurrence != null) {
+                builder.add(lastOccurrence.rangeQuery(null, lower.toString(), true, false, null, null, null, context), Occur.MUST_NOT);
+            }
+        }
+        return builder.build();
+    }
+
+    /**
+     * An event has not expired if its last occurrence is not before {@code today}, or if its rule has no end. The
+     * rule is only evaluated for documents indexed without occurrence bounds.
+     */
+    private Query notExpiredQuery(QueryShardContext context, RecurringFieldType fieldType, LocalDate today) {
+        Query approximation = approximation(context, today, null);
+        MappedFieldType firstOccurrence = context.fieldMapper(fieldName + "." + RecurringFieldMapper.FieldNames.FIRST_OCCURRENCE);
+        if (firstOccurrence == null) {
+            return new RecurringQuery(fieldName, RecurringPredicate.notExpired(today), approximation, fieldType.ruleCache(),
+                    fieldType.resultCache(), fieldType.expansionLimits());
+        }
+        MappedFieldType lastOccurrence = subField(context, RecurringFieldMapper.FieldNames.LAST_OCCURRENCE);
+
+        Query indexed = firstOccurrence.existsQuery(context);
+        Query fromBounds = new BooleanQuery.Builder()
+                .add(indexed, Occur.FILTER)
+                .add(new BooleanQuery.Builder()
+                        .add(lastOccurrence.rangeQuery(today.toString(), null, true, true, null, null, null, context), Occur.SHOULD)
+                        .add(new BooleanQuery.Builder()
+                                .add(new MatchAllDocsQuery(), Occur.FILTER)
+                                .add(lastOccurrence.existsQuery(context), Occur.MUST_NOT)
+                                .build(), Occur.SHOULD)
+                        .build(), Occur.FILTER)
+                .build();
+        Query fromRule = new RecurringQuery(fieldName, RecurringPredicate.notExpired(today),
+                new BooleanQuery.Builder()
+                        .add(approximation, Occur.FILTER)
+                        .add(indexed, Occur.MUST_NOT)
+                        .build(),
+                fieldType.ruleCache(), fieldType.resultCache(), fieldType.expansionLimits());
+
+        return new ConstantScoreQuery(new BooleanQuery.Builder()
+                .add(fromBounds, Occur.SHOULD)
+                .add(fromRule, Occur.SHOULD)
+                .build());
+    }
+
+    /**
+     * Builds the query of a predicate which only matches occurrences within [lower, upper]. When the field
+     * materializes its occurrences, documents whose occurrences are complete from before {@code lower} to past
+     * {@code upper} are matched on the {@code occurrences} points and the rule is only evaluated for the other
+     * documents.
+     */
+    private Query windowQuery(QueryShardContext context, RecurringFieldType fieldType, RecurringPredicate predicate,
+                              LocalDate lower, LocalDate upper) {
+        Query approximation = approximation(context, lower, upper);
+        MappedFieldType materializedUntil = context.fieldMapper(fieldName + "." + RecurringFieldMapper.FieldNames.MATERIALIZED_UNTIL);
+        if (materializedUntil == null) {
+            return new RecurringQuery(fieldName, predicate, approximation, fieldType.ruleCache(), fieldType.resultCache(),
+                    fieldType.expansionLimits());
+        }
+        MappedFieldType occurrences = subField(context, RecurringFieldMapper.FieldNames.OCCURRENCES);
+        MappedFieldType materializedFrom = subField(context, RecurringFieldMapper.FieldNames.MATERIALIZED_FROM);
+
+        Query covered = new BooleanQuery.Builder()
+                .add(materializedFrom.rangeQuery(null, lower.toString(), true, true, null, null, null, context), Occur.FILTER)
+                .add(materializedUntil.rangeQuery(upper.toString(), null, true, true, null, null, null, context), Occur.FILTER)
+                .build();
+        Query fromPoints = new BooleanQuery.Builder()
+                .add(covered, Occur.FILTER)
+                .add(occurrences.rangeQuery(lower.toString(), upper.toString(), true, true, null, null, null, context), Occur.FILTER)
+                .build();
+        Query fromRule = new RecurringQuery(fieldName, predicate,
+                new BooleanQuery.Builder()
+                        .add(approximation, Occur.FILTER)
+                        .add(covered, Occur.MUST_NOT)
+                        .build(),
+                fieldType.ruleCache(), fieldType.resultCache(), fieldType.expansionLimits());
+
+        return new ConstantScoreQuery(new BooleanQuery.Builder()
+                .add(fromPoints, Occur.SHOULD)
+                .add(fromRule, Occur.SHOULD)
+                .build());
+    }
+
+    private MappedFieldType subField(QueryShardContext context, String name) {
+        MappedFieldType fieldType = context.fieldMapper(fieldName + "." + name);
+        if (fieldType == null) {
+            throw new QueryShardException(context, "[" + NAME + "] missing sub field [" + name + "] of [" + fieldName + "]");
+        }
+        return fieldType;
+    }
+
+    private static LocalDate parseDate(QueryShardContext context, ParseField field, String value) {
+        if (value == null) {
+            throw new QueryShardException(context, "[" + NAME + "] requires [" + field.getPreferredName() + "]");
+        }
+        try {
+            return new LocalDate(value);
+        } catch (IllegalArgumentException e) {
+            throw new QueryShardException(context, "[" + NAME + "] unable to parse [" + field.getPreferredName() + "]", e);
+        }
+    }
+
+    @Override
+    protected boolean doEquals(RecurringQueryBuilder other) {
+        return Objects.equals(fieldName, other.fieldName)
+                && Objects.equals(mode, other.mode)
+                && Objects.equals(start, other.start)
+                && Objects.equals(end, other.end)
+                && Objects.equals(date, other.date)
+                && Objects.equals(from, other.from);
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(fieldName, mode, start, end, date, from);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+}
@@ -0,0 +1,198 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.index.query;
+
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.elasticsearch.common.CheckedSupplier;
+import org.elasticsearch.common.cache.Cache;
+import org.elasticsearch.common.cache.CacheBuilder;
+import org.elasticsearch.common.settings.Setting;
+import org.elasticsearch.common.settings.Setting.Property;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.ByteSizeValue;
+import org.elasticsearch.common.util.concurrent.ConcurrentCollections;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Node level cache of the documents matched by a {@link RecurringQuery} in a segment, keyed by the segment core and
+ * the query. Dashboards run the same predicates again and again on segments that did not change, a cached segment is
+ * answered without evaluating any rule. Entries are dropped when their segment is closed, or least recently used
+ * first once the cache holds {@link #SIZE_SETTING} bytes.
+ * <p>
+ * Like the usage tracking policy of the Lucene query cache, a query is only evaluated for the whole segment once it was
+ * used {@link #MIN_FREQUENCY} times among the last {@link #HISTORY_SIZE} recurring queries: a query run once is
+ * answered by its two-phase iterator, which only evaluates the documents the rest of the query could match.
+ * <p>
+ * Deletions do not change the core of a segment: the cached documents include deleted ones, which are left out when
+ * the documents are collected as for any other query.
+ */
+public final class RecurringResultCache {
+
+    public static final Setting<ByteSizeValue> SIZE_SETTING =
+            Setting.memorySizeSetting("recurring.result_cache.size", "1%", Property.NodeScope);
+
+    static final int HISTORY_SIZE = 256;
+    static final int MIN_FREQUENCY = 2;
+
+    private static final long KEY_BYTES = RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 2 * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+
+    private final Cache<Key, DocIdSet> cache;
+    private final Set<IndexReader.CacheKey> segments = ConcurrentCollections.newConcurrentSet();
+    private final int[] history = new int[HISTORY_SIZE];
+    private int historySize;
+    private int historyPosition;
+
+    public RecurringResultCache(Settings settings) {
+        long size = SIZE_SETTING.get(settings).getBytes();
+        if (size > 0) {
+            this.cache = CacheBuilder.<Key, DocIdSet>builder()
+                    .setMaximumWeight(size)
+                    .weigher((key, docs) -> KEY_BYTES + docs.ramBytesUsed())
+                    .build();
+        } else {
+            this.cache = null;
+        }
+    }
+
+    /**
+     * Records that {@code query} is run by a search, once per search whatever the number of segments.
+     */
+    void onUse(Query query) {
+        if (cache == null) {
+            return;
+        }
+        int hash = query.hashCode();
+        synchronized (history) {
+            history[historyPosition] = hash;
+            historyPosition = (historyPosition + 1) % HISTORY_SIZE;
+            historySize = Math.min(historySize + 1, HISTORY_SIZE);
+        }
+    }
+
+    /**
+     * Returns how many of the recently recorded queries are {@code query}, see {@link #onUse(Query)}.
+     */
+    int frequency(Query query) {
+        int hash = query.hashCode();
+        int frequency = 0;
+        synchronized (history) {
+            for (int i = 0; i < historySize; i++) {
+                if (history[i] == hash) {
+                    frequency++;
+                }
+            }
+        }
+        return frequency;
+    }
+
+    /**
+     * Returns the documents of the segment matched by {@code query}. When they are not cached, they are computed by
+     * {@code loader} only if {@code load} is {@code true} and the query was used at least {@link #MIN_FREQUENCY} times.
+     * Returns {@code null} if the cache is disabled, the segment cannot be cached or the documents were not computed.
+     */
+    DocIdSet get(Query query, LeafReaderContext context, boolean load, CheckedSupplier<DocIdSet, IOException> loader)
+            throws IOException {
+        if (cache == null) {
+            return null;
+        }
+        IndexReader.CacheHelper cacheHelper = context.reader().getCoreCacheHelper();
+        if (cacheHelper == null) {
+            return null;
+        }
+
+        IndexReader.CacheKey segment = cacheHelper.getKey();
+        if (segments.add(segment)) {
+            cacheHelper.addClosedListener(this::onClose);
+        }
+        Key key = new Key(segment, query);
+        if (load == false || frequency(query) < MIN_FREQUENCY) {
+            return cache.get(key);
+        }
+        try {
+            return cache.computeIfAbsent(key, k -> loader.get());
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            throw new IllegalStateException("Unable to evaluate [" + query + "]", e.getCause());
+        }
+    }
+
+    private void onClose(IndexReader.CacheKey segment) {
+        segments.remove(segment);
+        List<Key> closed = new ArrayList<>();
+        for (Key key : cache.keys()) {
+            if (key.segment == segment) {
+                closed.add(key);
+            }
+        }
+        closed.forEach(cache::invalidate);
+    }
+
+    public long count() {
+        return cache != null ? cache.count() : 0;
+    }
+
+    public long ramBytesUsed() {
+        return cache != null ? cache.weight() : 0;
+    }
+
+    public Cache.CacheStats stats() {
+        return cache != null ? cache.stats() : new Cache.CacheStats(0, 0, 0);
+    }
+
+    public void clear() {
+        if (cache != null) {
+            cache.invalidateAll();
+        }
+    }
+
+    private static final class Key {
+
+        private final IndexReader.CacheKey segment;
+        private final Query query;
+
+        Key(IndexReader.CacheKey segment, Query query) {
+            this.segment = segment;
+            this.query = query;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Key that = (Key) o;
+            return segment == that.segment && query.equals(that.query);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(segment, query);
+        }
+    }
+}
@@ -14,46 +14,186 @@
 
 package org.devmaster.elasticsearch.plugin;
 
+import org.devmaster.elasticsearch.action.calendar.CalendarAction;
+import org.devmaster.elasticsearch.action.calendar.TransportCalendarAction;
+import org.devmaster.elasticsearch.action.stats.RecurringStatsAction;
+import org.devmaster.elasticsearch.action.stats.TransportRecurringStatsAction;
+import org.devmaster.elasticsearch.index.mapper.ExpansionBudget;
+import org.devmaster.elasticsearch.index.mapper.ExpansionLimits;
+import org.devmaster.elasticsearch.index.mapper.RecurringEvents;
 import org.devmaster.elasticsearch.index.mapper.RecurringFieldMapper;
+import org.devmaster.elasticsearch.index.mapper.RecurringSlowLog;
+import org.devmaster.elasticsearch.index.mapper.RecurringStats;
+import org.devmaster.elasticsearch.index.mapper.RuleCache;
+import org.devmaster.elasticsearch.index.query.RecurringQueryBuilder;
+import org.devmaster.elasticsearch.index.query.RecurringResultCache;
+import org.devmaster.elasticsearch.rest.RestCalendarAction;
+import org.devmaster.elasticsearch.rest.RestRecurringStatsAction;
+import org.devmaster.elasticsearch.script.HasAnyOccurrenceBetweenFilterScript;
 import org.devmaster.elasticsearch.script.HasAnyOccurrenceBetweenSearchScript;
+import org.devmaster.elasticsearch.script.HasOccurrencesAtFilterScript;
 import org.devmaster.elasticsearch.script.HasOccurrencesAtSearchScript;
+import org.devmaster.elasticsearch.script.NextOccurrenceFilterScript;
 import org.devmaster.elasticsearch.script.NextOccurrenceSearchScript;
+import org.devmaster.elasticsearch.script.NotHasExpiredFilterScript;
 import org.devmaster.elasticsearch.script.NotHasExpiredSearchScript;
+import org.devmaster.elasticsearch.script.OccurBetweenFilterScript;
 import org.devmaster.elasticsearch.script.OccurBetweenSearchScript;
+import org.devmaster.elasticsearch.script.OccurrencesBetweenFilterScript;
 import org.devmaster.elasticsearch.script.OccurrencesBetweenSearchScript;
+import org.devmaster.elasticsearch.script.RecurringScriptParams;
+import org.devmaster.elasticsearch.search.RecurringSearchListener;
+import org.devmaster.elasticsearch.search.aggregations.InternalOccurrenceHistogram;
+import org.devmaster.elasticsearch.search.aggregations.OccurrenceHistogramAggregationBuilder;
+import org.devmaster.elasticsearch.search.fetch.RecurringOccurrencesBuilder;
+import org.devmaster.elasticsearch.search.fetch.RecurringOccurrencesFetchSubPhase;
 
+import org.elasticsearch.action.ActionRequest;
+import org.elasticsearch.action.ActionResponse;
+import org.elasticsearch.client.Client;
+import org.elasticsearch.cluster.metadata.IndexNameExpressionResolver;
+import org.elasticsearch.cluster.node.DiscoveryNodes;
+import org.elasticsearch.cluster.service.ClusterService;
+import org.elasticsearch.common.io.stream.NamedWriteableRegistry;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.IndexScopedSettings;
+import org.elasticsearch.common.settings.SettingsFilter;
+import org.elasticsearch.common.xcontent.NamedXContentRegistry;
+import org.elasticsearch.env.Environment;
+import org.elasticsearch.env.NodeEnvironment;
+import org.elasticsearch.index.IndexModule;
 import org.elasticsearch.index.mapper.Mapper;
+import org.elasticsearch.plugins.ActionPlugin;
 import org.elasticsearch.plugins.Plugin;
 import org.elasticsearch.plugins.MapperPlugin;
 import org.elasticsearch.plugins.ScriptPlugin;
+import org.elasticsearch.plugins.SearchPlugin;
 
 import org.apache.lucene.index.LeafReaderContext;
+import org.elasticsearch.common.settings.Setting;
 import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestHandler;
 import org.elasticsearch.script.SearchScript;
 import org.elasticsearch.script.FilterScript;
 import org.elasticsearch.script.ScriptContext;
 import org.elasticsearch.script.ScriptEngine;
+import org.elasticsearch.script.ScriptService;
+import org.elasticsearch.search.fetch.FetchSubPhase;
 import org.elasticsearch.search.lookup.SearchLookup;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.elasticsearch.watcher.ResourceWatcherService;
 
 import java.io.IOException;
 import java.util.Collection;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.function.Supplier;
 
-public class RecurringPlugin extends Plugin implements MapperPlugin, ScriptPlugin {
+public class RecurringPlugin extends Plugin implements ActionPlugin, MapperPlugin, ScriptPlugin, SearchPlugin {
+
+    private final RuleCache ruleCache;
+    private final RecurringResultCache resultCache;
+    private final RecurringStats stats;
+    private final RecurringSlowLog slowLog;
+    private final ExpansionLimits expansionLimits;
+
+    public RecurringPlugin(Settings settings) {
+        this.ruleCache = new RuleCache(settings);
+        this.resultCache = new RecurringResultCache(settings);
+        this.stats = new RecurringStats();
+        this.slowLog = new RecurringSlowLog(settings);
+        this.expansionLimits = new ExpansionLimits(settings, stats, slowLog);
+        RecurringEvents.install();
+    }
+
+    @Override
+    public Collection<Object> createComponents(Client client, ClusterService clusterService, ThreadPool threadPool,
+                                               ResourceWatcherService resourceWatcherService, ScriptService scriptService,
+                                               NamedXContentRegistry xContentRegistry, Environment environment,
+                                               NodeEnvironment nodeEnvironment, NamedWriteableRegistry namedWriteableRegistry) {
+        slowLog.register(clusterService.getClusterSettings());
+        // bound for injection in the transport actions
+        return Arrays.asList(ruleCache, resultCache, stats);
+    }
+
+    @Override
+    public List<Setting<?>> getSettings() {
+        return Arrays.asList(RuleCache.MAX_SIZE_SETTING, RuleCache.EXPIRE_SETTING, RecurringResultCache.SIZE_SETTING,
+                ExpansionLimits.MAX_OCCURRENCES_PER_DOCUMENT_SETTING, ExpansionLimits.MAX_OCCURRENCES_PER_REQUEST_SETTING,
+                RecurringSlowLog.THRESHOLD_STEPS_SETTING, RecurringSlowLog.THRESHOLD_TIME_SETTING,
+                RecurringSlowLog.MAX_PER_SECOND_SETTING, RecurringSlowLog.SAMPLE_RATE_SETTING);
+    }
 
     @Override
     public Map<String, Mapper.TypeParser> getMappers() {
-        return Collections.singletonMap(RecurringFieldMapper.CONTENT_TYPE, new RecurringFieldMapper.TypeParser());
+        return Collections.singletonMap(RecurringFieldMapper.CONTENT_TYPE, new RecurringFieldMapper.TypeParser(ruleCache, resultCache,
+                expansionLimits));
     }
     
+    @Override
+    public void onIndexModule(IndexModule indexModule) {
+        indexModule.addSearchOperationListener(new RecurringSearchListener());
+    }
+
+    @Override
+    public List<QuerySpec<?>> getQueries() {
+        return Collections.singletonList(
+                new QuerySpec<>(RecurringQueryBuilder.NAME, RecurringQueryBuilder::new, RecurringQueryBuilder::fromXContent));
+    }
+
+    @Override
+    public List<AggregationSpec> getAggregations() {
+        return Collections.singletonList(
+                new AggregationSpec(OccurrenceHistogramAggregationBuilder.NAME, OccurrenceHistogramAggregationBuilder::new,
+                        OccurrenceHistogramAggregationBuilder::parse)
+                        .addResultReader(InternalOccurrenceHistogram::new));
+    }
+
+    @Override
+    public List<SearchExtSpec<?>> getSearchExts() {
+        return Collections.singletonList(
+                new SearchExtSpec<>(RecurringOccurrencesBuilder.NAME, RecurringOccurrencesBuilder::new,
+                        RecurringOccurrencesBuilder::fromXContent));
+    }
+
+    @Override
+    public List<FetchSubPhase> getFetchSubPhases(FetchPhaseConstructionContext context) {
+        return Collections.singletonList(new RecurringOccurrencesFetchSubPhase());
+    }
+
+    @Override
+    public List<ActionHandler<? extends ActionRequest, ? extends ActionResponse>> getActions() {
+        return Arrays.asList(new ActionHandler<>(CalendarAction.INSTANCE, TransportCalendarAction.class),
+                new ActionHandler<>(RecurringStatsAction.INSTANCE, TransportRecurringStatsAction.class));
+    }
+
+    @Override
+    public List<RestHandler> getRestHandlers(Settings settings, RestController restController, ClusterSettings clusterSettings,
+                                             IndexScopedSettings indexScopedSettings, SettingsFilter settingsFilter,
+                                             IndexNameExpressionResolver indexNameExpressionResolver,
+                                             Supplier<DiscoveryNodes> nodesInCluster) {
+        return Arrays.asList(new RestCalendarAction(settings, restController),
+                new RestRecurringStatsAction(settings, restController));
+    }
+
     @Override
     public ScriptEngine getScriptEngine(Settings settings, Collection<ScriptContext<?>> contexts) {
-        return new RecurringEngine();
+        return new RecurringEngine(ruleCache, expansionLimits);
     }
 
     private static class RecurringEngine implements ScriptEngine {
 
+        private final RuleCache ruleCache;
+        private final ExpansionLimits expansionLimits;
+
+        private RecurringEngine(RuleCache ruleCache, ExpansionLimits expansionLimits) {
+            this.ruleCache = ruleCache;
+            this.expansionLimits = expansionLimits;
+        }
+
     	@Override
 		public String getType() {
 			return "native";
@@ -67,7 +207,7 @@ public class RecurringPlugin extends Plugin implements MapperPlugin, ScriptPlugi
             // we use the script "source" as the script identifier
         	if ("hasAnyOccurrenceBetween".equals(scriptSource)) {
             	if (context.equals(SearchScript.CONTEXT) == true) {
-            		SearchScript.Factory factory = hasAnyOccurrenceBetweenSearch::new;
+            		SearchScript.Factory factory = (p, lookup) -> new hasAnyOccurrenceBetweenSearch(p, lookup, ruleCache, expansionLimits);
                     return context.factoryClazz.cast(factory);
             	} else if (context.equals(FilterScript.CONTEXT) == true) {
             		FilterScript.Factory factory = (p, lookup) -> hasAnyOccurrenceBetweenFilter(p, lookup);
@@ -76,7 +216,7 @@ public class RecurringPlugin extends Plugin implements MapperPlugin, ScriptPlugi
             }
             if ("hasOccurrencesAt".equals(scriptSource)) {
             	if (context.equals(SearchScript.CONTEXT) == true) {
-            		SearchScript.Factory factory = HasOccurrencesAtSearch::new;
+            		SearchScript.Factory factory = (p, lookup) -> new HasOccurrencesAtSearch(p, lookup, ruleCache, expansionLimits);
                     return context.factoryClazz.cast(factory);
             	} else if (context.equals(FilterScript.CONTEXT) == true) {
             		FilterScript.Factory factory = (p, lookup) -> HasOccurrencesAtFilter(p, lookup);
@@ -85,7 +225,7 @@ public class RecurringPlugin extends Plugin implements MapperPlugin, ScriptPlugi
             }
             if ("nextOccurrence".equals(scriptSource)) {
             	if (context.equals(SearchScript.CONTEXT) == true) {
-            		SearchScript.Factory factory = nextOccurrenceSearch::new;
+            		SearchScript.Factory factory = (p, lookup) -> new nextOccurrenceSearch(p, lookup, ruleCache, expansionLimits);
                     return context.factoryClazz.cast(factory);
             	} else if (context.equals(FilterScript.CONTEXT) == true) {
             		FilterScript.Factory factory = (p, lookup) -> nextOccurrenceFilter(p, lookup);
@@ -94,7 +234,7 @@ public class RecurringPlugin extends Plugin implements MapperPlugin, ScriptPlugi
             }
             if ("notHasExpired".equals(scriptSource)) {
             	if (context.equals(SearchScript.CONTEXT) == true) {
-            		SearchScript.Factory factory = notHasExpiredSearch::new;
+            		SearchScript.Factory factory = (p, lookup) -> new notHasExpiredSearch(p, lookup, ruleCache, expansionLimits);
                     return context.factoryClazz.cast(factory);
             	} else if (context.equals(FilterScript.CONTEXT) == true) {
             		FilterScript.Factory factory = (p, lookup) -> notHasExpiredFilter(p, lookup);
@@ -103,7 +243,7 @@ public class RecurringPlugin extends Plugin implements MapperPlugin, ScriptPlugi
             }
             if ("occurBetween".equals(scriptSource)) {
             	if (context.equals(SearchScript.CONTEXT) == true) {
-            		SearchScript.Factory factory = occurBetweenSearch::new;
+            		SearchScript.Factory factory = (p, lookup) -> new occurBetweenSearch(p, lookup, ruleCache, expansionLimits);
                     return context.factoryClazz.cast(factory);
             	} else if (context.equals(FilterScript.CONTEXT) == true) {
             		FilterScript.Factory factory = (p, lookup) -> occurBetweenFilter(p, lookup);
@@ -112,7 +252,7 @@ public class RecurringPlugin extends Plugin implements MapperPlugin, ScriptPlugi
             }
             if ("occurrencesBetween".equals(scriptSource)) {
             	if (context.equals(SearchScript.CONTEXT) == true) {
-            		SearchScript.Factory factory = occurrencesBetweenSearch::new;
+            		SearchScript.Factory factory = (p, lookup) -> new occurrencesBetweenSearch(p, lookup, ruleCache, expansionLimits);
                     return context.factoryClazz.cast(factory);
             	} else if (context.equals(FilterScript.CONTEXT) == true) {
             		FilterScript.Factory factory = (p, lookup) -> occurrencesBetweenFilter(p, lookup);
@@ -131,20 +271,18 @@ public class RecurringPlugin extends Plugin implements MapperPlugin, ScriptPlugi
         private static class hasAnyOccurrenceBetweenSearch implements SearchScript.LeafFactory {
         	
             private final Map<String, Object> params;
+            private final RecurringScriptParams scriptParams;
             private final SearchLookup lookup;
+            private final RuleCache ruleCache;
+            private final ExpansionBudget budget;
             
-            private hasAnyOccurrenceBetweenSearch(Map<String, Object> params, SearchLookup lookup) {
-                if (params.containsKey("field") == false) {
-                    throw new IllegalArgumentException("Missing parameter [field]");
-                }
-                if (params.containsKey("start") == false) {
-                    throw new IllegalArgumentException("Missing parameter [start]");
-                }
-                if (params.containsKey("end") == false) {
-                    throw new IllegalArgumentException("Missing parameter [end]");
-                }
+            private hasAnyOccurrenceBetweenSearch(Map<String, Object> params, SearchLookup lookup, RuleCache ruleCache,
+                    ExpansionLimits expansionLimits) {
                 this.params = params;
+                this.scriptParams = RecurringScriptParams.instantWindow(params);
                 this.lookup = lookup;
+                this.ruleCache = ruleCache;
+                this.budget = expansionLimits.newBudget();
             }
             
             @Override
@@ -154,26 +292,14 @@ public class RecurringPlugin extends Plugin implements MapperPlugin, ScriptPlugi
 
             @Override
             public SearchScript newInstance(LeafReaderContext context) throws IOException {
-                return new HasAnyOccurrenceBetweenSearchScript(params, lookup, context);
+                return new HasAnyOccurrenceBetweenSearchScript(params, scriptParams, lookup, context, ruleCache, budget);
             }
         }
         // --------------
         private FilterScript.LeafFactory hasAnyOccurrenceBetweenFilter(Map<String, Object> params, SearchLookup lookup) {
-        	SearchScript.LeafFactory searchLeafFactory = new hasAnyOccurrenceBetweenSearch(params, lookup);
-        	return ctx -> {
-                SearchScript search = searchLeafFactory.newInstance(ctx);
-                return new FilterScript(params, lookup, ctx) {
-                    @Override
-                    public boolean execute() {
-                        return search.runAsDouble() != 0.0;
-                    }
-                    
-                    @Override
-                    public void setDocument(int docid) {
-                    	search.setDocument(docid);
-                    }
-                };
-            };
+            RecurringScriptParams scriptParams = RecurringScriptParams.instantWindow(params);
+            ExpansionBudget budget = expansionLimits.newBudget();
+            return ctx -> new HasAnyOccurrenceBetweenFilterScript(params, scriptParams, lookup, ctx, ruleCache, budget);
         }
         // FactoryEnd: hasAnyOccurrenceBetween
         
@@ -181,17 +307,18 @@ public class RecurringPlugin extends Plugin implements MapperPlugin, ScriptPlugi
     	private static class HasOccurrencesAtSearch implements SearchScript.LeafFactory {
         	
             private final Map<String, Object> params;
+            private final RecurringScriptParams scriptParams;
             private final SearchLookup lookup;
+            private final RuleCache ruleCache;
+            private final ExpansionBudget budget;
             
-            private HasOccurrencesAtSearch(Map<String, Object> params, SearchLookup lookup) {
-                if (params.containsKey("field") == false) {
-                    throw new IllegalArgumentException("Missing parameter [field]");
-                }
-                if (params.containsKey("date") == false) {
-                    throw new IllegalArgumentException("Missing parameter [date]");
-                }
+            private HasOccurrencesAtSearch(Map<String, Object> params, SearchLookup lookup, RuleCache ruleCache,
+                    ExpansionLimits expansionLimits) {
                 this.params = params;
+                this.scriptParams = RecurringScriptParams.date(params);
                 this.lookup = lookup;
+                this.ruleCache = ruleCache;
+                this.budget = expansionLimits.newBudget();
             }
 
             @Override
@@ -201,41 +328,33 @@ public class RecurringPlugin extends Plugin implements MapperPlugin, ScriptPlugi
 
             @Override
             public SearchScript newInstance(LeafReaderContext context) throws IOException {
-                return new HasOccurrencesAtSearchScript(params, lookup, context);
+                return new HasOccurrencesAtSearchScript(params, scriptParams, lookup, context, ruleCache, budget);
             }
         }
     	// --------------
     	private FilterScript.LeafFactory HasOccurrencesAtFilter(Map<String, Object> params, SearchLookup lookup) {
-        	SearchScript.LeafFactory searchLeafFactory = new HasOccurrencesAtSearch(params, lookup);
-        	return ctx -> {
-                SearchScript search = searchLeafFactory.newInstance(ctx);
-                return new FilterScript(params, lookup, ctx) {
-                    @Override
-                    public boolean execute() {
-                        return search.runAsDouble() != 0.0;
-                    }
-                    
-                    @Override
-                    public void setDocument(int docid) {
-                    	search.setDocument(docid);
-                    }
-                };
-            };
-        }
+    	    RecurringScriptParams scriptParams = RecurringScriptParams.date(params);
+    	    ExpansionBudget budget = expansionLimits.newBudget();
+    	    return ctx -> new HasOccurrencesAtFilterScript(params, scriptParams, lookup, ctx, ruleCache, budget);
+    	}
     	// FactoryEnd: HasOccurrencesAt
     	
     	// Factory: nextOccurrence
     	private static class nextOccurrenceSearch implements SearchScript.LeafFactory {
         	
             private final Map<String, Object> params;
+            private final RecurringScriptParams scriptParams;
             private final SearchLookup lookup;
+            private final RuleCache ruleCache;
+            private final ExpansionBudget budget;
             
-            private nextOccurrenceSearch(Map<String, Object> params, SearchLookup lookup) {
-                if (params.containsKey("field") == false) {
-                    throw new IllegalArgumentException("Missing parameter [field]");
-                }
+            private nextOccurrenceSearch(Map<String, Object> params, SearchLookup lookup, RuleCache ruleCache,
+                    ExpansionLimits expansionLimits) {
                 this.params = params;
+                this.scriptParams = RecurringScriptParams.from(params);
                 this.lookup = lookup;
+                this.ruleCache = ruleCache;
+                this.budget = expansionLimits.newBudget();
             }
             
             @Override
@@ -245,41 +364,33 @@ public class RecurringPlugin extends Plugin implements MapperPlugin, ScriptPlugi
 
             @Override
             public SearchScript newInstance(LeafReaderContext context) throws IOException {
-                return new NextOccurrenceSearchScript(params, lookup, context);
+                return new NextOccurrenceSearchScript(params, scriptParams, lookup, context, ruleCache, budget);
             }
         }
     	// --------------
     	private FilterScript.LeafFactory nextOccurrenceFilter(Map<String, Object> params, SearchLookup lookup) {
-        	SearchScript.LeafFactory searchLeafFactory = new nextOccurrenceSearch(params, lookup);
-        	return ctx -> {
-                SearchScript search = searchLeafFactory.newInstance(ctx);
-                return new FilterScript(params, lookup, ctx) {
-                    @Override
-                    public boolean execute() {
-                        return search.runAsDouble() != 0.0;
-                    }
-                    
-                    @Override
-                    public void setDocument(int docid) {
-                    	search.setDocument(docid);
-                    }
-                };
-            };
-        }
+    	    RecurringScriptParams scriptParams = RecurringScriptParams.from(params);
+    	    ExpansionBudget budget = expansionLimits.newBudget();
+    	    return ctx -> new NextOccurrenceFilterScript(params, scriptParams, lookup, ctx, ruleCache, budget);
+    	}
     	// FactoryEnd: nextOccurrence
 		
     	// Factory: notHasExpired
 		private static class notHasExpiredSearch implements SearchScript.LeafFactory {
 			
 		    private final Map<String, Object> params;
+		    private final RecurringScriptParams scriptParams;
 		    private final SearchLookup lookup;
+		    private final RuleCache ruleCache;
+		    private final ExpansionBudget budget;
 		    
-		    private notHasExpiredSearch(Map<String, Object> params, SearchLookup lookup) {
-		        if (params.containsKey("field") == false) {
-		            throw new IllegalArgumentException("Missing parameter [field]");
-		        }
+		    private notHasExpiredSearch(Map<String, Object> params, SearchLookup lookup, RuleCache ruleCache,
+		            ExpansionLimits expansionLimits) {
 		        this.params = params;
+		        this.scriptParams = RecurringScriptParams.today(params);
 		        this.lookup = lookup;
+		        this.ruleCache = ruleCache;
+		        this.budget = expansionLimits.newBudget();
 		    }
 		
 		    @Override
@@ -289,47 +400,33 @@ public class RecurringPlugin extends Plugin implements MapperPlugin, ScriptPlugi
 		
 		    @Override
 		    public SearchScript newInstance(LeafReaderContext context) throws IOException {
-		        return new NotHasExpiredSearchScript(params, lookup, context);
+		        return new NotHasExpiredSearchScript(params, scriptParams, lookup, context, ruleCache, budget);
 		    }
 		}
 		// -------------
 		private FilterScript.LeafFactory notHasExpiredFilter(Map<String, Object> params, SearchLookup lookup) {
-        	SearchScript.LeafFactory searchLeafFactory = new notHasExpiredSearch(params, lookup);
-        	return ctx -> {
-                SearchScript search = searchLeafFactory.newInstance(ctx);
-                return new FilterScript(params, lookup, ctx) {
-                    @Override
-                    public boolean execute() {
-                        return search.runAsDouble() != 0.0;
-                    }
-                    
-                    @Override
-                    public void setDocument(int docid) {
-                    	search.setDocument(docid);
-                    }
-                };
-            };
-        }
+		    RecurringScriptParams scriptParams = RecurringScriptParams.today(params);
+		    ExpansionBudget budget = expansionLimits.newBudget();
+		    return ctx -> new NotHasExpiredFilterScript(params, scriptParams, lookup, ctx, ruleCache, budget);
+		}
 		// FactoryEnd: notHasExpired
 		
 		// Factory: occurBetween
 		private static class occurBetweenSearch implements SearchScript.LeafFactory {
         	
             private final Map<String, Object> params;
+            private final RecurringScriptParams scriptParams;
             private final SearchLookup lookup;
+            private final RuleCache ruleCache;
+            private final ExpansionBudget budget;
             
-            private occurBetweenSearch(Map<String, Object> params, SearchLookup lookup) {
-                if (params.containsKey("field") == false) {
-                    throw new IllegalArgumentException("Missing parameter [field]");
-                }
-                if (params.containsKey("start") == false) {
-                    throw new IllegalArgumentException("Missing parameter [start]");
-                }
-                if (params.containsKey("end") == false) {
-                    throw new IllegalArgumentException("Missing parameter [end]");
-                }
+            private occurBetweenSearch(Map<String, Object> params, SearchLookup lookup, RuleCache ruleCache,
+                    ExpansionLimits expansionLimits) {
                 this.params = params;
+                this.scriptParams = RecurringScriptParams.window(params);
                 this.lookup = lookup;
+                this.ruleCache = ruleCache;
+                this.budget = expansionLimits.newBudget();
             }
 
             @Override
@@ -339,41 +436,33 @@ public class RecurringPlugin extends Plugin implements MapperPlugin, ScriptPlugi
 
             @Override
             public SearchScript newInstance(LeafReaderContext context) throws IOException {
-                return new OccurBetweenSearchScript(params, lookup, context);
+                return new OccurBetweenSearchScript(params, scriptParams, lookup, context, ruleCache, budget);
             }
         }
 		// -----------
 		private FilterScript.LeafFactory occurBetweenFilter(Map<String, Object> params, SearchLookup lookup) {
-        	SearchScript.LeafFactory searchLeafFactory = new occurBetweenSearch(params, lookup);
-        	return ctx -> {
-                SearchScript search = searchLeafFactory.newInstance(ctx);
-                return new FilterScript(params, lookup, ctx) {
-                    @Override
-                    public boolean execute() {
-                        return search.runAsDouble() != 0.0;
-                    }
-                    
-                    @Override
-                    public void setDocument(int docid) {
-                    	search.setDocument(docid);
-                    }
-                };
-            };
-        }
+		    RecurringScriptParams scriptParams = RecurringScriptParams.window(params);
+		    ExpansionBudget budget = expansionLimits.newBudget();
+		    return ctx -> new OccurBetweenFilterScript(params, scriptParams, lookup, ctx, ruleCache, budget);
+		}
 		// FactoryEnd: occurBetween
 
 		// Factory: occurrencesBetween
 		private static class occurrencesBetweenSearch implements SearchScript.LeafFactory {
 			
 		    private final Map<String, Object> params;
+		    private final RecurringScriptParams scriptParams;
 		    private final SearchLookup lookup;
+		    private final RuleCache ruleCache;
+		    private final ExpansionBudget budget;
 		    
-		    private occurrencesBetweenSearch(Map<String, Object> params, SearchLookup lookup) {
-		        if (params.containsKey("field") == false) {
-		            throw new IllegalArgumentException("Missing parameter [field]");
-		        }
+		    private occurrencesBetweenSearch(Map<String, Object> params, SearchLookup lookup, RuleCache ruleCache,
+		            ExpansionLimits expansionLimits) {
 		        this.params = params;
+		        this.scriptParams = RecurringScriptParams.optionalWindow(params);
 		        this.lookup = lookup;
+		        this.ruleCache = ruleCache;
+		        this.budget = expansionLimits.newBudget();
 		    }
 		
 		    @Override
@@ -383,27 +472,15 @@ public class RecurringPlugin extends Plugin implements MapperPlugin, ScriptPlugi
 		
 		    @Override
 		    public SearchScript newInstance(LeafReaderContext context) throws IOException {
-		        return new OccurrencesBetweenSearchScript(params, lookup, context);
+		        return new OccurrencesBetweenSearchScript(params, scriptParams, lookup, context, ruleCache, budget);
 		    }
 		}
 		// ------------------
 		private FilterScript.LeafFactory occurrencesBetweenFilter(Map<String, Object> params, SearchLookup lookup) {
-        	SearchScript.LeafFactory searchLeafFactory = new occurrencesBetweenSearch(params, lookup);
-        	return ctx -> {
-                SearchScript search = searchLeafFactory.newInstance(ctx);
-                return new FilterScript(params, lookup, ctx) {
-                    @Override
-                    public boolean execute() {
-                        return search.runAsDouble() != 0.0;
-                    }
-                    
-                    @Override
-                    public void setDocument(int docid) {
-                    	search.setDocument(docid);
-                    }
-                };
-            };
-        }
+		    RecurringScriptParams scriptParams = RecurringScriptParams.optionalWindow(params);
+		    ExpansionBudget budget = expansionLimits.newBudget();
+		    return ctx -> new OccurrencesBetweenFilterScript(params, scriptParams, lookup, ctx, ruleCache, budget);
+		}
 		// FactoryEnd: occurrencesBetween
         
     }
@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.rest;
+
+import org.devmaster.elasticsearch.action.calendar.CalendarAction;
+import org.devmaster.elasticsearch.action.calendar.CalendarRequest;
+import org.elasticsearch.action.support.IndicesOptions;
+import org.elasticsearch.client.node.NodeClient;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.index.query.AbstractQueryBuilder;
+import org.elasticsearch.rest.BaseRestHandler;
+import org.elasticsearch.rest.RestController;
+import org.elasticsearch.rest.RestRequest;
+import org.elasticsearch.rest.action.RestToXContentListener;
+
+import java.io.IOException;
+
+import static org.elasticsearch.rest.RestRequest.Method.GET;
+import static org.elasticsearch.rest.RestRequest.Method.POST;
+
+/**
+ * {@code /{index}/_recurring/calendar}: the occurrences of a recurring field within a window for the documents matching
+ * a query, ordered by date. The window and size may be given in the body or as parameters.
+ */
+public class RestCalendarAction extends BaseRestHandler {
+
+    public RestCalendarAction(Settings settings, RestController controller) {
+        super(settings);
+        controller.registerHandler(GET, "/_recurring/calendar", this);
+        controller.registerHandler(POST, "/_recurring/calendar", this);
+        controller.registerHandler(GET, "/{index}/_recurring/calendar", this);
+        controller.registerHandler(POST, "/{index}/_recurring/calendar", this);
+    }
+
+    @Override
+    public String getName() {
+        return "recurring_calendar_action";
+    }
+
+    @Override
+    protected RestChannelConsumer prepareRequest(RestRequest request, NodeClient client) throws IOException {
+        CalendarRequest calendarRequest = new CalendarRequest(Strings.splitStringByCommaToArray(request.param("index")));
+        calendarRequest.indicesOptions(IndicesOptions.fromRequest(request, calendarRequest.indicesOptions()));
+        request.withContentOrSourceParamParserOrNull(parser -> {
+            if (parser != null) {
+                parseBody(parser, calendarRequest);
+            }
+        });
+        calendarRequest.field(request.param("field", calendarRequest.field()));
+        calendarRequest.from(request.param("from", calendarRequest.from()));
+        calendarRequest.to(request.param("to", calendarRequest.to()));
+        calendarRequest.size(request.paramAsInt("size", calendarRequest.size()));
+        return channel -> client.execute(CalendarAction.INSTANCE, calendarRequest, new RestToXContentListener<>(channel));
+    }
+
+    private static void parseBody(XContentParser parser, CalendarRequest request) throws IOException {
+        XContentParser.Token token = parser.nextToken();
+        if (token != XContentParser.Token.START_OBJECT) {
+            throw new ParsingException(parser.getTokenLocation(), "calendar request must be an object");
+        }
+        String currentFieldName = null;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token == XContentParser.Token.START_OBJECT && "query".equals(currentFieldName)) {
+                request.query(AbstractQueryBuilder.parseInnerQueryBuilder(parser));
+            } else if (token.isValue() && "field".equals(currentFieldName)) {
+                request.field(parser.text());
+            } else if (token.isValue() && "from".equals(currentFieldName)) {
+                request.from(parser.text());
+            } else if (token.isValue() && "to".equals(currentFieldName)) {
+                request.to(parser.text());
+            } else if (token.isValue() && "size".equals(currentFieldName)) {
+                request.size(parser.intValue());
+            } else {
+                throw new ParsingException(parser.getTokenLocation(),
+                        "calendar request does not support [" + currentFieldName + "]");
+            }
+        }
+    }
+}
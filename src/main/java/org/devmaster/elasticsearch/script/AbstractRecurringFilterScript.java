@@ -0,0 +1,85 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.script;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.devmaster.elasticsearch.index.mapper.ExpansionBudget;
+import org.devmaster.elasticsearch.index.mapper.Recurring;
+import org.devmaster.elasticsearch.index.mapper.RecurringValues;
+import org.devmaster.elasticsearch.index.mapper.RuleCache;
+import org.elasticsearch.script.FilterScript;
+import org.elasticsearch.search.lookup.SearchLookup;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.text.ParseException;
+import java.util.Map;
+
+/**
+ * Base of the filter scripts: the recurring field of the segment is read once, and each document is answered by
+ * {@link #matches(Recurring)} without going through the double value of the search script.
+ */
+abstract class AbstractRecurringFilterScript extends FilterScript {
+
+    private final RecurringScriptParams scriptParams;
+    private final RecurringValues values;
+    private int docId = -1;
+
+    AbstractRecurringFilterScript(Map<String, Object> params, RecurringScriptParams scriptParams, SearchLookup lookup,
+                                  LeafReaderContext leafContext, RuleCache ruleCache,
+                                  ExpansionBudget budget) throws IOException {
+        super(params, lookup, leafContext);
+        this.scriptParams = scriptParams;
+        this.values = RecurringValues.forLeaf(leafContext, scriptParams.field(), ruleCache, budget);
+    }
+
+    @Override
+    public void setDocument(int docid) {
+        super.setDocument(docid);
+        this.docId = docid;
+    }
+
+    @Override
+    public final boolean execute() {
+        Recurring recurring;
+        try {
+            recurring = values.get(docId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        try {
+            return recurring != null && matches(recurring);
+        } catch (ParseException e) {
+            return unparsable(e);
+        }
+    }
+
+    /**
+     * Returns {@code true} if the document should match, returning as soon as the answer is known.
+     */
+    protected abstract boolean matches(Recurring recurring) throws ParseException;
+
+    /**
+     * Answers a document whose rule fails to parse. By default the request fails, as it does with the search script.
+     */
+    protected boolean unparsable(ParseException e) {
+        throw new IllegalArgumentException("Error while filtering on field [" + scriptParams.field() + "]. Error: "
+                + e.getMessage());
+    }
+
+    protected RecurringScriptParams scriptParams() {
+        return scriptParams;
+    }
+}
@@ -15,41 +15,57 @@
 package org.devmaster.elasticsearch.script;
 
 import org.apache.lucene.index.LeafReaderContext;
+import org.devmaster.elasticsearch.index.mapper.ExpansionBudget;
 import org.devmaster.elasticsearch.index.mapper.Recurring;
-import org.devmaster.elasticsearch.index.mapper.RecurringFieldMapper;
+import org.devmaster.elasticsearch.index.mapper.RecurringValues;
+import org.devmaster.elasticsearch.index.mapper.RuleCache;
 import org.elasticsearch.script.SearchScript;
 import org.elasticsearch.search.lookup.SearchLookup;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.List;
 import java.util.Map;
 
 abstract class AbstractRecurringSearchScript extends SearchScript {
 
-	private final SearchLookup lookup;
-	private final Map<String, Object> params;
+	private final RecurringScriptParams scriptParams;
+	private final RecurringValues values;
+	private int docId = -1;
 	
-	AbstractRecurringSearchScript(Map<String, Object> params, SearchLookup lookup, LeafReaderContext leafContext) {
+	AbstractRecurringSearchScript(Map<String, Object> params, RecurringScriptParams scriptParams, SearchLookup lookup,
+			LeafReaderContext leafContext, RuleCache ruleCache, ExpansionBudget budget) throws IOException {
 		super(params, lookup, leafContext);
-		this.params = params;
-		this.lookup = lookup;
+		this.scriptParams = scriptParams;
+		this.values = RecurringValues.forLeaf(leafContext, scriptParams.field(), ruleCache, budget);
+	}
+
+	@Override
+	public void setDocument(int docid) {
+		super.setDocument(docid);
+		this.docId = docid;
 	}
     
-	@SuppressWarnings("unchecked")
-    protected Recurring getRecurring(String fieldName) {
-        if (this.lookup.source().containsKey(fieldName)) {
-            Map<String, Object> map = (Map<String, Object>) this.lookup.source().get(fieldName);
-
-            String rrule = (String) map.get(RecurringFieldMapper.FieldNames.RRULE);
-            String startDate = (String) map.get(RecurringFieldMapper.FieldNames.START_DATE);
-            String endDate = (String) map.get(RecurringFieldMapper.FieldNames.END_DATE);
-            
-            return new Recurring(startDate, endDate, rrule);
+    protected Recurring getRecurring() {
+        try {
+            return values.get(docId);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
         }
-        
-        return null;
     }
 
-    protected String getParamValueFor(String paramName) {
-        return (String) params.get(paramName);
+    protected RecurringScriptParams scriptParams() {
+        return scriptParams;
+    }
+
+    protected static List<Integer> matchedIndices(BitSet matched) {
+        List<Integer> indices = new ArrayList<>(matched.cardinality());
+        for (int i = matched.nextSetBit(0); i >= 0; i = matched.nextSetBit(i + 1)) {
+            indices.add(i);
+        }
+        return indices;
     }
 	
 }
@@ -14,30 +14,28 @@
 
 package org.devmaster.elasticsearch.script;
 
+import org.devmaster.elasticsearch.index.mapper.ExpansionBudget;
 import org.devmaster.elasticsearch.index.mapper.Recurring;
+import org.devmaster.elasticsearch.index.mapper.RuleCache;
 import org.apache.lucene.index.LeafReaderContext;
 import org.elasticsearch.search.lookup.SearchLookup;
 
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.Map;
 
 public class HasAnyOccurrenceBetweenSearchScript extends AbstractRecurringSearchScript {
 
-	private static final String PARAM_FIELD = "field";
-    private static final String PARAM_START = "start";
-    private static final String PARAM_END = "end";
-    
-    public HasAnyOccurrenceBetweenSearchScript(Map<String, Object> params, SearchLookup lookup, LeafReaderContext leafContext) {
-		super(params, lookup, leafContext);
-	}
+    public HasAnyOccurrenceBetweenSearchScript(Map<String, Object> params, RecurringScriptParams scriptParams, SearchLookup lookup,
+            LeafReaderContext leafContext, RuleCache ruleCache, ExpansionBudget budget) throws IOException {
+        super(params, scriptParams, lookup, leafContext, ruleCache, budget);
+    }
 
     @Override
     public double runAsDouble() {
-    	Recurring recurring = getRecurring(getParamValueFor(PARAM_FIELD));
-        String startDate = getParamValueFor(PARAM_START);
-        String endDate = getParamValueFor(PARAM_END);
+    	Recurring recurring = getRecurring();
         try {
-        	return recurring != null && recurring.hasAnyOccurrenceBetween(startDate, endDate) ? 1.0d : 0.0d;
+        	return recurring != null && recurring.hasAnyOccurrenceBetween(scriptParams().start(), scriptParams().end()) ? 1.0d : 0.0d;
         } catch (ParseException e) {
             throw new IllegalArgumentException("Error while obtaining has any occurrence between. Error: " + e.getMessage());
         }
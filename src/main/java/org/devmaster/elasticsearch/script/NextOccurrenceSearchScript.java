@@ -14,32 +14,31 @@
 
 package org.devmaster.elasticsearch.script;
 
+import org.devmaster.elasticsearch.index.mapper.EpochDays;
+import org.devmaster.elasticsearch.index.mapper.ExpansionBudget;
 import org.devmaster.elasticsearch.index.mapper.Recurring;
+import org.devmaster.elasticsearch.index.mapper.RuleCache;
 import org.apache.lucene.index.LeafReaderContext;
 import org.elasticsearch.search.lookup.SearchLookup;
-import org.joda.time.LocalDate;
 
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.Map;
 
 public class NextOccurrenceSearchScript extends AbstractRecurringSearchScript {
 
-    private static final String PARAM_FIELD = "field";
-    private static final String PARAM_FROM = "from";
-
-    public NextOccurrenceSearchScript(Map<String, Object> params, SearchLookup lookup, LeafReaderContext leafContext) {
-        super(params, lookup, leafContext);
+    public NextOccurrenceSearchScript(Map<String, Object> params, RecurringScriptParams scriptParams, SearchLookup lookup,
+            LeafReaderContext leafContext, RuleCache ruleCache, ExpansionBudget budget) throws IOException {
+        super(params, scriptParams, lookup, leafContext, ruleCache, budget);
     }
-    
+
     @Override
     public Object run() {
-    	Recurring recurring = getRecurring(getParamValueFor(PARAM_FIELD));
+    	Recurring recurring = getRecurring();
         if (recurring != null) {
-            String fromParam = getParamValueFor(PARAM_FROM);
-            LocalDate date = fromParam != null ? new LocalDate(fromParam) : LocalDate.now();
             try {
-                LocalDate nextOccurrence = recurring.getNextOccurrence(date);
-                return nextOccurrence != null ? nextOccurrence.toString() : null;
+                int nextOccurrence = recurring.nextOccurrence(scriptParams().day());
+                return nextOccurrence != Recurring.NONE ? EpochDays.toLocalDate(nextOccurrence).toString() : null;
             } catch (ParseException e) {
                 throw new IllegalArgumentException("Error while obtaining has occurrences Next. Error: " + e.getMessage());
             }
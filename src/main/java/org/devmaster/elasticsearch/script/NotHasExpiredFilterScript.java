@@ -0,0 +1,45 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.script;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.devmaster.elasticsearch.index.mapper.ExpansionBudget;
+import org.devmaster.elasticsearch.index.mapper.Recurring;
+import org.devmaster.elasticsearch.index.mapper.RuleCache;
+import org.elasticsearch.search.lookup.SearchLookup;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.Map;
+
+public class NotHasExpiredFilterScript extends AbstractRecurringFilterScript {
+
+    public NotHasExpiredFilterScript(Map<String, Object> params, RecurringScriptParams scriptParams, SearchLookup lookup,
+                                     LeafReaderContext leafContext, RuleCache ruleCache,
+                                     ExpansionBudget budget) throws IOException {
+        super(params, scriptParams, lookup, leafContext, ruleCache, budget);
+    }
+
+    @Override
+    protected boolean matches(Recurring recurring) throws ParseException {
+        return recurring.notHasExpired(scriptParams().day());
+    }
+
+    @Override
+    protected boolean unparsable(ParseException e) {
+        // the search script does not match a document whose rule fails to parse
+        return false;
+    }
+}
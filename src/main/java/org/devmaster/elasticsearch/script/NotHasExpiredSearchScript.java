@@ -14,26 +14,28 @@
 
 package org.devmaster.elasticsearch.script;
 
+import org.devmaster.elasticsearch.index.mapper.ExpansionBudget;
 import org.devmaster.elasticsearch.index.mapper.Recurring;
+import org.devmaster.elasticsearch.index.mapper.RuleCache;
 import org.apache.lucene.index.LeafReaderContext;
 import org.elasticsearch.search.lookup.SearchLookup;
 
+import java.io.IOException;
 import java.text.ParseException;
 import java.util.Map;
 
 public class NotHasExpiredSearchScript extends AbstractRecurringSearchScript {
 
-    private static final String PARAM_FIELD = "field";
-
-    public NotHasExpiredSearchScript(Map<String, Object> params, SearchLookup lookup, LeafReaderContext leafContext) {
-        super(params, lookup, leafContext);
+    public NotHasExpiredSearchScript(Map<String, Object> params, RecurringScriptParams scriptParams, SearchLookup lookup,
+            LeafReaderContext leafContext, RuleCache ruleCache, ExpansionBudget budget) throws IOException {
+        super(params, scriptParams, lookup, leafContext, ruleCache, budget);
     }
 
     @Override
     public double runAsDouble() {
-    	Recurring recurring = getRecurring(getParamValueFor(PARAM_FIELD));
+    	Recurring recurring = getRecurring();
         try {
-            return recurring != null && recurring.notHasExpired() ? 1.0d : 0.0d;
+            return recurring != null && recurring.notHasExpired(scriptParams().day()) ? 1.0d : 0.0d;
         } catch (ParseException e) {
         	// ParseException null
         }
@@ -14,31 +14,59 @@
 
 package org.devmaster.elasticsearch.script;
 
+import org.devmaster.elasticsearch.index.mapper.ExpansionBudget;
 import org.devmaster.elasticsearch.index.mapper.Recurring;
+import org.devmaster.elasticsearch.index.mapper.RuleCache;
 import org.apache.lucene.index.LeafReaderContext;
 import org.elasticsearch.search.lookup.SearchLookup;
-import org.joda.time.LocalDate;
 
+import java.io.IOException;
 import java.text.ParseException;
+import java.util.BitSet;
 import java.util.Map;
 
 public class OccurBetweenSearchScript extends AbstractRecurringSearchScript {
 
-    private static final String PARAM_FIELD = "field";
-    private static final String PARAM_START = "start";
-    private static final String PARAM_END = "end";
+    private final BitSet matched = new BitSet();
 
-    public OccurBetweenSearchScript(Map<String, Object> params, SearchLookup lookup, LeafReaderContext leafContext) {
-        super(params, lookup, leafContext);
+    public OccurBetweenSearchScript(Map<String, Object> params, RecurringScriptParams scriptParams, SearchLookup lookup,
+            LeafReaderContext leafContext, RuleCache ruleCache, ExpansionBudget budget) throws IOException {
+        super(params, scriptParams, lookup, leafContext, ruleCache, budget);
     }
-    
+
+    /**
+     * Returns the indices of the {@code windows} holding an occurrence when several are given, found in a single walk
+     * of the rule.
+     */
+    @Override
+    public Object run() {
+        if (scriptParams().isMulti() == false) {
+            return super.run();
+        }
+        return matchedIndices(matches());
+    }
+
     @Override
     public double runAsDouble() {
-    	Recurring recurring = getRecurring(getParamValueFor(PARAM_FIELD));
-        String start = getParamValueFor(PARAM_START);
-        String end = getParamValueFor(PARAM_END);
+        if (scriptParams().isMulti()) {
+            return matches().cardinality();
+        }
+    	Recurring recurring = getRecurring();
+        try {
+            return recurring != null && recurring.occursBetween(scriptParams().start(), scriptParams().end()) ? 1.0d : 0.0d;
+        } catch (ParseException e) {
+            throw new IllegalArgumentException("Error while check occur between. Error: " + e.getMessage());
+        }
+    }
+
+    private BitSet matches() {
+        Recurring recurring = getRecurring();
+        if (recurring == null) {
+            matched.clear();
+            return matched;
+        }
         try {
-            return recurring != null && recurring.occurBetween(new LocalDate(start), new LocalDate(end)) ? 1.0d : 0.0d;
+            return recurring.occursBetween(scriptParams().starts(), scriptParams().ends(), matched);
         } catch (ParseException e) {
             throw new IllegalArgumentException("Error while check occur between. Error: " + e.getMessage());
         }
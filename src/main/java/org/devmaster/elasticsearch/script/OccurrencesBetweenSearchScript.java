@@ -14,32 +14,51 @@
 
 package org.devmaster.elasticsearch.script;
 
+import org.devmaster.elasticsearch.index.mapper.OccurrenceFormat;
+import org.devmaster.elasticsearch.index.mapper.OccurrencePage;
+import org.devmaster.elasticsearch.index.mapper.ExpansionBudget;
 import org.devmaster.elasticsearch.index.mapper.Recurring;
+import org.devmaster.elasticsearch.index.mapper.RuleCache;
+import org.devmaster.elasticsearch.search.OccurrenceBreaker;
 import org.apache.lucene.index.LeafReaderContext;
 import org.elasticsearch.search.lookup.SearchLookup;
-import org.joda.time.LocalDate;
 
+import java.io.IOException;
 import java.text.ParseException;
+import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public class OccurrencesBetweenSearchScript extends AbstractRecurringSearchScript {
 
-    private static final String PARAM_FIELD = "field";
-    private static final String PARAM_START = "start";
-    private static final String PARAM_END = "end";
-
-    public OccurrencesBetweenSearchScript(Map<String, Object> params, SearchLookup lookup, LeafReaderContext leafContext) {
-        super(params, lookup, leafContext);
+    public OccurrencesBetweenSearchScript(Map<String, Object> params, RecurringScriptParams scriptParams, SearchLookup lookup,
+            LeafReaderContext leafContext, RuleCache ruleCache, ExpansionBudget budget) throws IOException {
+        super(params, scriptParams, lookup, leafContext, ruleCache, budget);
     }
-    
+
+    /**
+     * Returns the occurrences of the document, accounted to the {@link OccurrenceBreaker} of the search when they are
+     * kept as a script field.
+     */
     @Override
     public Object run() {
-    	Recurring recurring = getRecurring(getParamValueFor(PARAM_FIELD));
+    	Recurring recurring = getRecurring();
         if (recurring != null) {
-            LocalDate start = new LocalDate(getParamValueFor(PARAM_START));
-            LocalDate end = new LocalDate(getParamValueFor(PARAM_END));
             try {
-                return recurring.occurrencesBetween(start, end);
+                RecurringScriptParams params = scriptParams();
+                if (params.limit() > 0) {
+                    OccurrencePage page = recurring.occurrencePage(params.start(), params.end(), params.after(), params.limit());
+                    OccurrenceBreaker.account(page.size() * params.format().bytesPerOccurrence());
+                    return page(page, params.format());
+                }
+                if (params.format() != OccurrenceFormat.ISO || params.after() != Integer.MIN_VALUE) {
+                    OccurrencePage page = recurring.occurrencePage(params.start(), params.end(), params.after(), Integer.MAX_VALUE);
+                    OccurrenceBreaker.account(page.size() * params.format().bytesPerOccurrence());
+                    return params.format().format(page);
+                }
+                List<String> occurrences = recurring.occurrencesBetween(params.start(), params.end());
+                OccurrenceBreaker.account(occurrences.size() * OccurrenceFormat.ISO.bytesPerOccurrence());
+                return occurrences;
             } catch (ParseException e) {
                 // ParseException null
             }
@@ -47,6 +66,19 @@ public class OccurrencesBetweenSearchScript extends AbstractRecurringSearchScrip
         return "fail_2";
     }
     
+    /**
+     * A paged result: the occurrences, whether the window holds more of them and the cursor of the next page.
+     */
+    private static Map<String, Object> page(OccurrencePage page, OccurrenceFormat format) {
+        Map<String, Object> result = new HashMap<>(4);
+        result.put("occurrences", format.format(page));
+        result.put("truncated", page.isTruncated());
+        if (page.after() != null) {
+            result.put("after", page.after());
+        }
+        return result;
+    }
+
     @Override
     public double runAsDouble() {
         return run() != null ? 1.0d : 0.0d;
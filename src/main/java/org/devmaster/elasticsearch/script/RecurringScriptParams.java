@@ -0,0 +1,269 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.script;
+
+import org.devmaster.elasticsearch.index.mapper.EpochDays;
+import org.devmaster.elasticsearch.index.mapper.OccurrenceFormat;
+import org.joda.time.LocalDate;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The parameters of a native script, validated and converted to days since 1970-01-01 once per request and shared by
+ * the scripts of every segment. Dates left out default to the day the request was parsed.
+ */
+public final class RecurringScriptParams {
+
+    private static final String PARAM_FIELD = "field";
+    private static final String PARAM_START = "start";
+    private static final String PARAM_END = "end";
+    private static final String PARAM_DATE = "date";
+    private static final String PARAM_FROM = "from";
+    private static final String PARAM_DATES = "dates";
+    private static final String PARAM_WINDOWS = "windows";
+    private static final String PARAM_LIMIT = "limit";
+    private static final String PARAM_AFTER = "after";
+    private static final String PARAM_FORMAT = "format";
+
+    private final String field;
+    private final int start;
+    private final int end;
+    private final int day;
+    private final int[] starts;
+    private final int[] ends;
+    private final int limit;
+    private final int after;
+    private final OccurrenceFormat format;
+
+    private RecurringScriptParams(String field, int start, int end, int day) {
+        this(field, start, end, day, null, null, 0, Integer.MIN_VALUE, OccurrenceFormat.ISO);
+    }
+
+    private RecurringScriptParams(String field, int start, int end, int day, int[] starts, int[] ends) {
+        this(field, start, end, day, starts, ends, 0, Integer.MIN_VALUE, OccurrenceFormat.ISO);
+    }
+
+    private RecurringScriptParams(String field, int start, int end, int day, int[] starts, int[] ends, int limit,
+                                  int after, OccurrenceFormat format) {
+        this.field = field;
+        this.start = start;
+        this.end = end;
+        this.day = day;
+        this.starts = starts;
+        this.ends = ends;
+        this.limit = limit;
+        this.after = after;
+        this.format = format;
+    }
+
+    /**
+     * Parameters of {@code occurBetween}: the {@code start} and {@code end} dates of the window, or {@code windows},
+     * a list of {@code start} and {@code end} objects sorted by start date.
+     */
+    public static RecurringScriptParams window(Map<String, Object> params) {
+        String field = require(params, PARAM_FIELD);
+        if (params.containsKey(PARAM_WINDOWS)) {
+            List<?> windows = requireList(params, PARAM_WINDOWS);
+            int[] starts = new int[windows.size()];
+            int[] ends = new int[windows.size()];
+            for (int i = 0; i < windows.size(); i++) {
+                if (windows.get(i) instanceof Map == false) {
+                    throw new IllegalArgumentException("Parameter [" + PARAM_WINDOWS + "] must hold objects with a ["
+                            + PARAM_START + "] and an [" + PARAM_END + "]");
+                }
+                @SuppressWarnings("unchecked")
+                Map<String, Object> window = (Map<String, Object>) windows.get(i);
+                starts[i] = EpochDays.parse(require(window, PARAM_START));
+                ends[i] = EpochDays.parse(require(window, PARAM_END));
+            }
+            requireSorted(PARAM_WINDOWS, starts);
+            return new RecurringScriptParams(field, starts[0], ends[0], today(), starts, ends);
+        }
+        int start = EpochDays.parse(require(params, PARAM_START));
+        int end = EpochDays.parse(require(params, PARAM_END));
+        return new RecurringScriptParams(field, start, end, today());
+    }
+
+    /**
+     * Parameters of {@code hasAnyOccurrenceBetween}: {@code start} and {@code end} may be date times, taken as the UTC
+     * day they fall on.
+     */
+    public static RecurringScriptParams instantWindow(Map<String, Object> params) {
+        String field = require(params, PARAM_FIELD);
+        int start = EpochDays.parseInstant(require(params, PARAM_START));
+        int end = EpochDays.parseInstant(require(params, PARAM_END));
+        return new RecurringScriptParams(field, start, end, today());
+    }
+
+    /**
+     * Parameters of {@code occurrencesBetween}: a window whose dates default to today, and optionally the
+     * {@code limit} of occurrences of a page, the {@code after} cursor of the previous page and the output
+     * {@code format}.
+     */
+    public static RecurringScriptParams optionalWindow(Map<String, Object> params) {
+        String field = require(params, PARAM_FIELD);
+        int today = today();
+        int limit = 0;
+        Object value = params.get(PARAM_LIMIT);
+        if (value != null) {
+            limit = value instanceof Number ? ((Number) value).intValue() : Integer.parseInt(value.toString());
+            if (limit < 1) {
+                throw new IllegalArgumentException("Parameter [" + PARAM_LIMIT + "] must be at least 1, got [" + limit + "]");
+            }
+        }
+        int after = optional(params, PARAM_AFTER, Integer.MIN_VALUE);
+        String format = (String) params.get(PARAM_FORMAT);
+        return new RecurringScriptParams(field, optional(params, PARAM_START, today), optional(params, PARAM_END, today),
+                today, null, null, limit, after, format != null ? OccurrenceFormat.fromString(format) : OccurrenceFormat.ISO);
+    }
+
+    /**
+     * Parameters of {@code hasOccurrencesAt}: the {@code date} to check, or {@code dates}, a list of dates in
+     * ascending order.
+     */
+    public static RecurringScriptParams date(Map<String, Object> params) {
+        String field = require(params, PARAM_FIELD);
+        if (params.containsKey(PARAM_DATES)) {
+            List<?> dates = requireList(params, PARAM_DATES);
+            int[] days = new int[dates.size()];
+            for (int i = 0; i < dates.size(); i++) {
+                days[i] = EpochDays.parse(String.valueOf(dates.get(i)));
+            }
+            requireSorted(PARAM_DATES, days);
+            return new RecurringScriptParams(field, days[0], days[0], days[0], days, days);
+        }
+        int date = EpochDays.parse(require(params, PARAM_DATE));
+        return new RecurringScriptParams(field, date, date, date);
+    }
+
+    /**
+     * Parameters of {@code nextOccurrence}: the day to search {@code from}, today by default.
+     */
+    public static RecurringScriptParams from(Map<String, Object> params) {
+        String field = require(params, PARAM_FIELD);
+        int from = optional(params, PARAM_FROM, today());
+        return new RecurringScriptParams(field, from, from, from);
+    }
+
+    /**
+     * Parameters of {@code notHasExpired}: only the field, checked against today.
+     */
+    public static RecurringScriptParams today(Map<String, Object> params) {
+        String field = require(params, PARAM_FIELD);
+        int today = today();
+        return new RecurringScriptParams(field, today, today, today);
+    }
+
+    private static String require(Map<String, Object> params, String name) {
+        if (params.containsKey(name) == false) {
+            throw new IllegalArgumentException("Missing parameter [" + name + "]");
+        }
+        return (String) params.get(name);
+    }
+
+    private static List<?> requireList(Map<String, Object> params, String name) {
+        Object value = params.get(name);
+        if (value instanceof List == false || ((List<?>) value).isEmpty()) {
+            throw new IllegalArgumentException("Parameter [" + name + "] must be a non empty list");
+        }
+        return (List<?>) value;
+    }
+
+    private static void requireSorted(String name, int[] days) {
+        for (int i = 1; i < days.length; i++) {
+            if (days[i] < days[i - 1]) {
+                throw new IllegalArgumentException("Parameter [" + name + "] must be sorted by date");
+            }
+        }
+    }
+
+    private static int optional(Map<String, Object> params, String name, int defaultDay) {
+        String value = (String) params.get(name);
+        return value != null ? EpochDays.parse(value) : defaultDay;
+    }
+
+    private static int today() {
+        return EpochDays.of(LocalDate.now());
+    }
+
+    public String field() {
+        return field;
+    }
+
+    /**
+     * Returns the first day of the window.
+     */
+    public int start() {
+        return start;
+    }
+
+    /**
+     * Returns the last day of the window, included.
+     */
+    public int end() {
+        return end;
+    }
+
+    /**
+     * Returns the single day of the script: the date checked, the day searched from or today.
+     */
+    public int day() {
+        return day;
+    }
+
+    /**
+     * Returns {@code true} if the script checks several dates or windows, given by {@link #starts()} and
+     * {@link #ends()}.
+     */
+    public boolean isMulti() {
+        return starts != null;
+    }
+
+    /**
+     * Returns the maximum number of occurrences of a page, or 0 when the occurrences are not paged.
+     */
+    public int limit() {
+        return limit;
+    }
+
+    /**
+     * Returns the last occurrence of the previous page, or {@link Integer#MIN_VALUE} for the first page.
+     */
+    public int after() {
+        return after;
+    }
+
+    /**
+     * Returns the format of the occurrences returned, {@link OccurrenceFormat#ISO} by default.
+     */
+    public OccurrenceFormat format() {
+        return format;
+    }
+
+    /**
+     * Returns the first day of every window, or every date, in ascending order.
+     */
+    public int[] starts() {
+        return starts;
+    }
+
+    /**
+     * Returns the last day of every window, included, in the order of {@link #starts()}.
+     */
+    public int[] ends() {
+        return ends;
+    }
+}
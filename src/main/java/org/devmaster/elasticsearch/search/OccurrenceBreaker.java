@@ -0,0 +1,92 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.devmaster.elasticsearch.search;
+
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.lease.Releasable;
+import org.elasticsearch.search.internal.SearchContext;
+
+/**
+ * Accounts the occurrences a search returns to the request circuit breaker. The occurrences are held by the hits
+ * until the response is sent, so the bytes added are only released when the search context is freed, see
+ * {@link #of(SearchContext)}.
+ * <p>
+ * The scripts have no access to their search context, {@link RecurringSearchListener} sets the breaker of the search
+ * on the thread running its fetch phase, where the values of the script fields are kept. Values computed by the query
+ * phase are dropped once their document is collected and are only limited by the expansion budget.
+ */
+public final class OccurrenceBreaker implements Releasable {
+
+    static final String LABEL = "<recurring_occurrences>";
+
+    private static final ThreadLocal<OccurrenceBreaker> CURRENT = new ThreadLocal<>();
+
+    private final CircuitBreaker breaker;
+    private long reserved;
+
+    OccurrenceBreaker(CircuitBreaker breaker) {
+        this.breaker = breaker;
+    }
+
+    /**
+     * Returns a breaker accounting to the request circuit breaker of {@code context} until it is freed.
+     */
+    public static OccurrenceBreaker of(SearchContext context) {
+        OccurrenceBreaker breaker = new OccurrenceBreaker(context.bigArrays().breakerService().getBreaker(CircuitBreaker.REQUEST));
+        context.addReleasable(breaker, SearchContext.Lifetime.CONTEXT);
+        return breaker;
+    }
+
+    /**
+     * Accounts {@code bytes} of occurrences, failing with a {@link org.elasticsearch.common.breaker.CircuitBreakingException}
+     * if the request circuit breaker trips.
+     */
+    public void add(long bytes) {
+        breaker.addEstimateBytesAndMaybeBreak(bytes, LABEL);
+        reserved += bytes;
+    }
+
+    /**
+     * Accounts {@code bytes} of occurrences to the breaker set on the current thread, if any.
+     */
+    public static void account(long bytes) {
+        OccurrenceBreaker current = CURRENT.get();
+        if (current != null) {
+            current.add(bytes);
+        }
+    }
+
+    /**
+     * Sets the breaker of the search served by the current thread, {@code null} removes it.
+     */
+    static void setCurrent(OccurrenceBreaker breaker) {
+        if (breaker == null) {
+            CURRENT.remove();
+        } else {
+            CURRENT.set(breaker);
+        }
+    }
+
+    long reserved() {
+        return reserved;
+    }
+
+    @Override
+    public void close() {
+        breaker.addWithoutBreaking(-reserved);
+        reserved = 0;
+    }
+}
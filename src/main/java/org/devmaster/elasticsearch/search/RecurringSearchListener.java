@@ -0,0 +1,87 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+
+package org.devmaster.elasticsearch.search;
+
+import org.devmaster.elasticsearch.index.fielddata.NextOccurrenceComparatorSource;
+import org.devmaster.elasticsearch.index.mapper.ExpansionBudget;
+import org.elasticsearch.action.search.SearchTask;
+import org.elasticsearch.index.shard.SearchOperationListener;
+import org.elasticsearch.search.internal.SearchContext;
+import org.elasticsearch.tasks.TaskCancelledException;
+
+/**
+ * Lets the rules evaluated by a search notice that it was cancelled. The query and fetch phases of a shard run on one
+ * thread, the check of the search is set on that thread for the duration of the phase and run by the
+ * {@link ExpansionBudget} of the queries, aggregations, scripts and fetch sub phases walking rules, which fail with a
+ * {@link TaskCancelledException} once the search task is cancelled.
+ * <p>
+ * The {@code timeout} of the search is not checked here: the query phase checks it between the documents it collects
+ * and returns the hits collected so far as a timed out response, which failing the shard would turn into an error.
+ * <p>
+ * The query phase also sets the time of the search, the sorts on a recurring field start from its day. The fetch phase
+ * gets the {@link OccurrenceBreaker} of the search, the occurrences returned by the script fields are accounted to it
+ * until the search context is freed.
+ */
+public class RecurringSearchListener implements SearchOperationListener {
+
+    @Override
+    public void onPreQueryPhase(SearchContext searchContext) {
+        ExpansionBudget.setCheckCancelled(checkCancelled(searchContext));
+        NextOccurrenceComparatorSource.setNow(searchContext.request() != null ? searchContext.request().nowInMillis() : null);
+    }
+
+    @Override
+    public void onQueryPhase(SearchContext searchContext, long tookInNanos) {
+        ExpansionBudget.setCheckCancelled(null);
+        NextOccurrenceComparatorSource.setNow(null);
+    }
+
+    @Override
+    public void onFailedQueryPhase(SearchContext searchContext) {
+        ExpansionBudget.setCheckCancelled(null);
+        NextOccurrenceComparatorSource.setNow(null);
+    }
+
+    @Override
+    public void onPreFetchPhase(SearchContext searchContext) {
+        ExpansionBudget.setCheckCancelled(checkCancelled(searchContext));
+        OccurrenceBreaker.setCurrent(OccurrenceBreaker.of(searchContext));
+    }
+
+    @Override
+    public void onFetchPhase(SearchContext searchContext, long tookInNanos) {
+        ExpansionBudget.setCheckCancelled(null);
+        OccurrenceBreaker.setCurrent(null);
+    }
+
+    @Override
+    public void onFailedFetchPhase(SearchContext searchContext) {
+        ExpansionBudget.setCheckCancelled(null);
+        OccurrenceBreaker.setCurrent(null);
+    }
+
+    private static Runnable checkCancelled(SearchContext searchContext) {
+        SearchTask task = searchContext.getTask();
+        if (task == null) {
+            return null;
+        }
+        return () -> {
+            if (task.isCancelled()) {
+                throw new TaskCancelledException("cancelled");
+            }
+        };
+    }
+}
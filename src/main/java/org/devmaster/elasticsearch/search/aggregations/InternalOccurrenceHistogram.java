@@ -0,0 +1,203 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.search.aggregations;
+
+import org.devmaster.elasticsearch.index.mapper.EpochDays;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.io.stream.Writeable;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.joda.time.LocalDate;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+
+/**
+ * Result of an {@link OccurrenceHistogramAggregationBuilder}. Shards only send their non empty buckets, the final
+ * reduction sums them by key and fills the empty buckets of the window, as {@code date_histogram} does with
+ * {@code extended_bounds}.
+ */
+public class InternalOccurrenceHistogram extends InternalAggregation {
+
+    private static final long MILLIS_PER_DAY = 86400000L;
+
+    private final int from;
+    private final int to;
+    private final OccurrenceInterval interval;
+    private final List<Bucket> buckets;
+
+    InternalOccurrenceHistogram(String name, int from, int to, OccurrenceInterval interval, List<Bucket> buckets,
+                                List<PipelineAggregator> pipelineAggregators, Map<String, Object> metaData) {
+        super(name, pipelineAggregators, metaData);
+        this.from = from;
+        this.to = to;
+        this.interval = interval;
+        this.buckets = buckets;
+    }
+
+    public InternalOccurrenceHistogram(StreamInput in) throws IOException {
+        super(in);
+        from = in.readInt();
+        to = in.readInt();
+        interval = in.readEnum(OccurrenceInterval.class);
+        buckets = in.readList(Bucket::new);
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeInt(from);
+        out.writeInt(to);
+        out.writeEnum(interval);
+        out.writeList(buckets);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return OccurrenceHistogramAggregationBuilder.NAME;
+    }
+
+    public OccurrenceInterval getInterval() {
+        return interval;
+    }
+
+    /**
+     * Returns the buckets in ascending order of their first day.
+     */
+    public List<Bucket> getBuckets() {
+        return Collections.unmodifiableList(buckets);
+    }
+
+    @Override
+    public InternalAggregation doReduce(List<InternalAggregation> aggregations, ReduceContext reduceContext) {
+        TreeMap<Integer, Long> counts = new TreeMap<>();
+        for (InternalAggregation aggregation : aggregations) {
+            for (Bucket bucket : ((InternalOccurrenceHistogram) aggregation).buckets) {
+                counts.merge(bucket.day, bucket.count, Long::sum);
+            }
+        }
+
+        List<Bucket> reduced = new ArrayList<>();
+        if (reduceContext.isFinalReduce()) {
+            for (int key = interval.key(from), last = interval.key(to); key <= last; key++) {
+                int day = interval.firstDay(key);
+                reduced.add(new Bucket(day, counts.getOrDefault(day, 0L)));
+            }
+            reduceContext.consumeBucketsAndMaybeBreak(reduced.size());
+        } else {
+            counts.forEach((day, count) -> reduced.add(new Bucket(day, count)));
+        }
+        return new InternalOccurrenceHistogram(name, from, to, interval, reduced, pipelineAggregators(), getMetaData());
+    }
+
+    @Override
+    public Object getProperty(List<String> path) {
+        if (path.isEmpty()) {
+            return this;
+        }
+        throw new IllegalArgumentException("path not supported for [" + getName() + "]: " + path);
+    }
+
+    @Override
+    public XContentBuilder doXContentBody(XContentBuilder builder, Params params) throws IOException {
+        builder.startArray("buckets");
+        for (Bucket bucket : buckets) {
+            builder.startObject();
+            builder.field("key_as_string", bucket.getKeyAsString());
+            builder.field("key", bucket.getKey());
+            builder.field("count", bucket.count);
+            builder.endObject();
+        }
+        builder.endArray();
+        return builder;
+    }
+
+    @Override
+    protected boolean doEquals(Object obj) {
+        InternalOccurrenceHistogram other = (InternalOccurrenceHistogram) obj;
+        return from == other.from
+                && to == other.to
+                && interval == other.interval
+                && Objects.equals(buckets, other.buckets);
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(from, to, interval, buckets);
+    }
+
+    /**
+     * Number of occurrences within a day, week, month or year.
+     */
+    public static final class Bucket implements Writeable {
+
+        private final int day;
+        private final long count;
+
+        Bucket(int day, long count) {
+            this.day = day;
+            this.count = count;
+        }
+
+        Bucket(StreamInput in) throws IOException {
+            day = in.readInt();
+            count = in.readVLong();
+        }
+
+        @Override
+        public void writeTo(StreamOutput out) throws IOException {
+            out.writeInt(day);
+            out.writeVLong(count);
+        }
+
+        /**
+         * Returns the first day of the bucket, in milliseconds since the epoch.
+         */
+        public long getKey() {
+            return day * MILLIS_PER_DAY;
+        }
+
+        public String getKeyAsString() {
+            return getDate().toString();
+        }
+
+        public LocalDate getDate() {
+            return EpochDays.toLocalDate(day);
+        }
+
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            Bucket that = (Bucket) o;
+            return day == that.day && count == that.count;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(day, count);
+        }
+    }
+}
@@ -0,0 +1,242 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.search.aggregations;
+
+import org.devmaster.elasticsearch.index.mapper.EpochDays;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.search.aggregations.AbstractAggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationBuilder;
+import org.elasticsearch.search.aggregations.AggregationInitializationException;
+import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Histogram of the occurrences of a {@code recurring} field within a window: each occurrence of a matching document
+ * is counted in the bucket of its day, week, month or year.
+ */
+public class OccurrenceHistogramAggregationBuilder extends AbstractAggregationBuilder<OccurrenceHistogramAggregationBuilder> {
+
+    public static final String NAME = "occurrence_histogram";
+
+    private static final ParseField FIELD_FIELD = new ParseField("field");
+    private static final ParseField FROM_FIELD = new ParseField("from");
+    private static final ParseField TO_FIELD = new ParseField("to");
+    private static final ParseField INTERVAL_FIELD = new ParseField("interval");
+
+    private final String fieldName;
+    private String from;
+    private String to;
+    private OccurrenceInterval interval = OccurrenceInterval.DAY;
+
+    public OccurrenceHistogramAggregationBuilder(String name, String fieldName) {
+        super(name);
+        if (Strings.isNullOrEmpty(fieldName)) {
+            throw new IllegalArgumentException("[" + NAME + "] requires a field name");
+        }
+        this.fieldName = fieldName;
+    }
+
+    private OccurrenceHistogramAggregationBuilder(OccurrenceHistogramAggregationBuilder clone,
+                                                  AggregatorFactories.Builder factoriesBuilder, Map<String, Object> metaData) {
+        super(clone, factoriesBuilder, metaData);
+        this.fieldName = clone.fieldName;
+        this.from = clone.from;
+        this.to = clone.to;
+        this.interval = clone.interval;
+    }
+
+    public OccurrenceHistogramAggregationBuilder(StreamInput in) throws IOException {
+        super(in);
+        fieldName = in.readString();
+        from = in.readOptionalString();
+        to = in.readOptionalString();
+        interval = in.readEnum(OccurrenceInterval.class);
+    }
+
+    @Override
+    protected void doWriteTo(StreamOutput out) throws IOException {
+        out.writeString(fieldName);
+        out.writeOptionalString(from);
+        out.writeOptionalString(to);
+        out.writeEnum(interval);
+    }
+
+    @Override
+    protected AggregationBuilder shallowCopy(AggregatorFactories.Builder factoriesBuilder, Map<String, Object> metaData) {
+        return new OccurrenceHistogramAggregationBuilder(this, factoriesBuilder, metaData);
+    }
+
+    public String fieldName() {
+        return fieldName;
+    }
+
+    public String from() {
+        return from;
+    }
+
+    /**
+     * First day of the window, included.
+     */
+    public OccurrenceHistogramAggregationBuilder from(String from) {
+        this.from = from;
+        return this;
+    }
+
+    public String to() {
+        return to;
+    }
+
+    /**
+     * Last day of the window, included.
+     */
+    public OccurrenceHistogramAggregationBuilder to(String to) {
+        this.to = to;
+        return this;
+    }
+
+    public OccurrenceInterval interval() {
+        return interval;
+    }
+
+    public OccurrenceHistogramAggregationBuilder interval(OccurrenceInterval interval) {
+        if (interval == null) {
+            throw new IllegalArgumentException("[" + NAME + "] requires an interval");
+        }
+        this.interval = interval;
+        return this;
+    }
+
+    @Override
+    protected AggregatorFactory<?> doBuild(SearchContext context, AggregatorFactory<?> parent,
+                                           AggregatorFactories.Builder subFactoriesBuilder) throws IOException {
+        if (subFactoriesBuilder.count() > 0) {
+            throw new AggregationInitializationException("Aggregator [" + name + "] of type [" + NAME
+                    + "] cannot accept sub-aggregations");
+        }
+        int fromDay = parseDay(FROM_FIELD, from);
+        int toDay = parseDay(TO_FIELD, to);
+        if (fromDay > toDay) {
+            throw new IllegalArgumentException("[" + NAME + "] requires [from] to be on or before [to], got [" + from
+                    + "] and [" + to + "]");
+        }
+        return new OccurrenceHistogramAggregatorFactory(name, fieldName, fromDay, toDay, interval, context, parent,
+                subFactoriesBuilder, metaData);
+    }
+
+    private static int parseDay(ParseField field, String value) {
+        if (value == null) {
+            throw new IllegalArgumentException("[" + NAME + "] requires [" + field.getPreferredName() + "]");
+        }
+        try {
+            return EpochDays.parse(value);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("[" + NAME + "] unable to parse [" + field.getPreferredName() + "]", e);
+        }
+    }
+
+    @Override
+    protected XContentBuilder internalXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject();
+        builder.field(FIELD_FIELD.getPreferredName(), fieldName);
+        if (from != null) {
+            builder.field(FROM_FIELD.getPreferredName(), from);
+        }
+        if (to != null) {
+            builder.field(TO_FIELD.getPreferredName(), to);
+        }
+        builder.field(INTERVAL_FIELD.getPreferredName(), interval.toString());
+        builder.endObject();
+        return builder;
+    }
+
+    public static OccurrenceHistogramAggregationBuilder parse(String aggregationName, XContentParser parser) throws IOException {
+        String fieldName = null;
+        String from = null;
+        String to = null;
+        String interval = null;
+
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token.isValue()) {
+                if (FIELD_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    fieldName = parser.text();
+                } else if (FROM_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    from = parser.text();
+                } else if (TO_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    to = parser.text();
+                } else if (INTERVAL_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    interval = parser.text();
+                } else {
+                    throw new ParsingException(parser.getTokenLocation(),
+                            "[" + NAME + "] aggregation does not support [" + currentFieldName + "]");
+                }
+            } else {
+                throw new ParsingException(parser.getTokenLocation(),
+                        "[" + NAME + "] unknown token [" + token + "] after [" + currentFieldName + "]");
+            }
+        }
+
+        if (fieldName == null) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] must be provided with a [field]");
+        }
+        if (from == null || to == null) {
+            throw new ParsingException(parser.getTokenLocation(), "[" + NAME + "] must be provided with [from] and [to]");
+        }
+
+        OccurrenceHistogramAggregationBuilder builder = new OccurrenceHistogramAggregationBuilder(aggregationName, fieldName)
+                .from(from).to(to);
+        if (interval != null) {
+            try {
+                builder.interval(OccurrenceInterval.fromString(interval));
+            } catch (IllegalArgumentException e) {
+                throw new ParsingException(parser.getTokenLocation(), e.getMessage(), e);
+            }
+        }
+        return builder;
+    }
+
+    @Override
+    protected boolean doEquals(Object obj) {
+        OccurrenceHistogramAggregationBuilder other = (OccurrenceHistogramAggregationBuilder) obj;
+        return Objects.equals(fieldName, other.fieldName)
+                && Objects.equals(from, other.from)
+                && Objects.equals(to, other.to)
+                && Objects.equals(interval, other.interval);
+    }
+
+    @Override
+    protected int doHashCode() {
+        return Objects.hash(fieldName, from, to, interval);
+    }
+
+    @Override
+    public String getType() {
+        return NAME;
+    }
+}
@@ -0,0 +1,139 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.search.aggregations;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.devmaster.elasticsearch.index.mapper.ExpansionBudget;
+import org.devmaster.elasticsearch.index.mapper.Recurring;
+import org.devmaster.elasticsearch.index.mapper.RecurringFieldMapper.RecurringFieldType;
+import org.devmaster.elasticsearch.index.mapper.RecurringValues;
+import org.elasticsearch.common.lease.Releasables;
+import org.elasticsearch.common.util.LongArray;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.InternalAggregation;
+import org.elasticsearch.search.aggregations.LeafBucketCollector;
+import org.elasticsearch.search.aggregations.LeafBucketCollectorBase;
+import org.elasticsearch.search.aggregations.metrics.MetricsAggregator;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.function.IntConsumer;
+
+/**
+ * Walks the occurrences of each document within the window once and counts them in one slot per bucket of the
+ * window. Consecutive occurrences mostly fall in the same bucket, its bounds are kept so the calendar is only
+ * computed when an occurrence leaves it.
+ */
+class OccurrenceHistogramAggregator extends MetricsAggregator {
+
+    private final RecurringFieldType fieldType;
+    private final int from;
+    private final int to;
+    private final OccurrenceInterval interval;
+    private final int firstKey;
+    private final LongArray counts;
+    private final ExpansionBudget budget;
+
+    OccurrenceHistogramAggregator(String name, RecurringFieldType fieldType, int from, int to, OccurrenceInterval interval,
+                                  SearchContext context, Aggregator parent, List<PipelineAggregator> pipelineAggregators,
+                                  Map<String, Object> metaData) throws IOException {
+        super(name, context, parent, pipelineAggregators, metaData);
+        this.fieldType = fieldType;
+        this.from = from;
+        this.to = to;
+        this.interval = interval;
+        this.firstKey = interval.key(from);
+        this.counts = fieldType != null ? context.bigArrays().newLongArray(interval.key(to) - firstKey + 1L, true) : null;
+        this.budget = fieldType != null ? fieldType.expansionLimits().newBudget() : null;
+    }
+
+    @Override
+    public boolean needsScores() {
+        return false;
+    }
+
+    @Override
+    protected LeafBucketCollector getLeafCollector(LeafReaderContext ctx, LeafBucketCollector sub) throws IOException {
+        if (fieldType == null) {
+            return LeafBucketCollector.NO_OP_COLLECTOR;
+        }
+        RecurringValues values = RecurringValues.forLeaf(ctx, fieldType.name(), fieldType.ruleCache(), budget);
+        BucketCounter counter = new BucketCounter();
+        return new LeafBucketCollectorBase(sub, null) {
+            @Override
+            public void collect(int doc, long bucket) throws IOException {
+                assert bucket == 0;
+                Recurring recurring = values.get(doc);
+                if (recurring == null) {
+                    return;
+                }
+                try {
+                    recurring.forEachOccurrenceBetween(from, to, counter);
+                } catch (ParseException e) {
+                    throw new IllegalArgumentException("Unable to evaluate rule of field [" + fieldType.name() + "]: "
+                            + e.getMessage(), e);
+                }
+            }
+        };
+    }
+
+    @Override
+    public InternalAggregation buildAggregation(long owningBucketOrdinal) {
+        if (counts == null) {
+            return buildEmptyAggregation();
+        }
+        List<InternalOccurrenceHistogram.Bucket> buckets = new ArrayList<>();
+        for (long i = 0; i < counts.size(); i++) {
+            long count = counts.get(i);
+            if (count > 0) {
+                buckets.add(new InternalOccurrenceHistogram.Bucket(interval.firstDay(firstKey + (int) i), count));
+            }
+        }
+        return new InternalOccurrenceHistogram(name, from, to, interval, buckets, pipelineAggregators(), metaData());
+    }
+
+    @Override
+    public InternalAggregation buildEmptyAggregation() {
+        return new InternalOccurrenceHistogram(name, from, to, interval, new ArrayList<>(), pipelineAggregators(), metaData());
+    }
+
+    @Override
+    protected void doClose() {
+        Releasables.close(counts);
+    }
+
+    private final class BucketCounter implements IntConsumer {
+
+        private int bucketStart = Integer.MAX_VALUE;
+        private int nextBucketStart = Integer.MIN_VALUE;
+        private long ordinal;
+
+        @Override
+        public void accept(int day) {
+            if (day < bucketStart || day >= nextBucketStart) {
+                int key = interval.key(day);
+                ordinal = key - firstKey;
+                bucketStart = interval.firstDay(key);
+                nextBucketStart = interval.firstDay(key + 1);
+            }
+            counts.increment(ordinal, 1);
+        }
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.search.aggregations;
+
+import org.devmaster.elasticsearch.index.mapper.RecurringFieldMapper;
+import org.devmaster.elasticsearch.index.mapper.RecurringFieldMapper.RecurringFieldType;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.search.aggregations.Aggregator;
+import org.elasticsearch.search.aggregations.AggregatorFactories;
+import org.elasticsearch.search.aggregations.AggregatorFactory;
+import org.elasticsearch.search.aggregations.pipeline.PipelineAggregator;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+class OccurrenceHistogramAggregatorFactory extends AggregatorFactory<OccurrenceHistogramAggregatorFactory> {
+
+    private final String fieldName;
+    private final int from;
+    private final int to;
+    private final OccurrenceInterval interval;
+
+    OccurrenceHistogramAggregatorFactory(String name, String fieldName, int from, int to, OccurrenceInterval interval,
+                                         SearchContext context, AggregatorFactory<?> parent,
+                                         AggregatorFactories.Builder subFactoriesBuilder,
+                                         Map<String, Object> metaData) throws IOException {
+        super(name, context, parent, subFactoriesBuilder, metaData);
+        this.fieldName = fieldName;
+        this.from = from;
+        this.to = to;
+        this.interval = interval;
+    }
+
+    @Override
+    protected Aggregator createInternal(Aggregator parent, boolean collectsFromSingleBucket,
+                                        List<PipelineAggregator> pipelineAggregators,
+                                        Map<String, Object> metaData) throws IOException {
+        if (collectsFromSingleBucket == false) {
+            return asMultiBucketAggregator(this, context, parent);
+        }
+        MappedFieldType fieldType = context.smartNameFieldType(fieldName);
+        if (fieldType != null && fieldType instanceof RecurringFieldType == false) {
+            throw new IllegalArgumentException("[" + OccurrenceHistogramAggregationBuilder.NAME + "] requires a field of type ["
+                    + RecurringFieldMapper.CONTENT_TYPE + "], but [" + fieldName + "] is of type [" + fieldType.typeName() + "]");
+        }
+        return new OccurrenceHistogramAggregator(name, (RecurringFieldType) fieldType, from, to, interval, context, parent,
+                pipelineAggregators, metaData);
+    }
+}
@@ -0,0 +1,96 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.search.aggregations;
+
+import org.devmaster.elasticsearch.index.mapper.EpochDays;
+
+import java.util.Locale;
+
+/**
+ * Calendar interval of an {@link OccurrenceHistogramAggregationBuilder}. Buckets are numbered from days since
+ * 1970-01-01 so consecutive buckets have consecutive keys, weeks start on Monday.
+ */
+public enum OccurrenceInterval {
+
+    DAY {
+        @Override
+        int key(int day) {
+            return day;
+        }
+
+        @Override
+        int firstDay(int key) {
+            return key;
+        }
+    },
+    WEEK {
+        @Override
+        int key(int day) {
+            // 1970-01-01 is a Thursday
+            return Math.floorDiv(day + 3, 7);
+        }
+
+        @Override
+        int firstDay(int key) {
+            return key * 7 - 3;
+        }
+    },
+    MONTH {
+        @Override
+        int key(int day) {
+            return EpochDays.year(day) * 12 + EpochDays.month(day) - 1;
+        }
+
+        @Override
+        int firstDay(int key) {
+            return EpochDays.of(Math.floorDiv(key, 12), Math.floorMod(key, 12) + 1, 1);
+        }
+    },
+    YEAR {
+        @Override
+        int key(int day) {
+            return EpochDays.year(day);
+        }
+
+        @Override
+        int firstDay(int key) {
+            return EpochDays.of(key, 1, 1);
+        }
+    };
+
+    /**
+     * Returns the key of the bucket holding {@code day}.
+     */
+    abstract int key(int day);
+
+    /**
+     * Returns the first day of the bucket with the given key.
+     */
+    abstract int firstDay(int key);
+
+    public static OccurrenceInterval fromString(String interval) {
+        for (OccurrenceInterval value : values()) {
+            if (value.toString().equals(interval)) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Unknown occurrence interval [" + interval + "]");
+    }
+
+    @Override
+    public String toString() {
+        return name().toLowerCase(Locale.ROOT);
+    }
+}
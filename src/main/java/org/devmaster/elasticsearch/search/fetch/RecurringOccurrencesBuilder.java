@@ -0,0 +1,231 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.search.fetch;
+
+import org.devmaster.elasticsearch.index.mapper.OccurrenceFormat;
+import org.elasticsearch.common.ParseField;
+import org.elasticsearch.common.ParsingException;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.io.stream.StreamInput;
+import org.elasticsearch.common.io.stream.StreamOutput;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentParser;
+import org.elasticsearch.search.SearchExtBuilder;
+
+import java.io.IOException;
+import java.util.Objects;
+
+/**
+ * The {@code recurring_occurrences} section of a search request: the occurrences of a {@code recurring} field within
+ * a window are returned with each hit, at most {@link #limit()} of them, see {@link RecurringOccurrencesFetchSubPhase}.
+ * Hits with more occurrences also get the {@value #AFTER_NAME} cursor, passed as {@link #after(String)} to read the
+ * next page.
+ */
+public class RecurringOccurrencesBuilder extends SearchExtBuilder {
+
+    public static final String NAME = "recurring_occurrences";
+
+    /**
+     * Name of the hit field holding the cursor of the next page of a truncated hit.
+     */
+    public static final String AFTER_NAME = NAME + "_after";
+
+    public static final int DEFAULT_LIMIT = 100;
+
+    private static final ParseField FIELD_FIELD = new ParseField("field");
+    private static final ParseField FROM_FIELD = new ParseField("from");
+    private static final ParseField TO_FIELD = new ParseField("to");
+    private static final ParseField LIMIT_FIELD = new ParseField("limit");
+    private static final ParseField AFTER_FIELD = new ParseField("after");
+    private static final ParseField FORMAT_FIELD = new ParseField("format");
+
+    private final String fieldName;
+    private final String from;
+    private final String to;
+    private int limit = DEFAULT_LIMIT;
+    private String after;
+    private OccurrenceFormat format = OccurrenceFormat.ISO;
+
+    public RecurringOccurrencesBuilder(String fieldName, String from, String to) {
+        if (Strings.isNullOrEmpty(fieldName)) {
+            throw new IllegalArgumentException("[" + NAME + "] requires a field name");
+        }
+        if (from == null || to == null) {
+            throw new IllegalArgumentException("[" + NAME + "] requires [from] and [to]");
+        }
+        this.fieldName = fieldName;
+        this.from = from;
+        this.to = to;
+    }
+
+    public RecurringOccurrencesBuilder(StreamInput in) throws IOException {
+        fieldName = in.readString();
+        from = in.readString();
+        to = in.readString();
+        limit = in.readVInt();
+        after = in.readOptionalString();
+        format = OccurrenceFormat.fromString(in.readString());
+    }
+
+    @Override
+    public void writeTo(StreamOutput out) throws IOException {
+        out.writeString(fieldName);
+        out.writeString(from);
+        out.writeString(to);
+        out.writeVInt(limit);
+        out.writeOptionalString(after);
+        out.writeString(format.toString());
+    }
+
+    public String fieldName() {
+        return fieldName;
+    }
+
+    public String from() {
+        return from;
+    }
+
+    public String to() {
+        return to;
+    }
+
+    public int limit() {
+        return limit;
+    }
+
+    /**
+     * Maximum number of occurrences returned per hit, {@value #DEFAULT_LIMIT} by default.
+     */
+    public RecurringOccurrencesBuilder limit(int limit) {
+        if (limit < 1) {
+            throw new IllegalArgumentException("[" + NAME + "] requires a [limit] of at least 1, got [" + limit + "]");
+        }
+        this.limit = limit;
+        return this;
+    }
+
+    public String after() {
+        return after;
+    }
+
+    /**
+     * The {@value #AFTER_NAME} cursor of the previous page, the occurrences up to it are skipped.
+     */
+    public RecurringOccurrencesBuilder after(String after) {
+        this.after = after;
+        return this;
+    }
+
+    public OccurrenceFormat format() {
+        return format;
+    }
+
+    /**
+     * The format of the occurrences returned, {@link OccurrenceFormat#ISO} dates by default. The cursor of the next
+     * page is always a date.
+     */
+    public RecurringOccurrencesBuilder format(OccurrenceFormat format) {
+        this.format = Objects.requireNonNull(format);
+        return this;
+    }
+
+    @Override
+    public XContentBuilder toXContent(XContentBuilder builder, Params params) throws IOException {
+        builder.startObject(NAME);
+        builder.field(FIELD_FIELD.getPreferredName(), fieldName);
+        builder.field(FROM_FIELD.getPreferredName(), from);
+        builder.field(TO_FIELD.getPreferredName(), to);
+        builder.field(LIMIT_FIELD.getPreferredName(), limit);
+        if (after != null) {
+            builder.field(AFTER_FIELD.getPreferredName(), after);
+        }
+        builder.field(FORMAT_FIELD.getPreferredName(), format.toString());
+        builder.endObject();
+        return builder;
+    }
+
+    public static RecurringOccurrencesBuilder fromXContent(XContentParser parser) throws IOException {
+        String fieldName = null;
+        String from = null;
+        String to = null;
+        Integer limit = null;
+        String after = null;
+        String format = null;
+
+        String currentFieldName = null;
+        XContentParser.Token token;
+        while ((token = parser.nextToken()) != XContentParser.Token.END_OBJECT) {
+            if (token == XContentParser.Token.FIELD_NAME) {
+                currentFieldName = parser.currentName();
+            } else if (token.isValue()) {
+                if (FIELD_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    fieldName = parser.text();
+                } else if (FROM_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    from = parser.text();
+                } else if (TO_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    to = parser.text();
+                } else if (LIMIT_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    limit = parser.intValue();
+                } else if (AFTER_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    after = parser.text();
+                } else if (FORMAT_FIELD.match(currentFieldName, parser.getDeprecationHandler())) {
+                    format = parser.text();
+                } else {
+                    throw new ParsingException(parser.getTokenLocation(),
+                            "[" + NAME + "] does not support [" + currentFieldName + "]");
+                }
+            } else {
+                throw new ParsingException(parser.getTokenLocation(),
+                        "[" + NAME + "] unknown token [" + token + "] after [" + currentFieldName + "]");
+            }
+        }
+
+        try {
+            RecurringOccurrencesBuilder builder = new RecurringOccurrencesBuilder(fieldName, from, to);
+            if (limit != null) {
+                builder.limit(limit);
+            }
+            if (format != null) {
+                builder.format(OccurrenceFormat.fromString(format));
+            }
+            return builder.after(after);
+        } catch (IllegalArgumentException e) {
+            throw new ParsingException(parser.getTokenLocation(), e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        RecurringOccurrencesBuilder that = (RecurringOccurrencesBuilder) o;
+        return Objects.equals(fieldName, that.fieldName)
+                && Objects.equals(from, that.from)
+                && Objects.equals(to, that.to)
+                && limit == that.limit
+                && Objects.equals(after, that.after)
+                && format == that.format;
+    }
+
+    @Override
+    public int hashCode() {
+        return Objects.hash(fieldName, from, to, limit, after, format);
+    }
+
+    @Override
+    public String getWriteableName() {
+        return NAME;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.devmaster.elasticsearch.search.fetch;
+
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.ReaderUtil;
+import org.devmaster.elasticsearch.index.mapper.EpochDays;
+import org.devmaster.elasticsearch.index.mapper.ExpansionBudget;
+import org.devmaster.elasticsearch.index.mapper.OccurrenceFormat;
+import org.devmaster.elasticsearch.index.mapper.OccurrencePage;
+import org.devmaster.elasticsearch.index.mapper.Recurring;
+import org.devmaster.elasticsearch.index.mapper.RecurringFieldMapper;
+import org.devmaster.elasticsearch.index.mapper.RecurringFieldMapper.RecurringFieldType;
+import org.devmaster.elasticsearch.index.mapper.RecurringValues;
+import org.devmaster.elasticsearch.search.OccurrenceBreaker;
+import org.elasticsearch.common.document.DocumentField;
+import org.elasticsearch.index.mapper.MappedFieldType;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.fetch.FetchSubPhase;
+import org.elasticsearch.search.internal.SearchContext;
+
+import java.io.IOException;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Adds the occurrences requested by a {@link RecurringOccurrencesBuilder} to each returned hit, under the
+ * {@code recurring_occurrences} field. Rules are only expanded for the hits of the page, never for the other matches,
+ * and never further than one occurrence past the limit.
+ * <p>
+ * The occurrences added to the hits are accounted to the request circuit breaker by an {@link OccurrenceBreaker}, and
+ * only released when the search context is freed, once the hits holding them are no longer needed. The
+ * {@code epoch_day} and {@code ranges} formats keep them several times smaller than dates.
+ */
+public class RecurringOccurrencesFetchSubPhase implements FetchSubPhase {
+
+    @Override
+    public void hitsExecute(SearchContext context, SearchHit[] hits) throws IOException {
+        RecurringOccurrencesBuilder request = (RecurringOccurrencesBuilder) context.getSearchExt(RecurringOccurrencesBuilder.NAME);
+        if (request == null || hits.length == 0) {
+            return;
+        }
+        MappedFieldType fieldType = context.smartNameFieldType(request.fieldName());
+        if (fieldType == null) {
+            return;
+        }
+        if (fieldType instanceof RecurringFieldType == false) {
+            throw new IllegalArgumentException("[" + RecurringOccurrencesBuilder.NAME + "] requires a field of type ["
+                    + RecurringFieldMapper.CONTENT_TYPE + "], but [" + request.fieldName() + "] is of type ["
+                    + fieldType.typeName() + "]");
+        }
+        RecurringFieldType recurringFieldType = (RecurringFieldType) fieldType;
+        int from = EpochDays.parse(request.from());
+        int to = EpochDays.parse(request.to());
+        int after = request.after() != null ? EpochDays.parse(request.after()) : Integer.MIN_VALUE;
+
+        // doc values are read forward, hits are visited in doc id order
+        hits = hits.clone();
+        Arrays.sort(hits, Comparator.comparingInt(SearchHit::docId));
+
+        List<LeafReaderContext> leaves = context.searcher().getIndexReader().leaves();
+        ExpansionBudget budget = recurringFieldType.expansionLimits().newBudget();
+        OccurrenceBreaker breaker = OccurrenceBreaker.of(context);
+        LeafReaderContext leaf = null;
+        RecurringValues values = null;
+        for (SearchHit hit : hits) {
+            int readerIndex = ReaderUtil.subIndex(hit.docId(), leaves);
+            if (leaf == null || leaf.ord != readerIndex) {
+                leaf = leaves.get(readerIndex);
+                values = RecurringValues.forLeaf(leaf, recurringFieldType.name(), recurringFieldType.ruleCache(), budget);
+            }
+            Recurring recurring = values.get(hit.docId() - leaf.docBase);
+            if (recurring == null) {
+                continue;
+            }
+
+            OccurrencePage page;
+            try {
+                page = recurring.occurrencePage(from, to, after, request.limit());
+            } catch (ParseException e) {
+                throw new IllegalArgumentException("Unable to evaluate rule of field [" + request.fieldName() + "]: "
+                        + e.getMessage(), e);
+            }
+            breaker.add(page.size() * request.format().bytesPerOccurrence());
+
+            if (hit.fieldsOrNull() == null) {
+                hit.fields(new HashMap<>(2));
+            }
+            hit.getFields().put(RecurringOccurrencesBuilder.NAME,
+                    new DocumentField(RecurringOccurrencesBuilder.NAME, values(page, request.format())));
+            if (page.isTruncated()) {
+                hit.getFields().put(RecurringOccurrencesBuilder.AFTER_NAME,
+                        new DocumentField(RecurringOccurrencesBuilder.AFTER_NAME, Collections.singletonList(page.after())));
+            }
+        }
+    }
+
+    /**
+     * Returns the occurrences of {@code page} in {@code format} as the values of a hit field, days are boxed one by one
+     * rather than returned as a single array value.
+     */
+    @SuppressWarnings("unchecked")
+    private static List<Object> values(OccurrencePage page, OccurrenceFormat format) {
+        Object formatted = format.format(page);
+        if (formatted instanceof int[]) {
+            int[] days = (int[]) formatted;
+            List<Object> values = new ArrayList<>(days.length);
+            for (int day : days) {
+                values.add(day);
+            }
+            return values;
+        }
+        return (List<Object>) formatted;
+    }
+}
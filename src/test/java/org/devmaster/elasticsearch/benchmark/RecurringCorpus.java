@@ -0,0 +1,255 @@
+package org.devmaster.elasticsearch.benchmark;
+
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.joda.time.LocalDate;
+
+import java.io.IOException;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Generates a synthetic corpus of recurring events. The corpus is a function of its settings and seed, two runs with the
+ * same settings index the same documents, so that their measures can be compared.
+ * <p>
+ * The corpus holds {@link #distinctRules(int)} distinct rules, drawn from the {@link Shape}s by their weight in
+ * {@link #mix(Shape, int)}, plain dates all count as one. Documents pick their rule with a skew towards the first ones, as a few rules such as
+ * "every week on monday" are shared by many events while most rules are used by a few. Start dates are spread over
+ * {@link #startYears(int)} years before {@link #today(LocalDate)}, and a share of the events also have an end date.
+ */
+public class RecurringCorpus {
+
+	/**
+	 * The kinds of rules of the corpus. The variant of a rule changes its parameters, so that a shape yields several
+	 * distinct rules.
+	 */
+	public enum Shape {
+		PLAIN_DATE {
+			@Override
+			String rule(int variant) {
+				return null;
+			}
+		},
+		DAILY {
+			@Override
+			String rule(int variant) {
+				return "RRULE:FREQ=DAILY;INTERVAL=" + (1 + variant % 90);
+			}
+		},
+		WEEKLY_BYDAY {
+			@Override
+			String rule(int variant) {
+				return "RRULE:FREQ=WEEKLY;BYDAY=" + WEEK_DAYS[variant % WEEK_DAYS.length] + ";INTERVAL="
+					+ (1 + variant / WEEK_DAYS.length % 52);
+			}
+		},
+		MONTHLY_BYMONTHDAY {
+			@Override
+			String rule(int variant) {
+				return "RRULE:FREQ=MONTHLY;BYMONTHDAY=" + (1 + variant % 28) + ";INTERVAL=" + (1 + variant / 28 % 6);
+			}
+		},
+		MONTHLY_BYSETPOS {
+			@Override
+			String rule(int variant) {
+				return "RRULE:FREQ=MONTHLY;BYDAY=" + WEEK_DAYS[variant % WEEK_DAYS.length] + ";BYSETPOS="
+					+ SET_POSITIONS[variant / WEEK_DAYS.length % SET_POSITIONS.length] + ";INTERVAL="
+					+ (1 + variant / (WEEK_DAYS.length * SET_POSITIONS.length) % 6);
+			}
+		},
+		YEARLY {
+			@Override
+			String rule(int variant) {
+				return "RRULE:FREQ=YEARLY;BYMONTH=" + (1 + variant % 12) + ";BYMONTHDAY=" + (1 + variant / 12 % 28);
+			}
+		},
+		WEEKLY_COUNT {
+			@Override
+			String rule(int variant) {
+				return "RRULE:FREQ=WEEKLY;COUNT=" + (10 + variant % 200);
+			}
+		},
+		DAILY_UNTIL {
+			@Override
+			String rule(int variant) {
+				return "RRULE:FREQ=DAILY;UNTIL=" + String.format(Locale.ROOT, "%d%02d28", 2010 + variant % 30, 1 + variant / 30 % 12);
+			}
+		};
+
+		private static final String[] WEEK_DAYS = {"MO", "TU", "WE", "TH", "FR", "SA", "SU", "MO,WE,FR", "TU,TH",
+			"MO,TU,WE,TH,FR", "SA,SU"};
+		private static final String[] SET_POSITIONS = {"1", "2", "3", "4", "-1"};
+
+		abstract String rule(int variant);
+	}
+
+	/**
+	 * Receives the documents of the corpus.
+	 */
+	@FunctionalInterface
+	public interface DocumentConsumer {
+		void accept(String id, XContentBuilder source) throws IOException;
+	}
+
+	private final Map<Shape, Integer> mix = new EnumMap<>(Shape.class);
+	private long seed = 42;
+	private int documents = 10000;
+	private int distinctRules = 1000;
+	private int startYears = 20;
+	private double endDateRatio = 0.2;
+	private LocalDate today = new LocalDate(2019, 6, 3);
+
+	public RecurringCorpus() {
+		mix.put(Shape.PLAIN_DATE, 10);
+		mix.put(Shape.DAILY, 10);
+		mix.put(Shape.WEEKLY_BYDAY, 30);
+		mix.put(Shape.MONTHLY_BYMONTHDAY, 15);
+		mix.put(Shape.MONTHLY_BYSETPOS, 10);
+		mix.put(Shape.YEARLY, 10);
+		mix.put(Shape.WEEKLY_COUNT, 10);
+		mix.put(Shape.DAILY_UNTIL, 5);
+	}
+
+	public RecurringCorpus seed(long seed) {
+		this.seed = seed;
+		return this;
+	}
+
+	public RecurringCorpus documents(int documents) {
+		this.documents = documents;
+		return this;
+	}
+
+	/**
+	 * Number of distinct rules, the corpus may hold fewer when the shapes have fewer variants.
+	 */
+	public RecurringCorpus distinctRules(int distinctRules) {
+		if (distinctRules < 1) {
+			throw new IllegalArgumentException("[distinct_rules] must be at least 1, got [" + distinctRules + "]");
+		}
+		this.distinctRules = distinctRules;
+		return this;
+	}
+
+	/**
+	 * Weight of {@code shape} among the rules, {@code 0} leaves it out.
+	 */
+	public RecurringCorpus mix(Shape shape, int weight) {
+		if (weight < 0) {
+			throw new IllegalArgumentException("weight of [" + shape + "] must not be negative, got [" + weight + "]");
+		}
+		mix.put(shape, weight);
+		return this;
+	}
+
+	/**
+	 * Start dates are spread uniformly over this number of years before today.
+	 */
+	public RecurringCorpus startYears(int startYears) {
+		this.startYears = startYears;
+		return this;
+	}
+
+	/**
+	 * Share of the events with an end date, between one day and two years after their start date.
+	 */
+	public RecurringCorpus endDateRatio(double endDateRatio) {
+		this.endDateRatio = endDateRatio;
+		return this;
+	}
+
+	public RecurringCorpus today(LocalDate today) {
+		this.today = today;
+		return this;
+	}
+
+	public int documents() {
+		return documents;
+	}
+
+	public LocalDate today() {
+		return today;
+	}
+
+	/**
+	 * The distinct rules of the corpus, {@code null} for a plain date.
+	 */
+	String[] rules() {
+		int total = mix.values().stream().mapToInt(Integer::intValue).sum();
+		if (total == 0) {
+			throw new IllegalArgumentException("the mix of rule shapes is empty");
+		}
+		Random random = new Random(seed);
+		Map<Shape, Integer> variants = new EnumMap<>(Shape.class);
+		String[] rules = new String[distinctRules];
+		for (int i = 0; i < distinctRules; i++) {
+			Shape shape = pick(random.nextInt(total));
+			int variant = variants.merge(shape, 1, Integer::sum) - 1;
+			rules[i] = shape.rule(variant);
+		}
+		return rules;
+	}
+
+	private Shape pick(int weight) {
+		for (Map.Entry<Shape, Integer> entry : mix.entrySet()) {
+			weight -= entry.getValue();
+			if (weight < 0) {
+				return entry.getKey();
+			}
+		}
+		throw new AssertionError();
+	}
+
+	/**
+	 * Passes the documents of the corpus to {@code consumer}, in the order of their ids.
+	 */
+	public void forEach(String field, DocumentConsumer consumer) throws IOException {
+		String[] rules = rules();
+		Random random = new Random(seed + 1);
+		int startDays = Math.max(startYears * 365, 1);
+		for (int i = 0; i < documents; i++) {
+			// the square favours the first rules
+			double skew = random.nextDouble();
+			String rule = rules[(int) (rules.length * skew * skew)];
+			LocalDate start = today.minusDays(random.nextInt(startDays));
+
+			XContentBuilder source = XContentFactory.jsonBuilder().startObject().startObject(field);
+			source.field("start_date", start.toString());
+			if (random.nextDouble() < endDateRatio) {
+				source.field("end_date", start.plusDays(1 + random.nextInt(730)).toString());
+			}
+			if (rule != null) {
+				source.field("rrule", rule);
+			}
+			source.endObject().endObject();
+			consumer.accept(String.format(Locale.ROOT, "%08d", i), source);
+		}
+	}
+
+	/**
+	 * Writes the settings of the corpus, for the report of a run.
+	 */
+	public XContentBuilder toXContent(XContentBuilder builder) throws IOException {
+		builder.startObject()
+			.field("documents", documents)
+			.field("distinct_rules", distinctRules)
+			.field("start_years", startYears)
+			.field("end_date_ratio", endDateRatio)
+			.field("today", today.toString())
+			.field("seed", seed);
+		builder.startObject("mix");
+		for (Map.Entry<Shape, Integer> entry : mix.entrySet()) {
+			builder.field(entry.getKey().name().toLowerCase(Locale.ROOT), entry.getValue());
+		}
+		builder.endObject();
+		return builder.endObject();
+	}
+
+	@Override
+	public String toString() {
+		return "corpus of [" + documents + "] documents, [" + distinctRules + "] distinct rules, mix " + mix
+			+ ", start dates over [" + startYears + "] years, end date ratio [" + endDateRatio + "], seed [" + seed + "]";
+	}
+}
@@ -0,0 +1,231 @@
+package org.devmaster.elasticsearch.benchmark;
+
+import org.elasticsearch.client.Request;
+import org.elasticsearch.client.Response;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.common.xcontent.support.XContentMapValues;
+import org.elasticsearch.test.rest.ESRestTestCase;
+import org.joda.time.LocalDate;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Load suite run against the {@code integTestCluster}: indexes a {@link RecurringCorpus}, then replays a fixed mix of
+ * searches using every native script of the plugin and writes a JSON report with the indexing rate, the latencies of
+ * each search and the garbage collections of the node. Reports of runs with the same settings can be compared.
+ * <p>
+ * The suite is skipped unless {@code tests.recurring.load} is {@code true}:
+ * {@code ./gradlew integTest -Dtests.recurring.load=true}. {@code tests.recurring.load.documents},
+ * {@code tests.recurring.load.rounds} and {@code tests.recurring.load.report} set the size of the corpus, the number of
+ * times the mix is replayed and the report file.
+ */
+public class RecurringLoadIT extends ESRestTestCase {
+
+	private static final String INDEX = "recurring_load";
+	private static final String FIELD = "recurrent_date";
+	private static final int BULK_SIZE = 1000;
+	private static final int WARMUP_ROUNDS = 5;
+
+	public void testLoad() throws IOException {
+		assumeTrue("the load suite runs with -Dtests.recurring.load=true", Boolean.getBoolean("tests.recurring.load"));
+		RecurringCorpus corpus = new RecurringCorpus()
+			.documents(Integer.getInteger("tests.recurring.load.documents", 50000));
+		int rounds = Integer.getInteger("tests.recurring.load.rounds", 50);
+		Path reportFile = Paths.get(System.getProperty("tests.recurring.load.report",
+			System.getProperty("java.io.tmpdir") + "/recurring-load-report.json"));
+
+		createIndex();
+		long indexingNanos = index(corpus);
+
+		Map<String, String> searches = searches(corpus.today());
+		Map<String, Object> before = jvmStats();
+		for (int round = 0; round < WARMUP_ROUNDS; round++) {
+			for (String body : searches.values()) {
+				search(body);
+			}
+		}
+		Map<String, long[]> latencies = new LinkedHashMap<>();
+		for (String name : searches.keySet()) {
+			latencies.put(name, new long[rounds]);
+		}
+		// searches are interleaved, so that a pause of the node spreads over all of them
+		for (int round = 0; round < rounds; round++) {
+			for (Map.Entry<String, String> search : searches.entrySet()) {
+				long start = System.nanoTime();
+				search(search.getValue());
+				latencies.get(search.getKey())[round] = System.nanoTime() - start;
+			}
+		}
+		Map<String, Object> after = jvmStats();
+
+		XContentBuilder report = XContentFactory.jsonBuilder().prettyPrint().startObject();
+		report.field("corpus");
+		corpus.toXContent(report);
+		report.startObject("indexing")
+			.field("documents", corpus.documents())
+			.field("took_in_millis", TimeUnit.NANOSECONDS.toMillis(indexingNanos))
+			.field("documents_per_second", corpus.documents() * 1e9 / indexingNanos)
+			.endObject();
+		report.startObject("searches").field("rounds", rounds);
+		for (Map.Entry<String, long[]> entry : latencies.entrySet()) {
+			long[] nanos = entry.getValue();
+			Arrays.sort(nanos);
+			report.startObject(entry.getKey())
+				.field("p50_in_millis", percentile(nanos, 50) / 1e6)
+				.field("p99_in_millis", percentile(nanos, 99) / 1e6)
+				.field("max_in_millis", nanos[nanos.length - 1] / 1e6)
+				.endObject();
+		}
+		report.endObject();
+		report.startObject("jvm");
+		for (String collector : Arrays.asList("young", "old")) {
+			report.startObject(collector)
+				.field("collections", delta(before, after, "gc.collectors." + collector + ".collection_count"))
+				.field("collection_time_in_millis",
+					delta(before, after, "gc.collectors." + collector + ".collection_time_in_millis"))
+				.endObject();
+		}
+		// the node does not count allocations, young collections times the size of the young generation bound them
+		long youngCollections = delta(before, after, "gc.collectors.young.collection_count");
+		long youngPeak = value(after, "mem.pools.young.peak_used_in_bytes");
+		report.field("churn_estimate_in_bytes", youngCollections * youngPeak);
+		report.field("heap_used_before_in_bytes", value(before, "mem.heap_used_in_bytes"));
+		report.field("heap_used_after_in_bytes", value(after, "mem.heap_used_in_bytes"));
+		report.endObject();
+		report.endObject();
+
+		String json = Strings.toString(report);
+		logger.info("recurring load report [{}]:\n{}", reportFile, json);
+		Files.write(reportFile, json.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void createIndex() throws IOException {
+		XContentBuilder body = XContentFactory.jsonBuilder().startObject()
+			.startObject("settings")
+				.field("number_of_shards", 1)
+				.field("number_of_replicas", 0)
+				.field("refresh_interval", "-1")
+			.endObject()
+			.startObject("mappings").startObject("event").startObject("properties")
+				.startObject(FIELD).field("type", "recurring").endObject()
+			.endObject().endObject().endObject()
+			.endObject();
+		Request request = new Request("PUT", "/" + INDEX);
+		request.setJsonEntity(Strings.toString(body));
+		client().performRequest(request);
+	}
+
+	/**
+	 * Indexes the corpus with bulk requests and returns the time taken, up to the documents being searchable.
+	 */
+	private long index(RecurringCorpus corpus) throws IOException {
+		long start = System.nanoTime();
+		StringBuilder bulk = new StringBuilder();
+		int[] pending = new int[1];
+		corpus.forEach(FIELD, (id, source) -> {
+			bulk.append("{\"index\":{\"_id\":\"").append(id).append("\"}}\n").append(Strings.toString(source)).append('\n');
+			if (++pending[0] == BULK_SIZE) {
+				bulk(bulk);
+				pending[0] = 0;
+			}
+		});
+		if (pending[0] > 0) {
+			bulk(bulk);
+		}
+		client().performRequest(new Request("POST", "/" + INDEX + "/_refresh"));
+		return System.nanoTime() - start;
+	}
+
+	private void bulk(StringBuilder bulk) throws IOException {
+		Request request = new Request("POST", "/" + INDEX + "/event/_bulk");
+		request.setJsonEntity(bulk.toString());
+		Map<String, Object> response = entityAsMap(client().performRequest(request));
+		assertEquals("bulk failures: " + response, false, response.get("errors"));
+		bulk.setLength(0);
+	}
+
+	/**
+	 * The replayed searches, one or more for every native script, filtering with the filter scripts and returning the
+	 * search scripts as script fields.
+	 */
+	private static Map<String, String> searches(LocalDate today) {
+		String day = today.toString();
+		String month = today.plusMonths(1).toString();
+		String year = today.plusYears(1).toString();
+		Map<String, String> searches = new LinkedHashMap<>();
+		searches.put("occurBetween_filter_month", filter("occurBetween",
+			"\"start\": \"" + day + "\", \"end\": \"" + month + "\""));
+		searches.put("occurBetween_filter_windows", filter("occurBetween",
+			"\"windows\": [{\"start\": \"" + day + "\", \"end\": \"" + day + "\"}, {\"start\": \"" + month
+				+ "\", \"end\": \"" + month + "\"}, {\"start\": \"" + year + "\", \"end\": \"" + year + "\"}]"));
+		searches.put("hasOccurrencesAt_filter", filter("hasOccurrencesAt", "\"date\": \"" + day + "\""));
+		searches.put("hasOccurrencesAt_filter_dates", filter("hasOccurrencesAt",
+			"\"dates\": [\"" + day + "\", \"" + month + "\", \"" + year + "\"]"));
+		searches.put("hasAnyOccurrenceBetween_filter_year", filter("hasAnyOccurrenceBetween",
+			"\"start\": \"" + day + "\", \"end\": \"" + year + "\""));
+		searches.put("notHasExpired_filter", filter("notHasExpired", "\"from\": \"" + day + "\""));
+		searches.put("nextOccurrence_field", scriptField("nextOccurrence", "\"from\": \"" + day + "\""));
+		searches.put("occurrencesBetween_field_month", scriptField("occurrencesBetween",
+			"\"start\": \"" + day + "\", \"end\": \"" + month + "\""));
+		searches.put("occurrencesBetween_field_year_page", scriptField("occurrencesBetween",
+			"\"start\": \"" + day + "\", \"end\": \"" + year + "\", \"limit\": 10, \"format\": \"epoch_day\""));
+		return searches;
+	}
+
+	private static String filter(String script, String params) {
+		return "{\"size\": 10, \"query\": {\"bool\": {\"filter\": {\"script\": {\"script\": " + script(script, params)
+			+ "}}}}}";
+	}
+
+	private static String scriptField(String script, String params) {
+		return "{\"size\": 100, \"script_fields\": {\"" + script + "\": {\"script\": " + script(script, params) + "}}}";
+	}
+
+	private static String script(String script, String params) {
+		return "{\"lang\": \"native\", \"source\": \"" + script + "\", \"params\": {\"field\": \"" + FIELD + "\", "
+			+ params + "}}";
+	}
+
+	private void search(String body) throws IOException {
+		Request request = new Request("POST", "/" + INDEX + "/_search");
+		request.addParameter("request_cache", "false");
+		request.setJsonEntity(body);
+		Map<String, Object> response = entityAsMap(client().performRequest(request));
+		assertEquals("shard failures: " + response, 0, XContentMapValues.extractValue("_shards.failed", response));
+	}
+
+	/**
+	 * The jvm stats of the node, the cluster has a single node.
+	 */
+	@SuppressWarnings("unchecked")
+	private Map<String, Object> jvmStats() throws IOException {
+		Response response = client().performRequest(new Request("GET", "/_nodes/_local/stats/jvm"));
+		Map<String, Object> nodes = (Map<String, Object>) entityAsMap(response).get("nodes");
+		Map<String, Object> node = (Map<String, Object>) nodes.values().iterator().next();
+		return (Map<String, Object>) node.get("jvm");
+	}
+
+	private static long value(Map<String, Object> stats, String path) {
+		Object value = XContentMapValues.extractValue(path, stats);
+		return value == null ? 0 : ((Number) value).longValue();
+	}
+
+	private static long delta(Map<String, Object> before, Map<String, Object> after, String path) {
+		return value(after, path) - value(before, path);
+	}
+
+	private static long percentile(long[] sorted, int percentile) {
+		int rank = (int) Math.ceil(percentile / 100.0 * sorted.length);
+		return sorted[Math.max(rank - 1, 0)];
+	}
+}
@@ -0,0 +1,150 @@
+package org.devmaster.elasticsearch.index.mapper;
+
+import org.elasticsearch.tasks.TaskCancelledException;
+import org.elasticsearch.test.ESTestCase;
+
+import java.text.ParseException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Checks that the occurrences walked by rules are charged to the document and to the request, and stop once the request is cancelled.
+ */
+public class ExpansionBudgetTests extends ESTestCase {
+
+	public void testDocumentLimit() throws Exception {
+		ExpansionBudget budget = new ExpansionLimits(10, 1000).newBudget();
+		Recurring recurring = recurring("1900-01-01", "RRULE:FREQ=DAILY", budget);
+
+		assertEquals(5, recurring.occurrencesBetween(EpochDays.of(2019, 1, 1), EpochDays.of(2019, 1, 5)).size());
+		// skipping to the window is not charged
+		assertEquals(EpochDays.of(2019, 1, 1), recurring.occurrenceOnOrAfter(EpochDays.of(2019, 1, 1)));
+
+		IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+			() -> recurring.occurrencesBetween(EpochDays.of(2019, 1, 1), EpochDays.of(2019, 12, 31)));
+		assertTrue(e.getMessage(), e.getMessage().contains(ExpansionLimits.MAX_OCCURRENCES_PER_DOCUMENT_SETTING.getKey()));
+	}
+
+	public void testSkippingSkipsPeriods() throws Exception {
+		ExpansionBudget budget = new ExpansionLimits(100, 1000000).newBudget();
+		Recurring recurring = recurring("1900-01-01", "RRULE:FREQ=MONTHLY;BYDAY=2SU", budget);
+
+		assertEquals(EpochDays.of(2019, 1, 13), recurring.occurrenceOnOrAfter(EpochDays.of(2019, 1, 1)));
+		// the start date and the first occurrence are skipped, then the months up to 2019 are left out
+		assertEquals(3, budget.used());
+	}
+
+	public void testSkippingIsChargedForCountedRules() throws Exception {
+		ExpansionBudget budget = new ExpansionLimits(100, 1000000).newBudget();
+		Recurring recurring = recurring("1900-01-01", "RRULE:FREQ=MONTHLY;BYDAY=2SU;COUNT=2000", budget);
+
+		assertEquals(EpochDays.of(1901, 1, 13), recurring.occurrenceOnOrAfter(EpochDays.of(1901, 1, 1)));
+		// the start date and the twelve occurrences of 1900 are skipped, then the one returned
+		assertEquals(14, budget.used());
+		IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+			() -> recurring.occurrenceOnOrAfter(EpochDays.of(2019, 1, 1)));
+		assertTrue(e.getMessage(), e.getMessage().contains(ExpansionLimits.MAX_OCCURRENCES_PER_DOCUMENT_SETTING.getKey()));
+
+		ExpansionBudget.setCheckCancelled(() -> {
+			throw new TaskCancelledException("cancelled");
+		});
+		try {
+			recurring.setBudget(new ExpansionLimits(100000, 1000000).newBudget());
+			expectThrows(TaskCancelledException.class, () -> recurring.occurrenceOnOrAfter(EpochDays.of(2019, 1, 1)));
+		} finally {
+			ExpansionBudget.setCheckCancelled(null);
+		}
+	}
+
+	public void testRequestLimit() throws Exception {
+		ExpansionBudget budget = new ExpansionLimits(100, 30).newBudget();
+		Recurring recurring = recurring("2019-01-10", "RRULE:FREQ=MONTHLY;BYMONTHDAY=10;COUNT=50", budget);
+
+		assertEquals(12, recurring.occurrencesBetween(EpochDays.of(2019, 1, 1), EpochDays.of(2019, 12, 31)).size());
+		assertEquals(12, recurring.occurrencesBetween(EpochDays.of(2019, 1, 1), EpochDays.of(2019, 12, 31)).size());
+		// each walk also reads the first occurrence past the window
+		assertEquals(26, budget.used());
+
+		IllegalArgumentException e = expectThrows(IllegalArgumentException.class,
+			() -> recurring.occurrencesBetween(EpochDays.of(2019, 1, 1), EpochDays.of(2019, 12, 31)));
+		assertTrue(e.getMessage(), e.getMessage().contains(ExpansionLimits.MAX_OCCURRENCES_PER_REQUEST_SETTING.getKey()));
+	}
+
+	public void testCancellation() throws Exception {
+		ExpansionBudget budget = new ExpansionLimits(100000, 1000000).newBudget();
+		Recurring recurring = recurring("1900-01-01", "RRULE:FREQ=DAILY", budget);
+		AtomicBoolean cancelled = new AtomicBoolean();
+		ExpansionBudget.setCheckCancelled(() -> {
+			if (cancelled.get()) {
+				throw new TaskCancelledException("cancelled");
+			}
+		});
+		try {
+			assertEquals(36890, recurring.occurrencesBetween(EpochDays.of(1900, 1, 1), EpochDays.of(2000, 12, 31)).size());
+			cancelled.set(true);
+			expectThrows(TaskCancelledException.class,
+				() -> recurring.occurrencesBetween(EpochDays.of(1900, 1, 1), EpochDays.of(2000, 12, 31)));
+			// short walks are checked every few documents
+			expectThrows(TaskCancelledException.class, () -> {
+				for (int i = 0; i < ExpansionBudget.CHECK_EVERY_DOCUMENTS; i++) {
+					recurring.occurrencesBetween(EpochDays.of(2019, 1, 1), EpochDays.of(2019, 1, 1));
+				}
+			});
+		} finally {
+			ExpansionBudget.setCheckCancelled(null);
+		}
+		assertEquals(1, recurring.occurrencesBetween(EpochDays.of(2019, 1, 1), EpochDays.of(2019, 1, 1)).size());
+	}
+
+	public void testStats() throws Exception {
+		RecurringStats stats = new RecurringStats();
+		ExpansionBudget budget = new ExpansionLimits(100, 1000, stats, null).newBudget();
+		Recurring recurring = recurring("2019-01-10", "RRULE:FREQ=MONTHLY;BYMONTHDAY=10;COUNT=50", budget);
+
+		assertEquals(12, recurring.occurrencesBetween(EpochDays.of(2019, 1, 1), EpochDays.of(2019, 12, 31)).size());
+		assertTrue(recurring.occursBetween(EpochDays.of(2019, 3, 1), EpochDays.of(2019, 3, 31)));
+		// evaluations built on others are counted once
+		assertEquals(1, stats.evaluations(RecurringStats.Evaluation.OCCURRENCES_BETWEEN));
+		assertEquals(1, stats.evaluations(RecurringStats.Evaluation.OCCURS_BETWEEN));
+		assertEquals(0, stats.evaluations(RecurringStats.Evaluation.OCCURRENCE_ON_OR_AFTER));
+		assertEquals(budget.used(), stats.occurrencesWalked());
+		assertEquals(2, stats.latency().getTotalCount());
+		// the cumulative histogram is kept across reads
+		assertEquals(2, stats.latency().getTotalCount());
+	}
+
+	public void testStatsOfSeveralThreads() throws Exception {
+		RecurringStats stats = new RecurringStats();
+		ExpansionLimits limits = new ExpansionLimits(100, 1000, stats, null);
+		Thread[] threads = new Thread[RecurringStats.STRIPES + 1];
+		for (int i = 0; i < threads.length; i++) {
+			threads[i] = new Thread(() -> {
+				Recurring recurring = recurring("2019-01-10", "RRULE:FREQ=MONTHLY;BYMONTHDAY=10", limits.newBudget());
+				for (int n = 0; n < 10; n++) {
+					try {
+						recurring.occursOn(EpochDays.of(2019, 2, 10));
+					} catch (ParseException e) {
+						throw new AssertionError(e);
+					}
+				}
+			});
+			threads[i].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		// the latencies of every stripe are merged
+		assertEquals(10 * threads.length, stats.evaluations(RecurringStats.Evaluation.OCCURS_ON));
+		assertEquals(10 * threads.length, stats.latency().getTotalCount());
+	}
+
+	public void testUnlimited() throws Exception {
+		Recurring recurring = recurring("1900-01-01", "RRULE:FREQ=DAILY", ExpansionLimits.UNLIMITED.newBudget());
+		assertEquals(36890, recurring.occurrencesBetween(EpochDays.of(1900, 1, 1), EpochDays.of(2000, 12, 31)).size());
+	}
+
+	private static Recurring recurring(String startDate, String rrule, ExpansionBudget budget) {
+		Recurring recurring = new Recurring(startDate, null, rrule);
+		recurring.setBudget(budget);
+		return recurring;
+	}
+}
@@ -0,0 +1,219 @@
+package org.devmaster.elasticsearch.index.mapper;
+
+import com.google.ical.compat.jodatime.LocalDateIterator;
+import com.google.ical.iter.RecurrenceIterator;
+import com.google.ical.iter.RecurrenceIteratorFactory;
+import com.google.ical.values.DateValue;
+import com.google.ical.values.DateValueImpl;
+import com.google.ical.values.RRule;
+import org.elasticsearch.test.ESTestCase;
+import org.joda.time.LocalDate;
+
+import java.util.TimeZone;
+
+/**
+ * Checks the expansion of rules against google-rfc-2445, stepping the library one occurrence at a time.
+ */
+public class PeriodRuleTests extends ESTestCase {
+
+	private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+	private static final String[] FREQUENCIES = { "DAILY", "WEEKLY", "MONTHLY", "YEARLY" };
+	private static final String[] WEEKDAYS = { "MO", "TU", "WE", "TH", "FR", "SA", "SU" };
+	private static final int OCCURRENCES = 200;
+
+	public void testUnsupportedShapes() throws Exception {
+		assertNotNull(PeriodRule.of(new RRule("RRULE:FREQ=MONTHLY;BYDAY=-1FR;BYSETPOS=1;COUNT=3")));
+		assertNull(PeriodRule.of(new RRule("RRULE:FREQ=HOURLY;INTERVAL=30")));
+		assertNull(PeriodRule.of(new RRule("RRULE:FREQ=DAILY;BYHOUR=9,17")));
+		assertNotNull(CompiledRule.compile("RRULE:FREQ=WEEKLY\nRDATE:20200101\nEXDATE:20200108").periodRules());
+		assertNull(CompiledRule.compile("RRULE:FREQ=WEEKLY\nRDATE:20200101T100000Z").periodRules());
+	}
+
+	public void testWalkMatchesLibrary() throws Exception {
+		for (int i = 0; i < 500; i++) {
+			String rule = randomRule();
+			LocalDate startDate = randomStart();
+			PeriodRule.Walk walk = PeriodRule.of(new RRule(rule)).walk();
+			walk.reset(EpochDays.of(startDate));
+
+			RecurrenceIterator it = libraryIterator(rule, startDate);
+			for (int n = 0; n < OCCURRENCES; n++) {
+				int expected = it.hasNext() ? epochDay(it.next()) : PeriodRule.NONE;
+				assertEquals(rule + " from " + startDate + " at " + n, expected, walk.next());
+			}
+		}
+	}
+
+	public void testAdvanceToMatchesStepping() throws Exception {
+		for (int i = 0; i < 500; i++) {
+			String rule = randomRule();
+			LocalDate startDate = randomStart();
+			int from = EpochDays.of(startDate.plusDays(randomIntBetween(-10, 20000)));
+			PeriodRule.Walk walk = PeriodRule.of(new RRule(rule)).walk();
+			walk.reset(EpochDays.of(startDate));
+
+			RecurrenceIterator it = libraryIterator(rule, startDate);
+			if (randomBoolean() && it.hasNext()) {
+				assertEquals(rule + " from " + startDate, epochDay(it.next()), walk.next());
+			}
+			int expected = PeriodRule.NONE;
+			while (it.hasNext()) {
+				int day = epochDay(it.next());
+				if (day >= from) {
+					expected = day;
+					break;
+				}
+			}
+			String message = rule + " from " + startDate + " after " + EpochDays.toLocalDate(from);
+			if (expected == PeriodRule.NONE && rule.contains("COUNT") == false) {
+				// the library gives up a century after the last occurrence, which a skip does not count
+				continue;
+			}
+			assertEquals(message, expected, walk.advanceTo(from, ExpansionBudget.UNLIMITED));
+			for (int n = 0; n < 20; n++) {
+				assertEquals(message + " at " + n, it.hasNext() ? epochDay(it.next()) : PeriodRule.NONE, walk.next());
+			}
+		}
+	}
+
+	public void testCursorMatchesLibrary() throws Exception {
+		OccurrenceCursor cursor = new OccurrenceCursor();
+		for (int i = 0; i < 300; i++) {
+			String rule = randomRule() + randomLines();
+			CompiledRule compiled = CompiledRule.compile(rule);
+			LocalDate startDate = randomStart();
+			int from = EpochDays.of(startDate.plusDays(randomIntBetween(-10, 2000)));
+
+			LocalDateIterator it = compiled.iterator(startDate, false);
+			cursor.reset(compiled, EpochDays.of(startDate), false);
+			if (randomBoolean()) {
+				int expected = OccurrenceCursor.NONE;
+				while (it.hasNext()) {
+					int day = EpochDays.of(it.next());
+					if (day >= from) {
+						expected = day;
+						break;
+					}
+				}
+				cursor.advanceTo(from);
+				if (expected == OccurrenceCursor.NONE && rule.contains("COUNT") == false) {
+					continue;
+				}
+				assertEquals(rule + " from " + startDate, expected, cursor.next());
+			}
+			for (int n = 0; n < 50; n++) {
+				int expected = it.hasNext() ? EpochDays.of(it.next()) : OccurrenceCursor.NONE;
+				assertEquals(rule + " from " + startDate + " at " + n, expected, cursor.next());
+			}
+		}
+	}
+
+	public void testSkippingLeavesPeriodsOut() throws Exception {
+		ExpansionBudget budget = new ExpansionLimits(100, 1000).newBudget();
+		PeriodRule.Walk walk = PeriodRule.of(new RRule("RRULE:FREQ=MONTHLY;BYDAY=MO,TU,WE,TH,FR;BYSETPOS=-1")).walk();
+		walk.reset(EpochDays.of(1900, 1, 1));
+		assertEquals(EpochDays.of(2019, 5, 31), walk.advanceTo(EpochDays.of(2019, 5, 1), budget));
+		assertEquals(EpochDays.of(2019, 6, 28), walk.next());
+		// only the occurrence pending since the start is charged
+		assertEquals(1, budget.used());
+	}
+
+	private LocalDate randomStart() {
+		return new LocalDate(randomIntBetween(1990, 2030), randomIntBetween(1, 12), randomIntBetween(1, 28))
+			.plusDays(randomIntBetween(0, 3));
+	}
+
+	private String randomRule() {
+		return randomRule(randomInt(3) == 0);
+	}
+
+	private String randomRule(boolean counted) {
+		String freq = randomFrom(FREQUENCIES);
+		StringBuilder rule = new StringBuilder("RRULE:FREQ=").append(freq);
+		if (randomBoolean()) {
+			rule.append(";INTERVAL=").append(randomIntBetween(1, 5));
+		}
+		if (randomBoolean()) {
+			StringBuilder days = new StringBuilder();
+			for (String day : randomSubsetOf(randomIntBetween(1, 3), WEEKDAYS)) {
+				if (days.length() > 0) {
+					days.append(',');
+				}
+				if (randomBoolean()) {
+					days.append(randomFrom(1, 2, 3, 4, 5, -1, -2, 20, -20));
+				}
+				days.append(day);
+			}
+			rule.append(";BYDAY=").append(days);
+		}
+		if (randomInt(3) == 0) {
+			rule.append(";BYMONTHDAY=").append(randomFrom(1, 5, 13, 28, 30, 31, -1, -3));
+		}
+		if (randomInt(3) == 0) {
+			rule.append(";BYMONTH=").append(randomIntBetween(1, 12));
+			if (randomBoolean()) {
+				rule.append(",").append(randomIntBetween(1, 12));
+			}
+		}
+		if (randomInt(5) == 0) {
+			rule.append(";BYYEARDAY=").append(randomFrom(1, 100, 200, 366, -1, -100));
+		}
+		if (randomInt(5) == 0) {
+			rule.append(";BYWEEKNO=").append(randomFrom(1, 2, 20, 52, 53, -1));
+		}
+		if (randomInt(2) == 0) {
+			rule.append(";BYSETPOS=").append(randomFrom(1, 2, -1, -2));
+			if (randomBoolean()) {
+				rule.append(",").append(randomFrom(1, 3, -1, -3));
+			}
+		}
+		if (randomInt(3) == 0) {
+			rule.append(";WKST=").append(randomFrom(WEEKDAYS));
+		}
+		if (counted) {
+			rule.append(";COUNT=").append(randomIntBetween(1, 300));
+		} else if (randomInt(3) == 0) {
+			LocalDate until = new LocalDate(randomIntBetween(1995, 2060), randomIntBetween(1, 12), randomIntBetween(1, 28));
+			rule.append(";UNTIL=").append(until.toString().replace("-", ""));
+		}
+		return rule.toString();
+	}
+
+	private String randomLines() {
+		StringBuilder lines = new StringBuilder();
+		if (randomBoolean()) {
+			lines.append("\nRDATE:").append(randomDates());
+		}
+		if (randomBoolean()) {
+			lines.append("\nEXDATE:").append(randomDates());
+		}
+		if (randomInt(3) == 0) {
+			// the library never ends a walk whose every candidate is excluded
+			lines.append("\nEX").append(randomRule(true).substring(1));
+		}
+		if (randomInt(3) == 0) {
+			lines.append('\n').append(randomRule());
+		}
+		return lines.toString();
+	}
+
+	private String randomDates() {
+		StringBuilder dates = new StringBuilder();
+		for (int i = randomIntBetween(1, 5); i > 0; i--) {
+			if (dates.length() > 0) {
+				dates.append(',');
+			}
+			dates.append(randomStart().toString().replace("-", ""));
+		}
+		return dates.toString();
+	}
+
+	private static RecurrenceIterator libraryIterator(String rule, LocalDate startDate) throws Exception {
+		DateValue start = new DateValueImpl(startDate.getYear(), startDate.getMonthOfYear(), startDate.getDayOfMonth());
+		return RecurrenceIteratorFactory.createRecurrenceIterator(new RRule(rule), start, UTC);
+	}
+
+	private static int epochDay(DateValue date) {
+		return EpochDays.of(date.year(), date.month(), date.day());
+	}
+}
@@ -0,0 +1,114 @@
+package org.devmaster.elasticsearch.index.mapper;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import org.apache.logging.log4j.core.LogEvent;
+import org.apache.logging.log4j.core.appender.AbstractAppender;
+import org.elasticsearch.common.logging.Loggers;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks which evaluations the slow log records, and that it drops entries past its rate.
+ */
+public class RecurringSlowLogTests extends ESTestCase {
+
+	public void testFingerprint() {
+		String fingerprint = RecurringSlowLog.fingerprint("RRULE:FREQ=WEEKLY;BYDAY=MO,WE");
+		assertEquals(fingerprint, RecurringSlowLog.fingerprint("rrule:byday=mo,we;freq=weekly"));
+		assertNotEquals(fingerprint, RecurringSlowLog.fingerprint("RRULE:FREQ=WEEKLY;BYDAY=MO"));
+		assertEquals(8, fingerprint.length());
+	}
+
+	public void testThresholdAndRate() throws Exception {
+		Logger logger = LogManager.getLogger(RecurringSlowLogTests.class.getName() + "." + getTestName());
+		List<String> messages = new CopyOnWriteArrayList<>();
+		AbstractAppender appender = new AbstractAppender("slowlog", null, null) {
+			@Override
+			public void append(LogEvent event) {
+				messages.add(event.getMessage().getFormattedMessage());
+			}
+		};
+		appender.start();
+		Loggers.addAppender(logger, appender);
+		try {
+			AtomicLong nanoTime = new AtomicLong();
+			Settings settings = Settings.builder()
+				.put(RecurringSlowLog.THRESHOLD_STEPS_SETTING.getKey(), 1000)
+				.put(RecurringSlowLog.MAX_PER_SECOND_SETTING.getKey(), 2)
+				.build();
+			RecurringSlowLog slowLog = new RecurringSlowLog(settings, logger, nanoTime::get);
+			Recurring recurring = new Recurring("1900-01-01", null, "RRULE:FREQ=DAILY");
+			recurring.setBudget(new ExpansionLimits(1000000, 100000000L, null, slowLog).newBudget());
+
+			// skipping to the window is not a step
+			recurring.occurrencesBetween(EpochDays.of(2019, 1, 1), EpochDays.of(2019, 1, 31));
+			assertEquals(0, messages.size());
+
+			for (int i = 0; i < 5; i++) {
+				recurring.occurrencesBetween(EpochDays.of(1900, 1, 1), EpochDays.of(1999, 12, 31));
+			}
+			assertEquals(2, messages.size());
+			assertTrue(messages.get(0), messages.get(0).contains("evaluation[occurrences_between]"));
+			assertTrue(messages.get(0), messages.get(0).contains("window[1900-01-01..1999-12-31]"));
+			assertTrue(messages.get(0), messages.get(0).contains("rule[RRULE:FREQ=DAILY]"));
+			assertTrue(messages.get(0), messages.get(0).contains("fingerprint[" + RecurringSlowLog.fingerprint("RRULE:FREQ=DAILY") + "]"));
+
+			nanoTime.addAndGet(TimeUnit.SECONDS.toNanos(1));
+			recurring.occurrencesBetween(EpochDays.of(1900, 1, 1), EpochDays.of(1999, 12, 31));
+			assertEquals(3, messages.size());
+			assertTrue(messages.get(2), messages.get(2).contains("dropped[3]"));
+		} finally {
+			Loggers.removeAppender(logger, appender);
+			appender.stop();
+		}
+	}
+
+	public void testSampling() throws Exception {
+		Logger logger = LogManager.getLogger(RecurringSlowLogTests.class.getName() + "." + getTestName());
+		List<String> messages = new CopyOnWriteArrayList<>();
+		AbstractAppender appender = new AbstractAppender("slowlog", null, null) {
+			@Override
+			public void append(LogEvent event) {
+				messages.add(event.getMessage().getFormattedMessage());
+			}
+		};
+		appender.start();
+		Loggers.addAppender(logger, appender);
+		try {
+			Settings settings = Settings.builder()
+				.put(RecurringSlowLog.THRESHOLD_STEPS_SETTING.getKey(), 1000)
+				.put(RecurringSlowLog.MAX_PER_SECOND_SETTING.getKey(), 2)
+				.put(RecurringSlowLog.SAMPLE_RATE_SETTING.getKey(), 0.5)
+				.build();
+			double[] draws = { 0.75, 0.25, 0.9, 0.1, 0.6, 0.4 };
+			AtomicInteger draw = new AtomicInteger();
+			RecurringSlowLog slowLog = new RecurringSlowLog(settings, logger, () -> 0L, () -> draws[draw.getAndIncrement()]);
+			Recurring recurring = new Recurring("1900-01-01", null, "RRULE:FREQ=DAILY");
+			recurring.setBudget(new ExpansionLimits(1000000, 100000000L, null, slowLog).newBudget());
+
+			// fast evaluations are not sampled
+			recurring.occurrencesBetween(EpochDays.of(2019, 1, 1), EpochDays.of(2019, 1, 31));
+			assertEquals(0, draw.get());
+
+			for (int i = 0; i < draws.length; i++) {
+				recurring.occurrencesBetween(EpochDays.of(1900, 1, 1), EpochDays.of(1999, 12, 31));
+			}
+			assertEquals(draws.length, draw.get());
+			// three entries are sampled, the rate limit drops the last one, those sampled out are not counted as dropped
+			assertEquals(2, messages.size());
+			for (String message : messages) {
+				assertFalse(message, message.contains("dropped["));
+			}
+		} finally {
+			Loggers.removeAppender(logger, appender);
+			appender.stop();
+		}
+	}
+}
@@ -0,0 +1,154 @@
+package org.devmaster.elasticsearch.index.mapper;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.devmaster.elasticsearch.index.query.RecurringPredicate;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.index.mapper.SourceFieldMapper;
+import org.elasticsearch.test.ESTestCase;
+import org.joda.time.LocalDate;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+public class RecurringTests extends ESTestCase {
+
+	public void testLowerCaseRule() throws Exception {
+		Recurring recurring = new Recurring("2016-01-01", null, "rrule:FREQ=WEEKLY;BYDAY=MO");
+		assertEquals(Arrays.asList("2016-01-01", "2016-01-04", "2016-01-11", "2016-01-18"),
+			recurring.occurrencesBetween(new LocalDate("2016-01-01"), new LocalDate("2016-01-18")));
+
+		Recurring exdate = new Recurring("2016-01-01", null, "Rrule:FREQ=WEEKLY;BYDAY=MO\nexdate:20160111");
+		assertEquals(Arrays.asList("2016-01-01", "2016-01-04", "2016-01-18"),
+			exdate.occurrencesBetween(new LocalDate("2016-01-01"), new LocalDate("2016-01-18")));
+	}
+
+	public void testNotExpiredMatchesLastOccurrence() throws Exception {
+		// the rule starts on a Wednesday, the day before it is a Tuesday
+		Recurring recurring = new Recurring("2019-01-02", null, "RRULE:FREQ=WEEKLY;UNTIL=20190130");
+		LocalDate last = recurring.getLastOccurrence();
+		assertEquals(new LocalDate("2019-01-30"), last);
+
+		for (LocalDate day = new LocalDate("2018-12-25"); day.isBefore(new LocalDate("2019-02-10")); day = day.plusDays(1)) {
+			boolean notExpired = day.isAfter(last) == false;
+			assertEquals(day.toString(), notExpired, recurring.notHasExpired(EpochDays.of(day)));
+			assertEquals(day.toString(), notExpired, RecurringPredicate.notExpired(day).test(recurring));
+		}
+	}
+
+	public void testOccursOnSeveralDays() throws Exception {
+		int[] days = new int[61];
+		for (int i = 0; i < days.length; i++) {
+			days[i] = EpochDays.parse("2016-11-01") + i;
+		}
+		for (Recurring recurring : new Recurring[] {
+				new Recurring("2016-11-23", null, "RRULE:FREQ=MONTHLY;BYDAY=MO,WE"),
+				new Recurring("2016-11-23", null, "RRULE:FREQ=WEEKLY;INTERVAL=2"),
+				new Recurring("2016-11-23", "2016-11-25", null)}) {
+			BitSet matched = recurring.occursOn(days, new BitSet());
+			for (int i = 0; i < days.length; i++) {
+				assertEquals(recurring.occursOn(days[i]), matched.get(i));
+			}
+		}
+	}
+
+	public void testOccursBetweenSeveralWindows() throws Exception {
+		Recurring recurring = new Recurring("2016-11-23", null, "RRULE:FREQ=MONTHLY;BYDAY=MO,WE");
+		int[] from = {EpochDays.parse("2016-11-01"), EpochDays.parse("2016-11-22"), EpochDays.parse("2016-11-24"),
+				EpochDays.parse("2016-11-24"), EpochDays.parse("2016-11-29")};
+		int[] to = {EpochDays.parse("2016-11-22"), EpochDays.parse("2016-11-30"), EpochDays.parse("2016-11-27"),
+				EpochDays.parse("2016-11-28"), EpochDays.parse("2016-12-31")};
+
+		BitSet matched = recurring.occursBetween(from, to, new BitSet());
+		assertEquals("{1, 3, 4}", matched.toString());
+		for (int i = 0; i < from.length; i++) {
+			assertEquals(recurring.occursBetween(from[i], to[i]), matched.get(i));
+		}
+	}
+
+	public void testHasAnyOccurrenceBetweenWeekly() throws Exception {
+		// an UNTIL with a time is not a simple rule, the rule is expanded period by period
+		Recurring recurring = new Recurring("2018-05-02", "2018-06-07", "RRULE:FREQ=WEEKLY;BYDAY=TU;UNTIL=20180607T000000Z;WKST=SU");
+		for (String tuesday : new String[] {"2018-05-08", "2018-05-15", "2018-05-22", "2018-05-29", "2018-06-05"}) {
+			assertTrue(tuesday, recurring.hasAnyOccurrenceBetween(tuesday, tuesday));
+		}
+		assertFalse(recurring.hasAnyOccurrenceBetween("2018-06-06", "2018-06-06"));
+		assertFalse(recurring.hasAnyOccurrenceBetween("2018-06-12", "2018-06-30"));
+	}
+
+	public void testValuesOfDocumentsWithoutRule() throws Exception {
+		long start = EpochDays.parse("2016-01-01") * 86400000L;
+		BytesRef source = new BytesRef("{\"field\":{\"start_date\":\"2016-01-01\",\"rrule\":\"RRULE:FREQ=DAILY\"}}"
+			.getBytes(StandardCharsets.UTF_8));
+		try (Directory dir = newDirectory()) {
+			try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig())) {
+				Document doc = new Document();
+				doc.add(new SortedDocValuesField("field", new BytesRef("RRULE:FREQ=WEEKLY")));
+				doc.add(new SortedNumericDocValuesField("field.start_date", start));
+				writer.addDocument(doc);
+				// indexed before the rule had doc values
+				doc = new Document();
+				doc.add(new SortedNumericDocValuesField("field.start_date", start));
+				doc.add(new StoredField(SourceFieldMapper.NAME, source));
+				writer.addDocument(doc);
+				// no value, its source is not read
+				doc = new Document();
+				doc.add(new StoredField(SourceFieldMapper.NAME, source));
+				writer.addDocument(doc);
+				writer.forceMerge(1);
+			}
+			try (DirectoryReader reader = DirectoryReader.open(dir)) {
+				RecurringValues values = RecurringValues.forLeaf(reader.leaves().get(0), "field", new RuleCache(Settings.EMPTY));
+				assertEquals("RRULE:FREQ=WEEKLY", values.get(0).getRrule());
+				assertEquals("RRULE:FREQ=DAILY", values.get(1).getRrule());
+				assertNull(values.get(2));
+			}
+		}
+	}
+
+	public void testOccurrencePage() throws Exception {
+		Recurring recurring = new Recurring("2016-01-01", null, "RRULE:FREQ=WEEKLY;BYDAY=TU,TH;WKST=SU");
+		int from = EpochDays.parse("2016-01-01");
+		int to = EpochDays.parse("2016-01-14");
+
+		OccurrencePage page = recurring.occurrencePage(from, to, Integer.MIN_VALUE, 3);
+		assertEquals(Arrays.asList("2016-01-01", "2016-01-05", "2016-01-07"), page.dates());
+		assertTrue(page.isTruncated());
+		assertEquals("2016-01-07", page.after());
+
+		page = recurring.occurrencePage(from, to, EpochDays.parse(page.after()), 3);
+		assertEquals(Arrays.asList("2016-01-12", "2016-01-14"), page.dates());
+		assertFalse(page.isTruncated());
+		assertNull(page.after());
+
+		// exactly filled, no further occurrence in the window
+		assertFalse(recurring.occurrencePage(from, to, Integer.MIN_VALUE, 5).isTruncated());
+	}
+
+	public void testOccurrenceFormats() throws Exception {
+		Recurring recurring = new Recurring("2016-01-01", null, "RRULE:FREQ=WEEKLY;BYDAY=MO,TU,WE;WKST=SU");
+		OccurrencePage page = recurring.occurrencePage(EpochDays.parse("2016-01-04"), EpochDays.parse("2016-01-13"),
+				Integer.MIN_VALUE, 100);
+		int monday = EpochDays.parse("2016-01-04");
+
+		assertEquals(Arrays.asList("2016-01-04", "2016-01-05", "2016-01-06", "2016-01-11", "2016-01-12", "2016-01-13"),
+				OccurrenceFormat.ISO.format(page));
+		assertTrue(Arrays.equals(new int[] {monday, monday + 1, monday + 2, monday + 7, monday + 8, monday + 9},
+				(int[]) OccurrenceFormat.EPOCH_DAY.format(page)));
+
+		List<?> ranges = (List<?>) OccurrenceFormat.RANGES.format(page);
+		assertEquals(2, ranges.size());
+		assertTrue(Arrays.equals(new int[] {monday, monday + 2}, (int[]) ranges.get(0)));
+		assertTrue(Arrays.equals(new int[] {monday + 7, monday + 9}, (int[]) ranges.get(1)));
+	}
+
+}
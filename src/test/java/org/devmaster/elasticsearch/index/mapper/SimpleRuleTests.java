@@ -0,0 +1,143 @@
+package org.devmaster.elasticsearch.index.mapper;
+
+import com.google.ical.compat.jodatime.LocalDateIterator;
+import org.elasticsearch.test.ESTestCase;
+import org.joda.time.LocalDate;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Checks the closed-form evaluation of rules against the iteration of google-rfc-2445, day by day.
+ */
+public class SimpleRuleTests extends ESTestCase {
+
+	private static final String[] FREQUENCIES = { "DAILY", "WEEKLY", "MONTHLY", "YEARLY" };
+	private static final String[] WEEKDAYS = { "MO", "TU", "WE", "TH", "FR", "SA", "SU" };
+	private static final int YEARS = 30;
+
+	public void testEpochDays() {
+		for (int day = EpochDays.of(1899, 1, 1); day < EpochDays.of(2101, 1, 1); day++) {
+			LocalDate date = new LocalDate(1970, 1, 1).plusDays(day);
+			assertEquals(date, EpochDays.toLocalDate(day));
+			assertEquals(day, EpochDays.of(date));
+			assertEquals(date.getDayOfWeek(), EpochDays.dayOfWeek(day));
+			assertEquals(date.dayOfMonth().getMaximumValue(), EpochDays.lengthOfMonth(date.getYear(), date.getMonthOfYear()));
+		}
+	}
+
+	public void testSupportedShapes() {
+		assertNotNull(simpleRule("RRULE:FREQ=YEARLY;BYMONTH=12;BYMONTHDAY=25"));
+		assertNotNull(simpleRule("RRULE:FREQ=WEEKLY;INTERVAL=2;BYDAY=TU,TH;WKST=SU"));
+		assertNotNull(simpleRule("RRULE:FREQ=MONTHLY;BYMONTHDAY=-1;UNTIL=20200101"));
+		assertNull(simpleRule("RRULE:FREQ=MONTHLY;BYMONTHDAY=10;COUNT=5"));
+		assertNull(simpleRule("RRULE:FREQ=YEARLY;BYMONTH=5;BYDAY=2SU"));
+		assertNull(simpleRule("RRULE:FREQ=MONTHLY;BYDAY=MO;BYSETPOS=-1"));
+		assertNull(simpleRule("RRULE:FREQ=DAILY\nEXDATE:20200101"));
+	}
+
+	public void testMatchesLibrary() throws Exception {
+		int checked = 0;
+		while (checked < 100) {
+			String rule = randomRule();
+			CompiledRule compiled = CompiledRule.compile(rule);
+			SimpleRule simpleRule = compiled.simpleRule();
+			if (simpleRule == null) {
+				continue;
+			}
+			checked++;
+
+			LocalDate startDate = new LocalDate(randomIntBetween(1990, 2030), randomIntBetween(1, 12), randomIntBetween(1, 28))
+				.plusDays(randomIntBetween(0, 3));
+			assertMatchesLibrary(rule, compiled, simpleRule, startDate);
+		}
+	}
+
+	public void testCursorMatchesLibrary() throws Exception {
+		OccurrenceCursor cursor = new OccurrenceCursor();
+		for (int i = 0; i < 200; i++) {
+			String rule = randomRule();
+			CompiledRule compiled = CompiledRule.compile(rule);
+			LocalDate startDate = new LocalDate(randomIntBetween(1990, 2030), randomIntBetween(1, 12), randomIntBetween(1, 28));
+			LocalDate from = startDate.plusDays(randomIntBetween(-10, 2000));
+
+			LocalDateIterator it = compiled.iterator(startDate, false);
+			it.advanceTo(from);
+			cursor.reset(compiled, EpochDays.of(startDate), false);
+			cursor.advanceTo(EpochDays.of(from));
+			for (int n = 0; n < 50; n++) {
+				int expected = it.hasNext() ? EpochDays.of(it.next()) : OccurrenceCursor.NONE;
+				assertEquals(rule + " from " + startDate + " after " + from, expected, cursor.next());
+			}
+		}
+	}
+
+	private void assertMatchesLibrary(String rule, CompiledRule compiled, SimpleRule simpleRule, LocalDate startDate) throws Exception {
+		int start = EpochDays.of(startDate);
+		int horizon = EpochDays.of(startDate.plusYears(YEARS));
+
+		List<Integer> occurrences = new ArrayList<>();
+		boolean exhausted = true;
+		LocalDateIterator it = compiled.iterator(startDate, false);
+		while (it.hasNext()) {
+			int day = EpochDays.of(it.next());
+			if (day > horizon) {
+				exhausted = false;
+				break;
+			}
+			occurrences.add(day);
+		}
+
+		String message = rule + " from " + startDate;
+		int next = 0;
+		for (int day = start - 3; day <= horizon; day++) {
+			while (next < occurrences.size() && occurrences.get(next) < day) {
+				next++;
+			}
+			boolean occurs = next < occurrences.size() && occurrences.get(next) == day;
+			assertEquals(message + " at " + EpochDays.toLocalDate(day), occurs, simpleRule.occursOn(start, day));
+
+			int actual = simpleRule.nextOnOrAfter(start, day);
+			if (next < occurrences.size()) {
+				assertEquals(message + " after " + EpochDays.toLocalDate(day), (int) occurrences.get(next), actual);
+			} else if (exhausted) {
+				assertEquals(message + " after " + EpochDays.toLocalDate(day), SimpleRule.NONE, actual);
+			} else {
+				assertTrue(message + " after " + EpochDays.toLocalDate(day), actual > horizon);
+			}
+		}
+	}
+
+	private String randomRule() {
+		String freq = randomFrom(FREQUENCIES);
+		StringBuilder rule = new StringBuilder("RRULE:FREQ=").append(freq);
+		if (randomBoolean()) {
+			rule.append(";INTERVAL=").append(randomIntBetween(1, 14));
+		}
+		if (randomBoolean()) {
+			String[] days = randomSubsetOf(randomIntBetween(1, 3), WEEKDAYS).toArray(new String[0]);
+			rule.append(";BYDAY=").append(String.join(",", days));
+		}
+		if (randomInt(3) == 0) {
+			rule.append(";BYMONTHDAY=").append(randomFrom(1, 5, 13, 28, 30, 31, -1, -3));
+		}
+		if (randomInt(3) == 0) {
+			rule.append(";BYMONTH=").append(randomIntBetween(1, 12));
+			if (randomBoolean()) {
+				rule.append(",").append(randomIntBetween(1, 12));
+			}
+		}
+		if (randomInt(3) == 0) {
+			rule.append(";WKST=").append(randomFrom(WEEKDAYS));
+		}
+		if (randomInt(3) == 0) {
+			LocalDate until = new LocalDate(randomIntBetween(1995, 2060), randomIntBetween(1, 12), randomIntBetween(1, 28));
+			rule.append(";UNTIL=").append(until.toString().replace("-", ""));
+		}
+		return rule.toString();
+	}
+
+	private static SimpleRule simpleRule(String rule) {
+		return CompiledRule.compile(rule).simpleRule();
+	}
+}
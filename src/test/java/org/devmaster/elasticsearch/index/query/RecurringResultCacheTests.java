@@ -0,0 +1,172 @@
+package org.devmaster.elasticsearch.index.query;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LeafReaderContext;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.DocIdSetBuilder;
+import org.devmaster.elasticsearch.index.mapper.ExpansionLimits;
+import org.devmaster.elasticsearch.index.mapper.RuleCache;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.test.ESTestCase;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class RecurringResultCacheTests extends ESTestCase {
+
+	public void testCachesPerSegmentAndQuery() throws Exception {
+		RecurringResultCache cache = new RecurringResultCache(Settings.EMPTY);
+		AtomicInteger loads = new AtomicInteger();
+		Query query = new MatchAllDocsQuery();
+
+		try (Directory dir = newDirectory()) {
+			index(dir);
+			try (DirectoryReader reader = DirectoryReader.open(dir)) {
+				LeafReaderContext leaf = reader.leaves().get(0);
+				Query other = new TermQuery(new Term("field", "value"));
+				for (int i = 0; i < RecurringResultCache.MIN_FREQUENCY; i++) {
+					cache.onUse(query);
+					cache.onUse(other);
+				}
+				DocIdSet first = cache.get(query, leaf, true, () -> load(leaf, loads));
+				assertSame(first, cache.get(query, leaf, true, () -> load(leaf, loads)));
+				assertEquals(1, loads.get());
+
+				cache.get(other, leaf, true, () -> load(leaf, loads));
+				assertEquals(2, loads.get());
+				assertEquals(2, cache.count());
+				assertTrue(cache.ramBytesUsed() > 0);
+			}
+			// closing the segment drops its entries
+			assertEquals(0, cache.count());
+		}
+	}
+
+	public void testLoadsReusedQueries() throws Exception {
+		RecurringResultCache cache = new RecurringResultCache(Settings.EMPTY);
+		AtomicInteger loads = new AtomicInteger();
+		Query query = new MatchAllDocsQuery();
+
+		try (Directory dir = newDirectory()) {
+			index(dir);
+			try (DirectoryReader reader = DirectoryReader.open(dir)) {
+				LeafReaderContext leaf = reader.leaves().get(0);
+				cache.onUse(query);
+				assertNull(cache.get(query, leaf, true, () -> load(leaf, loads)));
+				assertEquals(0, loads.get());
+
+				cache.onUse(query);
+				assertNull(cache.get(query, leaf, false, () -> load(leaf, loads)));
+				assertEquals(0, loads.get());
+				DocIdSet loaded = cache.get(query, leaf, true, () -> load(leaf, loads));
+				assertNotNull(loaded);
+				assertEquals(1, loads.get());
+
+				// a cached segment is read even when it would not be loaded
+				assertSame(loaded, cache.get(query, leaf, false, () -> load(leaf, loads)));
+				assertEquals(1, loads.get());
+			}
+		}
+	}
+
+	public void testForgetsOldQueries() {
+		RecurringResultCache cache = new RecurringResultCache(Settings.EMPTY);
+		Query query = new MatchAllDocsQuery();
+		cache.onUse(query);
+		cache.onUse(query);
+		assertEquals(2, cache.frequency(query));
+		for (int i = 0; i < RecurringResultCache.HISTORY_SIZE - 1; i++) {
+			cache.onUse(new TermQuery(new Term("field", Integer.toString(i))));
+		}
+		assertEquals(1, cache.frequency(query));
+	}
+
+	public void testSelectiveConjunction() throws Exception {
+		RecurringResultCache cache = new RecurringResultCache(Settings.EMPTY);
+		// every document walks one occurrence, the whole segment more than the request may walk
+		ExpansionLimits limits = new ExpansionLimits(Settings.builder()
+			.put(ExpansionLimits.MAX_OCCURRENCES_PER_REQUEST_SETTING.getKey(), 50)
+			.build());
+		RecurringQuery recurring = new RecurringQuery("field",
+			RecurringPredicate.occursBetween(new LocalDate("2017-01-01"), new LocalDate("2017-12-31")),
+			new MatchAllDocsQuery(), new RuleCache(Settings.EMPTY), cache, limits);
+		Query query = new BooleanQuery.Builder()
+			.add(new TermQuery(new Term("id", "7")), Occur.FILTER)
+			.add(recurring, Occur.FILTER)
+			.build();
+
+		try (Directory dir = newDirectory()) {
+			try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig())) {
+				long start = new LocalDate("2016-01-10").toDateTimeAtStartOfDay(DateTimeZone.UTC).getMillis();
+				for (int i = 0; i < 100; i++) {
+					Document doc = new Document();
+					doc.add(new StringField("id", Integer.toString(i), Field.Store.NO));
+					doc.add(new SortedDocValuesField("field", new BytesRef("RRULE:FREQ=MONTHLY;BYDAY=2SU")));
+					doc.add(new SortedNumericDocValuesField("field.start_date", start));
+					writer.addDocument(doc);
+				}
+				writer.forceMerge(1);
+			}
+			try (DirectoryReader reader = DirectoryReader.open(dir)) {
+				IndexSearcher searcher = new IndexSearcher(reader);
+				searcher.setQueryCache(null);
+				for (int i = 0; i < 3; i++) {
+					assertEquals(1, searcher.count(query));
+				}
+				assertEquals(0, cache.count());
+
+				// run on its own, the reused query is evaluated for the whole segment
+				expectThrows(IllegalArgumentException.class, () -> searcher.count(recurring));
+				assertEquals(0, cache.count());
+			}
+		}
+	}
+
+	public void testDisabled() throws Exception {
+		RecurringResultCache cache = new RecurringResultCache(Settings.builder()
+			.put(RecurringResultCache.SIZE_SETTING.getKey(), "0b")
+			.build());
+		try (Directory dir = newDirectory()) {
+			index(dir);
+			try (DirectoryReader reader = DirectoryReader.open(dir)) {
+				LeafReaderContext leaf = reader.leaves().get(0);
+				Query query = new MatchAllDocsQuery();
+				cache.onUse(query);
+				cache.onUse(query);
+				assertNull(cache.get(query, leaf, true, () -> load(leaf, new AtomicInteger())));
+			}
+		}
+	}
+
+	private static void index(Directory dir) throws Exception {
+		try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig())) {
+			for (int i = 0; i < 10; i++) {
+				writer.addDocument(new Document());
+			}
+		}
+	}
+
+	private static DocIdSet load(LeafReaderContext leaf, AtomicInteger loads) {
+		loads.incrementAndGet();
+		DocIdSetBuilder builder = new DocIdSetBuilder(leaf.reader().maxDoc());
+		builder.grow(1).add(3);
+		return builder.build();
+	}
+}
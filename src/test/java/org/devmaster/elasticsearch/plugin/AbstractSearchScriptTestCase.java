@@ -49,4 +49,9 @@ public abstract class AbstractSearchScriptTestCase extends ESIntegTestCase {
     protected Collection<Class<? extends Plugin>> nodePlugins() {
     	return Collections.singletonList(RecurringPlugin.class);
     }
+
+    @Override
+    protected Collection<Class<? extends Plugin>> transportClientPlugins() {
+    	return nodePlugins();
+    }
 }
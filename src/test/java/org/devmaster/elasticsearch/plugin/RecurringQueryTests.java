@@ -0,0 +1,456 @@
+package org.devmaster.elasticsearch.plugin;
+
+import org.devmaster.elasticsearch.action.calendar.CalendarAction;
+import org.devmaster.elasticsearch.action.calendar.CalendarRequest;
+import org.devmaster.elasticsearch.action.calendar.CalendarResponse;
+import org.devmaster.elasticsearch.action.stats.NodeRecurringStats;
+import org.devmaster.elasticsearch.action.stats.RecurringStatsAction;
+import org.devmaster.elasticsearch.action.stats.RecurringStatsRequest;
+import org.devmaster.elasticsearch.action.stats.RecurringStatsResponse;
+import org.devmaster.elasticsearch.index.mapper.EpochDays;
+import org.devmaster.elasticsearch.index.mapper.OccurrenceFormat;
+import org.devmaster.elasticsearch.index.mapper.Recurring;
+import org.devmaster.elasticsearch.index.mapper.RecurringStats;
+import org.devmaster.elasticsearch.index.query.RecurringQueryBuilder;
+import org.devmaster.elasticsearch.search.aggregations.InternalOccurrenceHistogram;
+import org.devmaster.elasticsearch.search.aggregations.OccurrenceHistogramAggregationBuilder;
+import org.devmaster.elasticsearch.search.aggregations.OccurrenceInterval;
+import org.devmaster.elasticsearch.search.fetch.RecurringOccurrencesBuilder;
+import org.elasticsearch.action.index.IndexRequestBuilder;
+import org.elasticsearch.action.search.SearchRequestBuilder;
+import org.elasticsearch.action.search.SearchResponse;
+import org.elasticsearch.common.Strings;
+import org.elasticsearch.common.xcontent.XContentBuilder;
+import org.elasticsearch.common.xcontent.XContentFactory;
+import org.elasticsearch.index.query.QueryBuilder;
+import org.elasticsearch.script.Script;
+import org.elasticsearch.script.ScriptType;
+import org.elasticsearch.search.SearchHit;
+import org.elasticsearch.search.sort.SortBuilders;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+import org.junit.Before;
+
+import static org.elasticsearch.index.query.QueryBuilders.existsQuery;
+import static org.elasticsearch.index.query.QueryBuilders.rangeQuery;
+import static org.elasticsearch.index.query.QueryBuilders.scriptQuery;
+import static org.elasticsearch.index.query.QueryBuilders.termQuery;
+import static org.elasticsearch.index.query.QueryBuilders.wrapperQuery;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertAcked;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertHitCount;
+import static org.elasticsearch.test.hamcrest.ElasticsearchAssertions.assertNoFailures;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+public class RecurringQueryTests extends AbstractSearchScriptTestCase {
+
+	private static final String[][] WINDOWS = {
+		{ "2016-03-01", "2016-05-31" },
+		{ "2017-03-02", "2017-03-04" },
+		{ "2017-03-05", "2017-06-01" },
+		{ "2019-02-04", "2019-02-04" },
+		{ "2019-02-05", "2019-02-10" },
+		{ "2010-01-01", "2030-01-01" }
+	};
+
+	@Before
+	public void indexEvents() throws Exception {
+		indexEvents("test", null);
+	}
+
+	private void indexEvents(String index, String materializeHorizon) throws Exception {
+		XContentBuilder mapping = XContentFactory.jsonBuilder()
+			.startObject()
+				.startObject("type")
+					.startObject("properties")
+						.startObject("name")
+							.field("type", "keyword")
+						.endObject()
+						.startObject("recurrent_date")
+							.field("type", "recurring");
+		if (materializeHorizon != null) {
+			mapping.field("materialize_horizon", materializeHorizon);
+		}
+		mapping.endObject().endObject().endObject().endObject();
+
+		assertAcked(prepareCreate(index).addMapping("type", mapping));
+
+		List<IndexRequestBuilder> indexBuilders = new ArrayList<>();
+		indexBuilders.add(client().prepareIndex(index, "type", "1")
+			.setSource(createDoc("Christmas party", "2016-12-25", null, "RRULE:FREQ=YEARLY;BYMONTH=12;BYMONTHDAY=25")));
+		indexBuilders.add(client().prepareIndex(index, "type", "2")
+			.setSource(createDoc("Mother's Day", "2015-05-08", null, "RRULE:FREQ=YEARLY;BYMONTH=5;BYDAY=2SU")));
+		indexBuilders.add(client().prepareIndex(index, "type", "3")
+			.setSource(createDoc("Cruze Monthly Review", "2016-02-10", null, "RRULE:FREQ=MONTHLY;BYMONTHDAY=10;COUNT=5;WKST=SU")));
+		indexBuilders.add(client().prepareIndex(index, "type", "4")
+			.setSource(createDoc("Marnaco Event", "2017-06-01", "2017-06-30", null)));
+		indexBuilders.add(client().prepareIndex(index, "type", "5")
+			.setSource(createDoc("Carnival", "2017-03-01", "2017-03-05", null)));
+		indexBuilders.add(client().prepareIndex(index, "type", "6")
+			.setSource(createDoc("Weekly sync", "2019-01-01", null, "RRULE:FREQ=WEEKLY;BYDAY=MO;UNTIL=20190301")));
+		indexRandom(true, indexBuilders);
+	}
+
+	public void testOccursBetweenMatchesScript() throws Exception {
+		for (String[] window : WINDOWS) {
+			assertEquals(
+				scriptCount("occurBetween", "start", window[0], "end", window[1]),
+				count(RecurringQueryBuilder.occursBetween("recurrent_date", window[0], window[1])));
+		}
+	}
+
+	public void testOccursAtMatchesScript() throws Exception {
+		for (String[] window : WINDOWS) {
+			assertEquals(
+				scriptCount("hasOccurrencesAt", "date", window[0]),
+				count(RecurringQueryBuilder.occursAt("recurrent_date", window[0])));
+		}
+	}
+
+	public void testSeveralDatesAndWindows() throws Exception {
+		Map<String, Object> params = new HashMap<>();
+		params.put("field", "recurrent_date");
+		params.put("dates", Arrays.asList("2019-02-03", "2019-02-04", "2019-02-11", "2019-03-04"));
+		SearchResponse searchResponse = client().prepareSearch("test")
+			.setQuery(termQuery("name", "Weekly sync"))
+			.addScriptField("days", new Script(ScriptType.INLINE, "native", "hasOccurrencesAt", params))
+			.execute().actionGet();
+		assertNoFailures(searchResponse);
+		assertEquals(Arrays.asList(1, 2), searchResponse.getHits().getAt(0).field("days").getValues());
+
+		// a document matches the filter as soon as one of the windows holds an occurrence
+		List<Map<String, Object>> windows = new ArrayList<>();
+		for (String[] window : new String[][] { { "2016-03-01", "2016-05-31" }, { "2017-03-02", "2017-03-04" } }) {
+			Map<String, Object> value = new HashMap<>();
+			value.put("start", window[0]);
+			value.put("end", window[1]);
+			windows.add(value);
+		}
+		params = new HashMap<>();
+		params.put("field", "recurrent_date");
+		params.put("windows", windows);
+		assertEquals(
+			scriptCount("occurBetween", "start", "2016-03-01", "end", "2016-05-31")
+				+ scriptCount("occurBetween", "start", "2017-03-02", "end", "2017-03-04"),
+			count(scriptQuery(new Script(ScriptType.INLINE, "native", "occurBetween", params))));
+	}
+
+	public void testOccurrencesBetweenFormats() throws Exception {
+		Map<String, Object> params = new HashMap<>();
+		params.put("field", "recurrent_date");
+		params.put("start", "2019-01-02");
+		params.put("end", "2019-01-31");
+		params.put("format", "epoch_day");
+		params.put("limit", 2);
+		SearchResponse searchResponse = client().prepareSearch("test")
+			.setQuery(termQuery("name", "Weekly sync"))
+			.addScriptField("occurrences", new Script(ScriptType.INLINE, "native", "occurrencesBetween", params))
+			.execute().actionGet();
+		assertNoFailures(searchResponse);
+
+		Map<?, ?> page = (Map<?, ?>) searchResponse.getHits().getAt(0).field("occurrences").getValue();
+		int monday = EpochDays.parse("2019-01-07");
+		assertTrue(Arrays.equals(new int[] { monday, monday + 7 }, (int[]) page.get("occurrences")));
+		assertEquals(Boolean.TRUE, page.get("truncated"));
+		assertEquals("2019-01-14", page.get("after"));
+	}
+
+	public void testNotExpired() throws Exception {
+		assertEquals(scriptCount("notHasExpired"), count(RecurringQueryBuilder.notExpired("recurrent_date")));
+		assertEquals(3, count(RecurringQueryBuilder.notExpired("recurrent_date").from("2019-02-01")));
+	}
+
+	public void testUnparsableRuleIsNotMatched() throws Exception {
+		assertAcked(prepareCreate("unparsable").addMapping("type", "recurrent_date", "type=recurring"));
+		indexRandom(true, client().prepareIndex("unparsable", "type", "1")
+			.setSource(createDoc("Broken", "2019-01-02", null, "RRULE:FREQ=SOMETIMES")));
+
+		Map<String, Object> params = new HashMap<>();
+		params.put("field", "recurrent_date");
+		assertEquals(0, count("unparsable", scriptQuery(new Script(ScriptType.INLINE, "native", "notHasExpired", params))));
+		params.put("start", "2019-01-01");
+		params.put("end", "2019-12-31");
+		assertEquals(0, count("unparsable", scriptQuery(new Script(ScriptType.INLINE, "native", "occurrencesBetween", params))));
+	}
+
+	public void testNotExpiredOnLastOccurrence() throws Exception {
+		assertAcked(prepareCreate("until").addMapping("type", "recurrent_date", "type=recurring"));
+		indexRandom(true, client().prepareIndex("until", "type", "1")
+			.setSource(createDoc("Onboarding", "2019-01-02", null, "RRULE:FREQ=WEEKLY;UNTIL=20190130")));
+
+		assertEquals(1, count("until", termQuery("recurrent_date.last_occurrence", "2019-01-30")));
+		assertEquals(1, count("until", RecurringQueryBuilder.notExpired("recurrent_date").from("2019-01-30")));
+		assertEquals(0, count("until", RecurringQueryBuilder.notExpired("recurrent_date").from("2019-01-31")));
+	}
+
+	public void testOccurrenceBounds() throws Exception {
+		assertEquals(6, count(existsQuery("recurrent_date.first_occurrence")));
+		assertEquals(4, count(existsQuery("recurrent_date.last_occurrence")));
+		assertEquals(1, count(termQuery("recurrent_date.last_occurrence", "2016-06-10")));
+		assertEquals(1, count(termQuery("recurrent_date.last_occurrence", "2019-02-25")));
+	}
+
+	public void testMaterializedOccurrences() throws Exception {
+		indexEvents("materialized", "2y");
+		assertEquals(4, count("materialized", rangeQuery("recurrent_date.materialized_until").gte("now")));
+
+		for (String[] window : WINDOWS) {
+			assertEquals(
+				count("test", RecurringQueryBuilder.occursBetween("recurrent_date", window[0], window[1])),
+				count("materialized", RecurringQueryBuilder.occursBetween("recurrent_date", window[0], window[1])));
+			assertEquals(
+				count("test", RecurringQueryBuilder.occursAt("recurrent_date", window[0])),
+				count("materialized", RecurringQueryBuilder.occursAt("recurrent_date", window[0])));
+		}
+	}
+
+	public void testMaterializedOldRule() throws Exception {
+		assertAcked(prepareCreate("old").addMapping("type", "recurrent_date", "type=recurring,materialize_horizon=1y"));
+		indexRandom(true, client().prepareIndex("old", "type", "1")
+			.setSource(createDoc("Stand-up", "2000-01-01", null, "RRULE:FREQ=DAILY")));
+		LocalDate today = LocalDate.now();
+		assertEquals(1, count("old", rangeQuery("recurrent_date.materialized_from").gte(today.minusDays(31).toString())));
+
+		// the window lies within the materialized range, it is answered from the points
+		long before = evaluations(RecurringStats.Evaluation.OCCURS_BETWEEN);
+		assertEquals(1, count("old", RecurringQueryBuilder.occursBetween("recurrent_date",
+			today.minusDays(7).toString(), today.plusDays(7).toString())));
+		assertEquals(before, evaluations(RecurringStats.Evaluation.OCCURS_BETWEEN));
+
+		// the window starts before the materialized range, the rule is evaluated
+		assertEquals(1, count("old", RecurringQueryBuilder.occursBetween("recurrent_date", "2010-01-01", "2010-01-01")));
+		assertTrue(evaluations(RecurringStats.Evaluation.OCCURS_BETWEEN) > before);
+	}
+
+	@SuppressWarnings("unchecked")
+	public void testSortByNextOccurrence() throws Exception {
+		LocalDate today = LocalDate.now(DateTimeZone.UTC);
+		SearchResponse searchResponse = client().prepareSearch("test")
+			.addSort(SortBuilders.fieldSort("recurrent_date"))
+			.setSize(10)
+			.execute().actionGet();
+		assertNoFailures(searchResponse);
+
+		long previous = Long.MIN_VALUE;
+		for (SearchHit hit : searchResponse.getHits()) {
+			Map<String, Object> value = (Map<String, Object>) hit.getSourceAsMap().get("recurrent_date");
+			LocalDate next = new Recurring((String) value.get("start_date"), (String) value.get("end_date"), (String) value.get("rrule"))
+				.getNextOccurrence(today);
+			long expected = next != null ? EpochDays.of(next) : Long.MAX_VALUE;
+			assertEquals(expected, hit.getSortValues()[0]);
+			assertTrue(expected >= previous);
+			previous = expected;
+		}
+
+		SearchResponse top = client().prepareSearch("test")
+			.addSort(SortBuilders.fieldSort("recurrent_date"))
+			.setSize(1)
+			.execute().actionGet();
+		assertNoFailures(top);
+		assertEquals(searchResponse.getHits().getAt(0).getId(), top.getHits().getAt(0).getId());
+	}
+
+	public void testSortIsRecorded() throws Exception {
+		long before = evaluations(RecurringStats.Evaluation.NEXT_OCCURRENCE);
+		SearchResponse searchResponse = client().prepareSearch("test")
+			.addSort(SortBuilders.fieldSort("recurrent_date"))
+			.setSize(1)
+			.execute().actionGet();
+		assertNoFailures(searchResponse);
+		// the sort evaluates rules with a budget from the expansion limits, as the queries do
+		assertTrue(evaluations(RecurringStats.Evaluation.NEXT_OCCURRENCE) > before);
+	}
+
+	private long evaluations(RecurringStats.Evaluation evaluation) {
+		RecurringStatsResponse response = client().execute(RecurringStatsAction.INSTANCE, new RecurringStatsRequest()).actionGet();
+		assertFalse(response.hasFailures());
+		long evaluations = 0;
+		for (NodeRecurringStats node : response.getNodes()) {
+			evaluations += node.evaluations(evaluation);
+		}
+		return evaluations;
+	}
+
+	public void testOccurrenceHistogram() throws Exception {
+		SearchResponse searchResponse = client().prepareSearch("test")
+			.setSize(0)
+			.addAggregation(new OccurrenceHistogramAggregationBuilder("months", "recurrent_date")
+				.from("2019-01-01").to("2019-03-31").interval(OccurrenceInterval.MONTH))
+			.execute().actionGet();
+		assertNoFailures(searchResponse);
+
+		List<InternalOccurrenceHistogram.Bucket> buckets =
+			((InternalOccurrenceHistogram) searchResponse.getAggregations().get("months")).getBuckets();
+		assertEquals(3, buckets.size());
+		assertEquals("2019-01-01", buckets.get(0).getKeyAsString());
+		assertEquals(5, buckets.get(0).getCount());
+		assertEquals("2019-02-01", buckets.get(1).getKeyAsString());
+		assertEquals(4, buckets.get(1).getCount());
+		assertEquals("2019-03-01", buckets.get(2).getKeyAsString());
+		assertEquals(0, buckets.get(2).getCount());
+	}
+
+	public void testOccurrenceHistogramOfPlainDates() throws Exception {
+		SearchResponse searchResponse = client().prepareSearch("test")
+			.setSize(0)
+			.addAggregation(new OccurrenceHistogramAggregationBuilder("weeks", "recurrent_date")
+				.from("2017-03-02").to("2017-03-12").interval(OccurrenceInterval.WEEK))
+			.execute().actionGet();
+		assertNoFailures(searchResponse);
+
+		// every day of the carnival within the window, weeks start on Monday
+		List<InternalOccurrenceHistogram.Bucket> buckets =
+			((InternalOccurrenceHistogram) searchResponse.getAggregations().get("weeks")).getBuckets();
+		assertEquals(2, buckets.size());
+		assertEquals("2017-02-27", buckets.get(0).getKeyAsString());
+		assertEquals(4, buckets.get(0).getCount());
+		assertEquals("2017-03-06", buckets.get(1).getKeyAsString());
+		assertEquals(0, buckets.get(1).getCount());
+	}
+
+	public void testFetchOccurrences() throws Exception {
+		SearchRequestBuilder request = client().prepareSearch("test")
+			.setQuery(termQuery("name", "Weekly sync"));
+		request.request().source().ext(Collections.singletonList(
+			new RecurringOccurrencesBuilder("recurrent_date", "2019-01-02", "2019-12-31").limit(3)));
+		SearchResponse searchResponse = request.execute().actionGet();
+		assertNoFailures(searchResponse);
+		assertHitCount(searchResponse, 1);
+
+		SearchHit hit = searchResponse.getHits().getAt(0);
+		assertEquals(Arrays.asList("2019-01-07", "2019-01-14", "2019-01-21"),
+			hit.field(RecurringOccurrencesBuilder.NAME).getValues());
+		assertEquals("2019-01-21", hit.field(RecurringOccurrencesBuilder.AFTER_NAME).getValue());
+
+		// the last page of the window has no cursor
+		request = client().prepareSearch("test").setQuery(termQuery("name", "Weekly sync"));
+		request.request().source().ext(Collections.singletonList(
+			new RecurringOccurrencesBuilder("recurrent_date", "2019-01-02", "2019-03-01").limit(3).after("2019-02-04")));
+		hit = request.execute().actionGet().getHits().getAt(0);
+		assertEquals(Arrays.asList("2019-02-11", "2019-02-18", "2019-02-25"),
+			hit.field(RecurringOccurrencesBuilder.NAME).getValues());
+		assertNull(hit.field(RecurringOccurrencesBuilder.AFTER_NAME));
+
+		// days since 1970-01-01, the cursor stays a date
+		request = client().prepareSearch("test").setQuery(termQuery("name", "Weekly sync"));
+		request.request().source().ext(Collections.singletonList(
+			new RecurringOccurrencesBuilder("recurrent_date", "2019-01-02", "2019-12-31").limit(3).format(OccurrenceFormat.EPOCH_DAY)));
+		hit = request.execute().actionGet().getHits().getAt(0);
+		int monday = EpochDays.parse("2019-01-07");
+		assertEquals(Arrays.asList(monday, monday + 7, monday + 14), hit.field(RecurringOccurrencesBuilder.NAME).getValues());
+		assertEquals("2019-01-21", hit.field(RecurringOccurrencesBuilder.AFTER_NAME).getValue());
+	}
+
+	public void testCalendar() throws Exception {
+		indexEvents("calendar", null);
+		CalendarRequest request = new CalendarRequest("test", "calendar")
+			.field("recurrent_date").from("2016-12-01").to("2017-03-31").size(7);
+		CalendarResponse response = client().execute(CalendarAction.INSTANCE, request).actionGet();
+		assertEquals(0, response.getFailedShards());
+
+		// both indices hold the same events, their occurrences are merged by date
+		List<String> occurrences = new ArrayList<>();
+		response.forEachOccurrence((index, id, day) -> occurrences.add(EpochDays.toLocalDate(day) + "/" + id));
+		assertEquals(Arrays.asList("2016-12-25/1", "2016-12-25/1", "2017-03-01/5", "2017-03-01/5", "2017-03-02/5",
+			"2017-03-02/5", "2017-03-03/5"), occurrences);
+
+		request = new CalendarRequest("test").field("recurrent_date").from("2016-12-01").to("2017-03-31")
+			.query(termQuery("name", "Carnival"));
+		occurrences.clear();
+		client().execute(CalendarAction.INSTANCE, request).actionGet()
+			.forEachOccurrence((index, id, day) -> occurrences.add(EpochDays.toLocalDate(day) + "/" + id));
+		assertEquals(Arrays.asList("2017-03-01/5", "2017-03-02/5", "2017-03-03/5", "2017-03-04/5", "2017-03-05/5"),
+			occurrences);
+
+		// far more occurrences than the size, the shard only keeps the first ones
+		request = new CalendarRequest("test").field("recurrent_date").from("2010-01-01").to("2030-01-01").size(3);
+		occurrences.clear();
+		client().execute(CalendarAction.INSTANCE, request).actionGet()
+			.forEachOccurrence((index, id, day) -> occurrences.add(EpochDays.toLocalDate(day) + "/" + id));
+		assertEquals(Arrays.asList("2015-05-08/2", "2015-05-10/2", "2016-02-10/3"), occurrences);
+	}
+
+	public void testUpcomingOccurrences() throws Exception {
+		// without an end date the calendar lists the next occurrences, rules without end included
+		CalendarRequest request = new CalendarRequest("test").field("recurrent_date").from("2019-01-01").size(12);
+		List<String> occurrences = new ArrayList<>();
+		client().execute(CalendarAction.INSTANCE, request).actionGet()
+			.forEachOccurrence((index, id, day) -> occurrences.add(EpochDays.toLocalDate(day) + "/" + id));
+		assertEquals(Arrays.asList("2019-01-01/6", "2019-01-07/6", "2019-01-14/6", "2019-01-21/6", "2019-01-28/6",
+			"2019-02-04/6", "2019-02-11/6", "2019-02-18/6", "2019-02-25/6", "2019-05-12/2", "2019-12-25/1", "2020-05-10/2"),
+			occurrences);
+	}
+
+	public void testNodeStats() throws Exception {
+		RecurringStatsResponse before = client().execute(RecurringStatsAction.INSTANCE, new RecurringStatsRequest()).actionGet();
+		assertFalse(before.hasFailures());
+
+		CalendarRequest request = new CalendarRequest("test").field("recurrent_date").from("2019-01-01").to("2019-12-31");
+		client().execute(CalendarAction.INSTANCE, request).actionGet();
+
+		RecurringStatsResponse after = client().execute(RecurringStatsAction.INSTANCE, new RecurringStatsRequest()).actionGet();
+		assertEquals(before.getNodes().size(), after.getNodes().size());
+		long evaluations = 0;
+		long latencies = 0;
+		for (NodeRecurringStats node : after.getNodes()) {
+			evaluations += node.evaluations(RecurringStats.Evaluation.OCCURRENCE_ON_OR_AFTER);
+			latencies += node.latencyCount();
+		}
+		for (NodeRecurringStats node : before.getNodes()) {
+			evaluations -= node.evaluations(RecurringStats.Evaluation.OCCURRENCE_ON_OR_AFTER);
+			latencies -= node.latencyCount();
+		}
+		assertTrue("evaluations: " + evaluations, evaluations > 0);
+		assertTrue("latencies: " + latencies, latencies >= evaluations);
+		String json = Strings.toString(after);
+		assertTrue(json, json.contains("\"occurrence_on_or_after\""));
+		assertTrue(json, json.contains("\"evaluation_latency\""));
+	}
+
+	public void testParseQuery() throws Exception {
+		SearchResponse searchResponse = client().prepareSearch("test")
+			.setQuery(wrapperQuery("{\"recurring\":{\"field\":\"recurrent_date\",\"mode\":\"occurs_at\",\"date\":\"2019-02-04\"}}"))
+			.execute().actionGet();
+
+		assertNoFailures(searchResponse);
+		assertHitCount(searchResponse, 1);
+	}
+
+	private long count(QueryBuilder query) {
+		return count("test", query);
+	}
+
+	private long count(String index, QueryBuilder query) {
+		SearchResponse searchResponse = client().prepareSearch(index).setQuery(query).execute().actionGet();
+		assertNoFailures(searchResponse);
+		return searchResponse.getHits().getTotalHits();
+	}
+
+	private long scriptCount(String script, String... params) {
+		Map<String, Object> scriptParams = new HashMap<>();
+		scriptParams.put("field", "recurrent_date");
+		for (int i = 0; i < params.length; i += 2) {
+			scriptParams.put(params[i], params[i + 1]);
+		}
+		return count(scriptQuery(new Script(ScriptType.INLINE, "native", script, scriptParams)));
+	}
+
+	private XContentBuilder createDoc(String name, String start_date, String end_date, String rrule) throws IOException {
+		return XContentFactory.jsonBuilder()
+			.startObject()
+				.field("name", name)
+				.startObject("recurrent_date")
+					.field("start_date", start_date)
+					.field("end_date", end_date)
+					.field("rrule", rrule)
+				.endObject()
+			.endObject();
+	}
+
+}
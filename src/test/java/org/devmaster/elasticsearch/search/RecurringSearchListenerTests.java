@@ -0,0 +1,191 @@
+package org.devmaster.elasticsearch.search;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.SortedNumericDocValuesField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.search.FieldComparator;
+import org.apache.lucene.search.LeafFieldComparator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.devmaster.elasticsearch.index.fielddata.NextOccurrenceComparatorSource;
+import org.devmaster.elasticsearch.index.mapper.EpochDays;
+import org.devmaster.elasticsearch.index.mapper.ExpansionLimits;
+import org.devmaster.elasticsearch.index.mapper.Recurring;
+import org.devmaster.elasticsearch.index.mapper.RecurringValues;
+import org.devmaster.elasticsearch.index.mapper.RuleCache;
+import org.elasticsearch.action.search.SearchAction;
+import org.elasticsearch.action.search.SearchRequest;
+import org.elasticsearch.action.search.SearchTask;
+import org.elasticsearch.common.CheckedConsumer;
+import org.elasticsearch.common.breaker.CircuitBreaker;
+import org.elasticsearch.common.settings.ClusterSettings;
+import org.elasticsearch.common.settings.Settings;
+import org.elasticsearch.common.unit.TimeValue;
+import org.elasticsearch.common.util.BigArrays;
+import org.elasticsearch.indices.breaker.CircuitBreakerService;
+import org.elasticsearch.index.shard.ShardId;
+import org.elasticsearch.indices.breaker.HierarchyCircuitBreakerService;
+import org.elasticsearch.search.MultiValueMode;
+import org.elasticsearch.search.internal.AliasFilter;
+import org.elasticsearch.search.internal.ShardSearchLocalRequest;
+import org.elasticsearch.search.internal.ShardSearchRequest;
+import org.elasticsearch.tasks.TaskCancelledException;
+import org.elasticsearch.tasks.TaskManager;
+import org.elasticsearch.test.ESTestCase;
+import org.elasticsearch.test.TestSearchContext;
+import org.elasticsearch.threadpool.TestThreadPool;
+import org.elasticsearch.threadpool.ThreadPool;
+import org.joda.time.DateTimeZone;
+import org.joda.time.LocalDate;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+public class RecurringSearchListenerTests extends ESTestCase {
+
+	private static final int OCCURRENCES = 36890;
+
+	private final RecurringSearchListener listener = new RecurringSearchListener();
+	private final CircuitBreakerService breakerService = new HierarchyCircuitBreakerService(Settings.EMPTY,
+		new ClusterSettings(Settings.EMPTY, ClusterSettings.BUILT_IN_CLUSTER_SETTINGS));
+
+	public void testCancellation() throws Exception {
+		ThreadPool threadPool = new TestThreadPool(getTestName());
+		try {
+			TaskManager taskManager = new TaskManager(Settings.EMPTY, threadPool, Collections.emptySet());
+			SearchTask task = (SearchTask) taskManager.register("transport", SearchAction.NAME, new SearchRequest());
+			TestSearchContext context = newContext();
+			context.setTask(task);
+			assertCancellation(context, () -> taskManager.cancel(task, "test", () -> {}));
+		} finally {
+			ThreadPool.terminate(threadPool, 10, TimeUnit.SECONDS);
+		}
+	}
+
+	private void assertCancellation(TestSearchContext context, Runnable cancel) throws Exception {
+		withDailyRule(recurring -> {
+			listener.onPreQueryPhase(context);
+			try {
+				assertEquals(OCCURRENCES, walk(recurring));
+				cancel.run();
+				expectThrows(TaskCancelledException.class, () -> walk(recurring));
+			} finally {
+				listener.onFailedQueryPhase(context);
+			}
+			// the check is only set for the duration of a phase
+			assertEquals(OCCURRENCES, walk(recurring));
+
+			listener.onPreFetchPhase(context);
+			try {
+				expectThrows(TaskCancelledException.class, () -> walk(recurring));
+			} finally {
+				listener.onFailedFetchPhase(context);
+			}
+		});
+	}
+
+	public void testTimeoutIsLeftToQueryPhase() throws Exception {
+		TestSearchContext context = newContext();
+		context.timeout(TimeValue.timeValueMillis(10));
+
+		withDailyRule(recurring -> {
+			listener.onPreQueryPhase(context);
+			try {
+				context.timeEstimateCounter().addAndGet(1000);
+				assertEquals(OCCURRENCES, walk(recurring));
+			} finally {
+				listener.onQueryPhase(context, 0);
+			}
+		});
+	}
+
+	public void testFetchPhaseAccountsOccurrences() {
+		CircuitBreaker breaker = breakerService.getBreaker(CircuitBreaker.REQUEST);
+		TestSearchContext context = newContext();
+		OccurrenceBreaker.account(1000);
+		assertEquals(0, breaker.getUsed());
+
+		listener.onPreFetchPhase(context);
+		try {
+			OccurrenceBreaker.account(1000);
+		} finally {
+			listener.onFetchPhase(context, 0);
+		}
+		OccurrenceBreaker.account(1000);
+		// the hits hold the occurrences until the context is freed
+		assertEquals(1000, breaker.getUsed());
+		context.close();
+		assertEquals(0, breaker.getUsed());
+	}
+
+	public void testSortStartsFromSearchDay() throws Exception {
+		// late in the evening of 2000-03-01 in UTC, already the next day east of it
+		long now = new LocalDate("2000-03-01").toDateTimeAtStartOfDay(DateTimeZone.UTC).getMillis() + 23 * 3600000L;
+		ShardSearchRequest request = new ShardSearchLocalRequest(new ShardId("test", "_na_", 0), new String[0], now,
+			AliasFilter.EMPTY);
+		TestSearchContext context = new TestSearchContext(null) {
+			@Override
+			public ShardSearchRequest request() {
+				return request;
+			}
+		};
+		NextOccurrenceComparatorSource source = new NextOccurrenceComparatorSource(new RuleCache(Settings.EMPTY),
+			ExpansionLimits.UNLIMITED, null, MultiValueMode.MIN, null);
+
+		withDailyRuleIndex(reader -> {
+			listener.onPreQueryPhase(context);
+			FieldComparator<?> comparator;
+			try {
+				comparator = source.newComparator("field", 1, 0, false);
+			} finally {
+				listener.onQueryPhase(context, 0);
+			}
+			LeafFieldComparator leaf = comparator.getLeafComparator(reader.leaves().get(0));
+			leaf.copy(0, 0);
+			assertEquals((long) EpochDays.of(2000, 3, 1), comparator.value(0));
+		});
+	}
+
+	private TestSearchContext newContext() {
+		BigArrays bigArrays = new BigArrays(null, breakerService, CircuitBreaker.REQUEST);
+		return new TestSearchContext(null) {
+			@Override
+			public BigArrays bigArrays() {
+				return bigArrays;
+			}
+		};
+	}
+
+	private static int walk(Recurring recurring) throws Exception {
+		return recurring.occurrencesBetween(EpochDays.of(1900, 1, 1), EpochDays.of(2000, 12, 31)).size();
+	}
+
+	private static void withDailyRule(CheckedConsumer<Recurring, Exception> consumer) throws Exception {
+		ExpansionLimits limits = new ExpansionLimits(Settings.builder()
+			.put(ExpansionLimits.MAX_OCCURRENCES_PER_DOCUMENT_SETTING.getKey(), 2 * OCCURRENCES)
+			.build());
+		withDailyRuleIndex(reader -> {
+			RecurringValues values = RecurringValues.forLeaf(reader.leaves().get(0), "field",
+				new RuleCache(Settings.EMPTY), limits.newBudget());
+			consumer.accept(values.get(0));
+		});
+	}
+
+	private static void withDailyRuleIndex(CheckedConsumer<DirectoryReader, Exception> consumer) throws Exception {
+		try (Directory dir = newDirectory()) {
+			try (IndexWriter writer = new IndexWriter(dir, new IndexWriterConfig())) {
+				Document doc = new Document();
+				doc.add(new SortedDocValuesField("field", new BytesRef("RRULE:FREQ=DAILY")));
+				doc.add(new SortedNumericDocValuesField("field.start_date",
+					new LocalDate("1900-01-01").toDateTimeAtStartOfDay(DateTimeZone.UTC).getMillis()));
+				writer.addDocument(doc);
+			}
+			try (DirectoryReader reader = DirectoryReader.open(dir)) {
+				consumer.accept(reader);
+			}
+		}
+	}
+}